@@ -40,6 +40,9 @@ public class HaboobStats {
   public static int numCacheMisses;
   public static int cacheSizeBytes;
   public static int cacheSizeEntries;
+  // Entries sent from the file itself (see sendfileThreshold)
+  public static int cacheSizeFileEntries;
+  public static long cacheSizeFileBytes;
 
   // Profiling
   public static long timeCacheLookup;
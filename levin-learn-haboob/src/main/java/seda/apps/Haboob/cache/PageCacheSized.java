@@ -28,11 +28,14 @@ import seda.apps.Haboob.*;
 import seda.apps.Haboob.http.*;
 import seda.sandStorm.api.*;
 import seda.sandStorm.core.*;
+import seda.sandstorm.core.FileRegionEvent;
 import seda.sandStorm.lib.http.*;
 import seda.sandStorm.lib.aSocket.*;
 import seda.sandStorm.lib.aDisk.*;
 import seda.util.*;
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
 
 // For JDK1.1 Collections package
@@ -83,6 +86,17 @@ public class PageCacheSized implements EventHandlerIF, HaboobConst {
   private int maxCacheSize; 
   private Random rand;
 
+  // Files of at least this many bytes are not read into the cache, but
+  // sent straight from the file to the socket; -1 to disable
+  private int sendfileThreshold;
+  // Whether such files are sent with transferTo() or mmap()
+  private boolean sendfileMap;
+  // Entries for such files, least recently used first; each one may hold
+  // an open channel, so at most maxFileEntries are kept
+  private ssLinkedList fileList;
+  private int maxFileEntries;
+  private static final int DEFAULT_MAX_FILE_ENTRIES = 256;
+
   private Hashtable mimeTbl; // Filename extension -> MIME type
   private static final String defaultMimeType = "text/plain";
 
@@ -102,6 +116,10 @@ public class PageCacheSized implements EventHandlerIF, HaboobConst {
     DEFAULT_URL = hitStage.DEFAULT_URL;
     ROOT_DIR = hitStage.ROOT_DIR;
     maxCacheSize = hitStage.maxCacheSize;
+    sendfileThreshold = hitStage.sendfileThreshold;
+    sendfileMap = hitStage.sendfileMap;
+    fileList = hitStage.fileList;
+    maxFileEntries = hitStage.maxFileEntries;
     if (PRIORITIZE_HITS) {
       myComp = hitStage.myComp;
     }
@@ -130,6 +148,19 @@ public class PageCacheSized implements EventHandlerIF, HaboobConst {
       ROOT_DIR = config.getString("rootDir");
       if (ROOT_DIR == null) throw new IllegalArgumentException("Must specify rootDir");
       maxCacheSize = config.getInt("maxCacheSize");
+      sendfileThreshold = config.getInt("sendfileThreshold");
+      String mode = config.getString("sendfileMode");
+      if ((mode == null) || mode.equals("transfer")) {
+	sendfileMap = false;
+      } else if (mode.equals("map")) {
+	sendfileMap = true;
+      } else {
+	throw new IllegalArgumentException("sendfileMode must be 'transfer' or 'map', not "+mode);
+      }
+      maxFileEntries = config.getInt("maxFileEntries");
+      if (maxFileEntries <= 0) maxFileEntries = DEFAULT_MAX_FILE_ENTRIES;
+      fileList = new ssLinkedList();
+      System.err.println("PageCacheSized: sendfileThreshold="+sendfileThreshold+", sendfileMode="+(sendfileMap?"map":"transfer")+", maxFileEntries="+maxFileEntries);
 
       if (PRIORITIZE_HITS) {
 	myComp = new myComparator();
@@ -374,6 +405,14 @@ public class PageCacheSized implements EventHandlerIF, HaboobConst {
 	}
       }
 
+      if ((sendfileThreshold != -1) && (stat.length >= sendfileThreshold)) {
+	// Large file - don't read it, just keep it open
+	af.close();
+	entry = getFileEntry(req, fname, stat.length);
+	if (entry != null) entry.send(req);
+	return;
+      }
+
       // Allocate entry
       if (DEBUG) System.err.println("PageCacheSized: Got file size "+stat.length);
       entry = getEntry(req, af, (int)stat.length);
@@ -449,11 +488,56 @@ public class PageCacheSized implements EventHandlerIF, HaboobConst {
 
   }
 
+  // Obtain a cache entry for a file which is sent from the file itself;
+  // the entry holds only the open channel or mapping, never the contents
+  private cacheEntry getFileEntry(httpRequest req, String fname, long length) {
+    // Evict the least recently used file entries to make room
+    while (true) {
+      cacheEntry old;
+      synchronized (fileList) {
+	if (fileList.size() < maxFileEntries) break;
+	old = (cacheEntry)fileList.get_head();
+      }
+      if (DEBUG) System.err.println("PageCacheSized: Evicting file entry "+old);
+      old.free();
+    }
+
+    FileChannel fc = null;
+    try {
+      if (length > Integer.MAX_VALUE) throw new IOException("File too large ("+length+" bytes)");
+      fc = new RandomAccessFile(fname, "r").getChannel();
+      if (sendfileMap) {
+	// The mapping stays valid after the channel is closed
+	MappedByteBuffer mapped = fc.map(FileChannel.MapMode.READ_ONLY, 0, length);
+	fc.close();
+	return new cacheEntry(req, fname, new FileRegionEvent(mapped, null));
+      } else {
+	return new cacheEntry(req, fname, new FileRegionEvent(fc, 0, (int)length));
+      }
+
+    } catch (IOException ioe) {
+      System.err.println("PageCacheSized: Could not open file "+fname+": "+ioe);
+      if (fc != null) {
+	try {
+	  fc.close();
+	} catch (IOException e) {
+	  // Ignore
+	}
+      }
+      HaboobStats.numErrors++;
+      httpNotFoundResponse notfound = new httpNotFoundResponse(req, ioe.getMessage());
+      HttpSend.sendResponse(new httpResponder(notfound, req, true));
+      return null;
+    }
+  }
+
   private class cacheEntry {
     httpOKResponse response;
     boolean pending;
     int size;
     AFile af;
+    FileRegionEvent region;
+    boolean fileBacked;
     ssLinkedList waiting, sizeList;
     String url;
     long tStartRead, tEndRead;
@@ -492,6 +576,27 @@ public class PageCacheSized implements EventHandlerIF, HaboobConst {
       HaboobStats.cacheSizeEntries++;
       HaboobStats.cacheSizeBytes += size;
     }
+
+    // Allocate a cache entry sent from a file region; it is never pending,
+    // takes no space in the cache and is not reused for other files
+    private cacheEntry(httpRequest req, String fname, FileRegionEvent region) {
+      if (DEBUG) System.err.println("PageCacheSized: Allocating file entry for "+fname+": "+region);
+
+      this.response = new httpOKResponse(getMimeType(fname), region);
+      this.size = region.size;
+      this.url = req.getURL();
+      this.region = region;
+      this.fileBacked = true;
+      pending = false;
+      waiting = new ssLinkedList();
+      pageTbl.put(url, this);
+      synchronized (fileList) {
+	fileList.add_to_tail(this);
+      }
+      this.sizeList = fileList;
+      HaboobStats.cacheSizeFileEntries++;
+      HaboobStats.cacheSizeFileBytes += size;
+    }
     
     // Reuse a cache entry
     /* FIXME: Avoid reuse of cache entry that is currently being
@@ -540,16 +645,32 @@ public class PageCacheSized implements EventHandlerIF, HaboobConst {
       }
     }
 
-    // Free cache entry and remove from system for GC
+    // Free cache entry and remove from system for GC; a file entry gives up
+    // its reference to the channel, which is closed once the responses
+    // still being sent from it are done
     void free() {
       System.err.println("PageCacheSized: Freeing entry "+this);
+      if (sizeList == fileList) {
+	synchronized (fileList) {
+	  if (fileList.remove_item(this) == null) return; // already evicted
+	}
+	sizeList = null;
+      }
       if (af != null) {
 	aFileTbl.remove(af);
 	af.close();
 	af = null;
       }
+      if (region != null) {
+	region.release();
+	region = null;
+      }
       pageTbl.remove(url);
-      sizeList.remove_item(this);
+      if (sizeList != null) sizeList.remove_item(this);
+      if (fileBacked) {
+	HaboobStats.cacheSizeFileEntries--;
+	HaboobStats.cacheSizeFileBytes -= size;
+      }
       response = null;
     }
 
@@ -591,6 +712,12 @@ public class PageCacheSized implements EventHandlerIF, HaboobConst {
 
     // Send cache entry on hit
     void send(httpRequest req) {
+      if (fileBacked) {
+	// Move to the tail of the LRU list
+	synchronized (fileList) {
+	  if (fileList.remove_item(this) != null) fileList.add_to_tail(this);
+	}
+      }
       httpResponder respd = new httpResponder(response, req);
       HttpSend.sendResponse(respd);
     }
@@ -598,6 +725,8 @@ public class PageCacheSized implements EventHandlerIF, HaboobConst {
     public String toString() {
       if (af != null) {
 	return "cacheEntry [af="+af.getFilename()+", size="+size+"]";
+      } else if (fileBacked) {
+	return "cacheEntry [file, size="+size+"]";
       } else {
 	return "cacheEntry [size="+size+"]";
       }
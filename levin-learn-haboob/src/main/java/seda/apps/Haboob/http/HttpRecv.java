@@ -287,6 +287,7 @@ public class HttpRecv implements EventHandlerIF, HaboobConst {
     repl += "\n<p><b>Cache Statistics</b>\n";
     double cacheSizeKb = HaboobStats.cacheSizeBytes/1024.0;
     repl += "<br>Current size of page cache: "+HaboobStats.cacheSizeEntries+" files, "+MDWUtil.format(cacheSizeKb)+" KBytes\n";
+    repl += "<br>Files sent without caching contents: "+HaboobStats.cacheSizeFileEntries+" files, "+MDWUtil.format(HaboobStats.cacheSizeFileBytes/1024.0)+" KBytes\n";
     pct = (HaboobStats.numCacheHits * 100.0 / HaboobStats.numRequests);
     repl += "<br>Cache hits: "+HaboobStats.numCacheHits+" ("+MDWUtil.format(pct)+"%)\n";
     pct = (HaboobStats.numCacheMisses * 100.0 / HaboobStats.numRequests);
@@ -107,6 +107,10 @@ public class StageGraph {
         threads.put(thread, stage);
     }
 
+    public synchronized void removeThread(Thread thread) {
+        threads.remove(thread);
+    }
+
     public synchronized void addEdge(StageGraphEdge edge) {
         if (!edges.contains(edge)) {
             if ((edge.fromStage == null) || (edge.toStage == null)
@@ -26,6 +26,7 @@ package seda.sandstorm.internal;
 
 import seda.sandstorm.api.ConfigData;
 import seda.sandstorm.api.EventHandler;
+import seda.sandstorm.api.EventQueue;
 import seda.sandstorm.api.EventSink;
 import seda.sandstorm.api.EventSource;
 import seda.sandstorm.api.Manager;
@@ -36,6 +37,8 @@ import seda.sandstorm.api.internal.StageWrapper;
 import seda.sandstorm.api.internal.ThreadManager;
 import seda.sandstorm.core.EventQueueImpl;
 import seda.sandstorm.core.QueueThresholdPredicate;
+import seda.sandstorm.core.RingBufferEventQueue;
+import seda.sandstorm.main.SandstormConfig;
 
 /**
  * A StageWrapper is a basic implementation of StageWrapperIF for
@@ -49,7 +52,7 @@ class StageWrapperImpl implements StageWrapper {
     private Stage stage;
     private EventHandler handler;
     private ConfigData config;
-    private EventQueueImpl eventQ;
+    private EventQueue eventQ;
     private ThreadManager threadmgr;
     private StageStats stats;
     private ResponseTimeController rtcon;
@@ -64,7 +67,7 @@ class StageWrapperImpl implements StageWrapper {
         this.handler = handler;
         this.config = config;
         this.threadmgr = threadmgr;
-        eventQ = new EventQueueImpl(name);
+        eventQ = createEventQueue(mgr);
         this.stats = new StageStatsImpl(this);
         this.stage = new StageImpl(name, this, (EventSink) eventQ, config);
         config.setStage(this.stage);
@@ -85,7 +88,7 @@ class StageWrapperImpl implements StageWrapper {
         this.stats = new StageStatsImpl(this);
         this.rtcon = null;
 
-        eventQ = new EventQueueImpl(name);
+        eventQ = createEventQueue(mgr);
         QueueThresholdPredicate pred = new QueueThresholdPredicate(eventQ,
                 queueThreshold);
         eventQ.setEnqueuePredicate(pred);
@@ -95,6 +98,22 @@ class StageWrapperImpl implements StageWrapper {
         createRTController(mgr);
     }
 
+    private EventQueue createEventQueue(Manager mgr) {
+        SandstormConfig config = mgr.getConfig();
+        String type = config.getString("stages." + name + ".queue.type",
+                config.getString("global.queue.type", SandstormConfig.QUEUE_LINKED));
+        if (type.equals(SandstormConfig.QUEUE_LINKED)) {
+            return new EventQueueImpl(name);
+        } else if (type.equals(SandstormConfig.QUEUE_RING)) {
+            int capacity = config.getInt("stages." + name + ".queue.capacity",
+                    config.getInt("global.queue.capacity", RingBufferEventQueue.DEFAULT_CAPACITY));
+            return new RingBufferEventQueue(name, capacity);
+        } else {
+            throw new RuntimeException("StageWrapper <" + name
+                    + ">: Bad queue type " + type);
+        }
+    }
+
     private void createRTController(Manager mgr) {
         boolean rtControllerEnabled = mgr.getConfig()
                 .getBoolean("global.rtController.enable");
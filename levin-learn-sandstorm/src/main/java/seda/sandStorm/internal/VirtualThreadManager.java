@@ -0,0 +1,279 @@
+package seda.sandstorm.internal;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Maps;
+
+import seda.sandstorm.api.EventElement;
+import seda.sandstorm.api.EventSource;
+import seda.sandstorm.api.Manager;
+import seda.sandstorm.api.Profilable;
+import seda.sandstorm.api.SingleThreadedEventHandlerIF;
+import seda.sandstorm.api.internal.ResponseTimeController;
+import seda.sandstorm.api.internal.StageWrapper;
+import seda.sandstorm.api.internal.ThreadManager;
+import seda.sandstorm.main.SandstormConfig;
+
+/**
+ * VirtualThreadManager runs every batch of events on its own thread instead
+ * of on a fixed per-stage pool. Each stage has one dispatcher which dequeues
+ * a batch and hands it to a new task as soon as the stage is below its
+ * concurrency limit, so a stage whose handler blocks (on disk or a database)
+ * keeps up to <tt>maxConcurrency</tt> batches in flight.
+ * <p>
+ * Tasks run on virtual threads when the JVM provides them (Java 21 and
+ * later). On older JVMs, including the Java 17 this tree is built for, they
+ * run on a shared cached pool of platform threads, which only grows to the
+ * number of batches actually in flight; {@link #isVirtual} tells which.
+ * <p>
+ * Configuration, per stage with a global fallback:
+ * <ul>
+ * <li><tt>VTTM.maxConcurrency</tt>: batches a stage may run at once
+ * (always 1 for a {@link SingleThreadedEventHandlerIF});</li>
+ * <li><tt>VTTM.batchSize</tt>: events per batch, -1 for all queued events.</li>
+ * </ul>
+ *
+ * @see TPSThreadManager
+ */
+public class VirtualThreadManager implements ThreadManager {
+    private static final Logger LOGGER = LoggerFactory.getLogger(VirtualThreadManager.class);
+
+    protected Manager mgr;
+    protected SandstormConfig config;
+    protected Map<StageWrapper, StageDispatcher> dispatchers;
+    private final ThreadFactory threadFactory;
+    private final ExecutorService executor;
+    private final boolean virtual;
+
+    public VirtualThreadManager(Manager mgr) {
+        this(mgr, virtualThreadFactory("VTTM-"));
+    }
+
+    /**
+     * Create a VirtualThreadManager which starts a thread from the given
+     * factory for every task, or uses a cached pool of platform threads if
+     * the factory is null.
+     */
+    VirtualThreadManager(Manager mgr, ThreadFactory threadFactory) {
+        this.mgr = mgr;
+        this.config = mgr.getConfig();
+        this.dispatchers = Maps.newConcurrentMap();
+
+        this.threadFactory = threadFactory;
+        this.virtual = (threadFactory != null);
+        if (virtual) {
+            this.executor = null;
+        } else {
+            final AtomicInteger count = new AtomicInteger();
+            this.executor = Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "VTTM-" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        LOGGER.info("VTTM: running stages on {} threads", virtual ? "virtual" : "pooled platform");
+    }
+
+    /**
+     * Return a factory for virtual threads, or null if this JVM has none.
+     */
+    static ThreadFactory virtualThreadFactory(String prefix) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private void execute(Runnable task) {
+        if (virtual) {
+            threadFactory.newThread(task).start();
+        } else {
+            executor.execute(task);
+        }
+    }
+
+    /**
+     * Return true if tasks run on threads from the thread factory (virtual
+     * threads by default) rather than on the platform thread pool.
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Register a stage with this thread manager.
+     */
+    public void register(StageWrapper stage) {
+        StageDispatcher dispatcher = new StageDispatcher(stage);
+        if (dispatchers.putIfAbsent(stage, dispatcher) != null) {
+            throw new IllegalStateException("Stage " + stage.getStage().getName() + " already registered");
+        }
+        mgr.getProfiler().add("VTTM <" + dispatcher.name + "> inFlight", dispatcher);
+        execute(dispatcher);
+    }
+
+    /**
+     * Deregister a stage with this thread manager.
+     */
+    public void deregister(StageWrapper stage) {
+        StageDispatcher dispatcher = dispatchers.remove(stage);
+        if (dispatcher != null) {
+            dispatcher.stop();
+        }
+    }
+
+    /**
+     * Stop the thread manager and all threads managed by it.
+     */
+    public void deregisterAll() {
+        for (StageWrapper stage : dispatchers.keySet()) {
+            deregister(stage);
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Dequeues batches for a single stage and runs each on its own thread,
+     * with at most maxConcurrency batches in flight.
+     */
+    public class StageDispatcher implements Runnable, Profilable {
+        protected StageWrapper wrapper;
+        protected EventSource source;
+        protected String name;
+        protected ResponseTimeController rtController;
+        protected int blockTime;
+        protected int batchSize;
+        protected int maxConcurrency;
+        protected final Semaphore permits;
+        protected final AtomicInteger inFlight = new AtomicInteger();
+        protected final boolean graphProfile;
+        private volatile boolean running = true;
+        private volatile Thread dispatchThread;
+
+        protected StageDispatcher(StageWrapper wrapper) {
+            this.wrapper = wrapper;
+            this.source = wrapper.getSource();
+            this.name = wrapper.getStage().getName();
+            this.rtController = wrapper.getResponseTimeController();
+
+            String tag = "stages." + name + ".";
+            this.blockTime = config.getInt(tag + "threadPool.blockTime",
+                    config.getInt("global.threadPool.blockTime", 1000));
+            this.batchSize = config.getInt(tag + "VTTM.batchSize",
+                    config.getInt("global.VTTM.batchSize", -1));
+            if (wrapper.getEventHandler() instanceof SingleThreadedEventHandlerIF) {
+                this.maxConcurrency = 1;
+            } else {
+                this.maxConcurrency = config.getInt(tag + "VTTM.maxConcurrency",
+                        config.getInt("global.VTTM.maxConcurrency", 1000));
+                if (this.maxConcurrency < 1)
+                    this.maxConcurrency = 1;
+            }
+            this.permits = new Semaphore(maxConcurrency);
+            this.graphProfile = config.getBoolean("global.profile.graph");
+
+            LOGGER.info("VTTM <{}>: maxConcurrency {}, batchSize {}, blockTime {}",
+                    name, maxConcurrency, batchSize, blockTime);
+        }
+
+        void stop() {
+            running = false;
+            Thread t = dispatchThread;
+            if (t != null) {
+                t.interrupt();
+            }
+        }
+
+        public void run() {
+            dispatchThread = Thread.currentThread();
+            LOGGER.debug("{}: starting, source is {}", name, source);
+
+            while (running) {
+                try {
+                    // Only take events off the queue once they can be run
+                    if (!permits.tryAcquire(blockTime, TimeUnit.MILLISECONDS)) {
+                        continue;
+                    }
+
+                    EventElement fetched[];
+                    if (batchSize == -1) {
+                        fetched = source.blockingDequeueAll(blockTime);
+                    } else {
+                        fetched = source.blockingDequeue(blockTime, batchSize);
+                    }
+                    if (fetched == null) {
+                        permits.release();
+                        continue;
+                    }
+
+                    LOGGER.trace("{}: Got {} elements for {}", name, fetched.length, wrapper);
+                    inFlight.incrementAndGet();
+                    execute(() -> runBatch(fetched));
+                } catch (InterruptedException e) {
+                    // stop() sets running to false
+                } catch (Exception e) {
+                    LOGGER.error("VTTM: dispatcher [" + name + "] got exception ", e);
+                }
+            }
+            LOGGER.debug("{}: Exiting", name);
+        }
+
+        private void runBatch(EventElement fetched[]) {
+            Thread thread = Thread.currentThread();
+            StageGraph graph = null;
+            if (graphProfile) {
+                graph = mgr.getProfiler().getGraphProfiler();
+                graph.addThread(thread, wrapper);
+            }
+            try {
+                /* Process events */
+                long tstart = System.currentTimeMillis();
+                wrapper.getEventHandler().handleEvents(fetched);
+                long tend = System.currentTimeMillis();
+
+                /* Record service rate */
+                wrapper.getStats().recordServiceRate(fetched.length, tend - tstart);
+
+                /* Run response time controller controller */
+                if (rtController != null) {
+                    if (rtController instanceof ResponseTimeControllerMM1) {
+                        ((ResponseTimeControllerMM1) rtController)
+                                .adjustThreshold(fetched, tstart, tend, false, inFlight.get());
+                    } else {
+                        rtController.adjustThreshold(fetched, tend - tstart);
+                    }
+                }
+            } catch (Exception e) {
+                LOGGER.error("VTTM: stage [" + name + "] got exception ", e);
+            } finally {
+                if (graph != null) {
+                    graph.removeThread(thread);
+                }
+                inFlight.decrementAndGet();
+                permits.release();
+            }
+        }
+
+        /**
+         * Return the number of batches currently being handled.
+         */
+        public int profileSize() {
+            return inFlight.get();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package seda.sandstorm.lib.http;
+
+import seda.sandstorm.api.EventElement;
+import seda.sandstorm.core.BufferEvent;
+
+/**
+ * A piece of the body of an HTTP request. The pieces of a body are pushed
+ * to the user in order after the httpRequest itself, as they arrive; the
+ * last one has isLast() set.
+ *
+ * @see HttpRequest#hasBody
+ */
+public class HttpBodyEvent implements EventElement {
+
+  private HttpRequest req;
+  private BufferEvent buf;
+  private boolean last;
+
+  HttpBodyEvent(HttpRequest req, BufferEvent buf, boolean last) {
+    this.req = req;
+    this.buf = buf;
+    this.last = last;
+  }
+
+  /**
+   * Return the request this body belongs to.
+   */
+  public HttpRequest getRequest() {
+    return req;
+  }
+
+  /**
+   * Return the data, or null for the event which ends a chunked body.
+   */
+  public BufferEvent getBuffer() {
+    return buf;
+  }
+
+  /**
+   * Indicates whether this is the last piece of the body.
+   */
+  public boolean isLast() {
+    return last;
+  }
+
+  public String toString() {
+    return "httpBodyEvent [req="+req+", size="+((buf == null)?0:buf.size)+", last="+last+"]";
+  }
+
+}
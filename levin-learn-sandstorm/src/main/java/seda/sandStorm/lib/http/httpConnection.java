@@ -38,6 +38,20 @@ import java.net.*;
  * To send HTTP responses to a client, you can enqueue an httpResponse
  * object on the corresponding httpConnection.
  *
+ * <p>The connection is kept alive across requests as HTTP/1.1 allows, and
+ * requests may be pipelined. Responses are sent in the order of the
+ * requests: a response which is ready before the ones ahead of it is held
+ * until they have been sent. At most <tt>global.http.maxOutstanding</tt>
+ * requests are pushed to the user before their responses are sent; after
+ * that the connection stops parsing requests until one is answered.
+ * A request which cannot be pushed to the user is answered at once with
+ * a 503 response, so that the responses after it are not held forever.
+ *
+ * <p>Closing the connection after a response which closes it (see
+ * HttpResponder.shouldClose()) waits until that response has been sent,
+ * so that the responses held ahead of it, and the rest of its own body,
+ * still go out. Responses to later requests are dropped.
+ *
  * @author Matt Welsh
  * @see HttpRequest
  * @see HttpResponse
@@ -51,6 +65,26 @@ public class HttpConnection extends SimpleSink implements HttpConst, EventElemen
   private EventSink compQ;
   private HttpPacketReader hpr;
 
+  private int maxOutstanding;
+  private int nextSeq;          // seq of the next request read
+  private int sendSeq;          // seq of the request answered next
+  private int claimSeq;         // next seq for a responder without request
+  private Map held;             // Integer seq -> Held, responses sent early
+  private EventSink resumeQ;    // where to push this to resume parsing
+  private boolean resumeNeeded; // parsing stopped with too many outstanding
+  private boolean resumeQueued;
+  private int closeSeq = -1;    // seq of the response closing the connection
+  private EventSink closeQ;     // compQ of a close waiting for closeSeq
+
+  // Parsing runs on any thread of the httpServer stage
+  private final Object parseLock = new Object();
+
+  // The buffers of a response waiting for the responses ahead of it
+  private static class Held {
+    List bufs = new ArrayList();
+    boolean complete;
+  }
+
   /** 
    * Can be used by applications to associate an arbitrary data object 
    * with this connection.
@@ -62,10 +96,23 @@ public class HttpConnection extends SimpleSink implements HttpConst, EventElemen
    * connection and completion queue.
    */
   HttpConnection(ATcpConnection tcpconn, HttpServer hs, EventSink compQ) {
+    this(tcpconn, hs, compQ, (hs == null) ? 0 : hs.getMaxOutstanding(),
+	(hs == null) ? null : hs.getSink());
+  }
+
+  /**
+   * Package-internal: Create an httpConnection which stops parsing
+   * requests while maxOutstanding are not answered, and is pushed to
+   * resumeQ to parse again.
+   */
+  HttpConnection(ATcpConnection tcpconn, HttpServer hs, EventSink compQ,
+      int maxOutstanding, EventSink resumeQ) {
     this.tcpconn = tcpconn;
     this.hs = hs;
     this.compQ = compQ;
     this.hpr = new HttpPacketReader(this, compQ);
+    this.maxOutstanding = maxOutstanding;
+    this.resumeQ = resumeQ;
 
     // Push myself to user
     compQ.enqueueLossy(this);
@@ -75,7 +122,141 @@ public class HttpConnection extends SimpleSink implements HttpConst, EventElemen
    * Package-internal: Parse the data contained in the given TCP packet.
    */
   void parsePacket(ATcpInPacket pkt) throws IOException {
-    hpr.parsePacket(pkt);
+    synchronized (parseLock) {
+      hpr.parsePacket(pkt);
+    }
+  }
+
+  /**
+   * Package-internal: Parse the requests held while too many were
+   * outstanding. Called by httpServer when this connection is pushed
+   * back to it after a response.
+   */
+  void resumeParsing() throws IOException {
+    synchronized (this) {
+      resumeQueued = false;
+      resumeNeeded = false;
+    }
+    synchronized (parseLock) {
+      hpr.resume();
+    }
+  }
+
+  /**
+   * Package-internal: Called before a request is parsed; returns true,
+   * and remembers to resume parsing later, if as many requests are
+   * outstanding as allowed.
+   */
+  synchronized boolean stopParsing() {
+    if (!isBlocked()) return false;
+    resumeNeeded = true;
+    return true;
+  }
+
+  /**
+   * Package-internal: Called for each request read; returns its
+   * sequence number.
+   */
+  synchronized int requestStarted() {
+    return nextSeq++;
+  }
+
+  /**
+   * Package-internal: Called for a request which could not be pushed to
+   * the user; answers it at once.
+   */
+  void requestDropped(HttpRequest req) {
+    HttpResponse resp = new HttpServiceUnavailableResponse(req,
+	"Too many requests, please try again later");
+    HttpResponder responder = new HttpResponder(resp, req);
+    if (!enqueueLossy(responder)) {
+      if (DEBUG) System.err.println("httpConnection: could not answer dropped request "+req);
+    } else if (responder.shouldClose()) {
+      try {
+	close(compQ);
+      } catch (SinkClosedException sce) {
+	// Already closed
+      }
+    }
+  }
+
+  /**
+   * Package-internal: Indicates whether as many requests are outstanding
+   * as allowed.
+   */
+  synchronized boolean isBlocked() {
+    return (maxOutstanding > 0) && (nextSeq - sendSeq >= maxOutstanding);
+  }
+
+  /**
+   * Return the number of requests pushed to the user which have not been
+   * answered yet.
+   */
+  public synchronized int numOutstanding() {
+    return nextSeq - sendSeq;
+  }
+
+  /**
+   * Package-internal: Send buffers of the given response, in request
+   * order. complete indicates that the response ends with these buffers.
+   */
+  synchronized void send(HttpResponder resp, BufferEvent bufarr[],
+      boolean complete) throws SinkException {
+    if (resp.seq < 0) {
+      // Answers the oldest request not answered yet, if any
+      if (claimSeq < sendSeq) claimSeq = sendSeq;
+      if (claimSeq < nextSeq) resp.seq = claimSeq++;
+    }
+    int seq = resp.seq;
+    if (seq >= 0 && closeSeq >= 0 && seq > closeSeq) {
+      // The connection closes after an earlier response
+      throw new SinkClosedException("httpConnection closing");
+    }
+    if (seq >= 0 && resp.shouldClose() && closeSeq < 0) closeSeq = seq;
+    if (seq >= 0 && seq != sendSeq) {
+      if (DEBUG) System.err.println("httpConnection: holding response "+seq+", sending "+sendSeq);
+      if (held == null) held = new HashMap();
+      Integer key = Integer.valueOf(seq);
+      Held h = (Held)held.get(key);
+      if (h == null) {
+	h = new Held();
+	held.put(key, h);
+      }
+      if (bufarr != null) h.bufs.addAll(Arrays.asList(bufarr));
+      h.complete = complete;
+      return;
+    }
+
+    if (bufarr != null) tcpconn.enqueueMany(bufarr);
+    if (seq < 0 || !complete) return;
+
+    // Send the held responses which are next in order
+    sendSeq++;
+    while (held != null && !held.isEmpty() && (closeSeq < 0 || sendSeq <= closeSeq)) {
+      Held h = (Held)held.remove(Integer.valueOf(sendSeq));
+      if (h == null) break;
+      if (!h.bufs.isEmpty()) {
+	BufferEvent arr[] = new BufferEvent[h.bufs.size()];
+	tcpconn.enqueueMany((BufferEvent[])h.bufs.toArray(arr));
+      }
+      if (!h.complete) break;
+      sendSeq++;
+    }
+    if (closeQ != null && sendSeq > closeSeq) {
+      // The closing response is out; finish the close asked for earlier
+      held = null;
+      try {
+	doClose(closeQ);
+      } catch (SinkClosedException sce) {
+	// Already closed
+      }
+      return;
+    }
+    if (resumeNeeded && !resumeQueued && resumeQ != null && !isBlocked()) {
+      // Parsing stopped for this connection; have httpServer resume it.
+      // If it cannot take us now, the next response tries again.
+      resumeQueued = resumeQ.enqueueLossy(this);
+    }
   }
 
   /**
@@ -98,9 +279,9 @@ public class HttpConnection extends SimpleSink implements HttpConst, EventElemen
   public void enqueue(EventElement element) throws SinkException {
     if (DEBUG) System.err.println("httpConnection.enqueue: "+element);
     HttpResponder resp = (HttpResponder)element;
-    HttpResponse packet = resp.getResponse();
-    BufferEvent bufarr[] = packet.getBuffers(resp.sendHeader());
-    tcpconn.enqueueMany(bufarr);
+    boolean done[] = new boolean[1];
+    BufferEvent bufarr[] = resp.start(done);
+    send(resp, bufarr, done[0]);
   }
 
   /**
@@ -110,10 +291,10 @@ public class HttpConnection extends SimpleSink implements HttpConst, EventElemen
   public boolean enqueueLossy(EventElement element) {
     if (DEBUG) System.err.println("httpConnection.enqueue_lossy: "+element);
     HttpResponder resp = (HttpResponder)element;
-    HttpResponse packet = resp.getResponse();
-    BufferEvent bufarr[] = packet.getBuffers(resp.sendHeader());
+    boolean done[] = new boolean[1];
+    BufferEvent bufarr[] = resp.start(done);
     try {
-      tcpconn.enqueueMany(bufarr);
+      send(resp, bufarr, done[0]);
     } catch (SinkException se) {
       return false;
     }
@@ -138,14 +319,28 @@ public class HttpConnection extends SimpleSink implements HttpConst, EventElemen
   }
 
   /**
-   * Close the connection.
+   * Close the connection. If a response which closes the connection has
+   * not been sent yet, because it waits for the responses ahead of it or
+   * for the rest of its body, the connection is closed once it has been.
    */
   public void close(final EventSink compQ) throws SinkClosedException {
+    synchronized (this) {
+      if (closeQ != null) throw new SinkClosedException("httpConnection closing");
+      if (closeSeq >= 0 && sendSeq <= closeSeq) {
+	if (DEBUG) System.err.println("httpConnection: close waits for response "+closeSeq+", sending "+sendSeq);
+	closeQ = compQ;
+	return;
+      }
+    }
+    doClose(compQ);
+  }
+
+  private void doClose(final EventSink compQ) throws SinkClosedException {
     // XXX For now, allow a connection to be closed multiple times.
     // Tricky bit below: Provide anonymous SinkIF as 'compQ' which
     // we re-enqueue onto user compQ as appropriate SinkDrainedEvent!
 
-    hs.cleanupConnection(this);
+    if (hs != null) hs.cleanupConnection(this);
     tcpconn.close(new SimpleSink() {
 	public void enqueue(EventElement qel) throws SinkException {
 	  compQ.enqueue(new SinkClosedEvent(HttpConnection.this));
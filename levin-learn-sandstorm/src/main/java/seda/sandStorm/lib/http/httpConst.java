@@ -43,6 +43,12 @@ public interface HttpConst {
    */
   final static int WRITE_CLOG_THRESHOLD = -1;
 
+  /**
+   * The default for <tt>global.http.maxOutstanding</tt>, the number of
+   * pipelined requests on a connection which may wait for a response.
+   */
+  final static int DEFAULT_MAX_OUTSTANDING = 16;
+
   /**
    * Standard HTTP end-of-line marker, equal to <tt>"\r\n"</tt>.
    */
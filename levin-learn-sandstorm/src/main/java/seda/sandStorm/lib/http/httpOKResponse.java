@@ -27,6 +27,7 @@ package seda.sandstorm.lib.http;
 import seda.sandstorm.api.EventElement;
 import seda.sandstorm.api.EventSink;
 import seda.sandstorm.core.BufferEvent;
+import seda.sandstorm.core.FileRegionEvent;
 
 /**
  * An httpResponse corresponding to a '200 OK' response.
@@ -53,6 +54,25 @@ public class HttpOKResponse extends HttpResponse implements HttpConst, EventElem
     super(HttpResponse.RESPONSE_OK, contentType, payload, contentLength);
   }
 
+  /**
+   * Create an httpOKResponse whose body is sent straight from a region
+   * of a file, using the given MIME content-type. The file data is not
+   * copied into the heap; the region is written with transferTo() or from
+   * its mapping by the socket layer.
+   */
+  public HttpOKResponse(String contentType, FileRegionEvent region) {
+    super(HttpResponse.RESPONSE_OK, contentType, region);
+  }
+
+  /**
+   * Create an httpOKResponse of unknown length with the given MIME
+   * content-type. The body is sent through its httpResponder with
+   * sendChunk() and finish().
+   */
+  public HttpOKResponse(String contentType) {
+    super(HttpResponse.RESPONSE_OK, contentType);
+  }
+
   /**
    * Create an httpOKResponse with a given response payload size and
    * MIME type.
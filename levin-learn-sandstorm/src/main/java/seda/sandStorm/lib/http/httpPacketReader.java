@@ -25,12 +25,12 @@
 package seda.sandstorm.lib.http;
 
 import java.io.IOException;
-import java.io.StreamTokenizer;
-import java.util.Vector;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 import seda.sandstorm.api.EventSink;
+import seda.sandstorm.core.BufferEvent;
 import seda.sandstorm.lib.socket.ATcpInPacket;
-import seda.sandstorm.lib.socket.aSocketInputStream;
 
 /**
  * This is a package-internal class which reads HTTP request packets. An
@@ -38,25 +38,115 @@ import seda.sandstorm.lib.socket.aSocketInputStream;
  * method). When a complete packet has been read, an httpRequest is pushed to
  * the corresponding SinkIF. This is the bulk of the HTTP protocol
  * implementation.
- * 
+ *
+ * <p>The request head is parsed a byte at a time by a state machine which
+ * copies the bytes into a buffer kept for the connection and records where
+ * the method, URL, version and each header name and value lie in it, so a
+ * request may be split over any number of packets and several pipelined
+ * requests may arrive in one. The method and version are matched without
+ * making Strings, and common header names are matched against
+ * HEADER_NAMES once; httpRequest gets a copy of the head and the header
+ * offsets and only makes Strings for the headers it is asked for.
+ *
+ * <p>A body given by Content-Length or chunked transfer encoding is pushed
+ * after its request as httpBodyEvents, each holding the part of a packet
+ * which belongs to the body; the packet's buffer is used directly unless it
+ * is pooled, in which case that part is copied. Once the connection has
+ * as many requests outstanding as httpServer allows, parsing stops before
+ * the next request and the bytes received are held until a response is
+ * sent. Bytes after a request which does not keep the connection alive
+ * are discarded.
+ *
  * @author Matt Welsh
  */
 class HttpPacketReader implements HttpConst {
 
     private static final boolean DEBUG = false;
 
+    /** Largest request head accepted, in bytes. */
+    private static final int MAX_HEADER_SIZE = 64 * 1024;
+    /** Size of the head buffer; it shrinks back to this after a larger request. */
+    private static final int INITIAL_HEAD_SIZE = 1024;
+    /** Most bytes held while too many requests are outstanding. */
+    private static final int MAX_HELD_SIZE = 256 * 1024;
+
+    /**
+     * Header names matched when a request is parsed; httpRequest returns
+     * these Strings as the names of the headers matching them.
+     */
+    static final String HEADER_NAMES[] = {
+        "Host", "User-Agent", "Accept", "Accept-Encoding", "Accept-Language",
+        "Accept-Charset", "Connection", "Keep-Alive", "Content-Length",
+        "Content-Type", "Transfer-Encoding", "Cookie", "Referer",
+        "If-Modified-Since", "If-None-Match", "Cache-Control", "Pragma",
+        "Authorization", "Range", "Expect", "Upgrade", "User-Class",
+    };
+    private static final int H_CONNECTION = nameIndex("Connection");
+    private static final int H_CONTENT_LENGTH = nameIndex("Content-Length");
+    private static final int H_TRANSFER_ENCODING = nameIndex("Transfer-Encoding");
+
+    /** Ints per header in the offsets array. */
+    static final int HDR_SIZE = 5;
+    static final int HDR_NAME = 0;      // name start
+    static final int HDR_NAME_END = 1;
+    static final int HDR_VALUE = 2;     // value start
+    static final int HDR_VALUE_END = 3;
+    static final int HDR_NAME_ID = 4;   // index into HEADER_NAMES, or -1
+
     private static final int STATE_START = 0;
-    private static final int STATE_HEADER = 1;
-    private static final int STATE_DONE = 2;
+    private static final int STATE_METHOD = 1;
+    private static final int STATE_URL_START = 2;
+    private static final int STATE_URL = 3;
+    private static final int STATE_VERSION_START = 4;
+    private static final int STATE_VERSION = 5;
+    private static final int STATE_REQLINE_END = 6;
+    private static final int STATE_REQLINE_LF = 7;
+    private static final int STATE_LINE_START = 8;
+    private static final int STATE_NAME = 9;
+    private static final int STATE_VALUE_START = 10;
+    private static final int STATE_VALUE = 11;
+    private static final int STATE_LINE_LF = 12;
+    private static final int STATE_END_LF = 13;
+    private static final int STATE_BODY = 14;
+    private static final int STATE_CHUNK_SIZE = 15;
+    private static final int STATE_CHUNK_EXT = 16;
+    private static final int STATE_CHUNK_SIZE_LF = 17;
+    private static final int STATE_CHUNK_DATA = 18;
+    private static final int STATE_CHUNK_DATA_CR = 19;
+    private static final int STATE_CHUNK_DATA_LF = 20;
+    private static final int STATE_TRAILER_START = 21;
+    private static final int STATE_TRAILER = 22;
+    private static final int STATE_TRAILER_LF = 23;
+    private static final int STATE_CLOSED = 24;
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final byte SP = ' ';
+    private static final byte HT = '\t';
 
     private int state;
-    private aSocketInputStream ais;
-    private StreamTokenizer tok;
+    private byte head[] = new byte[INITIAL_HEAD_SIZE];
+    private int headLen;
+    private int hdr[] = new int[8 * HDR_SIZE];
+    private int numHeaders;
 
-    private String request;
-    private String url;
+    private int methodEnd;
+    private int urlStart, urlEnd;
+    private int verStart, verEnd;
+    private int nameStart;
+
+    private int request;
     private int httpver;
-    private Vector header;
+
+    private HttpRequest bodyReq;    // request whose body is being read
+    private boolean bodyDropped;    // bodyReq was not pushed to the user
+    private long bodyLeft;          // bytes left in the body or chunk
+    private int chunkDigits;
+    private boolean keepAlive;
+
+    private byte held[];            // bytes not parsed yet, or null
+    private int heldLen;
+
     private HttpConnection conn;
     private EventSink compQ;
 
@@ -67,46 +157,276 @@ class HttpPacketReader implements HttpConst {
     HttpPacketReader(HttpConnection conn, EventSink compQ) {
         this.conn = conn;
         this.compQ = compQ;
-        this.ais = new aSocketInputStream();
         reset();
     }
 
     /**
-     * Parse the given packet; returns true if a complete HTTP request has been
-     * received and parsed.
+     * Parse the given packet; returns true if at least one complete HTTP
+     * request has been received and parsed. The packet is released once
+     * its bytes have been read or held.
      */
     boolean parsePacket(ATcpInPacket pkt) throws IOException {
         if (DEBUG)
-            System.err.println(
-                    "GPR: pushPacket called, size " + pkt.getBytes().length);
-        ais.addPacket(pkt);
+            System.err.println("GPR: pushPacket called, size " + pkt.size());
+
+        try {
+            BufferEvent buf = pkt.getBufferElement();
+            if (held != null) {
+                // Parsing resumes in resume(), or here if the connection
+                // could not be queued to do it
+                hold(buf.data, buf.offset, buf.offset + buf.size);
+                return resume();
+            }
+            return parse(buf.data, buf.offset, buf.offset + buf.size,
+                    pkt.isPooled());
+        } catch (IOException e) {
+            reset();
+            held = null;
+            heldLen = 0;
+            state = STATE_CLOSED;
+            throw e;
+        } finally {
+            pkt.release();
+        }
+    }
 
-        int origstate;
+    /**
+     * Parse the bytes held while too many requests were outstanding, if
+     * the connection can take more requests now. Returns true if at least
+     * one complete HTTP request has been parsed.
+     */
+    boolean resume() throws IOException {
+        if (held == null || stopParsing()) return false;
+        byte data[] = held;
+        int len = heldLen;
+        held = null;
+        heldLen = 0;
+        try {
+            // The held array is not used again, so the body may refer to it
+            return parse(data, 0, len, false);
+        } catch (IOException e) {
+            reset();
+            state = STATE_CLOSED;
+            throw e;
+        }
+    }
 
-        do {
-            origstate = state;
+    /**
+     * Return true if parsing must wait for responses to the requests
+     * pushed so far.
+     */
+    private boolean stopParsing() {
+        return (conn != null) && conn.stopParsing();
+    }
 
+    private boolean parse(byte data[], int off, int end, boolean copy)
+            throws IOException {
+        boolean done = false;
+        int i = off;
+        while (i < end) {
             switch (state) {
             case STATE_START:
-                state = parseURL();
+                if (stopParsing()) {
+                    hold(data, i, end);
+                    return done;
+                }
+                if (parseByte(data[i++])) {
+                    done = true;
+                    processHeader();
+                }
                 break;
 
-            case STATE_HEADER:
-                state = accumulateHeader();
+            case STATE_BODY:
+            case STATE_CHUNK_DATA: {
+                int n = (int) Math.min(bodyLeft, end - i);
+                bodyLeft -= n;
+                boolean last = (state == STATE_BODY) && (bodyLeft == 0);
+                pushBody(data, i, n, copy, last);
+                i += n;
+                if (bodyLeft == 0) {
+                    if (state == STATE_BODY) {
+                        endRequest();
+                    } else {
+                        state = STATE_CHUNK_DATA_CR;
+                    }
+                }
                 break;
+            }
 
-            case STATE_DONE:
-                processHeader();
-                reset();
-                return true;
+            case STATE_CHUNK_SIZE:
+            case STATE_CHUNK_EXT:
+            case STATE_CHUNK_SIZE_LF:
+            case STATE_CHUNK_DATA_CR:
+            case STATE_CHUNK_DATA_LF:
+            case STATE_TRAILER_START:
+            case STATE_TRAILER:
+            case STATE_TRAILER_LF:
+                parseChunkByte(data[i++]);
+                break;
+
+            case STATE_CLOSED:
+                if (DEBUG)
+                    System.err.println("httpPacketReader: discarding "
+                            + (end - i) + " bytes after last request");
+                return done;
 
             default:
-                throw new Error("Bad state in pushPacket");
+                if (parseByte(data[i++])) {
+                    done = true;
+                    processHeader();
+                }
+                break;
             }
+        }
+        return done;
+    }
 
-        } while (state != origstate);
+    /**
+     * Keep the given bytes until resume() is called.
+     */
+    private void hold(byte data[], int off, int end) throws IOException {
+        int len = end - off;
+        if (held == null) {
+            held = new byte[Math.max(len, INITIAL_HEAD_SIZE)];
+        } else if (heldLen + len > held.length) {
+            if (heldLen + len > MAX_HELD_SIZE) {
+                throw new IOException("Too many pipelined HTTP requests");
+            }
+            held = Arrays.copyOf(held, Math.min(MAX_HELD_SIZE,
+                    Math.max(heldLen + len, held.length * 2)));
+        }
+        System.arraycopy(data, off, held, heldLen, len);
+        heldLen += len;
+    }
 
-        return false;
+    /**
+     * Advance the chunked-body state machine by one byte of chunk size,
+     * chunk delimiter or trailer.
+     */
+    private void parseChunkByte(byte b) throws IOException {
+        switch (state) {
+        case STATE_CHUNK_SIZE: {
+            int d = Character.digit(b, 16);
+            if (d >= 0) {
+                if (++chunkDigits > 15) throw new IOException("HTTP chunk too large");
+                bodyLeft = (bodyLeft << 4) + d;
+            } else if (chunkDigits == 0) {
+                throw new IOException("Bad HTTP chunk size");
+            } else if (b == CR) {
+                state = STATE_CHUNK_SIZE_LF;
+            } else if (b == LF) {
+                endChunkSize();
+            } else {
+                // Chunk extensions and whitespace are ignored
+                state = STATE_CHUNK_EXT;
+            }
+            return;
+        }
+
+        case STATE_CHUNK_EXT:
+            if (b == CR) {
+                state = STATE_CHUNK_SIZE_LF;
+            } else if (b == LF) {
+                endChunkSize();
+            }
+            return;
+
+        case STATE_CHUNK_SIZE_LF:
+            if (b != LF) throw new IOException("Bad HTTP chunk size");
+            endChunkSize();
+            return;
+
+        case STATE_CHUNK_DATA_CR:
+            // A bare LF also ends the chunk data
+            if (b == CR) {
+                state = STATE_CHUNK_DATA_LF;
+            } else if (b == LF) {
+                startChunk();
+            } else {
+                throw new IOException("Bad HTTP chunk end");
+            }
+            return;
+
+        case STATE_CHUNK_DATA_LF:
+            if (b != LF) throw new IOException("Bad HTTP chunk end");
+            startChunk();
+            return;
+
+        case STATE_TRAILER_START:
+            if (b == CR) {
+                state = STATE_TRAILER_LF;
+            } else if (b == LF) {
+                endChunkedBody();
+            } else {
+                state = STATE_TRAILER;
+            }
+            return;
+
+        case STATE_TRAILER:
+            // Trailer headers are ignored
+            if (b == LF) state = STATE_TRAILER_START;
+            return;
+
+        case STATE_TRAILER_LF:
+            if (b != LF) throw new IOException("Bad HTTP chunk trailer");
+            endChunkedBody();
+            return;
+
+        default:
+            throw new Error("Bad state in parseChunkByte");
+        }
+    }
+
+    private void startChunk() {
+        bodyLeft = 0;
+        chunkDigits = 0;
+        state = STATE_CHUNK_SIZE;
+    }
+
+    private void endChunkSize() {
+        state = (bodyLeft == 0) ? STATE_TRAILER_START : STATE_CHUNK_DATA;
+    }
+
+    private void endChunkedBody() {
+        pushBody(null, 0, 0, false, true);
+        endRequest();
+    }
+
+    /**
+     * Push a piece of the current request's body to the user.
+     */
+    private void pushBody(byte data[], int off, int len, boolean copy,
+            boolean last) {
+        if (bodyDropped) return;
+        BufferEvent buf = null;
+        if (len > 0) {
+            if (copy) {
+                buf = new BufferEvent(Arrays.copyOfRange(data, off, off + len));
+            } else {
+                buf = new BufferEvent(data, off, len);
+            }
+        } else if (!last) {
+            return;
+        }
+        HttpBodyEvent body = new HttpBodyEvent(bodyReq, buf, last);
+        if (!compQ.enqueueLossy(body)) {
+            System.err.println(
+                    "httpPacketReader: WARNING: Could not enqueue_lossy to user: "
+                            + body);
+        }
+    }
+
+    /**
+     * Called when a request and its body have been read.
+     */
+    private void endRequest() {
+        bodyReq = null;
+        bodyDropped = false;
+        if (keepAlive) {
+            reset();
+        } else {
+            state = STATE_CLOSED;
+        }
     }
 
     /**
@@ -114,163 +434,383 @@ class HttpPacketReader implements HttpConst {
      */
     private void reset() {
         state = STATE_START;
-        ais.clear();
-        tok = new StreamTokenizer(ais);
-        tok.resetSyntax();
-        tok.wordChars((char) 0, (char) 255);
-        tok.whitespaceChars('\u0000', '\u0020');
-        tok.eolIsSignificant(true);
-        request = null;
-        url = null;
-        header = null;
+        if (head.length > INITIAL_HEAD_SIZE) {
+            head = new byte[INITIAL_HEAD_SIZE];
+        }
+        headLen = 0;
+        numHeaders = 0;
+        request = -1;
         httpver = 0;
     }
 
     /**
-     * Parse the first line of the request header.
+     * Append one byte to the head and advance the state machine. Returns
+     * true when the byte completes the request head.
      */
-    private int parseURL() throws IOException {
-        ais.mark(0);
-        String req = nextWord();
-        url = nextWord();
-        String ver = nextWord();
-        if ((req == null) || (url == null) || (ver == null)) {
-            ais.reset();
-            return STATE_START;
-        } else {
-            request = req;
-            if (ver.equals("HTTP/1.0")) {
-                httpver = HttpRequest.HTTPVER_10;
-                String tmp = nextWord(); // Throw away EOL
-                return STATE_HEADER;
-            } else if (ver.equals("HTTP/1.1")) {
-                httpver = HttpRequest.HTTPVER_11;
-                String tmp = nextWord(); // Throw away EOL
-                return STATE_HEADER;
+    private boolean parseByte(byte b) throws IOException {
+        if (headLen == head.length) {
+            if (headLen == MAX_HEADER_SIZE) {
+                throw new IOException("HTTP request header longer than "
+                        + MAX_HEADER_SIZE + " bytes");
+            }
+            head = Arrays.copyOf(head, Math.min(headLen * 2, MAX_HEADER_SIZE));
+        }
+        int pos = headLen;
+        head[headLen++] = b;
+
+        switch (state) {
+        case STATE_START:
+            // Skip empty lines before the request line
+            if (b == CR || b == LF) {
+                headLen = 0;
+            } else {
+                state = STATE_METHOD;
+            }
+            return false;
+
+        case STATE_METHOD:
+            if (b == SP) {
+                methodEnd = pos;
+                state = STATE_URL_START;
+            } else if (b == CR || b == LF) {
+                throw new IOException("Bad HTTP request line");
+            }
+            return false;
+
+        case STATE_URL_START:
+            if (b == CR || b == LF) {
+                throw new IOException("Bad HTTP request line");
+            } else if (b != SP) {
+                urlStart = pos;
+                state = STATE_URL;
+            }
+            return false;
+
+        case STATE_URL:
+            if (b == SP) {
+                urlEnd = pos;
+                state = STATE_VERSION_START;
+            } else if (b == CR) {
+                urlEnd = verStart = verEnd = pos;
+                state = STATE_REQLINE_LF;
+            } else if (b == LF) {
+                urlEnd = verStart = verEnd = pos;
+                return requestLine();
+            }
+            return false;
+
+        case STATE_VERSION_START:
+            if (b == CR) {
+                verStart = verEnd = pos;
+                state = STATE_REQLINE_LF;
+            } else if (b == LF) {
+                verStart = verEnd = pos;
+                return requestLine();
+            } else if (b != SP) {
+                verStart = pos;
+                state = STATE_VERSION;
+            }
+            return false;
+
+        case STATE_VERSION:
+            if (b == SP || b == HT) {
+                verEnd = pos;
+                state = STATE_REQLINE_END;
+            } else if (b == CR) {
+                verEnd = pos;
+                state = STATE_REQLINE_LF;
+            } else if (b == LF) {
+                verEnd = pos;
+                return requestLine();
+            }
+            return false;
+
+        case STATE_REQLINE_END:
+            if (b == CR) {
+                state = STATE_REQLINE_LF;
+            } else if (b == LF) {
+                return requestLine();
+            } else if (b != SP && b != HT) {
+                throw new IOException("Bad HTTP request line");
+            }
+            return false;
+
+        case STATE_REQLINE_LF:
+            if (b != LF) throw new IOException("Bad HTTP request line");
+            return requestLine();
+
+        case STATE_LINE_START:
+            if (b == CR) {
+                state = STATE_END_LF;
+            } else if (b == LF) {
+                return true;
+            } else if (b == SP || b == HT) {
+                // Continuation of the previous header's value: blank out
+                // the line break so the value reads as one line
+                if (numHeaders == 0) throw new IOException("Bad HTTP header line");
+                int v = (numHeaders - 1) * HDR_SIZE;
+                for (int i = hdr[v + HDR_VALUE_END]; i < pos; i++) {
+                    head[i] = SP;
+                }
+                state = STATE_VALUE;
             } else {
-                if (!ver.equals(CRLF)) {
-                    throw new IOException(
-                            "Unknown HTTP version in request: " + httpver);
+                nameStart = pos;
+                state = STATE_NAME;
+            }
+            return false;
+
+        case STATE_NAME:
+            if (b == ':') {
+                int nameEnd = pos;
+                while (nameEnd > nameStart
+                        && (head[nameEnd - 1] == SP || head[nameEnd - 1] == HT)) {
+                    nameEnd--;
                 }
-                httpver = HttpRequest.HTTPVER_09;
-                return STATE_DONE;
+                addHeader(nameStart, nameEnd);
+                state = STATE_VALUE_START;
+            } else if (b == CR || b == LF) {
+                throw new IOException("Bad HTTP header line");
+            }
+            return false;
+
+        case STATE_VALUE_START:
+            if (b == CR) {
+                state = STATE_LINE_LF;
+            } else if (b == LF) {
+                state = STATE_LINE_START;
+            } else if (b != SP && b != HT) {
+                int v = (numHeaders - 1) * HDR_SIZE;
+                hdr[v + HDR_VALUE] = pos;
+                hdr[v + HDR_VALUE_END] = pos + 1;
+                state = STATE_VALUE;
+            }
+            return false;
+
+        case STATE_VALUE:
+            if (b == CR) {
+                state = STATE_LINE_LF;
+            } else if (b == LF) {
+                state = STATE_LINE_START;
+            } else if (b != SP && b != HT) {
+                // Trailing whitespace is left out of the value
+                hdr[(numHeaders - 1) * HDR_SIZE + HDR_VALUE_END] = pos + 1;
             }
+            return false;
+
+        case STATE_LINE_LF:
+            if (b != LF) throw new IOException("Bad HTTP header line");
+            state = STATE_LINE_START;
+            return false;
+
+        case STATE_END_LF:
+            if (b != LF) throw new IOException("Bad HTTP header end");
+            return true;
+
+        default:
+            throw new Error("Bad state in parseByte");
         }
     }
 
     /**
-     * Accumulate header lines.
+     * Called at the end of the request line. Returns true if the request
+     * is complete, that is, for an HTTP/0.9 request.
      */
-    private int accumulateHeader() throws IOException {
-
-        String line;
-
-        do {
-            line = nextLine();
-            if (DEBUG)
-                System.err.println("hpr: accumulateHeader() read line " + line);
-
-            if (line == null) {
-                // End of buffer
-                return STATE_HEADER;
-            } else if (!line.equals("")) {
-                if (header == null)
-                    header = new Vector(1);
-                header.addElement(line);
-            }
+    private boolean requestLine() throws IOException {
+        if (equalsIgnoreCase(head, 0, methodEnd, "GET")) {
+            request = HttpRequest.REQUEST_GET;
+        } else if (equalsIgnoreCase(head, 0, methodEnd, "POST")) {
+            request = HttpRequest.REQUEST_POST;
+        } else {
+            throw new IOException("Bad HTTP request: "
+                    + latin1(head, 0, methodEnd));
+        }
+
+        int len = verEnd - verStart;
+        if (len == 0) {
+            httpver = HttpRequest.HTTPVER_09;
+            return true;
+        } else if (equals(head, verStart, len, "HTTP/1.1")) {
+            httpver = HttpRequest.HTTPVER_11;
+        } else if (equals(head, verStart, len, "HTTP/1.0")) {
+            httpver = HttpRequest.HTTPVER_10;
+        } else {
+            throw new IOException("Unknown HTTP version in request: "
+                    + latin1(head, verStart, len));
+        }
+        state = STATE_LINE_START;
+        return false;
+    }
 
-        } while (!line.equals(""));
-        return STATE_DONE;
+    private void addHeader(int start, int end) {
+        int h = numHeaders * HDR_SIZE;
+        if (h == hdr.length) {
+            hdr = Arrays.copyOf(hdr, hdr.length * 2);
+        }
+        hdr[h + HDR_NAME] = start;
+        hdr[h + HDR_NAME_END] = end;
+        hdr[h + HDR_VALUE] = end;
+        hdr[h + HDR_VALUE_END] = end;
+        hdr[h + HDR_NAME_ID] = headerNameId(head, start, end - start);
+        numHeaders++;
     }
 
     /**
-     * Process the header, possibly pushing an httpRequest to the user.
+     * Process the header, possibly pushing an httpRequest to the user,
+     * and get ready for the request's body if it has one.
      */
     private void processHeader() throws IOException {
-        HttpRequest req = new HttpRequest(conn, request, url, httpver, header);
+        keepAlive = (httpver == HttpRequest.HTTPVER_11);
+        long length = 0;
+        boolean lengthSeen = false;
+        for (int h = 0; h < numHeaders * HDR_SIZE; h += HDR_SIZE) {
+            int id = hdr[h + HDR_NAME_ID];
+            int v = hdr[h + HDR_VALUE];
+            int vend = hdr[h + HDR_VALUE_END];
+            if (id == H_CONNECTION) {
+                if (hasToken(head, v, vend, "close")) {
+                    keepAlive = false;
+                } else if (hasToken(head, v, vend, "keep-alive")) {
+                    keepAlive = true;
+                }
+            } else if (id == H_TRANSFER_ENCODING) {
+                // Chunked must be the last coding; others are not supported
+                if (!lastToken(head, v, vend, "chunked")) {
+                    throw new IOException("Unsupported HTTP Transfer-Encoding: "
+                            + latin1(head, v, vend - v));
+                }
+                length = HttpRequest.LENGTH_CHUNKED;
+            } else if (id == H_CONTENT_LENGTH && !lengthSeen) {
+                lengthSeen = true;
+                if (length != HttpRequest.LENGTH_CHUNKED) {
+                    length = parseLength(head, v, vend);
+                }
+            }
+        }
+        if (httpver == HttpRequest.HTTPVER_09) keepAlive = false;
+
+        byte reqhead[] = Arrays.copyOf(head, headLen);
+        int reqhdr[] = (numHeaders == 0) ? null
+                : Arrays.copyOf(hdr, numHeaders * HDR_SIZE);
+        String url = latin1(head, urlStart, urlEnd - urlStart);
+        HttpRequest req = new HttpRequest(conn, request, url, httpver,
+                reqhead, reqhdr, numHeaders, keepAlive, length);
+        if (conn != null) req.seq = conn.requestStarted();
         if (DEBUG)
             System.err.println("httpPacketReader: Pushing req to user");
         if (!compQ.enqueueLossy(req)) {
             System.err.println(
                     "httpPacketReader: WARNING: Could not enqueue_lossy to user: "
                             + req);
+            // Its body is read and thrown away
+            bodyDropped = true;
+            if (conn != null) conn.requestDropped(req);
         }
-    }
-
-    /**
-     * Read the next whitespace-delimited word from the packet.
-     */
-    private String nextWord() throws IOException {
-        while (true) {
-            int type = tok.nextToken();
-            switch (type) {
-
-            case StreamTokenizer.TT_EOL:
-                return CRLF;
 
-            case StreamTokenizer.TT_EOF:
-                return null;
-
-            case StreamTokenizer.TT_WORD:
-                if (DEBUG)
-                    System.err.println("nextWord returning " + tok.sval);
-                return tok.sval;
-
-            case StreamTokenizer.TT_NUMBER:
-                if (DEBUG)
-                    System.err.println("nextWord returning number");
-                return Double.toString(tok.nval);
+        if (length == 0) {
+            endRequest();
+        } else {
+            bodyReq = req;
+            if (length == HttpRequest.LENGTH_CHUNKED) {
+                startChunk();
+            } else {
+                bodyLeft = length;
+                state = STATE_BODY;
+            }
+        }
+    }
 
-            default:
-                continue;
+    private static long parseLength(byte b[], int off, int end)
+            throws IOException {
+        if (off == end || end - off > 18) {
+            throw new IOException("Bad HTTP Content-Length: "
+                    + latin1(b, off, end - off));
+        }
+        long n = 0;
+        for (int i = off; i < end; i++) {
+            int d = b[i] - '0';
+            if (d < 0 || d > 9) {
+                throw new IOException("Bad HTTP Content-Length: "
+                        + latin1(b, off, end - off));
             }
+            n = n * 10 + d;
         }
+        return n;
     }
 
     /**
-     * Read the next line from the packet.
+     * Indicates whether the comma-separated list in b[off..end) holds the
+     * given token, ignoring case.
      */
-    private String nextLine() throws IOException {
-        String line = new String("");
-        boolean first = true;
-
-        while (true) {
-            switch (tok.nextToken()) {
+    private static boolean hasToken(byte b[], int off, int end, String token) {
+        int i = off;
+        while (i < end) {
+            while (i < end && (b[i] == SP || b[i] == HT || b[i] == ',')) i++;
+            int start = i;
+            while (i < end && b[i] != ',') i++;
+            int tend = i;
+            while (tend > start && (b[tend - 1] == SP || b[tend - 1] == HT)) tend--;
+            if (equalsIgnoreCase(b, start, tend - start, token)) return true;
+        }
+        return false;
+    }
 
-            case StreamTokenizer.TT_EOL:
-                if (DEBUG)
-                    System.err.println("nextLine returning " + line);
-                return line;
+    /**
+     * Indicates whether the last token of the comma-separated list in
+     * b[off..end) is the given token, ignoring case.
+     */
+    private static boolean lastToken(byte b[], int off, int end, String token) {
+        int start = end;
+        while (start > off && b[start - 1] != ',') start--;
+        while (start < end && (b[start] == SP || b[start] == HT)) start++;
+        return equalsIgnoreCase(b, start, end - start, token);
+    }
 
-            case StreamTokenizer.TT_EOF:
-                return null;
+    private static int nameIndex(String name) {
+        for (int i = 0; i < HEADER_NAMES.length; i++) {
+            if (HEADER_NAMES[i].equals(name)) return i;
+        }
+        throw new Error("No header name " + name);
+    }
 
-            case StreamTokenizer.TT_WORD:
-                if (DEBUG)
-                    System.err.println("nextLine got word " + tok.sval);
-                if (first) {
-                    line = tok.sval;
-                    first = false;
-                } else {
-                    line += " " + tok.sval;
-                }
-                break;
+    /**
+     * Return the index in HEADER_NAMES of the given name, or -1.
+     */
+    static int headerNameId(byte b[], int off, int len) {
+        for (int i = 0; i < HEADER_NAMES.length; i++) {
+            if (equalsIgnoreCase(b, off, len, HEADER_NAMES[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
 
-            case StreamTokenizer.TT_NUMBER:
-                if (DEBUG)
-                    System.err.println("nextLine got number " + tok.nval);
-                if (first) {
-                    line = Double.toString(tok.nval);
-                    first = false;
-                } else {
-                    line += " " + Double.toString(tok.nval);
-                }
-                break;
+    static boolean equals(byte b[], int off, int len, String s) {
+        if (len != s.length()) return false;
+        for (int i = 0; i < len; i++) {
+            if (b[off + i] != s.charAt(i)) return false;
+        }
+        return true;
+    }
 
-            default:
-                continue;
+    /**
+     * Compare bytes with an ASCII string, ignoring case.
+     */
+    static boolean equalsIgnoreCase(byte b[], int off, int len, String s) {
+        if (len != s.length()) return false;
+        for (int i = 0; i < len; i++) {
+            int c1 = b[off + i];
+            int c2 = s.charAt(i);
+            if (c1 != c2) {
+                if (c1 >= 'A' && c1 <= 'Z') c1 += 'a' - 'A';
+                if (c2 >= 'A' && c2 <= 'Z') c2 += 'a' - 'A';
+                if (c1 != c2) return false;
             }
         }
+        return true;
+    }
+
+    static String latin1(byte b[], int off, int len) {
+        return new String(b, off, len, StandardCharsets.ISO_8859_1);
     }
 
 }
@@ -52,7 +52,7 @@ public class HttpRedirectResponse extends HttpResponse implements HttpConst, Eve
 
 
   protected String getEntityHeader() {
-    return "Location: "+newURL+CRLF+"Connection: close"+CRLF;
+    return "Location: "+newURL+CRLF;
   }
 
   public String toString() {
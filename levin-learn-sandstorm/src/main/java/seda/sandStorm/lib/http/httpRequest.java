@@ -25,7 +25,6 @@
 
 package seda.sandstorm.lib.http;
 
-import java.io.IOException;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.StringTokenizer;
@@ -56,6 +55,9 @@ public class HttpRequest extends TimeStampedEvent
   /** getHttpVer() code corresponding to HTTP/1.1. */
   public static final int HTTPVER_11 = 2;
 
+  /** getContentLength() value for a body sent with chunked encoding. */
+  public static final long LENGTH_CHUNKED = -1;
+
   /** Default value for a query key. */
   public static final String QUERY_KEY_SET = "true";
 
@@ -64,21 +66,37 @@ public class HttpRequest extends TimeStampedEvent
   private String url;
   private int httpver;
   private int user_class = -2;
-
-  private Vector rawHeader;
-  private Hashtable header;
+  private boolean keepAlive;
+  private long contentLength;
+  // Position of this request on its connection, used to send the
+  // responses of pipelined requests in order
+  int seq = -1;
+
+  // The request head as received, and for each header the offsets of its
+  // name and value in it (see httpPacketReader.HDR_*)
+  private byte head[];
+  private int hdr[];
+  private int numHeaders;
+  private String values[];
   private Hashtable query;
 
   /**
    * Package-internal: Create an httpRequest from the given connection,
-   * request string, URL, HTTP version, and header.
+   * request code, URL, HTTP version, and header. The header is given as
+   * the bytes of the request head and the offsets of the header names and
+   * values in it, as found by httpPacketReader.
    */
-  HttpRequest(HttpConnection conn, String requestStr, String url, 
-      int httpver, Vector header) throws IOException {
+  HttpRequest(HttpConnection conn, int request, String url, 
+      int httpver, byte head[], int hdr[], int numHeaders,
+      boolean keepAlive, long contentLength) {
     this.conn = conn;
+    this.keepAlive = keepAlive;
+    this.contentLength = contentLength;
+    this.request = request;
     this.httpver = httpver;
-    this.rawHeader = header;
-    this.header = null;
+    this.head = head;
+    this.hdr = hdr;
+    this.numHeaders = numHeaders;
 
     // Check to see if there is a query string
     int question = url.indexOf('?');
@@ -100,14 +118,6 @@ public class HttpRequest extends TimeStampedEvent
     } else {
       this.url = url;
     }
-
-    if (requestStr.equalsIgnoreCase("get")) {
-      request = REQUEST_GET;
-    } else if (requestStr.equalsIgnoreCase("post")) {
-      request = REQUEST_POST;
-    } else {
-      throw new IOException("Bad HTTP request: "+request);
-    }
   }
 
   // Decode special characters in URLs 
@@ -184,14 +194,63 @@ public class HttpRequest extends TimeStampedEvent
   /**
    * Return the header line corresponding to the given key.
    * For example, to get the 'User-Agent' field from the header,
-   * use <tt>getHeader("User-Agent")</tt>.
+   * use <tt>getHeader("User-Agent")</tt>. Header names are matched
+   * ignoring case; if the header appears more than once, the first
+   * value is returned.
    */
   public String getHeader(String key) {
-    if (header == null) {
-      parseHeader();
+    for (int i = 0; i < numHeaders; i++) {
+      int h = i * HttpPacketReader.HDR_SIZE;
+      int id = hdr[h + HttpPacketReader.HDR_NAME_ID];
+      boolean match;
+      if (id >= 0) {
+	String name = HttpPacketReader.HEADER_NAMES[id];
+	match = (name == key) || name.equalsIgnoreCase(key);
+      } else {
+	int start = hdr[h + HttpPacketReader.HDR_NAME];
+	match = HttpPacketReader.equalsIgnoreCase(head, start,
+	    hdr[h + HttpPacketReader.HDR_NAME_END] - start, key);
+      }
+      if (match) return getHeaderValue(i);
+    }
+    return null;
+  }
+
+  /**
+   * Return the number of header lines in the request.
+   */
+  public int numHeaders() {
+    return numHeaders;
+  }
+
+  /**
+   * Return the name of the given header line, numbered from 0 in the
+   * order received.
+   */
+  public String getHeaderName(int i) {
+    if (i < 0 || i >= numHeaders) throw new IndexOutOfBoundsException("header "+i);
+    int h = i * HttpPacketReader.HDR_SIZE;
+    int id = hdr[h + HttpPacketReader.HDR_NAME_ID];
+    if (id >= 0) return HttpPacketReader.HEADER_NAMES[id];
+    int start = hdr[h + HttpPacketReader.HDR_NAME];
+    return HttpPacketReader.latin1(head, start,
+	hdr[h + HttpPacketReader.HDR_NAME_END] - start);
+  }
+
+  /**
+   * Return the value of the given header line, numbered from 0 in the
+   * order received.
+   */
+  public String getHeaderValue(int i) {
+    if (i < 0 || i >= numHeaders) throw new IndexOutOfBoundsException("header "+i);
+    if (values == null) values = new String[numHeaders];
+    if (values[i] == null) {
+      int h = i * HttpPacketReader.HDR_SIZE;
+      int start = hdr[h + HttpPacketReader.HDR_VALUE];
+      values[i] = HttpPacketReader.latin1(head, start,
+	  hdr[h + HttpPacketReader.HDR_VALUE_END] - start);
     }
-    if (header == null) return null;
-    return (String)header.get(key);
+    return values[i];
   }
 
   /**
@@ -240,6 +299,33 @@ public class HttpRequest extends TimeStampedEvent
     }
   }
 
+  /**
+   * Indicates whether the client asked to keep the connection open after
+   * the response: true for HTTP/1.1 unless the request has a
+   * "Connection: close" header, and for HTTP/1.0 only if it has a
+   * "Connection: keep-alive" header.
+   */
+  public boolean keepAlive() {
+    return keepAlive;
+  }
+
+  /**
+   * Indicates whether the request has a body. The body follows the
+   * request to the user as httpBodyEvents.
+   */
+  public boolean hasBody() {
+    return (contentLength != 0);
+  }
+
+  /**
+   * Return the length of the request body, 0 if there is none, or
+   * LENGTH_CHUNKED if the body is sent with chunked encoding and its
+   * length is not known in advance.
+   */
+  public long getContentLength() {
+    return contentLength;
+  }
+
   /**
    * Indicates whether this request requires a header to be sent
    * in the response (that is, whether this is HTTP/1.0 or later).
@@ -252,20 +338,6 @@ public class HttpRequest extends TimeStampedEvent
     }
   }
 
-  // Convert rawHeader to header (key, value) pairs
-  private void parseHeader() {
-    if (rawHeader == null) return;
-    header = new Hashtable(1);
-    for (int i = 0; i < rawHeader.size(); i++) {
-      String h = (String)rawHeader.elementAt(i);
-      StringTokenizer s = new StringTokenizer(h);
-      String k = s.nextToken(":").trim();
-      String v = s.nextToken().trim();
-      if (DEBUG) System.err.println("httpRequest: key="+k+", val="+v);
-      header.put(k,v);
-    }
-  }
-
   public String toString() {
     String s = "httpRequest[";
     switch (request) {
@@ -280,14 +352,8 @@ public class HttpRequest extends TimeStampedEvent
       case HTTPVER_11: s+="HTTP/1.1"; break;
     }
 
-    if (header == null) parseHeader(); 
-    if (header != null) {
-      Enumeration e = header.keys();
-      while (e.hasMoreElements()) {
-	String key = (String)e.nextElement();
-	String val = (String)header.get(key);
-	s += "\n\t"+key+" "+val;
-      }
+    for (int i = 0; i < numHeaders; i++) {
+      s += "\n\t"+getHeaderName(i)+" "+getHeaderValue(i);
     }
     s += "]";
     return s;
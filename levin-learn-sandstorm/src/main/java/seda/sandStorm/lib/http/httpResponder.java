@@ -24,23 +24,45 @@
 
 package seda.sandstorm.lib.http;
 
+import java.nio.charset.StandardCharsets;
+
 import seda.sandstorm.api.EventElement;
+import seda.sandstorm.api.SinkException;
+import seda.sandstorm.core.BufferEvent;
 
 /**
  * This class is used to wrap an HTTP response along with the 
  * connection which it is destined for. 
  *
+ * <p>Responses to pipelined requests are sent in the order of the
+ * requests, so a responder should be created from its request; one
+ * created from the connection alone answers the oldest request which
+ * has not been answered yet.
+ *
+ * <p>If the response has no known length, enqueueing the responder only
+ * sends the header. The body is then sent with sendChunk() and ended
+ * with finish(); it uses chunked encoding for an HTTP/1.1 request, and
+ * otherwise the connection must be closed after finish().
+ *
  * @author Matt Welsh
  * @see HttpResponse
  * @see HttpConnection
  */
 public class HttpResponder implements HttpConst, EventElement {
 
+  private static final byte CHUNK_END[] = { '0', '\r', '\n', '\r', '\n' };
+  private static final byte CHUNK_END_AFTER_DATA[] = { '\r', '\n', '0', '\r', '\n', '\r', '\n' };
+
   private HttpResponse resp;
   private HttpConnection conn;
+  private HttpRequest req;
   private boolean closeConnection;
   private boolean sendHeader;
 
+  // Position of the request answered on the connection; see httpConnection
+  int seq = -1;
+  private boolean started, chunked, chunkSent, finished;
+
   /**
    * Create an httpResponder with the given response and connection.
    * @param closeConnection Indicate that the connection should be
@@ -87,6 +109,8 @@ public class HttpResponder implements HttpConst, EventElement {
   public HttpResponder(HttpResponse resp, HttpRequest req,
       boolean closeConnection, boolean sendHeader) {
     this(resp, req.getConnection(), closeConnection, sendHeader);
+    this.req = req;
+    this.seq = req.seq;
   }
 
   /**
@@ -97,16 +121,17 @@ public class HttpResponder implements HttpConst, EventElement {
    */
   public HttpResponder(HttpResponse resp, HttpRequest req,
       boolean closeConnection) {
-    this(resp, req.getConnection(), closeConnection);
+    this(resp, req, closeConnection, true);
   }
 
   /**
    * Create an httpResponder with the given response, with the
-   * connection being derived from the given request.
+   * connection being derived from the given request. The connection
+   * is closed after the response unless the request asked to keep
+   * it alive.
    */
   public HttpResponder(HttpResponse resp, HttpRequest req) {
-    this(resp, req.getConnection(), 
-	((req.getHttpVer() < HttpRequest.HTTPVER_11)?(true):(false)));
+    this(resp, req, !req.keepAlive(), true);
   }
 
   /**
@@ -138,4 +163,85 @@ public class HttpResponder implements HttpConst, EventElement {
     return sendHeader;
   }
 
+  /**
+   * Return the request this responder answers, or null if it was
+   * created from the connection alone.
+   */
+  public HttpRequest getRequest() {
+    return req;
+  }
+
+  /**
+   * Send the next piece of the body of a response of unknown length.
+   * The responder must have been enqueued on its connection first.
+   */
+  public void sendChunk(BufferEvent buf) throws SinkException {
+    if (!started || finished || resp.isLengthKnown()) {
+      throw new IllegalStateException("httpResponder: sendChunk() on "+this);
+    }
+    if (buf.size == 0) return;
+    BufferEvent bufarr[];
+    if (chunked) {
+      // The CRLF ending the previous chunk goes with this chunk's size
+      String size = (chunkSent ? CRLF : "") + Integer.toHexString(buf.size) + CRLF;
+      bufarr = new BufferEvent[2];
+      bufarr[0] = new BufferEvent(size.getBytes(StandardCharsets.ISO_8859_1));
+      bufarr[1] = buf;
+    } else {
+      bufarr = new BufferEvent[1];
+      bufarr[0] = buf;
+    }
+    chunkSent = true;
+    conn.send(this, bufarr, false);
+  }
+
+  /**
+   * End the body of a response of unknown length.
+   */
+  public void finish() throws SinkException {
+    if (!started || finished || resp.isLengthKnown()) {
+      throw new IllegalStateException("httpResponder: finish() on "+this);
+    }
+    finished = true;
+    BufferEvent bufarr[] = null;
+    if (chunked) {
+      bufarr = new BufferEvent[1];
+      bufarr[0] = new BufferEvent(chunkSent ? CHUNK_END_AFTER_DATA : CHUNK_END);
+    }
+    conn.send(this, bufarr, true);
+  }
+
+  /**
+   * Package-internal: Return the buffers which start this response on
+   * its connection, adding the header lines which depend on the request.
+   * Returns whether the response is complete in done[0].
+   */
+  BufferEvent[] start(boolean done[]) {
+    if (started) throw new IllegalStateException("httpResponder: already sent: "+this);
+    started = true;
+    int httpver = (req == null) ? HttpRequest.HTTPVER_11 : req.getHttpVer();
+    boolean known = resp.isLengthKnown();
+    chunked = !known && sendHeader && (httpver == HttpRequest.HTTPVER_11);
+    // Without a length or chunking, only closing the connection ends the body
+    if (!known && !chunked) closeConnection = true;
+    done[0] = known;
+
+    String extra = null;
+    if (sendHeader) {
+      if (chunked) extra = "Transfer-Encoding: chunked"+CRLF;
+      if (closeConnection) {
+	if (httpver == HttpRequest.HTTPVER_11) {
+	  extra = (extra == null) ? "Connection: close"+CRLF : extra+"Connection: close"+CRLF;
+	}
+      } else if (httpver == HttpRequest.HTTPVER_10) {
+	extra = "Connection: keep-alive"+CRLF;
+      }
+    }
+    return resp.getBuffers(sendHeader, extra);
+  }
+
+  public String toString() {
+    return "httpResponder [resp="+resp+", conn="+conn+", seq="+seq+"]";
+  }
+
 }
@@ -24,6 +24,9 @@
 
 package seda.sandstorm.lib.http;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
 import seda.sandstorm.api.EventElement;
 import seda.sandstorm.api.EventSink;
 import seda.sandstorm.core.BufferEvent;
@@ -32,6 +35,13 @@ import seda.sandstorm.core.BufferEvent;
  * This is an abstract class corresponding to an HTTP response.
  * Use one of the subclasses (such as httpOKResponse or httpNotFoundResponse)
  * to push responses back to the client.
+ *
+ * <p>A response created without a payload and never given one has no
+ * known length: it is sent with chunked transfer encoding to HTTP/1.1
+ * clients, and the body follows through httpResponder.sendChunk().
+ *
+ * <p>The header is built in bytes the first time it is needed and kept,
+ * so a response sent many times (from a cache, say) builds it once.
  * 
  * @author Matt Welsh
  * @see HttpOKResponse
@@ -61,6 +71,7 @@ public abstract class HttpResponse implements HttpConst, EventElement {
   protected int code;
   /** The default response header. */
   protected static String defaultHeader = "Server: Sandstorm (unknown version)"+CRLF;
+  private static byte defaultHeaderBytes[] = ascii(defaultHeader);
 
   /** The actual data of the response. */
   protected BufferEvent combinedData;
@@ -72,6 +83,8 @@ public abstract class HttpResponse implements HttpConst, EventElement {
   protected String contentType;
   /** The content-length header. */
   protected int contentLength;
+  /** Whether contentLength is known; if not the body is sent chunked. */
+  protected boolean lengthKnown;
 
   /**
    * Create an httpResponse with the given response code with the given
@@ -87,11 +100,10 @@ public abstract class HttpResponse implements HttpConst, EventElement {
     this.code = code;
     this.contentType = contentType;
     this.contentLength = payload.size;
+    this.lengthKnown = true;
 
     this.combinedData = null;
-    String hdrString = genHeader();
-    byte hdr[] = hdrString.getBytes();
-    this.header = new BufferEvent(hdr);
+    this.header = null;
     this.payload = payload;
   }
 
@@ -110,17 +122,17 @@ public abstract class HttpResponse implements HttpConst, EventElement {
     this.code = code;
     this.contentType = contentType;
     this.contentLength = contentLength;
+    this.lengthKnown = true;
 
     this.combinedData = null;
-    String hdrString = genHeader();
-    byte hdr[] = hdrString.getBytes();
-    this.header = new BufferEvent(hdr);
+    this.header = null;
     this.payload = payload;
   }
 
   /**
    * Create an httpResponse with the given response code with no payload.
-   * A payload can be assigned later using setPayload().
+   * A payload can be assigned later using setPayload(); if none is, the
+   * response is sent with chunked encoding.
    *
    * @param code The response code; should be one of the constants
    *  from httpResponse.RESPONSE_*.
@@ -156,9 +168,9 @@ public abstract class HttpResponse implements HttpConst, EventElement {
     this.code = code;
     this.contentType = contentType;
     this.contentLength = payloadSize;
+    this.lengthKnown = true;
 
-    String hdrString = genHeader();
-    byte hdr[] = hdrString.getBytes();
+    byte hdr[] = genHeader();
     this.combinedData = new BufferEvent(hdr.length + payloadSize);
     combinedData.compQ = compQ;
     this.header = new BufferEvent(combinedData.data, 0, hdr.length);
@@ -198,20 +210,29 @@ public abstract class HttpResponse implements HttpConst, EventElement {
   public void setPayload(BufferEvent payload) {
     this.payload = payload;
     this.contentLength = payload.size;
+    this.lengthKnown = true;
+    this.header = null;
   }
 
   /**
    * Returns the header for this response.
    */
-  public BufferEvent getHeader() {
+  public synchronized BufferEvent getHeader() {
     if (this.header == null) {
-      String hdrString = genHeader();
-      byte hdr[] = hdrString.getBytes();
-      this.header = new BufferEvent(hdr);
+      this.header = new BufferEvent(genHeader());
     }
     return this.header;
   }
 
+  /**
+   * Indicates whether the length of the response is known, that is,
+   * whether it has a payload. A response of unknown length is sent with
+   * chunked encoding.
+   */
+  public boolean isLengthKnown() {
+    return lengthKnown;
+  }
+
   /**
    * Returns the payload for this response.
    */
@@ -223,6 +244,7 @@ public abstract class HttpResponse implements HttpConst, EventElement {
    * Set the default header string sent in all responses.
    */
   public static void setDefaultHeader(String defhdr) {
+    defaultHeaderBytes = ascii(defhdr);
     defaultHeader = defhdr;
   }
 
@@ -233,42 +255,105 @@ public abstract class HttpResponse implements HttpConst, EventElement {
     return defaultHeader;
   }
 
+  private static final byte STATUS_OK[] = ascii(HTTP_VERSION+" 200 OK"+CRLF);
+  private static final byte STATUS_REDIRECT[] = ascii(HTTP_VERSION+" 301 MOVED PERMANENTLY"+CRLF);
+  private static final byte STATUS_BAD_REQUEST[] = ascii(HTTP_VERSION+" 400 BAD REQUEST"+CRLF);
+  private static final byte STATUS_NOT_FOUND[] = ascii(HTTP_VERSION+" 404 NOT FOUND"+CRLF);
+  private static final byte STATUS_INTERNAL_SERVER_ERROR[] = ascii(HTTP_VERSION+" 500 INTERNAL SERVER ERROR"+CRLF);
+  private static final byte STATUS_SERVICE_UNAVAILABLE[] = ascii(HTTP_VERSION+" 503 SERVICE UNAVAILABLE"+CRLF);
+  private static final byte CONTENT_TYPE[] = ascii("Content-Type: ");
+  private static final byte CONTENT_LENGTH[] = ascii("Content-Length: ");
+  private static final byte CRLF_BYTES[] = ascii(CRLF);
+
   /**
    * Generate the header.
    */
-  private String genHeader() {
-    String hdrString;
+  private byte[] genHeader() {
+    byte status[];
     switch (code) {
       case RESPONSE_OK: 
-	hdrString = HTTP_VERSION+" 200 OK\n"; break;
+	status = STATUS_OK; break;
       case RESPONSE_REDIRECT:
-	hdrString = HTTP_VERSION+" 301 MOVED PERMANENTLY\n"; break;
+	status = STATUS_REDIRECT; break;
       case RESPONSE_BAD_REQUEST: 
-	hdrString = HTTP_VERSION+" 400 BAD REQUEST\n"; break;
+	status = STATUS_BAD_REQUEST; break;
       case RESPONSE_NOT_FOUND:
-	hdrString = HTTP_VERSION+" 404 NOT FOUND\n"; break;
+	status = STATUS_NOT_FOUND; break;
       case RESPONSE_INTERNAL_SERVER_ERROR:
-      	hdrString = HTTP_VERSION+" 500 INTERNAL SERVER ERROR\n"; break;
+      	status = STATUS_INTERNAL_SERVER_ERROR; break;
       case RESPONSE_SERVICE_UNAVAILABLE:
-      	hdrString = HTTP_VERSION+" 503 SERVICE UNAVAILABLE\n"; break;
+      	status = STATUS_SERVICE_UNAVAILABLE; break;
       default: 
 	throw new Error("Bad code in httpResponse: "+code);
     } 
-    if (defaultHeader != null) hdrString += defaultHeader;
+    byte buf[] = new byte[256];
+    int len = 0;
+    buf = ensure(buf, len, status.length);
+    len = append(buf, len, status);
+    byte defhdr[] = defaultHeaderBytes;
+    if (defhdr != null) {
+      buf = ensure(buf, len, defhdr.length);
+      len = append(buf, len, defhdr);
+    }
     if (contentType != null) {
-      hdrString += "Content-Type: "+contentType+CRLF;
+      buf = ensure(buf, len, CONTENT_TYPE.length + contentType.length() + 2);
+      len = append(buf, len, CONTENT_TYPE);
+      len = append(buf, len, contentType);
+      len = append(buf, len, CRLF_BYTES);
     }
-    if (contentLength != 0) {
-      hdrString += "Content-Length: "+contentLength+CRLF;
+    if (lengthKnown) {
+      buf = ensure(buf, len, CONTENT_LENGTH.length + 12);
+      len = append(buf, len, CONTENT_LENGTH);
+      len = appendInt(buf, len, contentLength);
+      len = append(buf, len, CRLF_BYTES);
     }
     String ehdr = getEntityHeader();
     if (ehdr != null) {
-      hdrString += ehdr;
+      buf = ensure(buf, len, ehdr.length());
+      len = append(buf, len, ehdr);
     }
-    hdrString += CRLF;
-    return hdrString;
+    buf = ensure(buf, len, 2);
+    len = append(buf, len, CRLF_BYTES);
+    return Arrays.copyOf(buf, len);
   }
-  
+
+  private static byte[] ascii(String s) {
+    return (s == null) ? null : s.getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  private static byte[] ensure(byte buf[], int len, int more) {
+    if (len + more <= buf.length) return buf;
+    return Arrays.copyOf(buf, Math.max(buf.length * 2, len + more));
+  }
+
+  private static int append(byte buf[], int len, byte b[]) {
+    System.arraycopy(b, 0, buf, len, b.length);
+    return len + b.length;
+  }
+
+  private static int append(byte buf[], int len, String s) {
+    for (int i = 0; i < s.length(); i++) {
+      buf[len++] = (byte)s.charAt(i);
+    }
+    return len;
+  }
+
+  private static int appendInt(byte buf[], int len, int n) {
+    if (n < 0) {
+      buf[len++] = '-';
+      n = -n;
+    }
+    int start = len;
+    do {
+      buf[len++] = (byte)('0' + n % 10);
+      n /= 10;
+    } while (n != 0);
+    for (int i = start, j = len - 1; i < j; i++, j--) {
+      byte t = buf[i]; buf[i] = buf[j]; buf[j] = t;
+    }
+    return len;
+  }
+
   /**
    * Get an array of BufferElements corresponding to this response.
    * Used internally when sending the response to a client.
@@ -315,4 +400,37 @@ public abstract class HttpResponse implements HttpConst, EventElement {
     return bufarr;
   }
 
+  /**
+   * Get the buffers for this response as getBuffers() does, with the
+   * given header lines (CRLF-terminated) added to the header. Used for
+   * the headers which depend on the connection, such as "Connection" and
+   * "Transfer-Encoding"; the header kept by the response is not changed.
+   */
+  BufferEvent[] getBuffers(boolean sendHeader, String extraHeader) {
+    if (!sendHeader || extraHeader == null) return getBuffers(sendHeader);
+
+    BufferEvent hdr = getHeader();
+    int hlen = hdr.size - CRLF_BYTES.length;
+    byte buf[] = new byte[hlen + extraHeader.length() + CRLF_BYTES.length];
+    System.arraycopy(hdr.data, hdr.offset, buf, 0, hlen);
+    int len = append(buf, hlen, extraHeader);
+    append(buf, len, CRLF_BYTES);
+
+    BufferEvent bufarr[];
+    if (payload != null && payload.size > 0) {
+      bufarr = new BufferEvent[2];
+      if (combinedData != null) {
+	// Keep the completion queue of the combined buffer
+	bufarr[1] = new BufferEvent(payload.data, payload.offset, payload.size,
+	    combinedData.compQ);
+      } else {
+	bufarr[1] = payload;
+      }
+    } else {
+      bufarr = new BufferEvent[1];
+    }
+    bufarr[0] = new BufferEvent(buf);
+    return bufarr;
+  }
+
 }
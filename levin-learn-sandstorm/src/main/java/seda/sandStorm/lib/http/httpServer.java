@@ -40,6 +40,7 @@ import seda.sandstorm.api.Manager;
 import seda.sandstorm.api.Profiler;
 import seda.sandstorm.api.SinkCloggedEvent;
 import seda.sandstorm.api.SinkClosedEvent;
+import seda.sandstorm.api.SinkClosedException;
 import seda.sandstorm.api.SinkDrainedEvent;
 import seda.sandstorm.lib.socket.ATcpConnection;
 import seda.sandstorm.lib.socket.ATcpInPacket;
@@ -53,11 +54,13 @@ import seda.sandstorm.main.SandstormConfig;
  * The server has a client sink associated with it, onto which httpConnection
  * and httpRequest events are pushed. When a connection is closed, a
  * SinkClosedEvent is pushed, with the sink pointer set to the httpConnection
- * that closed.
+ * that closed. The body of a request, if it has one, follows the request
+ * as httpBodyEvents.
  *
  * @author Matt Welsh (mdw@cs.berkeley.edu)
  * @see HttpConnection
  * @see HttpRequest
+ * @see HttpBodyEvent
  */
 public class HttpServer implements EventHandler, HttpConst {
     private static final Logger LOGGER = LoggerFactory.getLogger(HttpServer.class);
@@ -71,6 +74,9 @@ public class HttpServer implements EventHandler, HttpConst {
     // ATcpConnection -> httpConnection
     private Map<ATcpConnection, HttpConnection> connTable;
 
+    // Requests pushed per connection before their responses are sent
+    private int maxOutstanding;
+
     private static int num_svrs = 0;
 
     /**
@@ -91,6 +97,8 @@ public class HttpServer implements EventHandler, HttpConst {
         this.listenPort = listenPort;
 
         this.connTable = Maps.newHashMap();
+        this.maxOutstanding = mgr.getConfig().getInt("global.http.maxOutstanding",
+                DEFAULT_MAX_OUTSTANDING);
 
         // Create the stage and register it
         String sname = "httpServer " + num_svrs + " <port " + listenPort + ">";
@@ -137,7 +145,17 @@ public class HttpServer implements EventHandler, HttpConst {
                 hc.parsePacket(pkt);
             } catch (IOException ioe) {
                 LOGGER.error("Error on packet processing for connection " + hc, ioe);
-                // XXX Should close connection
+                closeConnection(hc);
+            }
+        } else if (event instanceof HttpConnection) {
+            // A response was sent on a connection which had stopped
+            // parsing requests
+            HttpConnection hc = (HttpConnection) event;
+            try {
+                hc.resumeParsing();
+            } catch (IOException ioe) {
+                LOGGER.error("Error on packet processing for connection " + hc, ioe);
+                closeConnection(hc);
             }
         } else if (event instanceof ATcpConnection) {
             ATcpConnection conn = (ATcpConnection) event;
@@ -186,6 +204,23 @@ public class HttpServer implements EventHandler, HttpConst {
         connTable.remove(hc.getConnection());
     }
 
+    private void closeConnection(HttpConnection hc) {
+        try {
+            hc.close(clientSink);
+        } catch (SinkClosedException sce) {
+            // Already closed
+        }
+    }
+
+    /**
+     * Return the number of requests pushed to the user on a connection
+     * before their responses are sent; parsing of further pipelined
+     * requests waits until there are fewer. 0 means no limit.
+     */
+    public int getMaxOutstanding() {
+        return maxOutstanding;
+    }
+
     public String toString() {
         return "httpServer [listen=" + listenPort + "]";
     }
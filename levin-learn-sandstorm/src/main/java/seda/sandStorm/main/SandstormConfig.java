@@ -74,6 +74,16 @@ public class SandstormConfig implements Cloneable {
     public static final String THREADMGR_TPSTM = "TPSTM";
     /** Value for defaultThreadMgr to use the aggregating TPSTM. */
     public static final String THREADMGR_AggTPSTM = "AggTPSTM";
+    /**
+     * Value for defaultThreadMgr to run stages on virtual threads with a
+     * per-stage concurrency limit.
+     */
+    public static final String THREADMGR_VTTM = "VTTM";
+
+    /** Value for queue.type to use the linked-list EventQueueImpl. */
+    public static final String QUEUE_LINKED = "linked";
+    /** Value for queue.type to use the lock-free RingBufferEventQueue. */
+    public static final String QUEUE_RING = "ring";
 
     /** String value for setting boolean configuration entries to true. */
     public static final String CONFIG_TRUE = "true";
@@ -109,6 +109,17 @@ public class BufferEvent implements EventElement {
         this(new byte[size], 0, size, null);
     }
 
+    /**
+     * Create a BufferElement of the given size without a data array, for
+     * subclasses whose data is not held on the heap.
+     */
+    protected BufferEvent(int size, EventSink compQ) {
+        this.data = new byte[0];
+        this.offset = 0;
+        this.size = size;
+        this.compQ = compQ;
+    }
+
     /**
      * Return the data.
      */
@@ -0,0 +1,223 @@
+package seda.sandstorm.core;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.lang.ref.Cleaner;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import seda.sandstorm.api.Profilable;
+
+/**
+ * A pool of fixed-size byte arrays, used to avoid allocating a new buffer for
+ * every read on a socket.
+ *
+ * <p>
+ * Buffers are created a slab (<tt>slabSize</tt> arrays) at a time and handed
+ * out from a free list; at most <tt>maxFree</tt> returned buffers are kept,
+ * the rest are left to the garbage collector. Allocation and release never
+ * allocate once the pool has warmed up.
+ *
+ * <p>
+ * Objects which own a pooled buffer may be tracked with {@link #track}: one
+ * out of every <tt>leakSampleInterval</tt> owners is registered with a
+ * {@link Cleaner}, and an owner that becomes unreachable without having
+ * released its buffer is counted as a leak and no longer counted as in
+ * use. Leaks are harmless to correctness (the buffer is simply collected),
+ * but they defeat the pool, and leaks of owners which were not sampled
+ * keep <tt>inUse</tt> high until the pool is discarded.
+ *
+ * <p>
+ * Owners which copy the data out of a pooled buffer instead of using it in
+ * place report it with {@link #recordCopy}, so that copies can be told
+ * apart from buffers which are still in use.
+ *
+ * <p>
+ * The pool profiles the number of buffers currently in use; the other
+ * counters are available through the getters.
+ */
+public class BufferPool implements Profilable {
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final String name;
+    private final int bufferSize;
+    private final int slabSize;
+    private final byte[][] free;
+    private int numFree;
+    private int inUse;
+    private long created;
+
+    private final int leakSampleInterval;
+    private final AtomicInteger tracked = new AtomicInteger();
+    private final AtomicLong leaked = new AtomicLong();
+    private final AtomicLong copied = new AtomicLong();
+
+    /**
+     * Create a BufferPool.
+     *
+     * @param name the name used in profiles and toString()
+     * @param bufferSize the size of each buffer in bytes
+     * @param slabSize the number of buffers created at once when the pool is
+     *            empty
+     * @param maxFree the maximum number of free buffers kept by the pool
+     * @param leakSampleInterval track one out of this many owners for leaks;
+     *            0 disables leak detection
+     */
+    public BufferPool(String name, int bufferSize, int slabSize, int maxFree, int leakSampleInterval) {
+        checkArgument(bufferSize > 0, "bufferSize must be positive");
+        checkArgument(slabSize > 0, "slabSize must be positive");
+        checkArgument(maxFree >= slabSize, "maxFree must be at least slabSize");
+        checkArgument(leakSampleInterval >= 0, "leakSampleInterval must not be negative");
+        this.name = name;
+        this.bufferSize = bufferSize;
+        this.slabSize = slabSize;
+        this.free = new byte[maxFree][];
+        this.leakSampleInterval = leakSampleInterval;
+    }
+
+    /**
+     * Take a buffer from the pool. Its contents are undefined.
+     */
+    public synchronized byte[] allocate() {
+        if (numFree == 0) {
+            for (int i = 0; i < slabSize; i++) {
+                free[numFree++] = new byte[bufferSize];
+            }
+            created += slabSize;
+        }
+        byte[] buf = free[--numFree];
+        free[numFree] = null;
+        inUse++;
+        return buf;
+    }
+
+    /**
+     * Return a buffer to the pool. The caller must not touch the buffer
+     * afterwards.
+     */
+    public synchronized void release(byte[] buf) {
+        checkArgument(buf.length == bufferSize, "buffer does not belong to pool %s", name);
+        inUse--;
+        if (numFree < free.length) {
+            free[numFree++] = buf;
+        }
+    }
+
+    /**
+     * Return a buffer to the pool on behalf of a tracked owner.
+     *
+     * @param lease the lease returned by {@link #track} for the owner, may be
+     *            null
+     */
+    public void release(byte[] buf, Lease lease) {
+        if (lease != null) {
+            lease.released = true;
+            lease.cleanable.clean();
+        }
+        release(buf);
+    }
+
+    /**
+     * Start tracking the owner of a pooled buffer for leaks. Returns a lease to
+     * pass to {@link #release(byte[], Lease)}, or null if this owner was not
+     * sampled.
+     */
+    public Lease track(Object owner) {
+        if (leakSampleInterval == 0 || (tracked.incrementAndGet() % leakSampleInterval) != 0) {
+            return null;
+        }
+        Lease lease = new Lease(this);
+        lease.cleanable = CLEANER.register(owner, lease);
+        return lease;
+    }
+
+    /**
+     * Record that an owner copied the data out of a pooled buffer.
+     */
+    public void recordCopy() {
+        copied.incrementAndGet();
+    }
+
+    /**
+     * Return the size of the buffers in this pool.
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Return the number of buffers currently handed out.
+     */
+    public synchronized int getInUse() {
+        return inUse;
+    }
+
+    /**
+     * Return the number of buffers on the free list.
+     */
+    public synchronized int getFree() {
+        return numFree;
+    }
+
+    /**
+     * Return the number of buffers created by this pool so far.
+     */
+    public synchronized long getCreated() {
+        return created;
+    }
+
+    /**
+     * Return the number of sampled owners which were collected without
+     * releasing their buffer.
+     */
+    public long getLeaked() {
+        return leaked.get();
+    }
+
+    /**
+     * Return the number of times the data of a pooled buffer was copied out.
+     */
+    public long getCopied() {
+        return copied.get();
+    }
+
+    /**
+     * Return the number of buffers currently in use.
+     */
+    public int profileSize() {
+        return getInUse();
+    }
+
+    public String toString() {
+        return "BufferPool <" + name + ">";
+    }
+
+    /**
+     * Called when a sampled owner was collected without releasing its
+     * buffer; the buffer is gone, so it is no longer in use.
+     */
+    private synchronized void leaked() {
+        inUse--;
+        leaked.incrementAndGet();
+    }
+
+    /**
+     * Leak-tracking state of a sampled owner. The cleaning action must not
+     * refer to the owner, so it only looks at its own flag.
+     */
+    public static final class Lease implements Runnable {
+        private final BufferPool pool;
+        private volatile boolean released;
+        private Cleaner.Cleanable cleanable;
+
+        private Lease(BufferPool pool) {
+            this.pool = pool;
+        }
+
+        public void run() {
+            if (!released) {
+                pool.leaked();
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package seda.sandstorm.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import seda.sandstorm.api.EventSink;
+
+/**
+ * A BufferEvent whose data is a region of a file rather than a byte array.
+ * When written to an ATcpConnection, the region is either sent with
+ * <tt>FileChannel.transferTo()</tt>, so the bytes never enter the Java heap,
+ * or, if the region was created from a memory-mapped buffer, written
+ * directly from the mapping.
+ * <p>
+ * A FileRegionEvent may be written to many connections at once; each write
+ * uses its own view of the mapped buffer. The <tt>data</tt> array of a
+ * FileRegionEvent is empty.
+ * <p>
+ * The channel of a transferTo() region is reference counted. The creator
+ * holds the first reference and gives it up with release(); every write
+ * request carrying the region holds another until it has been written or
+ * dropped. The channel is closed when the last reference goes, so a cache
+ * may evict a region while sends of it are still in progress.
+ *
+ * @see BufferEvent
+ */
+public class FileRegionEvent extends BufferEvent {
+    private final FileChannel channel;
+    private final long position;
+    private final ByteBuffer mapped;
+    // One reference for the creator and one for each write in flight
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    /**
+     * Create a FileRegionEvent for <tt>count</tt> bytes of the given channel,
+     * starting at the given position, to be sent with transferTo().
+     */
+    public FileRegionEvent(FileChannel channel, long position, int count) {
+        this(channel, position, count, null);
+    }
+
+    /**
+     * Create a FileRegionEvent for <tt>count</tt> bytes of the given channel,
+     * starting at the given position, with the given completion queue.
+     */
+    public FileRegionEvent(FileChannel channel, long position, int count, EventSink compQ) {
+        super(count, compQ);
+        if (position < 0 || count < 0) {
+            throw new IllegalArgumentException("Invalid file region (pos=" + position + ", count=" + count + ")");
+        }
+        this.channel = channel;
+        this.position = position;
+        this.mapped = null;
+    }
+
+    /**
+     * Create a FileRegionEvent for the remaining bytes of the given buffer,
+     * typically obtained from <tt>FileChannel.map()</tt>.
+     */
+    public FileRegionEvent(ByteBuffer mapped, EventSink compQ) {
+        super(mapped.remaining(), compQ);
+        this.channel = null;
+        this.position = 0;
+        this.mapped = mapped.slice();
+    }
+
+    /**
+     * Return true if this region is written from a mapped buffer rather than
+     * with transferTo().
+     */
+    public boolean isMapped() {
+        return (mapped != null);
+    }
+
+    /**
+     * Return the channel of a transferTo() region, or null.
+     */
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Return the file position of a transferTo() region.
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Return a new view of the mapped buffer of this region, with its own
+     * position and limit, or null if the region is not mapped.
+     */
+    public ByteBuffer getMappedBuffer() {
+        return (mapped == null) ? null : mapped.duplicate();
+    }
+
+    /**
+     * Take another reference to the channel of this region.
+     *
+     * @throws IllegalStateException if the last reference has already been
+     *         released and the channel closed
+     */
+    public void retain() {
+        for (;;) {
+            int n = refs.get();
+            if (n <= 0) {
+                throw new IllegalStateException(this + " has already been released");
+            }
+            if (refs.compareAndSet(n, n + 1)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Give up a reference to the channel of this region, closing the
+     * channel if it was the last one.
+     */
+    public void release() {
+        if (refs.decrementAndGet() == 0 && channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    public String toString() {
+        return "FileRegionEvent [" + (isMapped() ? "mapped" : "pos=" + position) + ", size=" + size + "]";
+    }
+}
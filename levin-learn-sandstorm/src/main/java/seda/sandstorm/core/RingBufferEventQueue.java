@@ -0,0 +1,446 @@
+package seda.sandstorm.core;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import seda.sandstorm.api.EnqueuePredicate;
+import seda.sandstorm.api.EventElement;
+import seda.sandstorm.api.EventQueue;
+import seda.sandstorm.api.Profilable;
+import seda.sandstorm.api.SinkException;
+import seda.sandstorm.api.SinkFullException;
+
+/**
+ * A bounded, array-backed EventQueue which is safe for multiple producers and
+ * multiple consumers without taking a lock on the enqueue/dequeue path.
+ *
+ * <p>
+ * Each slot of the ring carries a sequence number which tells producers and
+ * consumers whether the slot is free or holds a published element for the
+ * current lap. Producers first take capacity permits and then claim a
+ * contiguous range of positions from the tail, so the elements passed to
+ * <tt>enqueueMany()</tt> are never interleaved with those of other threads.
+ * Consumers claim positions from the head with a CAS.
+ *
+ * <p>
+ * Blocked consumers are only signalled when some consumer is actually
+ * waiting, instead of waking every stage thread for every event.
+ *
+ * @see EventQueueImpl
+ */
+public class RingBufferEventQueue implements EventQueue, Profilable {
+    /** Default capacity used when none is given. */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final Logger LOGGER;
+
+    private final String name;
+    private volatile EnqueuePredicate predicate;
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<EventElement> elements;
+    private final AtomicLongArray sequences;
+    private final PaddedSequence head;
+    private final PaddedSequence tail;
+
+    // Free capacity; enqueued and provisionally enqueued elements both hold permits
+    private final AtomicInteger permits;
+    private final Map<Object, EventElement[]> provisionalTbl;
+
+    private final ReentrantLock blocker;
+    private final Condition notEmpty;
+    private final AtomicInteger waiters;
+
+    /**
+     * Create a RingBufferEventQueue with the given name, capacity and enqueue
+     * predicate. The capacity is rounded up to the next power of two.
+     */
+    public RingBufferEventQueue(String name, int capacity, EnqueuePredicate predicate) {
+        checkArgument(isNotBlank(name), "name is blank");
+        checkArgument(capacity > 0 && capacity <= (1 << 30), "capacity out of range: %s", capacity);
+
+        this.name = name;
+        this.predicate = predicate;
+        this.LOGGER = LoggerFactory.getLogger(RingBufferEventQueue.class + "." + name);
+
+        this.capacity = roundToPowerOfTwo(capacity);
+        this.mask = this.capacity - 1;
+        this.elements = new AtomicReferenceArray<>(this.capacity);
+        this.sequences = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++) {
+            sequences.set(i, i);
+        }
+        this.head = new PaddedSequence();
+        this.tail = new PaddedSequence();
+
+        this.permits = new AtomicInteger(this.capacity);
+        this.provisionalTbl = new ConcurrentHashMap<>();
+
+        this.blocker = new ReentrantLock();
+        this.notEmpty = blocker.newCondition();
+        this.waiters = new AtomicInteger();
+    }
+
+    /**
+     * Create a RingBufferEventQueue with the given name and capacity, and no
+     * enqueue predicate.
+     */
+    public RingBufferEventQueue(String name, int capacity) {
+        this(name, capacity, null);
+    }
+
+    /**
+     * Create a RingBufferEventQueue with the given name, the default capacity
+     * and no enqueue predicate.
+     */
+    public RingBufferEventQueue(String name) {
+        this(name, DEFAULT_CAPACITY, null);
+    }
+
+    /**
+     * Return the capacity of the ring.
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Return the size of the queue, including provisionally enqueued elements.
+     */
+    public int size() {
+        return capacity - permits.get();
+    }
+
+    public void enqueue(EventElement event) throws SinkFullException {
+        LOGGER.trace("enqueue event {}", event);
+
+        EnqueuePredicate pred = predicate;
+        if ((pred != null) && (!pred.accept(event))) {
+            throw new SinkFullException("EventQueue is full!");
+        }
+        if (!acquire(1)) {
+            throw new SinkFullException("EventQueue is full!");
+        }
+        publish(tail.getAndAdd(1), event);
+        signalNotEmpty(false);
+
+        LOGGER.trace("enqueued event {}", event);
+    }
+
+    public boolean enqueueLossy(EventElement event) {
+        try {
+            enqueue(event);
+            return true;
+        } catch (SinkFullException e) {
+            return false;
+        }
+    }
+
+    public void enqueueMany(EventElement[] events) throws SinkFullException {
+        acceptAll(events);
+        if (events.length == 0) {
+            return;
+        }
+        if (!acquire(events.length)) {
+            throw new SinkFullException("EventQueue is full!");
+        }
+        publishAll(events);
+        signalNotEmpty(events.length > 1);
+    }
+
+    public EventElement dequeue() {
+        while (true) {
+            long pos = head.get();
+            long seq = sequences.get(index(pos));
+            long diff = seq - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    return take(pos);
+                }
+            } else if (diff < 0) {
+                // Slot not yet published: queue is empty as far as we can tell
+                return null;
+            }
+            // Another consumer moved the head; retry
+        }
+    }
+
+    public EventElement[] dequeueAll() {
+        return dequeue(capacity, false);
+    }
+
+    public EventElement[] dequeue(int num) {
+        return dequeue(num, false);
+    }
+
+    public EventElement[] dequeue(int num, boolean mustReturnNum) {
+        if (num <= 0) {
+            return null;
+        }
+
+        while (true) {
+            long pos = head.get();
+            int available = 0;
+            while (available < num && sequences.get(index(pos + available)) == pos + available + 1) {
+                available++;
+            }
+
+            if (available == 0) {
+                if (sequences.get(index(pos)) > pos + 1) {
+                    continue;
+                }
+                return null;
+            }
+            if (mustReturnNum && available < num) {
+                return null;
+            }
+
+            if (head.compareAndSet(pos, pos + available)) {
+                EventElement[] events = new EventElement[available];
+                for (int i = 0; i < available; i++) {
+                    events[i] = take(pos + i);
+                }
+                return events;
+            }
+        }
+    }
+
+    public EventElement[] blockingDequeueAll(int timeoutMillis) {
+        return blockingDequeue(timeoutMillis, capacity, false);
+    }
+
+    public EventElement[] blockingDequeue(int timeoutMillis, int num) {
+        return blockingDequeue(timeoutMillis, num, false);
+    }
+
+    public EventElement[] blockingDequeue(int timeoutMillis, int num, boolean mustReturnNum) {
+        long goalTime = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            EventElement[] rets = dequeue(num, mustReturnNum);
+            if ((rets != null) || (timeoutMillis == 0)) {
+                cascadeSignal();
+                return rets;
+            }
+
+            long remaining = (timeoutMillis == -1) ? -1 : goalTime - System.currentTimeMillis();
+            if (timeoutMillis != -1 && remaining <= 0) {
+                // Timeout - take whatever we can get
+                return dequeue(num);
+            }
+            awaitNotEmpty(remaining);
+        }
+    }
+
+    public EventElement blockingDequeue(int timeoutMillis) {
+        long goalTime = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            EventElement ret = dequeue();
+            if ((ret != null) || (timeoutMillis == 0)) {
+                cascadeSignal();
+                return ret;
+            }
+
+            long remaining = (timeoutMillis == -1) ? -1 : goalTime - System.currentTimeMillis();
+            if (timeoutMillis != -1 && remaining <= 0) {
+                return null;
+            }
+            awaitNotEmpty(remaining);
+        }
+    }
+
+    /**
+     * Return the profile size of the queue.
+     */
+    public int profileSize() {
+        return size();
+    }
+
+    /**
+     * Provisionally enqueue the given elements. The elements hold their
+     * capacity until they are committed or aborted, but only become visible to
+     * consumers on commit.
+     */
+    public Object enqueuePrepare(EventElement events[]) throws SinkException {
+        acceptAll(events);
+        if (!acquire(events.length)) {
+            throw new SinkFullException("EventQueue is full!");
+        }
+        Object key = new Object();
+        provisionalTbl.put(key, events);
+        return key;
+    }
+
+    /**
+     * Commit a provisional enqueue.
+     */
+    public void enqueueCommit(Object key) {
+        EventElement[] events = provisionalTbl.remove(key);
+        if (events == null)
+            throw new IllegalArgumentException("Unknown enqueue key " + key);
+        if (events.length == 0) {
+            return;
+        }
+        publishAll(events);
+        signalNotEmpty(events.length > 1);
+    }
+
+    /**
+     * Abort a provisional enqueue.
+     */
+    public void enqueueAbort(Object key) {
+        EventElement[] events = provisionalTbl.remove(key);
+        if (events == null)
+            throw new IllegalArgumentException("Unknown enqueue key " + key);
+        permits.addAndGet(events.length);
+    }
+
+    /**
+     * Set the enqueue predicate for this sink.
+     */
+    public void setEnqueuePredicate(EnqueuePredicate pred) {
+        this.predicate = pred;
+    }
+
+    /**
+     * Return the enqueue predicate for this sink.
+     */
+    public EnqueuePredicate getEnqueuePredicate() {
+        return predicate;
+    }
+
+    public String toString() {
+        return "RingBufferEventQueue <" + name + ">";
+    }
+
+    private void acceptAll(EventElement[] events) throws SinkFullException {
+        EnqueuePredicate pred = predicate;
+        if (pred != null) {
+            for (EventElement event : events) {
+                if (!pred.accept(event)) {
+                    throw new SinkFullException("EventQueue is full!");
+                }
+            }
+        }
+    }
+
+    // Take num permits, or none of them if the ring does not have room
+    private boolean acquire(int num) {
+        while (true) {
+            int free = permits.get();
+            if (free < num) {
+                return false;
+            }
+            if (permits.compareAndSet(free, free - num)) {
+                return true;
+            }
+        }
+    }
+
+    // Claim a contiguous range so the batch is not interleaved with other producers
+    private void publishAll(EventElement[] events) {
+        long pos = tail.getAndAdd(events.length);
+        for (int i = 0; i < events.length; i++) {
+            publish(pos + i, events[i]);
+        }
+    }
+
+    private void publish(long pos, EventElement event) {
+        int idx = index(pos);
+        // Holding a permit guarantees the slot is free or about to be freed by
+        // a consumer which has already claimed it
+        while (sequences.get(idx) != pos) {
+            Thread.onSpinWait();
+        }
+        elements.lazySet(idx, event);
+        sequences.set(idx, pos + 1);
+    }
+
+    private EventElement take(long pos) {
+        int idx = index(pos);
+        EventElement event = elements.get(idx);
+        elements.lazySet(idx, null);
+        sequences.set(idx, pos + capacity);
+        permits.incrementAndGet();
+        return event;
+    }
+
+    private int index(long pos) {
+        return (int) pos & mask;
+    }
+
+    private boolean hasPublished() {
+        long pos = head.get();
+        return sequences.get(index(pos)) == pos + 1;
+    }
+
+    private void signalNotEmpty(boolean all) {
+        if (waiters.get() == 0) {
+            return;
+        }
+        blocker.lock();
+        try {
+            if (all) {
+                notEmpty.signalAll();
+            } else {
+                notEmpty.signal();
+            }
+        } finally {
+            blocker.unlock();
+        }
+    }
+
+    // Pass the wakeup on if there is still work left for another waiter
+    private void cascadeSignal() {
+        if (waiters.get() > 0 && hasPublished()) {
+            signalNotEmpty(false);
+        }
+    }
+
+    private void awaitNotEmpty(long timeoutMillis) {
+        waiters.incrementAndGet();
+        blocker.lock();
+        try {
+            // Re-check after registering as a waiter to avoid a lost wakeup
+            if (hasPublished()) {
+                return;
+            }
+            if (timeoutMillis == -1) {
+                notEmpty.await();
+            } else {
+                notEmpty.await(timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException ie) {
+        } finally {
+            blocker.unlock();
+            waiters.decrementAndGet();
+        }
+    }
+
+    private static int roundToPowerOfTwo(int value) {
+        int n = Integer.highestOneBit(value);
+        return (n == value) ? n : n << 1;
+    }
+
+    /**
+     * An AtomicLong padded out to its own cache line so that the head and tail
+     * sequences do not false-share.
+     */
+    @SuppressWarnings({ "serial", "unused" })
+    private static final class PaddedSequence extends AtomicLong {
+        private long p1, p2, p3, p4, p5, p6, p7;
+    }
+}
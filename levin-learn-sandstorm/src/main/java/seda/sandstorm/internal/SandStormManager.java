@@ -97,6 +97,8 @@ public class SandStormManager implements Manager, SystemManager {
             /* defaulttm = new TPPThreadManager(mgrconfig); */
         } else if (dtm.equals(SandstormConfig.THREADMGR_TPSTM)) {
             defaulttm = new TPSThreadManager(this);
+        } else if (dtm.equals(SandstormConfig.THREADMGR_VTTM)) {
+            defaulttm = new VirtualThreadManager(this);
         } else if (dtm.equals(SandstormConfig.THREADMGR_AggTPSTM)) {
             throw new Error("AggTPSThreadManager is no longer supported.");
             /* defaulttm = new AggTPSThreadManager(mgrconfig); */
@@ -69,11 +69,28 @@ public class AsyncFile extends SimpleSink {
      *                If the file does not exist and 'create' is false.
      */
     public AsyncFile(String name, EventSink completionQueue, boolean create, boolean readOnly) throws IOException {
+        this(name, completionQueue, create, readOnly, null);
+    }
+
+    /**
+     * Open the file with the given implementation, one of the
+     * global.aDisk.impl values, or the configured one if implType is null.
+     */
+    AsyncFile(String name, EventSink completionQueue, boolean create, boolean readOnly, String implType)
+            throws IOException {
         AsyncFileManager.initialize();
         this.completionQueue = completionQueue;
         this.filename = name;
         AsyncFileTPTM asyncFileThreadMgr = (AsyncFileTPTM) AsyncFileManager.getTM();
-        this.impl = new AsyncFileTPImpl(this, name, completionQueue, create, readOnly, asyncFileThreadMgr);
+        if (implType == null) {
+            implType = AsyncFileManager.getImplType();
+        }
+        if (implType.equals(AsyncFileManager.IMPL_THREADPOOL)) {
+            this.impl = new AsyncFileTPImpl(this, name, completionQueue, create, readOnly, asyncFileThreadMgr);
+        } else {
+            this.impl = new AsyncFileChannelImpl(this, name, completionQueue, create, readOnly,
+                    implType.equals(AsyncFileManager.IMPL_ASYNC), asyncFileThreadMgr);
+        }
     }
 
     /**
@@ -131,6 +148,32 @@ public class AsyncFile extends SimpleSink {
         this.enqueue(new AsyncFileReadRequest(buf, completionQueue));
     }
 
+    /**
+     * Enqueues a read request at the given file position. Unlike
+     * read(BufferEvent, int), this neither uses nor moves the current file
+     * offset, so requests at independent positions may be serviced
+     * concurrently.
+     */
+    public synchronized void readAt(BufferEvent buf, long position) throws SinkException {
+        this.enqueue(new AsyncFileReadRequest(buf, position, completionQueue));
+    }
+
+    /**
+     * Enqueues a vectored read request which fills the given buffers in turn
+     * from the given file position, without using the current file offset.
+     */
+    public synchronized void readAt(BufferEvent bufs[], long position) throws SinkException {
+        this.enqueue(new AsyncFileReadRequest(bufs, position, completionQueue));
+    }
+
+    /**
+     * Enqueues a write request at the given file position, without using or
+     * moving the current file offset.
+     */
+    public synchronized void writeAt(BufferEvent buf, long position) throws SinkException {
+        this.enqueue(new AsyncFileWriteRequest(buf, position, completionQueue));
+    }
+
     /**
      * Position the file to the given offset. As with read and writes, seek
      * requests are performed asynchronously; only read and write requests
@@ -0,0 +1,463 @@
+package seda.sandstorm.lib.disk;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import seda.sandstorm.api.BadEventElementException;
+import seda.sandstorm.api.EventElement;
+import seda.sandstorm.api.EventQueue;
+import seda.sandstorm.api.EventSink;
+import seda.sandstorm.api.SinkClosedEvent;
+import seda.sandstorm.api.SinkClosedException;
+import seda.sandstorm.api.SinkException;
+import seda.sandstorm.api.SinkFlushedEvent;
+import seda.sandstorm.core.BufferEvent;
+import seda.sandstorm.core.EventQueueImpl;
+
+/**
+ * An implementation of AFile which performs positional I/O on a FileChannel
+ * instead of going through the implicit file pointer of a RandomAccessFile.
+ * <p>
+ * Requests which carry an explicit file position (see
+ * {@link AsyncFile#readAt} and {@link AsyncFile#writeAt}) do not depend on
+ * each other, so they are handed to the AFileTPTM threads one by one and
+ * several threads may service the same file at once. Seeks, flushes, closes
+ * and reads or writes at the current offset keep their order: they go
+ * through a per-file queue just as with AFileTPImpl, and the current offset
+ * is only a counter kept by this class.
+ * <p>
+ * When created in asynchronous mode the file is opened as an
+ * AsynchronousFileChannel, and positional requests are issued directly from
+ * <tt>enqueue()</tt>; their completion events are posted to the completion
+ * queue by the channel's completion handler, without using an AFileTPTM
+ * thread at all.
+ * <p>
+ * A flush or close waits for the positional requests in flight when it is
+ * reached.
+ *
+ * @see AsyncFile
+ * @see AsyncFileTPImpl
+ */
+class AsyncFileChannelImpl extends AsyncFileImpl {
+    private File f;
+    private FileChannel channel;
+    private AsynchronousFileChannel asyncChannel;
+    private AsyncFile afile;
+    private AsyncFileTPTM threadManager;
+    private EventSink completionQueue;
+    private EventQueueImpl eventQueue;
+    private boolean readOnly;
+    private volatile boolean closed;
+
+    // Offset used by requests without an explicit position; only touched
+    // while processing the per-file queue
+    private long offset;
+
+    // Positional requests in flight, and the flush/close requests waiting
+    // for them
+    private int inFlight;
+    private List<AsyncFileRequest> barriers = new ArrayList<AsyncFileRequest>();
+
+    /**
+     * Create an AFileChannelImpl with the given AFile, filename, completion
+     * queue, create/readOnly flags, and Thread Manager. If <tt>async</tt> is
+     * true, the file is opened as an AsynchronousFileChannel.
+     */
+    AsyncFileChannelImpl(AsyncFile afile, String fname, EventSink completionQueue, boolean create,
+            boolean readOnly, boolean async, AsyncFileTPTM threadManager) throws IOException {
+        this.afile = afile;
+        this.threadManager = threadManager;
+        this.completionQueue = completionQueue;
+        this.readOnly = readOnly;
+
+        eventQueue = new EventQueueImpl("async.file");
+
+        f = new File(fname);
+        if (!f.exists() && !create) {
+            throw new FileNotFoundException("File not found: " + fname);
+        }
+        if (f.isDirectory()) {
+            throw new FileIsDirectoryException("Is a directory: " + fname);
+        }
+
+        OpenOption[] options;
+        if (readOnly) {
+            options = new OpenOption[] { StandardOpenOption.READ };
+        } else {
+            options = new OpenOption[] { StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE };
+        }
+        if (async) {
+            asyncChannel = AsynchronousFileChannel.open(f.toPath(), options);
+        } else {
+            channel = FileChannel.open(f.toPath(), options);
+        }
+        closed = false;
+    }
+
+    /**
+     * Enqueues the given request (which must be an AFileRequest) to the file.
+     */
+    public void enqueue(EventElement req) throws SinkException {
+        AsyncFileRequest areq = (AsyncFileRequest) req;
+        if (closed) {
+            throw new SinkClosedException("Sink is closed");
+        }
+        if (readOnly && (areq instanceof AsyncFileWriteRequest)) {
+            throw new BadEventElementException("Cannot enqueue write request for read-only file", areq);
+        }
+        dispatch(areq);
+    }
+
+    /**
+     * Enqueues the given request (which must be an AFileRequest) to the file.
+     */
+    public boolean enqueueLossy(EventElement req) {
+        AsyncFileRequest areq = (AsyncFileRequest) req;
+        if (closed || (readOnly && (areq instanceof AsyncFileWriteRequest))) {
+            return false;
+        }
+        dispatch(areq);
+        return true;
+    }
+
+    /**
+     * Enqueues the given requests (which must be AFileRequests) to the file.
+     */
+    public void enqueueMany(EventElement[] elements) throws SinkException {
+        if (closed) {
+            throw new SinkClosedException("Sink is closed");
+        }
+        for (int i = 0; i < elements.length; i++) {
+            enqueue(elements[i]);
+        }
+    }
+
+    private void dispatch(AsyncFileRequest areq) {
+        areq.setAsyncFile(afile);
+        if (positionOf(areq) >= 0) {
+            synchronized (this) {
+                inFlight++;
+            }
+            if (asyncChannel != null) {
+                new AsyncIO(areq).start();
+            } else {
+                threadManager.requestReady(areq);
+            }
+            return;
+        }
+
+        try {
+            eventQueue.enqueue(areq);
+        } catch (SinkException se) {
+            throw new InternalError("AFileChannelImpl.enqueue got SinkException");
+        }
+        if (eventQueue.size() == 1) {
+            threadManager.fileReady(this);
+        }
+    }
+
+    private static long positionOf(AsyncFileRequest req) {
+        if (req instanceof AsyncFileReadRequest) {
+            return ((AsyncFileReadRequest) req).position;
+        } else if (req instanceof AsyncFileWriteRequest) {
+            return ((AsyncFileWriteRequest) req).position;
+        }
+        return -1;
+    }
+
+    /**
+     * Return information on the properties of the file.
+     */
+    AsyncFileStat stat() {
+        AsyncFileStat s = new AsyncFileStat();
+        s.afile = afile;
+        s.isDirectory = f.isDirectory();
+        s.canRead = f.canRead();
+        s.canWrite = f.canWrite();
+        s.length = f.length();
+        return s;
+    }
+
+    /**
+     * Close the file after all enqueued requests have completed. Disallows any
+     * additional requests to be enqueued on this file. A SinkClosedEvent will
+     * be posted on the file's completion queue when the close is complete.
+     */
+    public void close() {
+        enqueueLossy(new AsyncFileCloseRequest(afile, completionQueue));
+        closed = true;
+    }
+
+    /**
+     * Causes a SinkFlushedEvent to be posted on the file's completion queue
+     * when all pending requests have completed.
+     */
+    public void flush() {
+        enqueueLossy(new AsyncFileFlushRequest(afile, completionQueue));
+    }
+
+    /**
+     * Return the per-file event queue.
+     */
+    EventQueue getQueue() {
+        return eventQueue;
+    }
+
+    /**
+     * Perform the given request; called by an AFileTPTM thread.
+     */
+    void process(AsyncFileRequest req) {
+        if (req instanceof AsyncFileReadRequest) {
+            AsyncFileReadRequest rreq = (AsyncFileReadRequest) req;
+            boolean positional = (rreq.position >= 0);
+            try {
+                long c = readFully(rreq, positional ? rreq.position : offset);
+                if (!positional && c > 0) {
+                    offset += c;
+                }
+                completeRead(rreq, c);
+            } catch (IOException ioe) {
+                req.complete(new AsyncFileIOExceptionOccurred(req, ioe));
+            } finally {
+                if (positional) {
+                    positionalDone();
+                }
+            }
+        } else if (req instanceof AsyncFileWriteRequest) {
+            AsyncFileWriteRequest wreq = (AsyncFileWriteRequest) req;
+            boolean positional = (wreq.position >= 0);
+            try {
+                writeFully(wreq.buf, positional ? wreq.position : offset);
+                if (!positional) {
+                    offset += wreq.buf.size;
+                }
+                req.complete(new AsyncFileIOCompleted(req, wreq.buf.size));
+            } catch (IOException ioe) {
+                req.complete(new AsyncFileIOExceptionOccurred(req, ioe));
+            } finally {
+                if (positional) {
+                    positionalDone();
+                }
+            }
+        } else if (req instanceof AsyncFileSeekRequest) {
+            offset = ((AsyncFileSeekRequest) req).offset;
+        } else if ((req instanceof AsyncFileFlushRequest) || (req instanceof AsyncFileCloseRequest)) {
+            synchronized (this) {
+                if (inFlight > 0) {
+                    barriers.add(req);
+                    return;
+                }
+            }
+            finish(req);
+        } else {
+            throw new Error("AFileChannelImpl.process got bad request: " + req);
+        }
+    }
+
+    // Called once a positional request has completed
+    private void positionalDone() {
+        List<AsyncFileRequest> ready = null;
+        synchronized (this) {
+            inFlight--;
+            if (inFlight == 0 && !barriers.isEmpty()) {
+                ready = barriers;
+                barriers = new ArrayList<AsyncFileRequest>();
+            }
+        }
+        if (ready != null) {
+            for (AsyncFileRequest req : ready) {
+                finish(req);
+            }
+        }
+    }
+
+    // Complete a flush or close request with either its success event or
+    // the IOException, never both
+    private void finish(AsyncFileRequest req) {
+        if (req instanceof AsyncFileFlushRequest) {
+            try {
+                if (!readOnly) {
+                    if (channel != null) {
+                        channel.force(false);
+                    } else {
+                        asyncChannel.force(false);
+                    }
+                }
+                req.complete(new SinkFlushedEvent(req.getAsyncFile()));
+            } catch (IOException ioe) {
+                req.complete(new AsyncFileIOExceptionOccurred(req, ioe));
+            }
+        } else {
+            try {
+                if (channel != null) {
+                    channel.close();
+                } else {
+                    asyncChannel.close();
+                }
+                req.complete(new SinkClosedEvent(req.getAsyncFile()));
+            } catch (IOException ioe) {
+                req.complete(new AsyncFileIOExceptionOccurred(req, ioe));
+            }
+        }
+    }
+
+    private long readFully(AsyncFileReadRequest req, long position) throws IOException {
+        return readFully(channel, asyncChannel, buffersOf(req), position);
+    }
+
+    private void writeFully(BufferEvent buf, long position) throws IOException {
+        writeFully(channel, asyncChannel, buf, position);
+    }
+
+    static BufferEvent[] buffersOf(AsyncFileReadRequest req) {
+        return (req.bufs != null) ? req.bufs : new BufferEvent[] { req.buf };
+    }
+
+    /**
+     * Fill the given buffers one after the other from the given position of
+     * ch, or of ach if ch is null. Returns the number of bytes read, or -1 if
+     * the position is at or beyond the end of the file.
+     */
+    static long readFully(FileChannel ch, AsynchronousFileChannel ach, BufferEvent bufs[], long position)
+            throws IOException {
+        long total = 0;
+        for (int i = 0; i < bufs.length; i++) {
+            ByteBuffer bb = ByteBuffer.wrap(bufs[i].data, bufs[i].offset, bufs[i].size);
+            while (bb.hasRemaining()) {
+                int c = (ch != null) ? ch.read(bb, position + total) : await(ach.read(bb, position + total));
+                if (c == -1) {
+                    return (total == 0) ? -1 : total;
+                }
+                total += c;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Write the given buffer at the given position of ch, or of ach if ch is
+     * null.
+     */
+    static void writeFully(FileChannel ch, AsynchronousFileChannel ach, BufferEvent buf, long position)
+            throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buf.data, buf.offset, buf.size);
+        while (bb.hasRemaining()) {
+            position += (ch != null) ? ch.write(bb, position) : await(ach.write(bb, position));
+        }
+    }
+
+    private static int await(Future<Integer> result) throws IOException {
+        try {
+            return result.get().intValue();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted waiting for file I/O", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    // Post the completion events of a read that returned c bytes
+    static void completeRead(AsyncFileReadRequest req, long c) {
+        long size = 0;
+        for (BufferEvent buf : buffersOf(req)) {
+            size += buf.size;
+        }
+        if (c == -1) {
+            req.complete(new AsyncFileEOFReached(req));
+        } else if (c < size) {
+            req.complete(new AsyncFileIOCompleted(req, (int) c));
+            req.complete(new AsyncFileEOFReached(req));
+        } else {
+            req.complete(new AsyncFileIOCompleted(req, (int) c));
+        }
+    }
+
+    /**
+     * A positional request running on the AsynchronousFileChannel. Each
+     * completion issues the next read or write until the request is done, and
+     * the last one posts the completion event.
+     */
+    private class AsyncIO implements CompletionHandler<Integer, Object> {
+        private final AsyncFileRequest req;
+        private final BufferEvent bufs[];
+        private final boolean write;
+        private final long position;
+        private int index;
+        private long total;
+        private ByteBuffer bb;
+
+        AsyncIO(AsyncFileRequest req) {
+            this.req = req;
+            if (req instanceof AsyncFileReadRequest) {
+                AsyncFileReadRequest rreq = (AsyncFileReadRequest) req;
+                this.bufs = buffersOf(rreq);
+                this.position = rreq.position;
+                this.write = false;
+            } else {
+                AsyncFileWriteRequest wreq = (AsyncFileWriteRequest) req;
+                this.bufs = new BufferEvent[] { wreq.buf };
+                this.position = wreq.position;
+                this.write = true;
+            }
+        }
+
+        void start() {
+            index = 0;
+            bb = ByteBuffer.wrap(bufs[0].data, bufs[0].offset, bufs[0].size);
+            next();
+        }
+
+        private void next() {
+            while (!bb.hasRemaining()) {
+                if (++index == bufs.length) {
+                    done(total);
+                    return;
+                }
+                bb = ByteBuffer.wrap(bufs[index].data, bufs[index].offset, bufs[index].size);
+            }
+            if (write) {
+                asyncChannel.write(bb, position + total, null, this);
+            } else {
+                asyncChannel.read(bb, position + total, null, this);
+            }
+        }
+
+        public void completed(Integer result, Object attachment) {
+            int c = result.intValue();
+            if (c == -1) {
+                done((total == 0) ? -1 : total);
+                return;
+            }
+            total += c;
+            next();
+        }
+
+        public void failed(Throwable exc, Object attachment) {
+            IOException ioe = (exc instanceof IOException) ? (IOException) exc : new IOException(exc);
+            req.complete(new AsyncFileIOExceptionOccurred(req, ioe));
+            positionalDone();
+        }
+
+        private void done(long c) {
+            if (write) {
+                req.complete(new AsyncFileIOCompleted(req, (int) c));
+            } else {
+                completeRead((AsyncFileReadRequest) req, c);
+            }
+            positionalDone();
+        }
+    }
+}
@@ -25,6 +25,7 @@
 package seda.sandstorm.lib.disk;
 
 import seda.sandstorm.api.EventElement;
+import seda.sandstorm.api.EventQueue;
 import seda.sandstorm.api.SinkException;
 import seda.sandstorm.core.SimpleSink;
 
@@ -71,4 +72,9 @@ abstract class AsyncFileImpl extends SimpleSink {
      * when all pending requests have completed.
      */
     public abstract void flush();
+
+    /**
+     * Return the per-file queue of requests waiting for an AFileTPTM thread.
+     */
+    abstract EventQueue getQueue();
 }
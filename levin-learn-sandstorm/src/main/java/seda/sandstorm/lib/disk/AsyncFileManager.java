@@ -43,7 +43,15 @@ import seda.sandstorm.main.SandstormConfig;
 public class AsyncFileManager {
     private static final Logger LOGGER = LoggerFactory.getLogger(AsyncFileManager.class);
     
+    /** Value of global.aDisk.impl selecting RandomAccessFile I/O. */
+    public static final String IMPL_THREADPOOL = "threadpool";
+    /** Value of global.aDisk.impl selecting positional FileChannel I/O. */
+    public static final String IMPL_CHANNEL = "channel";
+    /** Value of global.aDisk.impl selecting AsynchronousFileChannel I/O. */
+    public static final String IMPL_ASYNC = "async";
+
     private static ThreadManager aFileTM;
+    private static String implType = IMPL_THREADPOOL;
     private static boolean initialized = false;
     private static Object initLock = new Object();
 
@@ -61,6 +69,12 @@ public class AsyncFileManager {
             // to do this with a separate thread manager rather than
             // bastardizing an existing one.
             aFileTM = new AsyncFileTPTM(mgr, sysmgr);
+            implType = mgr.getConfig().getString("global.aDisk.impl", IMPL_THREADPOOL);
+            if (!implType.equals(IMPL_THREADPOOL) && !implType.equals(IMPL_CHANNEL)
+                    && !implType.equals(IMPL_ASYNC)) {
+                LOGGER.warn("Unknown global.aDisk.impl '{}', using {}", implType, IMPL_THREADPOOL);
+                implType = IMPL_THREADPOOL;
+            }
             initialized = true;
         }
     }
@@ -102,4 +116,11 @@ public class AsyncFileManager {
     static ThreadManager getTM() {
         return aFileTM;
     }
+
+    /**
+     * Return the AsyncFile implementation selected by global.aDisk.impl.
+     */
+    static String getImplType() {
+        return implType;
+    }
 }
@@ -34,6 +34,8 @@ import seda.sandstorm.core.*;
  */
 public class AsyncFileReadRequest extends AsyncFileRequest {
     BufferEvent buf;
+    BufferEvent bufs[];
+    long position = -1;
 
     /**
      * Create a read request to fill in the given BufferElement. Completion
@@ -44,10 +46,48 @@ public class AsyncFileReadRequest extends AsyncFileRequest {
         this.buf = buf;
     }
 
+    /**
+     * Create a read request to fill in the given BufferElement from the given
+     * file position, without using or moving the current file offset.
+     */
+    public AsyncFileReadRequest(BufferEvent buf, long position, EventSink compQ) {
+        super(compQ);
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position " + position);
+        }
+        this.buf = buf;
+        this.position = position;
+    }
+
+    /**
+     * Create a vectored read request which fills in the given BufferElements
+     * one after the other, starting at the given file position. A single
+     * completion event reports the total number of bytes read.
+     */
+    public AsyncFileReadRequest(BufferEvent bufs[], long position, EventSink compQ) {
+        this(bufs[0], position, compQ);
+        this.bufs = bufs;
+    }
+
     public BufferEvent getBuffer() {
         return buf;
     }
 
+    /**
+     * Return the buffers of a vectored read, or null.
+     */
+    public BufferEvent[] getBuffers() {
+        return bufs;
+    }
+
+    /**
+     * Return the file position to read from, or -1 to read from the current
+     * file offset.
+     */
+    public long getPosition() {
+        return position;
+    }
+
     public String toString() {
         return "AfileReadRequest (buf:" + buf + ")";
     }
@@ -112,7 +112,7 @@ class AsyncFileTPTM extends TPSThreadManager implements ThreadManager, Profilabl
     /**
      * Indicate that a file has pending events.
      */
-    public void fileReady(AsyncFileTPImpl impl) {
+    public void fileReady(AsyncFileImpl impl) {
         try {
             FileQueueEntry fqe = new FileQueueEntry(impl);
             fileQueue.enqueue(fqe);
@@ -124,6 +124,21 @@ class AsyncFileTPTM extends TPSThreadManager implements ThreadManager, Profilabl
         }
     }
 
+    /**
+     * Hand a single request which does not need to be ordered with the other
+     * requests on its file to the next free thread.
+     */
+    public void requestReady(AsyncFileRequest req) {
+        try {
+            fileQueue.enqueue(new RequestEntry(req));
+            synchronized (fileQueue) {
+                numOutstandingRequests++;
+            }
+        } catch (SinkException se) {
+            throw new InternalError("AFileTPTM.requestReady() got SinkException");
+        }
+    }
+
     // Return the number of outstanding elements, for profiling
     public int profileSize() {
         return numOutstandingRequests;
@@ -131,15 +146,24 @@ class AsyncFileTPTM extends TPSThreadManager implements ThreadManager, Profilabl
 
     // Used to keep track of number of elements on fileQ
     class FileQueueEntry implements EventElement {
-        AsyncFileTPImpl impl;
+        AsyncFileImpl impl;
         int size;
 
-        FileQueueEntry(AsyncFileTPImpl impl) {
+        FileQueueEntry(AsyncFileImpl impl) {
             this.impl = impl;
             this.size = ((EventSource) impl.getQueue()).size();
         }
     }
 
+    // A single request which may run concurrently with others on its file
+    class RequestEntry implements EventElement {
+        AsyncFileRequest req;
+
+        RequestEntry(AsyncFileRequest req) {
+            this.req = req;
+        }
+    }
+
     /**
      * Internal class representing a single AFileTPTM-managed thread.
      */
@@ -165,9 +189,9 @@ class AsyncFileTPTM extends TPSThreadManager implements ThreadManager, Profilabl
                 try {
                     blockTime = (int) threadPool.getBlockTime();
 
-                    AsyncFileTPImpl impl;
-                    FileQueueEntry fqe = (FileQueueEntry) fileQueue.blockingDequeue(blockTime);
-                    if (fqe == null) {
+                    AsyncFileImpl impl;
+                    EventElement entry = fileQueue.blockingDequeue(blockTime);
+                    if (entry == null) {
                         t2 = System.currentTimeMillis();
                         if (threadPool.timeToStop(t2 - t1)) {
                             LOGGER.info(name + ": Exiting");
@@ -177,6 +201,15 @@ class AsyncFileTPTM extends TPSThreadManager implements ThreadManager, Profilabl
                     }
                     t1 = System.currentTimeMillis();
 
+                    if (entry instanceof RequestEntry) {
+                        synchronized (fileQueue) {
+                            numOutstandingRequests--;
+                        }
+                        processRequest(((RequestEntry) entry).req);
+                        continue;
+                    }
+
+                    FileQueueEntry fqe = (FileQueueEntry) entry;
                     impl = fqe.impl;
                     synchronized (fileQueue) {
                         numOutstandingRequests -= fqe.size;
@@ -204,7 +237,12 @@ class AsyncFileTPTM extends TPSThreadManager implements ThreadManager, Profilabl
         }
 
         private void processRequest(AsyncFileRequest req) {
-            LOGGER.info(name + " processing request: " + req);
+            LOGGER.debug(name + " processing request: " + req);
+
+            if (req.getImpl() instanceof AsyncFileChannelImpl) {
+                ((AsyncFileChannelImpl) req.getImpl()).process(req);
+                return;
+            }
 
             // Read request
             if (req instanceof AsyncFileReadRequest) {
@@ -212,6 +250,16 @@ class AsyncFileTPTM extends TPSThreadManager implements ThreadManager, Profilabl
                 AsyncFileTPImpl impl = (AsyncFileTPImpl) rreq.getImpl();
                 RandomAccessFile raf = impl.raf;
                 BufferEvent buf = rreq.buf;
+                if (rreq.position >= 0) {
+                    // Positional read, leaves the file pointer alone
+                    try {
+                        AsyncFileChannelImpl.completeRead(rreq, AsyncFileChannelImpl.readFully(
+                                raf.getChannel(), null, AsyncFileChannelImpl.buffersOf(rreq), rreq.position));
+                    } catch (IOException ioe) {
+                        req.complete(new AsyncFileIOExceptionOccurred(req, ioe));
+                    }
+                    return;
+                }
                 try {
                     int c = raf.read(buf.data, buf.offset, buf.size);
                     if (c == -1) {
@@ -232,7 +280,11 @@ class AsyncFileTPTM extends TPSThreadManager implements ThreadManager, Profilabl
                 RandomAccessFile raf = impl.raf;
                 BufferEvent buf = wreq.buf;
                 try {
-                    raf.write(buf.data, buf.offset, buf.size);
+                    if (wreq.position >= 0) {
+                        AsyncFileChannelImpl.writeFully(raf.getChannel(), null, buf, wreq.position);
+                    } else {
+                        raf.write(buf.data, buf.offset, buf.size);
+                    }
                     req.complete(new AsyncFileIOCompleted(req, buf.size));
                 } catch (IOException ioe) {
                     req.complete(new AsyncFileIOExceptionOccurred(req, ioe));
@@ -34,6 +34,7 @@ import seda.sandstorm.core.*;
  */
 public class AsyncFileWriteRequest extends AsyncFileRequest {
     BufferEvent buf;
+    long position = -1;
 
     /**
      * Create a write request using the given buffer and completion queue.
@@ -42,4 +43,25 @@ public class AsyncFileWriteRequest extends AsyncFileRequest {
         super(compQ);
         this.buf = buf;
     }
+
+    /**
+     * Create a write request at the given file position, which does not use
+     * or move the current file offset.
+     */
+    public AsyncFileWriteRequest(BufferEvent buf, long position, EventSink compQ) {
+        super(compQ);
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position " + position);
+        }
+        this.buf = buf;
+        this.position = position;
+    }
+
+    /**
+     * Return the file position to write at, or -1 to write at the current
+     * file offset.
+     */
+    public long getPosition() {
+        return position;
+    }
 }
@@ -40,6 +40,8 @@ public class ATcpConnectRequest extends aSocketRequest implements EventElement {
   public int port;
   public int writeClogThreshold;
   public int connectClogTries;
+  /** The write shard the connect is done on, chosen by SocketMgr. */
+  public int writeShard = -1;
 
   public ATcpConnectRequest(ATcpClientSocket clisock, InetAddress addr, int port, 
       EventSink compQ, int writeClogThreshold, int connectClogTries) {
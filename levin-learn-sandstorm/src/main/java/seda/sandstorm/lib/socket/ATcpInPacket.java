@@ -32,6 +32,13 @@ import seda.sandstorm.core.*;
  * asynchronous socket. When a packet is received on a connection,
  * an ATcpInPacket is pushed to the SinkIF associated with an
  * ATcpConnection.
+ * <p>
+ * A packet read by the aSocket layer usually holds a buffer taken from a
+ * BufferPool, and the receiver owns it: it must call release() once it is
+ * done with the data, or call getBytes(), which copies the data and
+ * releases the buffer at once. A packet which is dropped without either
+ * keeps its buffer counted as in use; the pool only notices a sample of
+ * such packets, when they are garbage collected.
  *
  * @author Matt Welsh
  * @see ATcpConnection
@@ -40,6 +47,9 @@ public class ATcpInPacket implements EventElement {
 
   private ATcpConnection conn;
   private BufferEvent buf;
+  private BufferPool pool;
+  private BufferPool.Lease lease;
+  private boolean released;
   // package access
   long seqNum;
 
@@ -95,6 +105,19 @@ public class ATcpInPacket implements EventElement {
     this.seqNum = seqNum;
   }
 
+  /**
+   * Create a packet holding the first <tt>len</tt> bytes of a buffer taken
+   * from <tt>pool</tt>. The packet owns the buffer: it goes back to the pool
+   * when the packet is released, or when getBytes() copies the data out.
+   */
+  public ATcpInPacket(ATcpConnection conn, byte data[], int len, BufferPool pool, long seqNum) {
+    this.conn = conn;
+    this.buf = new BufferEvent(data, 0, len);
+    this.pool = pool;
+    this.lease = pool.track(this);
+    this.seqNum = seqNum;
+  }
+
   /**
    * Return the connection from which this packet was received.
    */
@@ -104,8 +127,23 @@ public class ATcpInPacket implements EventElement {
 
   /** 
    * Return the data from an incoming TCP packet.
+   * If the packet holds a pooled buffer, the data is first copied into an
+   * array of exactly size() bytes and the buffer is returned to the pool;
+   * use getBufferElement() and release() to avoid the copy.
    */
-  public byte[] getBytes() {
+  public synchronized byte[] getBytes() {
+    if (pool != null) {
+      byte newdata[] = new byte[buf.size];
+      System.arraycopy(buf.data, buf.offset, newdata, 0, buf.size);
+      byte pooled[] = buf.data;
+      buf = new BufferEvent(newdata);
+      pool.recordCopy();
+      pool.release(pooled, lease);
+      pool = null;
+      lease = null;
+    } else if (released) {
+      throw new IllegalStateException("ATcpInPacket already released");
+    }
     return buf.data;
   }
 
@@ -117,12 +155,36 @@ public class ATcpInPacket implements EventElement {
   }
 
   /**
-   * Return the BufferElement associated with the packet data.
+   * Return the BufferElement associated with the packet data. For a pooled
+   * packet the data array may be larger than size(), and must not be used
+   * after release().
    */
-  public BufferEvent getBufferElement() {
+  public synchronized BufferEvent getBufferElement() {
+    if (released) throw new IllegalStateException("ATcpInPacket already released");
     return buf;
   }
 
+  /**
+   * Indicate that the packet data is no longer needed, returning a pooled
+   * buffer to its pool. Does nothing for packets which do not hold a pooled
+   * buffer; calling it more than once is harmless.
+   */
+  public synchronized void release() {
+    if (pool != null) {
+      pool.release(buf.data, lease);
+      pool = null;
+      lease = null;
+      released = true;
+    }
+  }
+
+  /**
+   * Return true if this packet holds a buffer taken from a BufferPool.
+   */
+  public synchronized boolean isPooled() {
+    return (pool != null);
+  }
+
   /**
    * Return the sequence number associated with this packet.
    * Sequence numbers range from 1 to Long.MAX_VALUE, then wrap
@@ -34,10 +34,23 @@ public class ATcpWriteRequest extends aSocketRequest implements EventElement {
 
   public ATcpConnection conn;
   public BufferEvent buf;
+  private boolean released;
 
   public ATcpWriteRequest(ATcpConnection conn, BufferEvent buf) {
     this.conn = conn;
     this.buf = buf;
+    // Keep the channel of a file region open until this write is done
+    if (buf instanceof FileRegionEvent) ((FileRegionEvent)buf).retain();
+  }
+
+  /**
+   * Called once this request has been written or dropped. Releases the
+   * reference it holds on a FileRegionEvent; later calls do nothing.
+   */
+  public synchronized void release() {
+    if (released) return;
+    released = true;
+    if (buf instanceof FileRegionEvent) ((FileRegionEvent)buf).release();
   }
 
 }
@@ -97,6 +97,7 @@ public class AUdpSocket extends SimpleSink {
     // call.
     SocketMgr.init();
     this.sockState = SocketMgr.getFactory().newDatagramSockState(this, localaddr, localport);
+    SocketMgr.assignShards(sockState);
   }
 
   /**
@@ -36,8 +36,17 @@ public abstract class ConnectSockState {
     protected int connectClogTries, connectNumTries;
     protected int writeClogThreshold;
     protected boolean completed = false;
+    protected int writeShard = -1;
 
     protected abstract void complete();
 
+    /**
+     * Called by complete() once the connected socket has its SockState; the
+     * socket keeps the write shard it connected on.
+     */
+    protected void assignShards(SockState ss) {
+        SocketMgr.assignShards(ss, writeShard);
+    }
+
     protected abstract void error(aSocketErrorEvent error);
 }
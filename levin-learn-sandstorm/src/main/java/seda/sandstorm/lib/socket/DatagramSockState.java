@@ -54,6 +54,9 @@ public abstract class DatagramSockState implements aSocketConst {
   protected AUdpWriteRequest cur_write_req;
   protected BufferEvent cur_write_buf;
 
+  // Shards of the read and write stages handling this socket, -1 once released
+  int readShard = -1, writeShard = -1;
+
   protected abstract void readInit(SelectSourceIF read_selsource, EventSink compQ, int readClogTries);
   protected abstract void doRead();
   protected abstract boolean addWriteRequest(aSocketRequest req, EventSource write_selsource);
@@ -78,6 +81,16 @@ public abstract class DatagramSockState implements aSocketConst {
     return closed;
   }
 
+  /**
+   * Called by close() to take this socket off the load of its shards.
+   */
+  protected void releaseShards() {
+    if (readShard >= 0) {
+      SocketMgr.releaseShards(readShard, writeShard);
+      readShard = writeShard = -1;
+    }
+  }
+
 
 }
 
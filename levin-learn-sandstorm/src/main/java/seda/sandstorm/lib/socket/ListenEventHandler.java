@@ -70,6 +70,7 @@ class ListenEventHandler extends SocketEventHandler implements EventHandler {
             
             SockState ss = SocketMgr.getFactory().newSockState(conn, sock, lss.writeClogThreshold);
             conn.sockState = ss;
+            SocketMgr.assignShards(ss, -1);
             
             LOGGER.debug("ListenThread: Created new sockstate {}, and complete ListenSocketState ", ss);
 
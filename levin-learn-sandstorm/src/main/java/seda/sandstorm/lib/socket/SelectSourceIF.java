@@ -98,12 +98,37 @@ public interface SelectSourceIF extends EventSource {
    */
   public int numActive();
 
+  /**
+   * Make a blocking dequeue in progress return at once, or the next one
+   * if none is in progress. Used to wake up the thread serving this
+   * SelectSource when work arrives for it elsewhere.
+   */
+  public void wakeup();
+
   /**
    * Return the number of elements waiting in the queue (that is,
    * which don't require a SelectSet poll operation to retrieve).
    */
   public int size();
 
+  /**
+   * Dequeue up to <tt>num</tt> ready elements, or all of them if
+   * <tt>num</tt> is -1, into the batch returned by getBatch(). Blocks up
+   * to timeout_millis milliseconds; a timeout of -1 blocks forever.
+   * Returns the number of elements at the start of the batch, 0 if none
+   * became ready.
+   *
+   * <p>Unlike the dequeue methods this allocates nothing per event: the
+   * batch and its elements are reused by the next call, so they must not
+   * be kept beyond it.
+   */
+  public int blockingDequeueBatch(int timeout_millis, int num);
+
+  /**
+   * Return the batch filled in by the last call to blockingDequeueBatch().
+   */
+  public SelectQueueElement[] getBatch();
+
   /* 
 
   // Actually performs the poll and sets ready[], ready_off, ready_size
@@ -54,6 +54,9 @@ public abstract class SockState implements aSocketConst {
 
     protected static int numActiveWriteSockets = 0;
 
+    // Shards of the read and write stages handling this socket, -1 once released
+    int readShard = -1, writeShard = -1;
+
     // This is synchronized with close()
     protected abstract void readInit(SelectSourceIF read_selsource,
             EventSink compQ, int readClogTries);
@@ -70,6 +73,25 @@ public abstract class SockState implements aSocketConst {
 
     protected abstract boolean tryWrite() throws SinkClosedException;
 
+    /**
+     * Start writing the write request at the head of writeReqList together
+     * with the write requests queued directly behind it, up to
+     * MAX_GATHER_WRITES requests or MAX_GATHER_BYTES bytes.
+     */
+    protected abstract void initGatherWrite();
+
+    /**
+     * Write as much of the gathered requests as the socket takes; returns
+     * true once all of them have been written.
+     */
+    protected abstract boolean tryGatherWrite() throws SinkClosedException;
+
+    /**
+     * Return the next gathered request which has been completely written, in
+     * the order the requests were queued, or null if there is none.
+     */
+    protected abstract ATcpWriteRequest nextCompletedWrite();
+
     void writeReset() {
         this.cur_write_req = null;
         this.outstanding_writes--;
@@ -87,6 +109,16 @@ public abstract class SockState implements aSocketConst {
         return closed;
     }
 
+    /**
+     * Called by close() to take this socket off the load of its shards.
+     */
+    protected void releaseShards() {
+        if (readShard >= 0) {
+            SocketMgr.releaseShards(readShard, writeShard);
+            readShard = writeShard = -1;
+        }
+    }
+
     // XXX This is synchronized to avoid close() interfering with
     // addWriteRequest
     protected abstract void close(EventSink closeEventQueue);
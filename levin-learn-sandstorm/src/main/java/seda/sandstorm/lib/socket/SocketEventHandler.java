@@ -37,7 +37,7 @@ abstract class SocketEventHandler implements EventHandler {
     protected SelectSourceIF selsource;
 
     SocketEventHandler() {
-        this.selsource = SocketMgr.getFactory().newSelectSource();
+        this.selsource = SocketMgr.getFactory().newSelectSource(SocketMgr.doBalance());
     }
 
     // Used to let ReadStageWrapper get a handle to the selsource
@@ -53,4 +53,15 @@ abstract class SocketEventHandler implements EventHandler {
 
     public abstract void handleEvents(EventElement qelarr[]);
 
+    /**
+     * Handle the first <tt>num</tt> select events of a batch from
+     * SelectSourceIF.blockingDequeueBatch(). The batch is reused by the
+     * select source, so its elements must not be kept.
+     */
+    void handleSelectEvents(SelectQueueElement batch[], int num) {
+        for (int i = 0; i < num; i++) {
+            handleEvent(batch[i]);
+        }
+    }
+
 }
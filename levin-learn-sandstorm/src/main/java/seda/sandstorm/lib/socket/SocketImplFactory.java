@@ -44,7 +44,7 @@ public abstract class SocketImplFactory {
     return factory;
   }
 
-  protected abstract SelectSourceIF newSelectSource();
+  protected abstract SelectSourceIF newSelectSource(boolean do_balance);
   protected abstract SelectQueueElement newSelectQueueElement(Object item);
   protected abstract SockState newSockState(ATcpConnection conn, Socket nbsock, int writeClogThreshold) throws IOException;
   protected abstract ConnectSockState newConnectSockState(ATcpConnectRequest req, SelectSourceIF selsource) throws IOException;
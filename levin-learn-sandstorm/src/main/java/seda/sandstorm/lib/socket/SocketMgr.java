@@ -26,10 +26,13 @@ package seda.sandstorm.lib.socket;
 
 import seda.sandstorm.api.EventSink;
 import seda.sandstorm.api.Manager;
+import seda.sandstorm.api.Profilable;
+import seda.sandstorm.api.Profiler;
 import seda.sandstorm.api.SinkException;
 import seda.sandstorm.api.Stage;
 import seda.sandstorm.api.internal.SystemManager;
 import seda.sandstorm.api.internal.ThreadManager;
+import seda.sandstorm.core.BufferPool;
 import seda.sandstorm.internal.ConfigDataImpl;
 import seda.sandstorm.main.Sandstorm;
 import seda.sandstorm.main.SandstormConfig;
@@ -43,16 +46,22 @@ import seda.sandstorm.main.SandstormConfig;
  */
 public class SocketMgr {
     private static ThreadManager aSocketTM, aSocketRCTM;
-    private static EventSink read_sink;
     private static EventSink listenSink;
-    private static EventSink write_sink;
+    private static SelectSourceIF listenSelsource;
+    private static SocketShards readShards, writeShards;
 
     private static Object init_lock = new Object();
     private static boolean initialized = false;
 
     static boolean USE_NIO = false;
+    private static boolean selectBatch = true;
+    private static boolean doBalance = true;
     private static SocketImplFactory factory;
 
+    private static final BufferPool readBufferPool = new BufferPool("aSocket read",
+            aSocketConst.READ_BUFFER_SIZE, aSocketConst.READ_BUFFER_POOL_SLAB,
+            aSocketConst.READ_BUFFER_POOL_MAX_FREE, aSocketConst.READ_BUFFER_LEAK_SAMPLE);
+
     /**
      * Called at startup time by the Sandstorm runtime.
      */
@@ -69,23 +78,32 @@ public class SocketMgr {
                 throw new RuntimeException("aSocketMgr: Cannot create aSocketImplFactory: " + e);
             }
 
+            selectBatch = cfg.getBoolean("global.aSocket.selectBatch", true);
+            doBalance = cfg.getBoolean("global.aSocket.balance", true);
+
             aSocketTM = new SocketThreadManager(mgr);
             sysmgr.addThreadManager("aSocket", aSocketTM);
 
-            ReadEventHandler revh = new ReadEventHandler();
-            SocketStageWrapper rsw;
+            String policy = cfg.getString("global.aSocket.shardPolicy",
+                    SocketShards.POLICY_ROUND_ROBIN);
+            readShards = new SocketShards(aSocketConst.READSTAGE_NAME,
+                    numShards(cfg, "global.aSocket.readShards"), policy);
+            writeShards = new SocketShards(aSocketConst.WRITESTAGE_NAME,
+                    numShards(cfg, "global.aSocket.writeShards"), policy);
+
+            ThreadManager readTM = aSocketTM;
             if (cfg.getBoolean("global.aSocket.governor.enable")) {
                 aSocketRCTM = new aSocketRCTMSleep(mgr);
                 sysmgr.addThreadManager("aSocketRCTM", aSocketRCTM);
-                rsw = new SocketStageWrapper("aSocket ReadStage", revh,
-                        new ConfigDataImpl(mgr), aSocketRCTM);
-            } else {
-                rsw = new SocketStageWrapper("aSocket ReadStage", revh,
-                        new ConfigDataImpl(mgr), aSocketTM);
+                readTM = aSocketRCTM;
+            }
+            for (int i = 0; i < readShards.size(); i++) {
+                ReadEventHandler revh = new ReadEventHandler();
+                SocketStageWrapper rsw = new SocketStageWrapper(readShards.getName(i),
+                        revh, new ConfigDataImpl(mgr), readTM);
+                Stage readStage = sysmgr.createStage(rsw, true);
+                readShards.setShard(i, readStage.getSink(), revh.getSelectSource());
             }
-
-            Stage readStage = sysmgr.createStage(rsw, true);
-            read_sink = readStage.getSink();
 
             ListenEventHandler levh = new ListenEventHandler();
             SocketStageWrapper lsw = new SocketStageWrapper(
@@ -93,12 +111,40 @@ public class SocketMgr {
                     aSocketTM);
             Stage listenStage = sysmgr.createStage(lsw, true);
             listenSink = listenStage.getSink();
+            listenSelsource = levh.getSelectSource();
 
-            WriteEventHandler wevh = new WriteEventHandler();
-            SocketStageWrapper wsw = new SocketStageWrapper(
-                    "aSocket WriteStage", wevh, new ConfigDataImpl(mgr), aSocketTM);
-            Stage writeStage = sysmgr.createStage(wsw, true);
-            write_sink = writeStage.getSink();
+            for (int i = 0; i < writeShards.size(); i++) {
+                WriteEventHandler wevh = new WriteEventHandler();
+                SocketStageWrapper wsw = new SocketStageWrapper(writeShards.getName(i),
+                        wevh, new ConfigDataImpl(mgr), aSocketTM);
+                Stage writeStage = sysmgr.createStage(wsw, true);
+                writeShards.setShard(i, writeStage.getSink(), wevh.getSelectSource());
+            }
+            System.err.println("aSocket layer using " + readShards.size() + " read and "
+                    + writeShards.size() + " write shards, policy " + policy);
+
+            Profiler profiler = mgr.getProfiler();
+            readShards.profile(profiler);
+            writeShards.profile(profiler);
+
+            if (aSocketConst.READ_BUFFER_POOL) {
+                profiler.add("aSocket read buffers inUse", readBufferPool);
+                profiler.add("aSocket read buffers free", new Profilable() {
+                    public int profileSize() {
+                        return readBufferPool.getFree();
+                    }
+                });
+                profiler.add("aSocket read buffers leaked", new Profilable() {
+                    public int profileSize() {
+                        return (int) readBufferPool.getLeaked();
+                    }
+                });
+                profiler.add("aSocket read buffers copied", new Profilable() {
+                    public int profileSize() {
+                        return (int) readBufferPool.getCopied();
+                    }
+                });
+            }
 
             initialized = true;
         }
@@ -130,6 +176,62 @@ public class SocketMgr {
         }
     }
 
+    private static int numShards(SandstormConfig cfg, String key) {
+        int n = cfg.getInt(key, 0);
+        return (n > 0) ? n : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Assign a new TCP socket to its read and write shards. writeShard is
+     * the shard its connect was done on, or -1 for an accepted socket.
+     */
+    static void assignShards(SockState ss, int writeShard) {
+        ss.readShard = readShards.pick();
+        readShards.add(ss.readShard);
+        ss.writeShard = (writeShard >= 0) ? writeShard : writeShards.pick();
+        writeShards.add(ss.writeShard);
+    }
+
+    /**
+     * Assign a new UDP socket to its read and write shards.
+     */
+    static void assignShards(DatagramSockState ss) {
+        ss.readShard = readShards.pick();
+        readShards.add(ss.readShard);
+        ss.writeShard = writeShards.pick();
+        writeShards.add(ss.writeShard);
+    }
+
+    /**
+     * Called when a socket assigned by assignShards() is closed.
+     */
+    static void releaseShards(int readShard, int writeShard) {
+        readShards.remove(readShard);
+        writeShards.remove(writeShard);
+    }
+
+    /**
+     * Return the pool from which socket reads take their buffers.
+     */
+    public static BufferPool getReadBufferPool() {
+        return readBufferPool;
+    }
+
+    /**
+     * Whether the aSocket threads take ready keys from their select
+     * sources in reused batches rather than as newly allocated elements.
+     */
+    static boolean selectBatch() {
+        return selectBatch;
+    }
+
+    /**
+     * Whether the select sources shuffle the ready keys of each poll.
+     */
+    static boolean doBalance() {
+        return doBalance;
+    }
+
     static SocketImplFactory getFactory() {
         return factory;
     }
@@ -137,56 +239,50 @@ public class SocketMgr {
     static public void enqueueRequest(aSocketRequest req) {
         init();
 
-        if ((req instanceof ATcpWriteRequest)
-                || (req instanceof ATcpConnectRequest)
-                || (req instanceof ATcpFlushRequest)
-                || (req instanceof ATcpCloseRequest)
-                || (req instanceof AUdpWriteRequest)
-                || (req instanceof AUdpCloseRequest)
-                || (req instanceof AUdpFlushRequest)
-                || (req instanceof AUdpConnectRequest)
-                || (req instanceof AUdpDisconnectRequest)) {
-
-            try {
-                write_sink.enqueue(req);
-            } catch (SinkException se) {
-                System.err.println(
-                        "aSocketMgr.enqueueRequest: Warning: Got SinkException "
-                                + se);
-                System.err.println(
-                        "aSocketMgr.enqueueRequest: This is a bug - contact <mdw@cs.berkeley.edu>");
-            }
-
-        } else if ((req instanceof ATcpStartReadRequest)
-                || (req instanceof AUdpStartReadRequest)) {
-
-            try {
-                read_sink.enqueue(req);
-            } catch (SinkException se) {
-                System.err.println(
-                        "aSocketMgr.enqueueRequest: Warning: Got SinkException "
-                                + se);
-                System.err.println(
-                        "aSocketMgr.enqueueRequest: This is a bug - contact <mdw@cs.berkeley.edu>");
-            }
+        try {
+            if (req instanceof ATcpWriteRequest) {
+                writeShards.enqueue(((ATcpWriteRequest) req).conn.sockState.writeShard, req);
+            } else if (req instanceof ATcpFlushRequest) {
+                writeShards.enqueue(((ATcpFlushRequest) req).conn.sockState.writeShard, req);
+            } else if (req instanceof ATcpCloseRequest) {
+                writeShards.enqueue(((ATcpCloseRequest) req).conn.sockState.writeShard, req);
+            } else if (req instanceof ATcpConnectRequest) {
+                // The connected socket stays on the shard it connected on
+                ATcpConnectRequest creq = (ATcpConnectRequest) req;
+                creq.writeShard = writeShards.pick();
+                writeShards.enqueue(creq.writeShard, req);
+            } else if (req instanceof AUdpWriteRequest) {
+                writeShards.enqueue(((AUdpWriteRequest) req).sock.sockState.writeShard, req);
+            } else if (req instanceof AUdpCloseRequest) {
+                writeShards.enqueue(((AUdpCloseRequest) req).sock.sockState.writeShard, req);
+            } else if (req instanceof AUdpFlushRequest) {
+                writeShards.enqueue(((AUdpFlushRequest) req).sock.sockState.writeShard, req);
+            } else if (req instanceof AUdpConnectRequest) {
+                writeShards.enqueue(((AUdpConnectRequest) req).sock.sockState.writeShard, req);
+            } else if (req instanceof AUdpDisconnectRequest) {
+                writeShards.enqueue(((AUdpDisconnectRequest) req).sock.sockState.writeShard, req);
 
-        } else if ((req instanceof ATcpListenRequest)
-                || (req instanceof ATcpSuspendAcceptRequest)
-                || (req instanceof ATcpResumeAcceptRequest)
-                || (req instanceof ATcpCloseServerRequest)) {
+            } else if (req instanceof ATcpStartReadRequest) {
+                readShards.enqueue(((ATcpStartReadRequest) req).conn.sockState.readShard, req);
+            } else if (req instanceof AUdpStartReadRequest) {
+                readShards.enqueue(((AUdpStartReadRequest) req).sock.sockState.readShard, req);
 
-            try {
+            } else if ((req instanceof ATcpListenRequest)
+                    || (req instanceof ATcpSuspendAcceptRequest)
+                    || (req instanceof ATcpResumeAcceptRequest)
+                    || (req instanceof ATcpCloseServerRequest)) {
                 listenSink.enqueue(req);
-            } catch (SinkException se) {
-                System.err.println(
-                        "aSocketMgr.enqueueRequest: Warning: Got SinkException "
-                                + se);
-                System.err.println(
-                        "aSocketMgr.enqueueRequest: This is a bug - contact <mdw@cs.berkeley.edu>");
-            }
+                listenSelsource.wakeup();
 
-        } else {
-            throw new IllegalArgumentException("Bad request type " + req);
+            } else {
+                throw new IllegalArgumentException("Bad request type " + req);
+            }
+        } catch (SinkException se) {
+            System.err.println(
+                    "aSocketMgr.enqueueRequest: Warning: Got SinkException "
+                            + se);
+            System.err.println(
+                    "aSocketMgr.enqueueRequest: This is a bug - contact <mdw@cs.berkeley.edu>");
         }
     }
 }
@@ -0,0 +1,125 @@
+package seda.sandstorm.lib.socket;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import seda.sandstorm.api.EventSink;
+import seda.sandstorm.api.Profilable;
+import seda.sandstorm.api.Profiler;
+import seda.sandstorm.api.SinkException;
+
+/**
+ * A set of aSocket stages of one kind (read or write), each driving its own
+ * select source on its own thread. Every socket is assigned to one shard of
+ * the set for its lifetime, so all of its requests and select events are
+ * handled by the same thread, in order.
+ */
+class SocketShards {
+    /** Value for global.aSocket.shardPolicy to assign shards in turn. */
+    static final String POLICY_ROUND_ROBIN = "roundRobin";
+    /** Value for global.aSocket.shardPolicy to pick the shard with the fewest sockets. */
+    static final String POLICY_LEAST_LOAD = "leastLoad";
+
+    private final String name;
+    private final EventSink[] sinks;
+    private final SelectSourceIF[] selsources;
+    private final boolean leastLoad;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicIntegerArray sockets;
+
+    SocketShards(String name, int numShards, String policy) {
+        if (POLICY_LEAST_LOAD.equalsIgnoreCase(policy)) {
+            leastLoad = true;
+        } else if (POLICY_ROUND_ROBIN.equalsIgnoreCase(policy)) {
+            leastLoad = false;
+        } else {
+            throw new IllegalArgumentException("Bad aSocket shard policy " + policy);
+        }
+        this.name = name;
+        this.sinks = new EventSink[numShards];
+        this.selsources = new SelectSourceIF[numShards];
+        this.sockets = new AtomicIntegerArray(numShards);
+    }
+
+    /**
+     * Return the name of the given shard's stage.
+     */
+    String getName(int shard) {
+        return (sinks.length == 1) ? name : name + "-" + shard;
+    }
+
+    void setShard(int shard, EventSink sink, SelectSourceIF selsource) {
+        sinks[shard] = sink;
+        selsources[shard] = selsource;
+    }
+
+    int size() {
+        return sinks.length;
+    }
+
+    /**
+     * Choose the shard for a new socket. The socket is not counted until
+     * add() is called.
+     */
+    int pick() {
+        int n = sinks.length;
+        if (n == 1) {
+            return 0;
+        }
+        if (!leastLoad) {
+            return (next.getAndIncrement() & Integer.MAX_VALUE) % n;
+        }
+        // Start the scan at a rotating shard so that ties are spread out
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % n;
+        int best = start;
+        int bestLoad = sockets.get(start);
+        for (int i = 1; i < n; i++) {
+            int s = (start + i) % n;
+            int load = sockets.get(s);
+            if (load < bestLoad) {
+                best = s;
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
+    void add(int shard) {
+        sockets.incrementAndGet(shard);
+    }
+
+    void remove(int shard) {
+        sockets.decrementAndGet(shard);
+    }
+
+    /**
+     * Return the number of sockets assigned to the given shard.
+     */
+    int getSockets(int shard) {
+        return sockets.get(shard);
+    }
+
+    void enqueue(int shard, aSocketRequest req) throws SinkException {
+        sinks[shard].enqueue(req);
+        selsources[shard].wakeup();
+    }
+
+    /**
+     * Register per-shard statistics with the profiler.
+     */
+    void profile(Profiler profiler) {
+        for (int i = 0; i < sinks.length; i++) {
+            final int shard = i;
+            profiler.add(getName(i) + " sockets", new Profilable() {
+                public int profileSize() {
+                    return sockets.get(shard);
+                }
+            });
+            profiler.add(getName(i) + " activeKeys", new Profilable() {
+                public int profileSize() {
+                    return selsources[shard].numActive();
+                }
+            });
+        }
+    }
+}
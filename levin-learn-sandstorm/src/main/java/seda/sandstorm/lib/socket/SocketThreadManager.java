@@ -90,6 +90,8 @@ class SocketThreadManager implements ThreadManager, aSocketConst {
         protected EventSource eventQ;
         protected String name;
         protected EventHandler handler;
+        // Set if ready keys are taken from selsource in batches
+        protected SocketEventHandler batch;
 
         protected aSocketThread(SocketStageWrapper wrapper) {
             if (DEBUG)
@@ -99,6 +101,10 @@ class SocketThreadManager implements ThreadManager, aSocketConst {
             this.selsource = wrapper.getSelectSource();
             this.eventQ = wrapper.getEventQueue();
             this.handler = wrapper.getEventHandler();
+            if (SocketMgr.selectBatch()
+                    && handler instanceof SocketEventHandler) {
+                this.batch = (SocketEventHandler) handler;
+            }
         }
 
         void registerTP(ThreadPool tp) {
@@ -119,75 +125,85 @@ class SocketThreadManager implements ThreadManager, aSocketConst {
 
                     aggTarget = tp.getAggregationTarget();
 
-                    while (selsource != null && selsource.numActive() == 0) {
+                    // Requests first. SocketMgr wakes up the select source
+                    // after enqueueing one, so none waits for a select to
+                    // time out.
+                    EventElement qelarr[];
+                    if (aggTarget == -1) {
+                        qelarr = eventQ.dequeueAll();
+                    } else {
+                        qelarr = eventQ.dequeue(aggTarget);
+                    }
+                    if (qelarr != null) {
+                        if (DEBUG)
+                            System.err.println(name + ": got "
+                                    + qelarr.length + " new requests");
+                        handler.handleEvents(qelarr);
+                    }
+
+                    if (selsource == null || selsource.numActive() == 0) {
+                        // Nothing to select on: park on the event queue
                         if (DEBUG)
                             System.err.println(name
                                     + ": numActive is zero, waiting on event queue");
-                        EventElement qelarr[];
                         if (aggTarget == -1) {
                             qelarr = eventQ.blockingDequeueAll(EVENT_QUEUE_TIMEOUT);
                         } else {
                             qelarr = eventQ.blockingDequeue(
                                     EVENT_QUEUE_TIMEOUT, aggTarget);
                         }
-
                         if (qelarr != null) {
                             if (DEBUG)
                                 System.err.println(name + ": got "
                                         + qelarr.length + " new requests");
                             handler.handleEvents(qelarr);
                         }
+                        continue;
                     }
 
-                    for (int s = 0; s < SELECT_SPIN; s++) {
-                        if (DEBUG)
-                            System.err
-                                    .println(name + ": doing select, numActive "
-                                            + selsource.numActive());
-                        SelectQueueElement ret[];
-
-                        if (aggTarget == -1) {
-                            ret = (SelectQueueElement[]) selsource
-                                    .blockingDequeueAll(SELECT_TIMEOUT);
-                        } else {
-                            ret = (SelectQueueElement[]) selsource
-                                    .blockingDequeue(SELECT_TIMEOUT,
-                                            aggTarget);
-                        }
-
-                        if (ret != null) {
+                    // Park on the selector until sockets are ready or a
+                    // request arrives
+                    if (DEBUG)
+                        System.err.println(name + ": doing select, numActive "
+                                + selsource.numActive());
+                    if (batch != null) {
+                        int n = selsource.blockingDequeueBatch(SELECT_TIMEOUT,
+                                aggTarget);
+                        if (n > 0) {
                             if (DEBUG)
                                 System.err.println(name + ": select got "
-                                        + ret.length + " elements");
+                                        + n + " elements");
                             long tstart = System.currentTimeMillis();
-                            handler.handleEvents(ret);
+                            batch.handleSelectEvents(selsource.getBatch(), n);
                             long tend = System.currentTimeMillis();
-                            wrapper.getStats().recordServiceRate(ret.length,
+                            wrapper.getStats().recordServiceRate(n,
                                     tend - tstart);
-
-                        } else if (DEBUG)
-                            System.err.println(name + ": select got null");
+                        }
+                        continue;
                     }
 
-                    if (DEBUG)
-                        System.err.println(name + ": Checking request queue");
-                    for (int s = 0; s < EVENT_QUEUE_SPIN; s++) {
-                        EventElement qelarr[];
-                        if (aggTarget == -1) {
-                            qelarr = eventQ.dequeueAll();
-                        } else {
-                            qelarr = eventQ.dequeue(aggTarget);
-                        }
-                        if (qelarr != null) {
-                            if (DEBUG)
-                                System.err.println(name + ": got "
-                                        + qelarr.length + " new requests");
-                            handler.handleEvents(qelarr);
-                            break;
-                        }
+                    SelectQueueElement ret[];
+                    if (aggTarget == -1) {
+                        ret = (SelectQueueElement[]) selsource
+                                .blockingDequeueAll(SELECT_TIMEOUT);
+                    } else {
+                        ret = (SelectQueueElement[]) selsource
+                                .blockingDequeue(SELECT_TIMEOUT, aggTarget);
                     }
 
-                    Thread.yield();
+                    if (ret != null) {
+                        if (DEBUG)
+                            System.err.println(name + ": select got "
+                                    + ret.length + " elements");
+                        long tstart = System.currentTimeMillis();
+                        handler.handleEvents(ret);
+                        long tend = System.currentTimeMillis();
+                        wrapper.getStats().recordServiceRate(ret.length,
+                                tend - tstart);
+
+                    } else if (DEBUG)
+                        System.err.println(name + ": select got null");
+
                 } catch (Exception e) {
                     System.err.println(name + ": got exception " + e);
                     e.printStackTrace();
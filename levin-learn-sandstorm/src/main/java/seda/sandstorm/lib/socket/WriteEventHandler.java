@@ -75,7 +75,7 @@ class WriteEventHandler extends SocketEventHandler implements EventHandler, aSoc
     // Avoid doing too many things on each socket
     int num_reqs_processed = 0;
     while (ss.writeReqList != null  &&   // JRVB: this can happen if someone closes the socket while we are processing writes.
-           ((req = (aSocketRequest)ss.writeReqList.getLast()) != null) &&
+           ((req = (aSocketRequest)ss.writeReqList.peekFirst()) != null) &&
 	(++num_reqs_processed < MAX_WRITE_REQS_PER_SOCKET)) {
 
       if (DEBUG) System.err.println("Processing "+req+" ("+num_reqs_processed+")");
@@ -83,22 +83,22 @@ class WriteEventHandler extends SocketEventHandler implements EventHandler, aSoc
       if (req instanceof ATcpWriteRequest) {
 	// Handle write request
 	if (DEBUG) System.err.println("WriteEventHandler: Processing ATcpWriteRequest");
-	ATcpWriteRequest wreq = (ATcpWriteRequest)req;
 
 	// Skip if locked
 	if ((ss.cur_write_req != null) && (ss.cur_write_req != req)) break;
 
 	if (ss.cur_write_req == null) {
-	  if (DEBUG) System.err.println("WriteEventHandler: Doing initWrite");
-	  ss.initWrite((ATcpWriteRequest)req);
+	  // Write this request and those queued behind it with one syscall
+	  if (DEBUG) System.err.println("WriteEventHandler: Doing initGatherWrite");
+	  ss.initGatherWrite();
 	}
 
 	boolean done = false;
 	int c = 0;
 
-	// Try hard to finish this packet
+	// Try hard to finish these packets
 	try {
-	  while ((!(done = ss.tryWrite())) && (c++ < TRYWRITE_SPIN)) ;
+	  while ((!(done = ss.tryGatherWrite())) && (c++ < TRYWRITE_SPIN)) ;
 	} catch (SinkClosedException sde) {
 	  // OK, the socket closed underneath us
 	  // XXX MDW: Taking this out for now - expect the SinkClosedEvent
@@ -111,12 +111,12 @@ class WriteEventHandler extends SocketEventHandler implements EventHandler, aSoc
 	  //}
 	}
 
-	if (done) {
+	// Send completion upcalls, in order, for every request fully
+	// written so far - even if the last one is only partly written
+	ATcpWriteRequest wreq;
+	int num_completed = 0;
+	while ((wreq = ss.nextCompletedWrite()) != null) {
 	  if (DEBUG) System.err.println("WriteEventHandler: Finished write");
-	  // Finished this write
-	  ss.writeReset();
-
-	  // Send completion upcall
 	  EventSink cq = wreq.buf.getCompletionQueue();
 	  if (cq != null) {
 	    SinkDrainedEvent sde = new SinkDrainedEvent(ss.conn, wreq.buf);
@@ -129,8 +129,12 @@ class WriteEventHandler extends SocketEventHandler implements EventHandler, aSoc
 	  } else {
 	    return; // Nothing more to do
 	  }
+	  num_completed++;
+	}
+	// The loop condition has already counted the first of them
+	if (num_completed > 1) num_reqs_processed += num_completed - 1;
 
-	} else {
+	if (!done) {
 	  if (DEBUG) System.err.println("WriteEventHandler: Write not completed");
 	  break; // Don't want to process anything else here
 	}
@@ -325,12 +329,15 @@ class WriteEventHandler extends SocketEventHandler implements EventHandler, aSoc
       SockState ss = ((ATcpWriteRequest)req).conn.sockState;
 
       // If already closed, just drop it
-      if (!ss.closed) {
+      if (ss.closed) {
+	((ATcpWriteRequest)req).release();
+      } else {
 	if (DEBUG) System.err.println("WriteEventHandler: Adding write req to "+ss);
 
 	if (!ss.addWriteRequest(req, selsource)) {
 	  // Couldn't enqueue: this connection is clogged
 	  ATcpWriteRequest wreq = (ATcpWriteRequest)req;
+	  wreq.release();
 	  EventSink cq = wreq.buf.getCompletionQueue();
 	  if (cq != null) {
 	    SinkCloggedEvent sce = new SinkCloggedEvent(wreq.conn, wreq.buf);
@@ -428,9 +435,17 @@ class WriteEventHandler extends SocketEventHandler implements EventHandler, aSoc
   }
 
   public void handleEvents(EventElement qelarr[]) {
+    handleEvents(qelarr, qelarr.length);
+  }
+
+  void handleSelectEvents(SelectQueueElement batch[], int num) {
+    handleEvents(batch, num);
+  }
+
+  private void handleEvents(EventElement qelarr[], int num) {
     int numWrites = 0;
 
-    for (int i = 0; i < qelarr.length; i++) {
+    for (int i = 0; i < num; i++) {
 
       try {
 
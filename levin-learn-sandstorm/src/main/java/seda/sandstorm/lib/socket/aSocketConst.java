@@ -33,10 +33,28 @@ public interface aSocketConst {
   public static final int READ_BUFFER_SIZE = 16384;
   /** Indicates whether the reader should copy data into a new buffer */
   public static final boolean READ_BUFFER_COPY = true;
+  /** 
+   * Indicates whether the reader should read into buffers taken from a
+   * BufferPool; overrides READ_BUFFER_COPY
+   */
+  public static final boolean READ_BUFFER_POOL = true;
+  /** Number of read buffers the pool allocates at once */
+  public static final int READ_BUFFER_POOL_SLAB = 16;
+  /** Maximum number of free read buffers kept by the pool */
+  public static final int READ_BUFFER_POOL_MAX_FREE = 1024;
+  /** Track one out of this many pooled packets for leaks; 0 to disable */
+  public static final int READ_BUFFER_LEAK_SAMPLE = 64;
   /** Number of times to try to finish a socket write */
   public static final int TRYWRITE_SPIN = 10;
   /** Maximum number of bytes to try writing at once; -1 if no limit */
   public static final int MAX_WRITE_LEN = -1; 
+  /** Maximum number of write reqs gathered into a single socket write */
+  public static final int MAX_GATHER_WRITES = 64;
+  /** 
+   * Maximum number of bytes gathered into a single socket write; the first
+   * request is always gathered whatever its size
+   */
+  public static final int MAX_GATHER_BYTES = 256 * 1024;
   /** Maximum number of write reqs on a socket to process at once */
   public static final int MAX_WRITE_REQS_PER_SOCKET = 1000;
   /** Maximum number of writes to process at once */
@@ -72,6 +72,7 @@ public class ConnectSockStateImpl extends ConnectSockState {
         this.completionQueue = req.compQ;
         this.writeClogThreshold = req.writeClogThreshold;
         this.connectClogTries = req.connectClogTries;
+        this.writeShard = req.writeShard;
         this.connectNumTries = 0;
         try {
             nio_sc = SocketChannel.open();
@@ -142,6 +143,7 @@ public class ConnectSockStateImpl extends ConnectSockState {
                         + sock.getPort());
             SockState ss = new SockState(conn, sock, writeClogThreshold);
             conn.sockState = ss;
+            assignShards(ss);
 
             // Finally enqueue
             completionQueue.enqueueCommit(key);
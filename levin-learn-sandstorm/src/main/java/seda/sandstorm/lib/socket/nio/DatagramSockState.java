@@ -269,10 +269,12 @@ public class DatagramSockState extends seda.sandstorm.lib.socket.DatagramSockSta
 
   protected void writeMaskEnable() {
     wselkey.interestOps(wselkey.interestOps() | SelectionKey.OP_WRITE);
+    nio_write_selsource.update(wselkey);
   }
 
   protected void writeMaskDisable() {
     wselkey.interestOps(wselkey.interestOps() & ~SelectionKey.OP_WRITE);
+    nio_write_selsource.update(wselkey);
   }
 
   // This is synchronized to avoid close() interfering with
@@ -281,6 +283,7 @@ public class DatagramSockState extends seda.sandstorm.lib.socket.DatagramSockSta
     if (closed) return;
 
     closed = true;
+    releaseShards();
 
     if (DEBUG) System.err.println("DatagramSockState.close(): Deregistering with selsources");
     if (nio_read_selsource != null) nio_read_selsource.deregister(rselkey);
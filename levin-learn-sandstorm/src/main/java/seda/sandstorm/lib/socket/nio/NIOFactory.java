@@ -43,8 +43,8 @@ import seda.sandstorm.lib.socket.SocketImplFactory;
  * @author Matt Welsh
  */
 public class NIOFactory extends SocketImplFactory {
-  protected SelectSourceIF newSelectSource() {
-    return new NIOSelectSource();
+  protected SelectSourceIF newSelectSource(boolean do_balance) {
+    return new NIOSelectSource(do_balance);
   }
 
   protected SelectQueueElement newSelectQueueElement(Object item) {
@@ -25,12 +25,15 @@
 package seda.sandstorm.lib.socket.nio;
 
 import seda.sandstorm.api.*;
+import seda.sandstorm.lib.socket.SelectQueueElement;
 import seda.sandstorm.lib.socket.SelectSourceIF;
 
 import java.nio.channels.*;
 import java.net.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 /**
  * A NIOSelectSource is an implementation of SourceIF which pulls events from
@@ -42,6 +45,18 @@ import java.util.*;
  * underlying O/S events to a particular order. This feature can be 
  * disabled by creating a SelectSource with the boolean flag 'do_balance'.
  *
+ * <p>Polls collect the ready keys through Selector.select(Consumer) into
+ * an array which is reused from poll to poll, and balancing shuffles it in
+ * place. blockingDequeueBatch() hands them out in a batch of elements which
+ * is reused as well, so a stage using it allocates nothing per ready key;
+ * the other dequeue methods return new elements as before.
+ *
+ * <p>The keys with a non-zero interest mask are tracked as they are
+ * registered, deregistered and passed to update(), so numActive() does not
+ * scan the key set. wakeup() lets other threads interrupt a blocking
+ * dequeue, so that the thread serving this SelectSource can park in select()
+ * and still see new requests on its event queue at once.
+ *
  * <p><b>Important note:</b> This class is not threadsafe with respect
  * to multiple threads calling dequeue() or blocking_dequeue() at once.
  * Clients must synchronize their access to this class. 
@@ -53,8 +68,19 @@ public class NIOSelectSource implements SelectSourceIF {
   private static final boolean DEBUG = false;
 
   private Selector selector;
-  private SelectionKey ready[];
+  private SelectionKey ready[] = new SelectionKey[16];
   private int ready_offset, ready_size;
+  private NIOSelectorQueueElement batch[] = new NIOSelectorQueueElement[0];
+  private final Consumer collector = new Consumer() {
+    public void accept(Object key) {
+      if (ready_size == ready.length) {
+        SelectionKey n[] = new SelectionKey[ready.length * 2];
+        System.arraycopy(ready, 0, n, 0, ready_size);
+        ready = n;
+      }
+      ready[ready_size++] = (SelectionKey)key;
+    }
+  };
 
   private boolean do_balance;
   private final int BALANCER_SEQUENCE_SIZE = 10000;
@@ -62,6 +88,8 @@ public class NIOSelectSource implements SelectSourceIF {
   private int balancer_seq_off;
   private Object blocker;
   private String name = "(unknown)";
+  // Keys with a non-zero interest mask
+  private final Set active = ConcurrentHashMap.newKeySet();
 
   // XXX MDW HACKING
   public Selector getSelector() {
@@ -89,7 +117,6 @@ public class NIOSelectSource implements SelectSourceIF {
     } catch (IOException e) {
         System.err.println("NIOSelectSource ("+name+"): error creating selector: " + e);
     }
-    ready = null;
     ready_offset = ready_size = 0;
     this.do_balance = do_balance;
 
@@ -132,6 +159,7 @@ public class NIOSelectSource implements SelectSourceIF {
       	System.err.println("Closed Channel Exception: " + cce);
      	ret = null;
       }
+      if (ret != null) update(ret);
       if (DEBUG) System.err.println("returning " + ret);
       if (DEBUG) System.err.println("numactive = " + numActive());
       blocker.notify();
@@ -166,6 +194,7 @@ public class NIOSelectSource implements SelectSourceIF {
 
     synchronized (blocker) {
       SelectionKey selkey = (SelectionKey)selkey_obj;
+      active.remove(selkey);
       selkey.cancel();
       /* This must be done so that calls to close() actually close. */
       try {
@@ -192,11 +221,30 @@ public class NIOSelectSource implements SelectSourceIF {
    * event mask changes down to the underlying event-dispatch mechanism.
    */
   public void update(Object sel) {
-      System.err.println(
-        "update() called on NIOSelectSource with argument.  " +
-        "should not happen!!"
-      );
-      return;
+    if (! (sel instanceof SelectionKey)) {
+        System.err.println(
+          "update() called on NIOSelectSource with non SelectionKey " +
+          "argument.  Should not happen!!"
+        );
+        return;
+    }
+    SelectionKey selkey = (SelectionKey)sel;
+    try {
+      if (selkey.interestOps() != 0) active.add(selkey);
+      else active.remove(selkey);
+    } catch (CancelledKeyException cke) {
+      active.remove(selkey);
+    }
+  }
+
+  /**
+   * Make a blocking dequeue in progress return at once, or the next one if
+   * none is in progress. Called after a request is enqueued for the thread
+   * serving this SelectSource. The selector coalesces the calls made
+   * before the next select.
+   */
+  public void wakeup() {
+    selector.wakeup();
   }
 
 
@@ -213,16 +261,7 @@ public class NIOSelectSource implements SelectSourceIF {
    * interest mask.
    */
   public int numActive() {
-    // does this mean number with a non-zero request mask, or number
-    // in selectedKeys()
-    Iterator key_iter = selector.keys().iterator();
-    SelectionKey sk;
-    int n_active = 0;
-    while (key_iter.hasNext()) {
-        sk = (SelectionKey)key_iter.next();
-        if (sk.isValid() && sk.interestOps() != 0) n_active++;
-    }
-    return n_active;
+    return active.size();
   }
 
   /**
@@ -296,26 +335,7 @@ public class NIOSelectSource implements SelectSourceIF {
   public EventElement blockingDequeue(int timeout_millis) {
 
     if (DEBUG) System.err.println("NIOSelectSource ("+name+"): blocking_dequeue called");
-    synchronized (blocker) {
-      if (selector.keys().size() == 0) {
-	if (DEBUG) System.err.println("No keys in selector");
-
-	if (timeout_millis == 0) return null;
-
-        // Wait for something to be registered
-	if (timeout_millis == -1) {
-	  try {
-	    blocker.wait();
-	  } catch (InterruptedException ie) {
-	  }
-	} else {
-	  try {
-	    blocker.wait(timeout_millis);
-	  } catch (InterruptedException ie) {
-	  }
-	}
-      }
-    }
+    if (!waitForKeys(timeout_millis)) return null;
 
     if ((ready_size == 0) || (ready_offset == ready_size)) {
       doPoll(timeout_millis);
@@ -334,28 +354,7 @@ public class NIOSelectSource implements SelectSourceIF {
    */
   public EventElement[] blockingDequeueAll(int timeout_millis) {
     if (DEBUG) System.err.println("NIOSelectSource ("+name+"): blocking_dequeue_all called");
-    /* have to do this to retain same semantics as before
-       nio expects 0 for indefinite.  there is no way to say
-       don't block at all, so hopefully 1ms isn't noticable to people */
-
-    synchronized (blocker) {
-      if (selector.keys().size() == 0) {
-	if (DEBUG) System.err.println("!!!!no keys");
-	if (timeout_millis == 0) return null;
-	// Wait for something to be registered
-	if (timeout_millis == -1) {
-	  try {
-	    blocker.wait();
-	  } catch (InterruptedException ie) {
-	  }
-	} else {
-	  try {
-	    blocker.wait(timeout_millis);
-	  } catch (InterruptedException ie) {
-	  }
-	}
-      }
-    }
+    if (!waitForKeys(timeout_millis)) return null;
 
     if ((ready_size == 0) || (ready_offset == ready_size)) {
       doPoll(timeout_millis);
@@ -379,24 +378,7 @@ public class NIOSelectSource implements SelectSourceIF {
    */
   public EventElement[] blockingDequeue(int timeout_millis, int num) {
     if (DEBUG) System.err.println("NIOSelectSource ("+name+"): blocking_dequeue called");
-
-    synchronized (blocker) {
-      if (selector.keys().size() == 0) {
-      	if (timeout_millis == 0) return null;
-       	// Wait for something to be registered
-	if (timeout_millis == -1) {
-	  try {
-	    blocker.wait();
-	  } catch (InterruptedException ie) {
-	  }
-	} else {
-	  try {
-	    blocker.wait(timeout_millis);
-	  } catch (InterruptedException ie) {
-	  }
-	}
-      }
-    }
+    if (!waitForKeys(timeout_millis)) return null;
 
     if ((ready_size == 0) || (ready_offset == ready_size)) {
       doPoll(timeout_millis);
@@ -410,6 +392,65 @@ public class NIOSelectSource implements SelectSourceIF {
     return ret;
   }
 
+  /**
+   * Dequeue up to <tt>num</tt> ready elements, or all of them if
+   * <tt>num</tt> is -1, into the batch returned by getBatch(). Blocks up
+   * to timeout_millis milliseconds; a timeout of -1 blocks forever.
+   * Returns the number of elements at the start of the batch, 0 if none
+   * became ready. The batch and its elements are reused by the next call.
+   */
+  public int blockingDequeueBatch(int timeout_millis, int num) {
+    if (DEBUG) System.err.println("NIOSelectSource ("+name+"): blocking_dequeue_batch called");
+    if (!waitForKeys(timeout_millis)) return 0;
+
+    if ((ready_size == 0) || (ready_offset == ready_size)) {
+      doPoll(timeout_millis);
+    }
+    int n = ready_size - ready_offset;
+    if (num != -1 && num < n) n = num;
+    if (batch.length < n) {
+      NIOSelectorQueueElement nb[] = new NIOSelectorQueueElement[Math.max(n, batch.length * 2)];
+      System.arraycopy(batch, 0, nb, 0, batch.length);
+      for (int i = batch.length; i < nb.length; i++) {
+        nb[i] = new NIOSelectorQueueElement(null);
+      }
+      batch = nb;
+    }
+    for (int i = 0; i < n; i++) {
+      batch[i].item = ready[ready_offset];
+      ready[ready_offset++] = null;
+    }
+    return n;
+  }
+
+  /**
+   * Return the batch filled in by blockingDequeueBatch().
+   */
+  public SelectQueueElement[] getBatch() {
+    return batch;
+  }
+
+  // Wait up to timeout_millis for a key to be registered. Returns false if
+  // there is none and the caller should give up.
+  private boolean waitForKeys(int timeout_millis) {
+    synchronized (blocker) {
+      if (selector.keys().size() == 0) {
+	if (DEBUG) System.err.println("No keys in selector");
+	if (timeout_millis == 0) return false;
+	// Wait for something to be registered
+	try {
+	  if (timeout_millis == -1) {
+	    blocker.wait();
+	  } else {
+	    blocker.wait(timeout_millis);
+	  }
+	} catch (InterruptedException ie) {
+	}
+      }
+    }
+    return true;
+  }
+
   // Actually performs the poll and sets ready[], ready_off, ready_size
   //
   // XXX MDW: There is a race condition here. If multiple threads
@@ -425,15 +466,29 @@ public class NIOSelectSource implements SelectSourceIF {
   private void doPoll(int timeout) {
     if (DEBUG) System.err.println("NIOSelectSource ("+name+"): Doing poll, timeout "+timeout);
 
+    ready_offset = ready_size = 0;
+
+    // Keys selected by the selectNow() in deregister() are still in the
+    // selected-key set; select(Consumer) does not look at it.
+    Set skeys = selector.selectedKeys();
+    if (!skeys.isEmpty()) {
+      Iterator key_iter = skeys.iterator();
+      while (key_iter.hasNext()) {
+	collector.accept(key_iter.next());
+	key_iter.remove();
+      }
+      timeout = 0;
+    }
+
     int c = 0;
     try {
         // to correct for changed semantics in nio from nbio.
         // use selectNow to not block, and select(0) for indefinite block
         if (timeout == 0) {
-            c = selector.selectNow();
+            c = selector.selectNow(collector);
         } else {
             if (timeout == -1) timeout = 0;
-            c = selector.select(timeout);
+            c = selector.select(collector, timeout);
         }
     } catch (IOException e) {
       // Essentially ignore the exception (since NBIO SelectSet.select()
@@ -442,65 +497,20 @@ public class NIOSelectSource implements SelectSourceIF {
     }
     if (DEBUG) System.err.println("NIOSelectSource ("+name+"): poll returned "+c);
 
-    Set skeys = selector.selectedKeys();
-    if (skeys.size() > 0) {
-
-      SelectionKey ret[] = new SelectionKey[skeys.size()];
-      Iterator key_iter = skeys.iterator();
-
-      int j = 0;
-      while (key_iter.hasNext()) {
-	ret[j] = (SelectionKey)key_iter.next();
-	key_iter.remove();
-	//selector.selectedKeys().remove(ret[j]);
-	j++;
-      }
-
-      if (ret.length != 0) {
-	// XXX We can't get ret == null if doPoll() is synchronized with 
-	// deregister() - but I'm not sure I want to do that
-	ready_offset = 0; ready_size = ret.length;
-	balance(ret);
-	return;
-      }
-    }
-    // Didn't get anything
-    ready = null; ready_offset = ready_size = 0;
+    if (do_balance && ready_size > 1) balance();
   }
 
-  // Balances selarr[] by shuffling the entries - sets ready[]
-  private void balance(SelectionKey selarr[]) {
-    if (DEBUG) System.err.println("NIOSelectSource ("+name+"): balance called, selarr size="+selarr.length);
-
-    for (int i = 0; i < selarr.length; i++)
-        if (DEBUG) System.err.println("!!!!selar["+i+"] = " + selarr[i]);
-
-    if ((!do_balance) || (selarr.length < 2)) {
-      ready = selarr;
-    } else {
-      SelectionKey a;
-      ready = new SelectionKey[selarr.length];
-
-      for (int i = 0; i < ready.length; i++) {
-      	if (balancer_seq_off == BALANCER_SEQUENCE_SIZE) {
-     	  balancer_seq_off = 0;
-      	}
-       	int n = balancer_seq[balancer_seq_off++] % selarr.length;
-	int c = 0;
-	while (selarr[n] == null) {
-	  n++; c++;
-	  if (n == selarr.length) n = 0;
-	  if (c == selarr.length) {
-	    System.err.println("WARNING: NIOSelectSource.balance(): All items in selarr are null (n="+n+", c="+c+", len="+selarr.length);
-	    for (int k = 0; k < ready.length; k++) {
-	      System.err.println("["+k+"] ready:"+ready[k]+" selarr:"+selarr[k]);
-	    }
-	    throw new IllegalArgumentException("balance: All items in selarr are null! This is a bug - please contact mdw@cs.berkeley.edu");
-	  }
-	}
-	if (DEBUG) System.err.println("NIOSelectSource: balance: "+n+"->"+i);
-	a = selarr[n]; selarr[n] = null; ready[i] = a;
+  // Balances ready[0..ready_size) by shuffling the entries in place
+  private void balance() {
+    if (DEBUG) System.err.println("NIOSelectSource ("+name+"): balance called, size="+ready_size);
+
+    for (int i = ready_size - 1; i > 0; i--) {
+      if (balancer_seq_off == BALANCER_SEQUENCE_SIZE) {
+	balancer_seq_off = 0;
       }
+      int n = balancer_seq[balancer_seq_off++] % (i + 1);
+      if (DEBUG) System.err.println("NIOSelectSource: balance: "+n+"<->"+i);
+      SelectionKey a = ready[n]; ready[n] = ready[i]; ready[i] = a;
     }
   }
 
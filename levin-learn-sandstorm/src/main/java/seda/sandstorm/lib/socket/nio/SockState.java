@@ -45,6 +45,17 @@ public class SockState extends seda.sandstorm.lib.socket.SockState {
   private ByteBuffer byte_buffer, read_byte_buffer; 
 
   private NIOSelectSource read_selsource, write_selsource;
+  private BufferPool readBufferPool;
+
+  // State of the current gathering write: gather_bufs[gather_written] is
+  // the first buffer not yet completely written, and the requests before
+  // gather_completed have been handed back by nextCompletedWrite()
+  private ByteBuffer gather_bufs[];
+  private ATcpWriteRequest gather_reqs[];
+  private int gather_num, gather_written, gather_completed;
+  // A FileRegionEvent sent with transferTo() is written on its own
+  private FileRegionEvent gather_file;
+  private long gather_file_done;
 
   SockState(ATcpConnection conn, Socket nbsock, int writeClogThreshold) throws IOException {
     if (DEBUG) System.err.println("SockState: Constructor called with "+conn+", "+nbsock+", "+writeClogThreshold);
@@ -54,7 +65,12 @@ public class SockState extends seda.sandstorm.lib.socket.SockState {
     this.write_selsource = null;
 
     if (DEBUG) System.err.println("SockState "+nbsock+": Const creating readBuf of size "+aSocketConst.READ_BUFFER_SIZE);
-    readBuf = new byte[aSocketConst.READ_BUFFER_SIZE];
+    if (aSocketConst.READ_BUFFER_POOL) {
+      readBufferPool = SocketMgr.getReadBufferPool();
+      readBuf = readBufferPool.allocate();
+    } else {
+      readBuf = new byte[aSocketConst.READ_BUFFER_SIZE];
+    }
     read_byte_buffer = ByteBuffer.wrap(readBuf);
 
     if (DEBUG) System.err.println("SockState "+nbsock+": Setting flags");
@@ -90,7 +106,9 @@ public class SockState extends seda.sandstorm.lib.socket.SockState {
     rselkey.attach(this);
   }
 
-  protected void doRead() {
+  // This is synchronized with close(), which returns the read buffer and
+  // any clogged packet to the pool
+  protected synchronized void doRead() {
     if (DEBUG) System.err.println("SockState: doRead called");
 
     // When using SelectSource, we need this guard, since after closing 
@@ -109,8 +127,7 @@ public class SockState extends seda.sandstorm.lib.socket.SockState {
 	if ((readClogTries != -1) &&
 	    (++clogged_numtries >= readClogTries)) {
 	  if (DEBUG) System.err.println("SockState: warning: readClogTries exceeded, dropping "+clogged_qel);
-	  clogged_qel = null;
-	  clogged_numtries = 0;
+	  dropClogged();
 	} else {
 	  // Try again later
 	  return;
@@ -118,6 +135,7 @@ public class SockState extends seda.sandstorm.lib.socket.SockState {
       } catch (SinkException sce) {
 	// Whoops - user went away - just drop
 	this.close(null);
+	return;
       }
     }
 
@@ -151,13 +169,20 @@ public class SockState extends seda.sandstorm.lib.socket.SockState {
 
     if (DEBUG) System.err.println("ss.doRead: Pushing up new ATcpInPacket, len="+len);
 
-    pkt = new ATcpInPacket(conn, readBuf, len, aSocketConst.READ_BUFFER_COPY, seqNum);
-    // 0 is special (indicates no sequence number)
-    seqNum++; if (seqNum == 0) seqNum = 1;
-    if (aSocketConst.READ_BUFFER_COPY == false) {
-      readBuf = new byte[aSocketConst.READ_BUFFER_SIZE];
+    if (readBufferPool != null) {
+      // Hand the buffer to the packet and read into a fresh one next time
+      pkt = new ATcpInPacket(conn, readBuf, len, readBufferPool, seqNum);
+      readBuf = readBufferPool.allocate();
       read_byte_buffer = ByteBuffer.wrap(readBuf);
+    } else {
+      pkt = new ATcpInPacket(conn, readBuf, len, aSocketConst.READ_BUFFER_COPY, seqNum);
+      if (aSocketConst.READ_BUFFER_COPY == false) {
+        readBuf = new byte[aSocketConst.READ_BUFFER_SIZE];
+        read_byte_buffer = ByteBuffer.wrap(readBuf);
+      }
     }
+    // 0 is special (indicates no sequence number)
+    seqNum++; if (seqNum == 0) seqNum = 1;
 
     try {
       readCompQ.enqueue(pkt);
@@ -167,12 +192,31 @@ public class SockState extends seda.sandstorm.lib.socket.SockState {
       return;
     } catch (SinkException sce) {
       // User has gone away
+      pkt.release();
       this.close(null);
       return;
     }
       read_byte_buffer.rewind();
   }
 
+  // Drop the clogged packet, returning a pooled buffer to its pool
+  private void dropClogged() {
+    if (clogged_qel instanceof ATcpInPacket) {
+      ((ATcpInPacket) clogged_qel).release();
+    }
+    clogged_qel = null;
+    clogged_numtries = 0;
+  }
+
+  // Called with the lock held, so no read can be using the buffer
+  private void releaseReadBuf() {
+    if (readBufferPool != null && readBuf != null) {
+      readBufferPool.release(readBuf);
+      readBuf = null;
+      read_byte_buffer = null;
+    }
+  }
+
   // XXX This is synchronized with close() to avoid a race with close()
   // removing the writeReqList while this method is being called.
   // Probably a better way to do this...
@@ -255,14 +299,117 @@ public class SockState extends seda.sandstorm.lib.socket.SockState {
     else return false;
   }
 
+  // Synchronized with addWriteRequest() and close(), which modify the list
+  protected synchronized void initGatherWrite() {
+    if (gather_bufs == null) {
+      gather_bufs = new ByteBuffer[aSocketConst.MAX_GATHER_WRITES];
+      gather_reqs = new ATcpWriteRequest[aSocketConst.MAX_GATHER_WRITES];
+    }
+    gather_num = gather_written = gather_completed = 0;
+    gather_file = null;
+    gather_file_done = 0;
+    if (writeReqList == null) return;
+
+    long bytes = 0;
+    Iterator it = writeReqList.iterator();
+    while (it.hasNext() && (gather_num < aSocketConst.MAX_GATHER_WRITES)) {
+      Object req = it.next();
+      if (!(req instanceof ATcpWriteRequest)) break;
+      ATcpWriteRequest wreq = (ATcpWriteRequest)req;
+      if ((gather_num > 0) && (bytes + wreq.buf.size > aSocketConst.MAX_GATHER_BYTES)) break;
+      if ((wreq.buf instanceof FileRegionEvent) && !((FileRegionEvent)wreq.buf).isMapped()) {
+	if (gather_num > 0) break;
+	gather_reqs[0] = wreq;
+	gather_file = (FileRegionEvent)wreq.buf;
+	gather_num = 1;
+	break;
+      }
+      gather_reqs[gather_num] = wreq;
+      if (wreq.buf instanceof FileRegionEvent) {
+	gather_bufs[gather_num] = ((FileRegionEvent)wreq.buf).getMappedBuffer();
+      } else {
+	gather_bufs[gather_num] = ByteBuffer.wrap(wreq.buf.data, wreq.buf.offset, wreq.buf.size);
+      }
+      bytes += wreq.buf.size;
+      gather_num++;
+    }
+    if (DEBUG) System.err.println("SockState: initGatherWrite() gathered "+gather_num+" requests, "+bytes+" bytes");
+    cur_write_req = (gather_num > 0) ? gather_reqs[0] : null;
+  }
+
+  protected boolean tryGatherWrite() throws SinkClosedException {
+    if (gather_file != null) return tryTransfer();
+    skipWrittenBuffers();
+    if (gather_written < gather_num) {
+      try {
+	long n = nbsock.getChannel().write(gather_bufs, gather_written, gather_num - gather_written);
+	if (DEBUG) System.err.println("SockState: tryGatherWrite() wrote "+n+" bytes");
+      } catch (IOException ioe) {
+	// Assume this is because socket was already closed
+	this.close(null);
+	throw new SinkClosedException("tryGatherWrite got exception doing write: "+ioe.getMessage());
+      }
+      skipWrittenBuffers();
+    }
+    return (gather_written == gather_num);
+  }
+
+  // Send a file region straight from its channel to the socket
+  private boolean tryTransfer() throws SinkClosedException {
+    long remaining = gather_file.size - gather_file_done;
+    if (remaining > 0) {
+      try {
+	gather_file_done += gather_file.getChannel().transferTo(
+	    gather_file.getPosition() + gather_file_done, remaining, nbsock.getChannel());
+	if (DEBUG) System.err.println("SockState: tryTransfer() sent "+gather_file_done+" of "+gather_file.size+" bytes");
+      } catch (IOException ioe) {
+	// Either end may have gone away; treat it like a failed write
+	this.close(null);
+	throw new SinkClosedException("tryTransfer got exception doing transferTo: "+ioe.getMessage());
+      }
+    }
+    if (gather_file_done == gather_file.size) {
+      gather_written = 1;
+      return true;
+    }
+    return false;
+  }
+
+  private void skipWrittenBuffers() {
+    while ((gather_written < gather_num) && !gather_bufs[gather_written].hasRemaining()) {
+      gather_bufs[gather_written++] = null;
+    }
+  }
+
+  protected ATcpWriteRequest nextCompletedWrite() {
+    if (gather_completed == gather_written) return null;
+    ATcpWriteRequest req = gather_reqs[gather_completed];
+    gather_reqs[gather_completed++] = null;
+    req.release();
+    this.outstanding_writes--;
+    cur_write_req = (gather_completed < gather_num) ? gather_reqs[gather_completed] : null;
+    return req;
+  }
+
   protected void writeMaskEnable() {
     numActiveWriteSockets++;
     wselkey.interestOps(wselkey.interestOps() | SelectionKey.OP_WRITE);
+    write_selsource.update(wselkey);
   }
 
   protected void writeMaskDisable() {
     numActiveWriteSockets--;
     wselkey.interestOps(wselkey.interestOps() & ~SelectionKey.OP_WRITE);
+    write_selsource.update(wselkey);
+  }
+
+  // Write requests left on the list will never complete
+  private void releaseWriteRequests() {
+    Iterator it = writeReqList.iterator();
+    while (it.hasNext()) {
+      Object req = it.next();
+      if (req instanceof ATcpWriteRequest) ((ATcpWriteRequest)req).release();
+    }
   }
 
   // XXX This is synchronized to avoid close() interfering with
@@ -271,16 +418,20 @@ public class SockState extends seda.sandstorm.lib.socket.SockState {
     if (closed) return;
 
     closed = true;
+    releaseShards();
+    releaseReadBuf();
+    dropClogged();
 
     if (DEBUG) System.err.println("SockState.close(): Deregistering with selsources");
     if (read_selsource != null) read_selsource.deregister(rselkey);
-    if (write_selsource != null) write_selsource.deregister(rselkey);
+    if (write_selsource != null && wselkey != null) write_selsource.deregister(wselkey);
     if (DEBUG) System.err.println("SockState.close(): done deregistering with selsources");
     // Eliminate write queue
 
     // XXX XXX XXX MDW: This introduces a race condition with 
     // addWriteRequest() -- need to serialize close() with other
     // queue operations on the socket.
+    releaseWriteRequests();
     writeReqList = null;
 
     try {
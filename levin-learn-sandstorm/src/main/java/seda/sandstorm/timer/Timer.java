@@ -24,7 +24,11 @@
 
 package seda.sandstorm.timer;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
@@ -38,14 +42,21 @@ import com.google.common.base.Preconditions;
 import seda.sandstorm.api.EventElement;
 import seda.sandstorm.api.EventSink;
 import seda.sandstorm.api.Profilable;
+import seda.sandstorm.api.SinkException;
 
 /**
  * The Timer class provides a mechanism for registering timer events that will
  * go off at some future time. The future time can be specified in absolute or
  * relative terms. When the timer goes off, an element is placed on a queue.
- * There is no way to unregister a timer. Events will be delivered guaranteed,
- * but the time that they are delivered may slip depending on stuff like how
- * loaded the system is and all that.
+ * Events will be delivered guaranteed, but the time that they are delivered
+ * may slip depending on stuff like how loaded the system is and all that.
+ * <P>
+ * Pending events are kept in a hashed hierarchical timing wheel (see
+ * {@link TimingWheel}), so registering and cancelling an event are O(1)
+ * regardless of how many events are pending. Events fire on tick boundaries:
+ * an event is never delivered before its happening time, and at most one tick
+ * after it. All events of a tick which target the same sink are delivered
+ * with a single <code>enqueueMany</code>.
  * <P>
  * WARNING: you should use cancelEvent to cancel timers that you no longer need,
  * otherwise you will waste many, many cycles on unneeded timer firings. This
@@ -58,18 +69,43 @@ import seda.sandstorm.api.Profilable;
 
 public class Timer implements Runnable, Profilable {
     private static final Logger LOGGER = LoggerFactory.getLogger(Timer.class);
+
+    /** Default tick resolution in milliseconds. */
+    public static final long DEFAULT_TICK_MILLIS = 10;
+    /** Default number of buckets per wheel level. */
+    public static final int DEFAULT_WHEEL_SIZE = 64;
     
     private final Thread thread;
     private final Lock lock;
     private final Condition condition;
     
     private volatile boolean threadDied;
-    private int numEvents = 0;
-    
-    private TimerNode head = null;
-    private TimerNode tail = null;
+    private volatile int numEvents = 0;
+
+    private final long tickMillis;
+    private final TimingWheel wheel;
 
     public Timer() {
+        this(DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * Create a timer with the given tick resolution in milliseconds.
+     */
+    public Timer(long tickMillis) {
+        this(tickMillis, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * Create a timer with the given tick resolution in milliseconds and number
+     * of buckets per wheel level.
+     */
+    public Timer(long tickMillis, int wheelSize) {
+        Preconditions.checkArgument(tickMillis > 0, "tickMillis must be positive");
+        Preconditions.checkArgument(wheelSize > 1, "wheelSize must be greater than 1");
+
+        this.tickMillis = tickMillis;
+        this.wheel = new TimingWheel(tickMillis, wheelSize, System.currentTimeMillis());
         lock = new ReentrantLock();
         condition = lock.newCondition();
         threadDied = false;
@@ -143,13 +179,20 @@ public class Timer implements Runnable, Profilable {
         return threadDied;
     }
 
+    /**
+     * Return the tick resolution of this timer in milliseconds.
+     */
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
     /**
      * Cancels all events.
      */
     public void cancelAll() {
         lock.lock();
         try {
-            head = tail = null;
+            wheel.clear();
             numEvents = 0;
         } finally {
             lock.unlock();
@@ -172,99 +215,83 @@ public class Timer implements Runnable, Profilable {
         TimerNode node = (TimerNode) handle;
         lock.lock();
         try {
-            if (handle == tail && handle == head) {
-                tail = head = null;
-                numEvents--;
-                return;
-            }
-            
-            if (handle == tail) {
-                tail = tail.getPrev();
-                tail.setNext(null);
-                numEvents--;
-                return;
-            }
-            
-            if (handle == head) {
-                head = head.getNext();
-                head.setPrev(null);
+            TimerBucket bucket = node.getBucket();
+            if (bucket != null) {
+                bucket.remove(node);
                 numEvents--;
-                return;
-            } 
-
-            if ((node.getNext() != null) && (node.getPrev() != null)) {
-                node.getPrev().setNext(node.getNext());
-                numEvents--;
-                return;
             }
         } finally {
-            node.unlink();
             lock.unlock();
         }
     }
 
-    // takes the event, does insertion-sort into ssTimerEvent linked list
+    // Hashes the event into its wheel bucket
     private void insertEvent(TimerNode node) {
         lock.lock();
         try {
-            if (head == null) {
-                tail = node;
-                head = node;
-                condition.signal();
-            } else if (node.getHappening() < head.getHappening()) {
-                node.setNext(head);
-                head.setPrev(node);
-                head = node;
+            long now = System.currentTimeMillis();
+            if (numEvents == 0) {
+                wheel.reset(now);
+            }
+
+            // Round up to a tick so the event cannot fire early; events which
+            // are already due go off on the next tick
+            long happening = Math.max(node.getHappening(), wheel.getCurrentTime() + 1);
+            node.setDeadline(((happening + tickMillis - 1) / tickMillis) * tickMillis);
+            wheel.add(node);
+
+            if (numEvents++ == 0) {
                 condition.signal();
-            } else if (node.getHappening() >= tail.getHappening()) {
-                node.setPrev(tail);
-                tail.setNext(node);
-                tail = node;
-            } else {
-                TimerNode cur = tail;
-                TimerNode prev = tail.getPrev();
-                while (prev != null) {
-                    if (node.getHappening() >= prev.getHappening()) {
-                        break;
-                    }
-                    cur = prev;
-                    prev = prev.getPrev();
-                }
-                cur.setPrev(node);
-                prev.setNext(node);
             }
-            numEvents++;
         } finally {
             lock.unlock();
         }
     }
 
-    private void processHead() {
-        long curTime = System.currentTimeMillis();
-        if (head.getHappening() <= curTime) {
-            // fire off event
-            TimerNode fire = head;
-            head = head.getNext();
-            if (head == null) {
-                tail = null;
-            } else {
-                head.setPrev(null);
+    // Advance the wheel up to now; returns the events which went off
+    private List<TimerNode> advanceClock(long now) {
+        List<TimerNode> fired = null;
+        for (long tick = wheel.getCurrentTime() + tickMillis; tick <= now; tick += tickMillis) {
+            TimerNode node = wheel.advance(tick);
+            while (node != null) {
+                TimerNode next = node.getNext();
+                if (!wheel.add(node)) {
+                    if (fired == null) {
+                        fired = new ArrayList<>();
+                    }
+                    fired.add(node);
+                    numEvents--;
+                }
+                node = next;
             }
+        }
+        return fired;
+    }
 
-            if ((head == null) && (numEvents != 1)) {
-                LOGGER.warn("No more events to process, but still have {} pending. BUG", (numEvents - 1));
-            }
+    // Deliver fired events, batched per sink; called without holding the lock
+    private void fireEvents(List<TimerNode> fired) {
+        Map<EventSink, List<EventElement>> batches = new IdentityHashMap<>();
+        for (TimerNode node : fired) {
+            batches.computeIfAbsent(node.getEventSink(), k -> new ArrayList<>()).add(node.getEvent());
+        }
 
-            fire.unlink();
-            fire.eventReady();
-            numEvents--;
-        } else {
-            // sleep till head
-            long waitTime = head.getHappening() - curTime;
-            if (waitTime > 0) {
-                try {
-                    condition.await(waitTime, TimeUnit.MILLISECONDS);
-                } catch (InterruptedException ie) {
+        for (Map.Entry<EventSink, List<EventElement>> entry : batches.entrySet()) {
+            EventSink sink = entry.getKey();
+            List<EventElement> events = entry.getValue();
+            try {
+                if (events.size() == 1) {
+                    sink.enqueue(events.get(0));
+                } else {
+                    sink.enqueueMany(events.toArray(new EventElement[events.size()]));
+                }
+            } catch (SinkException e) {
+                // The batch was rejected as a whole; fall back to one by one
+                // so that a single rejected event does not drop the others
+                LOGGER.debug("Batch of {} timer events rejected by {}: {}", events.size(), sink, e);
+                for (EventElement event : events) {
+                    if (!sink.enqueueLossy(event)) {
+                        LOGGER.warn("Dropped timer event {} for {}", event, sink);
+                    }
                 }
             }
         }
@@ -275,16 +302,33 @@ public class Timer implements Runnable, Profilable {
         try {
             while (!threadDied) {
                 try {
-                    if (head != null) {
-                        processHead();
-                    } else {
-                        if (threadDied)
-                            return;
-
+                    if (numEvents == 0) {
                         try {
                             condition.await(500, TimeUnit.MILLISECONDS);
                         } catch (InterruptedException ie) {
                         }
+                        continue;
+                    }
+
+                    long now = System.currentTimeMillis();
+                    List<TimerNode> fired = advanceClock(now);
+                    if (fired != null) {
+                        lock.unlock();
+                        try {
+                            fireEvents(fired);
+                        } finally {
+                            lock.lock();
+                        }
+                        continue;
+                    }
+
+                    // sleep till the next tick
+                    long waitTime = wheel.getCurrentTime() + tickMillis - now;
+                    if (waitTime > 0) {
+                        try {
+                            condition.await(waitTime, TimeUnit.MILLISECONDS);
+                        } catch (InterruptedException ie) {
+                        }
                     }
                 } catch (Throwable t) {
                     t.printStackTrace();
@@ -0,0 +1,57 @@
+package seda.sandstorm.timer;
+
+/**
+ * A slot of a TimingWheel: a doubly linked list of TimerNodes supporting O(1)
+ * insertion and removal. Not thread safe; guarded by the Timer lock.
+ */
+class TimerBucket {
+    private TimerNode head;
+    private TimerNode tail;
+
+    void add(TimerNode node) {
+        node.setBucket(this);
+        node.setPrev(tail);
+        node.setNext(null);
+        if (tail == null) {
+            head = node;
+        } else {
+            tail.setNext(node);
+        }
+        tail = node;
+    }
+
+    void remove(TimerNode node) {
+        TimerNode prev = node.getPrev();
+        TimerNode next = node.getNext();
+        if (prev == null) {
+            head = next;
+        } else {
+            prev.setNext(next);
+        }
+        if (next == null) {
+            tail = prev;
+        } else {
+            next.setPrev(prev);
+        }
+        node.setPrev(null);
+        node.setNext(null);
+        node.setBucket(null);
+    }
+
+    /**
+     * Detach and return the whole list; the returned nodes are still chained
+     * through their next pointers but no longer belong to this bucket.
+     */
+    TimerNode flush() {
+        TimerNode first = head;
+        head = tail = null;
+        for (TimerNode node = first; node != null; node = node.getNext()) {
+            node.setBucket(null);
+        }
+        return first;
+    }
+
+    boolean isEmpty() {
+        return head == null;
+    }
+}
@@ -7,18 +7,17 @@ class TimerNode implements TimerHandle {
     private final long happening;
     private final EventElement event;
     private final EventSink queue;
-    private volatile TimerNode next;
-    private volatile TimerNode prev;
+    private long deadline;
+    private TimerNode next;
+    private TimerNode prev;
+    private volatile TimerBucket bucket;
 
     public TimerNode(long happening, EventElement event, EventSink queue) {
         this.happening = happening;
         this.event = event;
         this.queue = queue;
         this.next = this.prev = null;
-    }
-    
-    public void eventReady() {
-        queue.enqueue(event);
+        this.bucket = null;
     }
 
     @Override
@@ -38,36 +37,45 @@ class TimerNode implements TimerHandle {
     
     @Override
     public boolean isActive() {
-        return prev == null && next == null;
+        return bucket != null;
     }
-    
-    public void setNext(TimerNode next) {
-        this.next = next;
-        if (next != null) {
-            next.prev = this;
-        }
+
+    /**
+     * The happening time rounded up to the tick of the wheel, so that an event
+     * never fires before its happening time.
+     */
+    long getDeadline() {
+        return deadline;
     }
-    
-    public TimerNode getNext() {
+
+    void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    TimerBucket getBucket() {
+        return bucket;
+    }
+
+    void setBucket(TimerBucket bucket) {
+        this.bucket = bucket;
+    }
+
+    TimerNode getNext() {
         return next;
     }
-    
-    public void setPrev(TimerNode prev) {
-        this.prev = prev;
-        if (prev != null) {
-            prev.next = this;
-        }
+
+    void setNext(TimerNode next) {
+        this.next = next;
     }
-    
-    public TimerNode getPrev() {
+
+    TimerNode getPrev() {
         return prev;
     }
-    
-    public void unlink() {
-        this.prev = null;
-        this.next = null;
+
+    void setPrev(TimerNode prev) {
+        this.prev = prev;
     }
-    
+
     public String toString() {
         return "TimerNode<" + hashCode() + ">";
     }
@@ -0,0 +1,112 @@
+package seda.sandstorm.timer;
+
+/**
+ * One level of a hashed hierarchical timing wheel. Each of the
+ * <code>wheelSize</code> buckets covers <code>tickMillis</code>; events beyond
+ * the span of this level go to a lazily created overflow wheel whose tick is
+ * the span of this one. Buckets of the higher levels are cascaded down as the
+ * clock reaches them. Not thread safe; guarded by the Timer lock.
+ *
+ * @see Timer
+ */
+class TimingWheel {
+    private final long tickMillis;
+    private final int wheelSize;
+    private final long interval;
+    private final TimerBucket[] buckets;
+    private long currentTime;
+    private TimingWheel overflowWheel;
+
+    TimingWheel(long tickMillis, int wheelSize, long startMillis) {
+        this.tickMillis = tickMillis;
+        this.wheelSize = wheelSize;
+        this.interval = tickMillis * wheelSize;
+        this.buckets = new TimerBucket[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            buckets[i] = new TimerBucket();
+        }
+        this.currentTime = startMillis - (startMillis % tickMillis);
+    }
+
+    long getCurrentTime() {
+        return currentTime;
+    }
+
+    long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * Add the node to this wheel or one of its overflow wheels. Returns false
+     * if the node's deadline has already been reached.
+     */
+    boolean add(TimerNode node) {
+        long deadline = node.getDeadline();
+        if (deadline <= currentTime) {
+            return false;
+        }
+        if (deadline < currentTime + interval) {
+            buckets[(int) ((deadline / tickMillis) % wheelSize)].add(node);
+            return true;
+        }
+        if (overflowWheel == null) {
+            overflowWheel = new TimingWheel(interval, wheelSize, currentTime);
+        }
+        return overflowWheel.add(node);
+    }
+
+    /**
+     * Move the clock of this wheel and all overflow wheels to the given tick
+     * and detach the buckets which became due, highest level first. The
+     * returned nodes are chained through their next pointers; the caller must
+     * re-add them to the lowest level.
+     */
+    TimerNode advance(long tick) {
+        TimerNode expired = null;
+        if (overflowWheel != null) {
+            expired = overflowWheel.advance(tick);
+        }
+        long aligned = tick - (tick % tickMillis);
+        if (aligned > currentTime) {
+            currentTime = aligned;
+            TimerNode flushed = buckets[(int) ((currentTime / tickMillis) % wheelSize)].flush();
+            expired = concat(expired, flushed);
+        }
+        return expired;
+    }
+
+    /**
+     * Reset the clock of an empty wheel, so that the timer thread does not
+     * have to step through the ticks which passed while it was idle.
+     */
+    void reset(long startMillis) {
+        currentTime = startMillis - (startMillis % tickMillis);
+        if (overflowWheel != null) {
+            overflowWheel.reset(startMillis);
+        }
+    }
+
+    /**
+     * Detach every bucket of this wheel and its overflow wheels.
+     */
+    void clear() {
+        for (TimerBucket bucket : buckets) {
+            bucket.flush();
+        }
+        if (overflowWheel != null) {
+            overflowWheel.clear();
+        }
+    }
+
+    private static TimerNode concat(TimerNode first, TimerNode second) {
+        if (first == null) {
+            return second;
+        }
+        TimerNode last = first;
+        while (last.getNext() != null) {
+            last = last.getNext();
+        }
+        last.setNext(second);
+        return first;
+    }
+}
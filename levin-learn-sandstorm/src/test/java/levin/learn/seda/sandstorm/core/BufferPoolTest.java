@@ -0,0 +1,210 @@
+package levin.learn.seda.sandstorm.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.junit.Test;
+
+import seda.sandstorm.api.EventSink;
+import seda.sandstorm.api.SinkClosedException;
+import seda.sandstorm.api.SinkException;
+import seda.sandstorm.api.SinkFullException;
+import seda.sandstorm.core.BufferPool;
+import seda.sandstorm.lib.socket.ATcpInPacket;
+import seda.sandstorm.lib.socket.SocketMgr;
+import seda.sandstorm.lib.socket.nio.SockState;
+
+public class BufferPoolTest {
+    @Test
+    public void testAllocateGrowsBySlabAndReuses() {
+        BufferPool pool = new BufferPool("test", 32, 4, 8, 0);
+        byte[] buf = pool.allocate();
+        assertEquals(32, buf.length);
+        assertEquals(4, pool.getCreated());
+        assertEquals(1, pool.getInUse());
+        assertEquals(3, pool.getFree());
+
+        pool.release(buf);
+        assertEquals(0, pool.getInUse());
+        assertSame(buf, pool.allocate());
+        assertEquals(4, pool.getCreated());
+    }
+
+    @Test
+    public void testFreeListIsBounded() {
+        BufferPool pool = new BufferPool("test", 8, 2, 2, 0);
+        byte[][] bufs = new byte[4][];
+        for (int i = 0; i < bufs.length; i++) {
+            bufs[i] = pool.allocate();
+        }
+        for (int i = 0; i < bufs.length; i++) {
+            pool.release(bufs[i]);
+        }
+        assertEquals(2, pool.getFree());
+        assertEquals(0, pool.getInUse());
+    }
+
+    @Test
+    public void testReleaseForeignBuffer() {
+        try {
+            new BufferPool("test", 8, 2, 2, 0).release(new byte[16]);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void testPacketRelease() {
+        BufferPool pool = new BufferPool("test", 16, 1, 4, 1);
+        byte[] buf = pool.allocate();
+        buf[0] = 'a';
+        buf[1] = 'b';
+        ATcpInPacket pkt = new ATcpInPacket(null, buf, 2, pool, 1);
+        assertEquals(2, pkt.getBufferElement().size);
+
+        pkt.release();
+        pkt.release();
+        assertFalse(pkt.isPooled());
+        assertEquals(0, pool.getInUse());
+        assertEquals(0, pool.getLeaked());
+    }
+
+    @Test
+    public void testPacketGetBytesCopiesAndReleases() {
+        BufferPool pool = new BufferPool("test", 16, 1, 4, 0);
+        byte[] buf = pool.allocate();
+        buf[0] = 'a';
+        buf[1] = 'b';
+        ATcpInPacket pkt = new ATcpInPacket(null, buf, 2, pool, 1);
+
+        assertArrayEquals(new byte[] { 'a', 'b' }, pkt.getBytes());
+        assertEquals(0, pool.getInUse());
+        assertEquals(1, pool.getCopied());
+        assertEquals(2, pkt.size());
+        pkt.getBytes();
+        pkt.release();
+        assertEquals(0, pool.getInUse());
+        assertEquals(1, pool.getCopied());
+    }
+
+    @Test
+    public void testLeakedPacketIsNoLongerInUse() throws Exception {
+        BufferPool pool = new BufferPool("test", 16, 1, 4, 1);
+        leakPacket(pool);
+        assertEquals(1, pool.getInUse());
+        for (int i = 0; i < 100 && pool.getLeaked() == 0; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertEquals(1, pool.getLeaked());
+        assertEquals(0, pool.getInUse());
+    }
+
+    @Test
+    public void testSocketCloseReleasesBuffers() throws Exception {
+        BufferPool pool = SocketMgr.getReadBufferPool();
+        long inUse = pool.getInUse();
+        try (ServerSocketChannel server = listen(); SocketChannel client = connect(server);
+                SocketChannel peer = server.accept()) {
+            SockState state = new SockState(null, client.socket(), Integer.valueOf(-1));
+            set(state, "clogged_qel", new ATcpInPacket(null, pool.allocate(), 1, pool, 1));
+            assertEquals(inUse + 2, pool.getInUse());
+
+            invoke(state, "close", new Class[] { EventSink.class }, new Object[] { null });
+            assertEquals(inUse, pool.getInUse());
+            invoke(state, "close", new Class[] { EventSink.class }, new Object[] { null });
+            assertEquals(inUse, pool.getInUse());
+        }
+    }
+
+    @Test
+    public void testDroppedCloggedPacketIsReleased() throws Exception {
+        BufferPool pool = SocketMgr.getReadBufferPool();
+        long inUse = pool.getInUse();
+        try (ServerSocketChannel server = listen(); SocketChannel client = connect(server);
+                SocketChannel peer = server.accept()) {
+            SockState state = new SockState(null, client.socket(), Integer.valueOf(-1));
+            set(state, "readCompQ", failingSink(new SinkFullException()));
+            set(state, "readClogTries", Integer.valueOf(1));
+            set(state, "clogged_qel", new ATcpInPacket(null, pool.allocate(), 1, pool, 1));
+
+            // the queue is still full: the packet has had its last try
+            invoke(state, "doRead", new Class[0], new Object[0]);
+            assertEquals(inUse + 1, pool.getInUse());
+
+            invoke(state, "close", new Class[] { EventSink.class }, new Object[] { null });
+            assertEquals(inUse, pool.getInUse());
+        }
+    }
+
+    @Test
+    public void testPacketForClosedSinkIsReleased() throws Exception {
+        BufferPool pool = SocketMgr.getReadBufferPool();
+        long inUse = pool.getInUse();
+        try (ServerSocketChannel server = listen(); SocketChannel client = connect(server);
+                SocketChannel peer = server.accept()) {
+            SockState state = new SockState(null, client.socket(), Integer.valueOf(-1));
+            set(state, "readCompQ", failingSink(new SinkClosedException()));
+            peer.write(ByteBuffer.wrap(new byte[] { 'a', 'b' }));
+            Thread.sleep(50);
+
+            // the read is dropped and the socket closed
+            invoke(state, "doRead", new Class[0], new Object[0]);
+            assertEquals(inUse, pool.getInUse());
+            assertFalse(client.isOpen());
+        }
+    }
+
+    private static void leakPacket(BufferPool pool) {
+        new ATcpInPacket(null, pool.allocate(), 4, pool, 1);
+    }
+
+    private static ServerSocketChannel listen() throws Exception {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        return server;
+    }
+
+    private static SocketChannel connect(ServerSocketChannel server) throws Exception {
+        SocketChannel client = SocketChannel.open(server.getLocalAddress());
+        client.configureBlocking(false);
+        return client;
+    }
+
+    private static EventSink failingSink(final SinkException e) {
+        return (EventSink) Proxy.newProxyInstance(BufferPoolTest.class.getClassLoader(),
+                new Class[] { EventSink.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("enqueue")) throw e;
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    // SockState keeps its read path protected; reach it the way the select
+    // loop would
+    private static void set(Object obj, String name, Object value) throws Exception {
+        Field f = seda.sandstorm.lib.socket.SockState.class.getDeclaredField(name);
+        f.setAccessible(true);
+        f.set(obj, value);
+    }
+
+    private static void invoke(Object obj, String name, Class[] types, Object[] args) throws Exception {
+        Method m = SockState.class.getDeclaredMethod(name, types);
+        m.setAccessible(true);
+        m.invoke(obj, args);
+    }
+}
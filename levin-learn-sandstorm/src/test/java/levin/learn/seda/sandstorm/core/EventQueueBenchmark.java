@@ -0,0 +1,112 @@
+package levin.learn.seda.sandstorm.core;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import seda.sandstorm.api.EventElement;
+import seda.sandstorm.api.EventQueue;
+import seda.sandstorm.core.EventQueueImpl;
+import seda.sandstorm.core.QueueThresholdPredicate;
+import seda.sandstorm.core.RingBufferEventQueue;
+
+/**
+ * Compares EventQueueImpl against RingBufferEventQueue with eight producers
+ * feeding two consumers, which is the shape of a busy stage. Both queues
+ * hold at most CAPACITY events and drop what does not fit; the drops are
+ * reported as the "dropped" counter so that throughputs can be compared.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventQueueBenchmark {
+    private static final EventElement EVENT = new EventElement() { };
+    private static final EventElement[] BATCH = { EVENT, EVENT, EVENT, EVENT };
+    private static final int CAPACITY = 64 * 1024;
+
+    @Param({ "linked", "ring" })
+    public String type;
+
+    private EventQueue queue;
+
+    @Setup
+    public void setUp() {
+        if (type.equals("linked")) {
+            EventQueueImpl q = new EventQueueImpl("bench");
+            q.setEnqueuePredicate(new QueueThresholdPredicate(q, CAPACITY));
+            queue = q;
+        } else {
+            queue = new RingBufferEventQueue("bench", CAPACITY);
+        }
+    }
+
+    /**
+     * Events rejected because the queue was full, per producer thread.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Drops {
+        public long dropped;
+    }
+
+    @Benchmark
+    @Group("single")
+    @GroupThreads(8)
+    public boolean enqueue(Drops drops) {
+        boolean ok = queue.enqueueLossy(EVENT);
+        if (!ok) {
+            drops.dropped++;
+        }
+        return ok;
+    }
+
+    @Benchmark
+    @Group("single")
+    @GroupThreads(2)
+    public EventElement[] dequeue() {
+        return queue.blockingDequeue(1, 64);
+    }
+
+    @Benchmark
+    @Group("batch")
+    @GroupThreads(8)
+    public void enqueueMany(Drops drops) {
+        try {
+            queue.enqueueMany(BATCH);
+        } catch (Exception e) {
+            // Queue full, drop the batch
+            drops.dropped += BATCH.length;
+        }
+    }
+
+    @Benchmark
+    @Group("batch")
+    @GroupThreads(2)
+    public EventElement[] dequeueAll() {
+        return queue.blockingDequeueAll(1);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder().include(EventQueueBenchmark.class.getSimpleName()).build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,127 @@
+package levin.learn.seda.sandstorm.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import seda.sandstorm.api.EventElement;
+import seda.sandstorm.api.SinkFullException;
+import seda.sandstorm.core.QueueThresholdPredicate;
+import seda.sandstorm.core.RingBufferEventQueue;
+
+public class RingBufferEventQueueTest {
+    @Test
+    public void testCapacityRoundedToPowerOfTwo() {
+        RingBufferEventQueue queue = new RingBufferEventQueue("ring", 100);
+        assertEquals(128, queue.capacity());
+    }
+
+    @Test
+    public void testEnqueueManyIsAllOrNothing() throws Exception {
+        RingBufferEventQueue queue = new RingBufferEventQueue("ring", 4);
+        queue.enqueueMany(new EventElement[] { new TestEvent(0), new TestEvent(1), new TestEvent(2) });
+        try {
+            queue.enqueueMany(new EventElement[] { new TestEvent(3), new TestEvent(4) });
+            fail("Expected SinkFullException");
+        } catch (SinkFullException e) {
+        }
+        assertEquals(3, queue.size());
+
+        EventElement[] events = queue.dequeueAll();
+        assertEquals(3, events.length);
+        for (int i = 0; i < events.length; i++) {
+            assertEquals(i, ((TestEvent) events[i]).seq);
+        }
+        assertNull(queue.dequeue());
+    }
+
+    @Test
+    public void testEnqueuePredicate() throws Exception {
+        RingBufferEventQueue queue = new RingBufferEventQueue("ring", 16);
+        queue.setEnqueuePredicate(new QueueThresholdPredicate(queue, 2));
+        queue.enqueue(new TestEvent(0));
+        queue.enqueue(new TestEvent(1));
+        try {
+            queue.enqueue(new TestEvent(2));
+            fail("Expected SinkFullException");
+        } catch (SinkFullException e) {
+        }
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void testProvisionalEnqueue() throws Exception {
+        RingBufferEventQueue queue = new RingBufferEventQueue("ring", 2);
+        TestEvent event = new TestEvent(0);
+        Object key = queue.enqueuePrepare(new EventElement[] { event });
+        assertEquals(1, queue.size());
+        assertNull(queue.dequeue());
+
+        queue.enqueueCommit(key);
+        assertSame(event, queue.dequeue());
+
+        key = queue.enqueuePrepare(new EventElement[] { event, event });
+        assertEquals(2, queue.size());
+        queue.enqueueAbort(key);
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testConcurrentProducersAndConsumers() throws Exception {
+        final RingBufferEventQueue queue = new RingBufferEventQueue("ring", 64);
+        final int numProducers = 8;
+        final int numEvents = 20000;
+        final AtomicInteger received = new AtomicInteger();
+
+        Thread[] producers = new Thread[numProducers];
+        for (int i = 0; i < numProducers; i++) {
+            producers[i] = new Thread(() -> {
+                int sent = 0;
+                while (sent < numEvents) {
+                    if (queue.enqueueLossy(new TestEvent(sent))) {
+                        sent++;
+                    } else {
+                        Thread.yield();
+                    }
+                }
+            });
+            producers[i].start();
+        }
+
+        Thread[] consumers = new Thread[2];
+        for (int i = 0; i < consumers.length; i++) {
+            consumers[i] = new Thread(() -> {
+                while (received.get() < numProducers * numEvents) {
+                    EventElement[] events = queue.blockingDequeue(10, 16);
+                    if (events != null) {
+                        received.addAndGet(events.length);
+                    }
+                }
+            });
+            consumers[i].start();
+        }
+
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        for (Thread consumer : consumers) {
+            consumer.join();
+        }
+
+        assertEquals(numProducers * numEvents, received.get());
+        assertEquals(0, queue.size());
+    }
+
+    private static class TestEvent implements EventElement {
+        private final int seq;
+
+        public TestEvent(int seq) {
+            this.seq = seq;
+        }
+    }
+}
@@ -1,5 +1,9 @@
 package levin.learn.seda.sandstorm.timer;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
 import org.junit.Test;
 
 import seda.sandstorm.api.EventElement;
@@ -60,6 +64,27 @@ public class TimerTest {
         timer.doneWithTimer();
     }
     
+    @Test
+    public void testCancelEventInMiddle() throws Exception {
+        EventQueueImpl eventQueue = new EventQueueImpl("timer");
+        Timer timer = new Timer(5);
+
+        timer.registerEvent(20, new TestEvent("20"), eventQueue);
+        TimerHandle handle = timer.registerEvent(30, new TestEvent("30"), eventQueue);
+        timer.registerEvent(40, new TestEvent("40"), eventQueue);
+        assertTrue(handle.isActive());
+
+        timer.cancelEvent(handle);
+        assertFalse(handle.isActive());
+        assertEquals(2, timer.size());
+
+        Thread.sleep(200);
+        EventElement events[] = eventQueue.dequeueAll();
+        assertEquals(2, events.length);
+        assertEquals(0, timer.size());
+        timer.doneWithTimer();
+    }
+
     private static class TestEvent implements EventElement {
         private String ns = null;
         private long inj;
@@ -0,0 +1,202 @@
+package seda.sandstorm.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import seda.sandstorm.api.ConfigData;
+import seda.sandstorm.api.EventElement;
+import seda.sandstorm.api.EventHandler;
+import seda.sandstorm.api.Manager;
+import seda.sandstorm.api.Profiler;
+import seda.sandstorm.api.Stage;
+import seda.sandstorm.api.internal.StageStats;
+import seda.sandstorm.api.internal.StageWrapper;
+import seda.sandstorm.core.EventQueueImpl;
+import seda.sandstorm.main.SandstormConfig;
+
+public class VirtualThreadManagerTest {
+    private static final EventElement EVENT = new EventElement() { };
+
+    private final SandstormConfig config = new SandstormConfig();
+    private final Manager mgr = (Manager) fake(Manager.class, "mgr");
+    private final EventQueueImpl queue = new EventQueueImpl("test");
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+    private final AtomicInteger handled = new AtomicInteger();
+    private StageStats stats;
+    private VirtualThreadManager tm;
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        if (tm != null) {
+            tm.deregisterAll();
+        }
+    }
+
+    @Test
+    public void testPlatformPoolRunsBatchesConcurrently() throws Exception {
+        config.putInt("global.VTTM.maxConcurrency", 4);
+        config.putInt("global.VTTM.batchSize", 1);
+        tm = new VirtualThreadManager(mgr, null);
+        assertFalse(tm.isVirtual());
+        tm.register(wrapper());
+
+        enqueue(4);
+        awaitRunning(4);
+        release.countDown();
+        awaitHandled(4);
+        assertEquals(4, maxRunning.get());
+        assertEquals(4, stats.getTotalEvents());
+    }
+
+    @Test
+    public void testMaxConcurrencyBoundsBatchesInFlight() throws Exception {
+        config.putInt("global.VTTM.maxConcurrency", 2);
+        config.putInt("global.VTTM.batchSize", 1);
+        tm = new VirtualThreadManager(mgr, null);
+        tm.register(wrapper());
+
+        enqueue(5);
+        awaitRunning(2);
+        Thread.sleep(100);
+        assertEquals(2, running.get());
+        // the dispatcher leaves what it cannot run on the queue
+        assertEquals(3, queue.size());
+
+        release.countDown();
+        awaitHandled(5);
+        assertEquals(2, maxRunning.get());
+    }
+
+    @Test
+    public void testThreadFactoryStartsAThreadPerBatch() throws Exception {
+        config.putInt("global.VTTM.maxConcurrency", 3);
+        config.putInt("global.VTTM.batchSize", 1);
+        final AtomicInteger created = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            created.incrementAndGet();
+            Thread thread = new Thread(r, "factory-" + created.get());
+            thread.setDaemon(true);
+            return thread;
+        };
+        tm = new VirtualThreadManager(mgr, factory);
+        assertTrue(tm.isVirtual());
+        tm.register(wrapper());
+
+        enqueue(3);
+        awaitRunning(3);
+        release.countDown();
+        awaitHandled(3);
+        // one dispatcher and one thread for each batch
+        assertEquals(4, created.get());
+    }
+
+    @Test
+    public void testVirtualThreadFactoryFollowsJvm() throws Exception {
+        ThreadFactory factory = VirtualThreadManager.virtualThreadFactory("test-");
+        if (Runtime.version().feature() < 21) {
+            assertNull(factory);
+            return;
+        }
+        Thread thread = factory.newThread(() -> { });
+        assertTrue((Boolean) Thread.class.getMethod("isVirtual").invoke(thread));
+        assertTrue(thread.getName().startsWith("test-"));
+    }
+
+    private void enqueue(int n) throws Exception {
+        for (int i = 0; i < n; i++) {
+            queue.enqueue(EVENT);
+        }
+    }
+
+    private void awaitRunning(int n) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (running.get() < n && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(n, running.get());
+    }
+
+    private void awaitHandled(int n) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (stats.getTotalEvents() < n && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(n, handled.get());
+    }
+
+    private StageWrapper wrapper() {
+        StageWrapper wrapper = (StageWrapper) fake(StageWrapper.class, "test");
+        stats = new StageStatsImpl(wrapper);
+        return wrapper;
+    }
+
+    private void handle(EventElement[] events) throws InterruptedException {
+        int now = running.incrementAndGet();
+        maxRunning.accumulateAndGet(now, Math::max);
+        try {
+            release.await(5, TimeUnit.SECONDS);
+        } finally {
+            running.decrementAndGet();
+            handled.addAndGet(events.length);
+        }
+    }
+
+    private Object fake(Class<?> iface, final String name) {
+        final VirtualThreadManagerTest test = this;
+        InvocationHandler h = new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String m = method.getName();
+                if (m.equals("getName") || m.equals("toString")) return name;
+                if (m.equals("hashCode")) return Integer.valueOf(System.identityHashCode(proxy));
+                if (m.equals("equals")) return Boolean.valueOf(proxy == args[0]);
+                if (m.equals("getConfig")) return config;
+                if (m.equals("getProfiler")) return fake(Profiler.class, "profiler");
+                if (m.equals("enabled")) return Boolean.FALSE;
+                if (m.equals("add")) return null;
+                if (m.equals("getStage")) return fake(Stage.class, name);
+                if (m.equals("getSource")) return queue;
+                if (m.equals("getStats")) return stats;
+                if (m.equals("getResponseTimeController")) return null;
+                if (m.equals("getEventHandler")) {
+                    return new EventHandler() {
+                        public void handleEvent(EventElement elem) {
+                            throw new UnsupportedOperationException();
+                        }
+
+                        public void handleEvents(EventElement[] elemarr) {
+                            try {
+                                test.handle(elemarr);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+
+                        public void init(ConfigData config) {
+                        }
+
+                        public void destroy() {
+                        }
+                    };
+                }
+                throw new UnsupportedOperationException(m);
+            }
+        };
+        return Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { iface }, h);
+    }
+}
@@ -0,0 +1,276 @@
+package seda.sandstorm.lib.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import seda.sandstorm.api.EventElement;
+import seda.sandstorm.api.EventSink;
+import seda.sandstorm.api.SinkClosedException;
+import seda.sandstorm.api.SinkException;
+import seda.sandstorm.core.BufferEvent;
+import seda.sandstorm.core.SimpleSink;
+import seda.sandstorm.lib.socket.ATcpConnection;
+import seda.sandstorm.lib.socket.ATcpInPacket;
+
+public class HttpConnectionTest {
+    private final TestTcpConnection tcpconn = new TestTcpConnection();
+    private final TestSink compQ = new TestSink();
+    private final TestSink resumeQ = new TestSink();
+
+    @Test
+    public void testContentLengthAndChunkedBodies() throws Exception {
+        byte[] bytes = bytes("POST /p HTTP/1.1\r\nContent-Length: 11\r\n\r\nhello world"
+                + "POST /c HTTP/1.1\r\nTransfer-Encoding: gzip, chunked\r\n\r\n"
+                + "5;ext=1\r\nabcde\r\nA\r\n0123456789\r\n0\r\nX-Trailer: y\r\n\r\n"
+                + "GET /after HTTP/1.0\r\nConnection: Keep-Alive\r\n\r\n"
+                + "GET /last HTTP/1.1\r\nConnection: close\r\n\r\n"
+                + "GET /ignored HTTP/1.1\r\n\r\n");
+        for (int split = 1; split < bytes.length; split++) {
+            TestSink sink = new TestSink();
+            HttpConnection conn = new HttpConnection(tcpconn, null, sink, 0, null);
+            conn.parsePacket(packet(bytes, 0, split));
+            conn.parsePacket(packet(bytes, split, bytes.length - split));
+
+            List<HttpRequest> reqs = sink.requests();
+            assertEquals("split at " + split, 4, reqs.size());
+            assertEquals(11, reqs.get(0).getContentLength());
+            assertEquals(HttpRequest.LENGTH_CHUNKED, reqs.get(1).getContentLength());
+            assertEquals("hello world", sink.body(reqs.get(0)));
+            assertEquals("abcde0123456789", sink.body(reqs.get(1)));
+            assertEquals("/after", reqs.get(2).getURL());
+            assertTrue(reqs.get(2).keepAlive());
+            assertEquals("/last", reqs.get(3).getURL());
+            assertFalse(reqs.get(3).keepAlive());
+        }
+    }
+
+    @Test
+    public void testChunkDataEndedByBareLineFeed() throws Exception {
+        HttpConnection conn = new HttpConnection(tcpconn, null, compQ, 0, null);
+        parse(conn, "POST /c HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "3\nabc\n2\r\nde\r\n0\n\n");
+        List<HttpRequest> reqs = compQ.requests();
+        assertEquals(1, reqs.size());
+        assertEquals("abcde", compQ.body(reqs.get(0)));
+    }
+
+    @Test
+    public void testResponsesAreSentInRequestOrder() throws Exception {
+        HttpConnection conn = new HttpConnection(tcpconn, null, compQ, 0, null);
+        parse(conn, "GET /0 HTTP/1.1\r\n\r\nGET /1 HTTP/1.1\r\n\r\nGET /2 HTTP/1.1\r\n\r\n");
+        List<HttpRequest> reqs = compQ.requests();
+        assertEquals(3, reqs.size());
+        assertEquals(3, conn.numOutstanding());
+
+        answer(conn, reqs.get(2), "two");
+        answer(conn, reqs.get(1), "one");
+        assertEquals("", tcpconn.written());
+        answer(conn, reqs.get(0), "zero");
+        String out = tcpconn.written();
+        assertTrue(out, out.indexOf("zero") < out.indexOf("one"));
+        assertTrue(out, out.indexOf("one") < out.indexOf("two"));
+        assertEquals(0, conn.numOutstanding());
+    }
+
+    @Test
+    public void testMaxOutstandingHoldsAndResumes() throws Exception {
+        HttpConnection conn = new HttpConnection(tcpconn, null, compQ, 2, resumeQ);
+        parse(conn, "GET /0 HTTP/1.1\r\n\r\nGET /1 HTTP/1.1\r\n\r\n"
+                + "GET /2 HTTP/1.1\r\n\r\nGET /3 HTTP/1.1\r\n\r\n");
+        List<HttpRequest> reqs = compQ.requests();
+        assertEquals(2, reqs.size());
+
+        // packets arriving meanwhile are held too
+        parse(conn, "GET /4 HTTP/1.1\r\n\r\n");
+        assertEquals(2, compQ.requests().size());
+
+        answer(conn, reqs.get(0), "zero");
+        assertEquals(1, resumeQ.events.size());
+        assertSame(conn, resumeQ.events.get(0));
+        conn.resumeParsing();
+        reqs = compQ.requests();
+        assertEquals(3, reqs.size());
+        assertEquals("/2", reqs.get(2).getURL());
+
+        // the server cannot take the connection; the next response retries
+        resumeQ.events.clear();
+        resumeQ.accept = false;
+        answer(conn, reqs.get(1), "one");
+        assertEquals(0, resumeQ.events.size());
+        resumeQ.accept = true;
+        answer(conn, reqs.get(2), "two");
+        assertEquals(1, resumeQ.events.size());
+        conn.resumeParsing();
+        reqs = compQ.requests();
+        assertEquals(5, reqs.size());
+        assertEquals("/3", reqs.get(3).getURL());
+        assertEquals("/4", reqs.get(4).getURL());
+    }
+
+    @Test
+    public void testNextPacketResumesIfTheServerCouldNotBeAsked() throws Exception {
+        HttpConnection conn = new HttpConnection(tcpconn, null, compQ, 1, resumeQ);
+        resumeQ.accept = false;
+        parse(conn, "GET /0 HTTP/1.1\r\n\r\nGET /1 HTTP/1.1\r\n\r\n");
+        answer(conn, compQ.requests().get(0), "zero");
+        assertEquals(1, compQ.requests().size());
+
+        parse(conn, "GET /2 HTTP/1.1\r\n\r\n");
+        List<HttpRequest> reqs = compQ.requests();
+        assertEquals(2, reqs.size());
+        assertEquals("/1", reqs.get(1).getURL());
+    }
+
+    @Test
+    public void testDroppedRequestIsAnswered() throws Exception {
+        HttpConnection conn = new HttpConnection(tcpconn, null, compQ, 0, null);
+        compQ.accept = false;
+        parse(conn, "GET /0 HTTP/1.1\r\n\r\n");
+        compQ.accept = true;
+        parse(conn, "GET /1 HTTP/1.1\r\n\r\n");
+        List<HttpRequest> reqs = compQ.requests();
+        assertEquals(1, reqs.size());
+
+        // the 503 went out, so the response to the next request is not held
+        assertTrue(tcpconn.written().startsWith("HTTP/1.1 503"));
+        answer(conn, reqs.get(0), "one");
+        assertTrue(tcpconn.written().endsWith("one"));
+        assertEquals(0, conn.numOutstanding());
+    }
+
+    @Test
+    public void testCloseWaitsForTheClosingResponse() throws Exception {
+        HttpConnection conn = new HttpConnection(tcpconn, null, compQ, 0, null);
+        parse(conn, "GET /0 HTTP/1.1\r\n\r\nGET /1 HTTP/1.1\r\nConnection: close\r\n\r\n");
+        List<HttpRequest> reqs = compQ.requests();
+        assertEquals(2, reqs.size());
+
+        HttpResponder last = answer(conn, reqs.get(1), "one");
+        assertTrue(last.shouldClose());
+        conn.close(compQ);
+        assertFalse(tcpconn.closed);
+
+        answer(conn, reqs.get(0), "zero");
+        assertTrue(tcpconn.closed);
+        String out = tcpconn.written();
+        assertTrue(out, out.indexOf("zero") < out.indexOf("one"));
+    }
+
+    @Test
+    public void testCloseWaitsForTheRestOfTheBody() throws Exception {
+        HttpConnection conn = new HttpConnection(tcpconn, null, compQ, 0, null);
+        parse(conn, "GET /0 HTTP/1.0\r\n\r\n");
+        HttpRequest req = compQ.requests().get(0);
+
+        // HTTP/1.0 has no chunking, so only the close ends this body
+        HttpResponder resp = new HttpResponder(new HttpOKResponse("text/plain"), req, false);
+        assertTrue(conn.enqueueLossy(resp));
+        assertTrue(resp.shouldClose());
+        conn.close(compQ);
+        assertFalse(tcpconn.closed);
+
+        resp.sendChunk(new BufferEvent(bytes("streamed")));
+        resp.finish();
+        assertTrue(tcpconn.closed);
+        assertTrue(tcpconn.written().endsWith("streamed"));
+    }
+
+    private HttpResponder answer(HttpConnection conn, HttpRequest req, String body) {
+        HttpResponder resp = new HttpResponder(new HttpOKResponse("text/plain", new BufferEvent(bytes(body))), req);
+        assertTrue(conn.enqueueLossy(resp));
+        return resp;
+    }
+
+    private static void parse(HttpConnection conn, String s) throws Exception {
+        byte[] bytes = bytes(s);
+        conn.parsePacket(packet(bytes, 0, bytes.length));
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static ATcpInPacket packet(byte[] bytes, int offset, int length) {
+        return new ATcpInPacket(null, new BufferEvent(bytes, offset, length));
+    }
+
+    /**
+     * A sink keeping what it accepts, which may be told to reject events.
+     */
+    private static class TestSink extends SimpleSink {
+        final List<EventElement> events = new ArrayList<EventElement>();
+        boolean accept = true;
+
+        public void enqueue(EventElement event) throws SinkException {
+            enqueueLossy(event);
+        }
+
+        public boolean enqueueLossy(EventElement event) {
+            if (!accept) return false;
+            events.add(event);
+            return true;
+        }
+
+        List<HttpRequest> requests() {
+            List<HttpRequest> reqs = new ArrayList<HttpRequest>();
+            for (EventElement e : events) {
+                if (e instanceof HttpRequest) reqs.add((HttpRequest) e);
+            }
+            return reqs;
+        }
+
+        String body(HttpRequest req) {
+            StringBuilder sb = new StringBuilder();
+            int last = 0;
+            for (EventElement e : events) {
+                if (!(e instanceof HttpBodyEvent)) continue;
+                HttpBodyEvent body = (HttpBodyEvent) e;
+                if (body.getRequest() != req) continue;
+                BufferEvent buf = body.getBuffer();
+                if (buf != null) {
+                    sb.append(new String(buf.data, buf.offset, buf.size, StandardCharsets.ISO_8859_1));
+                }
+                if (body.isLast()) last++;
+            }
+            assertEquals(1, last);
+            return sb.toString();
+        }
+    }
+
+    /**
+     * A TCP connection which keeps what is written to it.
+     */
+    private static class TestTcpConnection extends ATcpConnection {
+        private final StringBuilder out = new StringBuilder();
+        boolean closed;
+
+        public void enqueueMany(EventElement[] bufarr) throws SinkException {
+            if (closed) throw new SinkClosedException("closed");
+            for (int i = 0; i < bufarr.length; i++) {
+                BufferEvent buf = (BufferEvent) bufarr[i];
+                out.append(new String(buf.data, buf.offset, buf.size, StandardCharsets.ISO_8859_1));
+            }
+        }
+
+        public void close(EventSink compQ) throws SinkClosedException {
+            if (closed) throw new SinkClosedException("closed");
+            closed = true;
+        }
+
+        String written() {
+            return out.toString();
+        }
+
+        public String toString() {
+            return "TestTcpConnection";
+        }
+    }
+}
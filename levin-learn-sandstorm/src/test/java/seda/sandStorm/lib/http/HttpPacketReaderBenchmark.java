@@ -0,0 +1,87 @@
+package seda.sandstorm.lib.http;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import seda.sandstorm.api.EventElement;
+import seda.sandstorm.core.BufferEvent;
+import seda.sandstorm.core.SimpleSink;
+import seda.sandstorm.lib.socket.ATcpInPacket;
+
+/**
+ * Measures HttpPacketReader on a keep-alive GET with five headers, either
+ * in one packet or split over several. Run main() to get the time per
+ * request together with the "gc.alloc.rate.norm" bytes allocated per
+ * request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpPacketReaderBenchmark {
+    private static final byte[] REQUEST = (
+            "GET /index.html?lang=en HTTP/1.1\r\n"
+            + "Host: www.example.com\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64)\r\n"
+            + "Accept: text/html,application/xhtml+xml\r\n"
+            + "Accept-Encoding: gzip, deflate\r\n"
+            + "Connection: keep-alive\r\n"
+            + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+
+    @Param({ "1", "4" })
+    public int packets;
+
+    private HttpPacketReader reader;
+    private Blackhole blackhole;
+
+    @Setup
+    public void setUp(Blackhole bh) {
+        blackhole = bh;
+        reader = new HttpPacketReader(null, new SimpleSink() {
+            public void enqueue(EventElement event) {
+                blackhole.consume(event);
+            }
+
+            public boolean enqueueLossy(EventElement event) {
+                blackhole.consume(event);
+                return true;
+            }
+        });
+    }
+
+    @Benchmark
+    public boolean parse() throws IOException {
+        boolean done = false;
+        int step = (REQUEST.length + packets - 1) / packets;
+        for (int off = 0; off < REQUEST.length; off += step) {
+            int len = Math.min(step, REQUEST.length - off);
+            done |= reader.parsePacket(new ATcpInPacket(null, new BufferEvent(REQUEST, off, len)));
+        }
+        return done;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder().include(HttpPacketReaderBenchmark.class.getSimpleName())
+                .addProfiler("gc").build();
+        new Runner(options).run();
+    }
+}
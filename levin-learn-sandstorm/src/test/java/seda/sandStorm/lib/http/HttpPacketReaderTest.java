@@ -0,0 +1,209 @@
+package seda.sandstorm.lib.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import seda.sandstorm.api.EventElement;
+import seda.sandstorm.core.BufferEvent;
+import seda.sandstorm.core.SimpleSink;
+import seda.sandstorm.lib.socket.ATcpInPacket;
+
+public class HttpPacketReaderTest {
+    private static final String PIPELINED =
+            "GET /a?x=1&y=2 HTTP/1.1\r\n"
+            + "Host: example.com\r\n"
+            + "User-Agent:  foo bar  \r\n"
+            + "X-Long: one\r\n"
+            + "  two\r\n"
+            + "Connection: keep-alive\r\n"
+            + "\r\n"
+            + "POST /b HTTP/1.0\r\n"
+            + "x-custom:v\r\n"
+            + "\r\n";
+
+    private final List<HttpRequest> requests = new ArrayList<HttpRequest>();
+    private final HttpPacketReader reader = new HttpPacketReader(null, sink());
+
+    @Test
+    public void testHeadSplitAtEveryByte() throws Exception {
+        byte[] bytes = bytes(PIPELINED);
+        for (int split = 1; split < bytes.length; split++) {
+            requests.clear();
+            HttpPacketReader r = new HttpPacketReader(null, sink());
+            r.parsePacket(packet(bytes, 0, split));
+            r.parsePacket(packet(bytes, split, bytes.length - split));
+            assertEquals("split at " + split, 2, requests.size());
+            checkPipelined();
+        }
+    }
+
+    @Test
+    public void testOneByteAtATime() throws Exception {
+        byte[] bytes = bytes(PIPELINED);
+        for (int i = 0; i < bytes.length; i++) {
+            reader.parsePacket(packet(bytes, i, 1));
+        }
+        assertEquals(2, requests.size());
+        checkPipelined();
+    }
+
+    @Test
+    public void testPipelinedRequestsInOnePacket() throws Exception {
+        byte[] bytes = bytes(PIPELINED);
+        assertTrue(reader.parsePacket(packet(bytes, 0, bytes.length)));
+        assertEquals(2, requests.size());
+        checkPipelined();
+
+        // the HTTP/1.0 request closes the connection, so nothing follows it
+        bytes = bytes("GET /c HTTP/1.1\r\n\r\n");
+        assertFalse(reader.parsePacket(packet(bytes, 0, bytes.length)));
+        assertEquals(2, requests.size());
+    }
+
+    @Test
+    public void testBareLineFeeds() throws Exception {
+        byte[] bytes = bytes("GET /lf HTTP/1.1\nHost: h\nAccept: */*\n\n");
+        reader.parsePacket(packet(bytes, 0, bytes.length));
+        assertEquals(1, requests.size());
+        HttpRequest req = requests.get(0);
+        assertEquals(HttpRequest.REQUEST_GET, req.getRequest());
+        assertEquals("/lf", req.getURL());
+        assertEquals(HttpRequest.HTTPVER_11, req.getHttpVer());
+        assertEquals("h", req.getHeader("Host"));
+        assertEquals("*/*", req.getHeader("Accept"));
+    }
+
+    @Test
+    public void testHeaderContinuationLines() throws Exception {
+        parse(PIPELINED);
+        assertEquals("one    two", requests.get(0).getHeader("X-Long"));
+    }
+
+    @Test
+    public void testHeaderNamesIgnoreCase() throws Exception {
+        parse(PIPELINED);
+        HttpRequest req = requests.get(0);
+        assertEquals("example.com", req.getHeader("host"));
+        assertEquals("example.com", req.getHeader("HOST"));
+        assertEquals("one    two", req.getHeader("x-long"));
+        assertNull(req.getHeader("Nope"));
+        // common names come back as the interned table entries
+        assertSame(HttpPacketReader.HEADER_NAMES[0], req.getHeaderName(0));
+        assertEquals("v", requests.get(1).getHeader("X-CUSTOM"));
+    }
+
+    @Test
+    public void testHttp09() throws Exception {
+        // blank lines before a request line are skipped
+        parse("\r\nGET /old\r\nGET /new HTTP/1.1\r\n\r\n");
+        assertEquals(1, requests.size());
+        HttpRequest req = requests.get(0);
+        assertEquals(HttpRequest.HTTPVER_09, req.getHttpVer());
+        assertEquals("/old", req.getURL());
+        assertEquals(0, req.numHeaders());
+    }
+
+    @Test
+    public void testHeadOfExactlyTheLimit() throws Exception {
+        parse(headOfSize(64 * 1024));
+        assertEquals(1, requests.size());
+        assertEquals(64 * 1024 - 40, requests.get(0).getHeader("X-Pad").length());
+    }
+
+    @Test
+    public void testHeadOverTheLimit() throws Exception {
+        try {
+            parse(headOfSize(64 * 1024 + 1));
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(0, requests.size());
+
+        // the connection is done with after an error
+        byte[] bytes = bytes("GET / HTTP/1.1\r\n\r\n");
+        reader.parsePacket(packet(bytes, 0, bytes.length));
+        assertEquals(0, requests.size());
+    }
+
+    @Test
+    public void testBadMethod() throws Exception {
+        try {
+            parse("PUT / HTTP/1.1\r\n\r\n");
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private void checkPipelined() {
+        HttpRequest get = requests.get(0);
+        assertEquals(HttpRequest.REQUEST_GET, get.getRequest());
+        assertEquals(HttpRequest.HTTPVER_11, get.getHttpVer());
+        assertEquals("/a", get.getURL());
+        assertEquals("2", get.getQuery("y"));
+        assertEquals("foo bar", get.getHeader("User-Agent"));
+        assertEquals(4, get.numHeaders());
+
+        HttpRequest post = requests.get(1);
+        assertEquals(HttpRequest.REQUEST_POST, post.getRequest());
+        assertEquals(HttpRequest.HTTPVER_10, post.getHttpVer());
+        assertEquals("/b", post.getURL());
+        assertEquals(1, post.numHeaders());
+        assertEquals("x-custom", post.getHeaderName(0));
+        assertEquals("v", post.getHeaderValue(0));
+    }
+
+    /**
+     * Return a request whose head, up to and including the blank line, is
+     * size bytes long.
+     */
+    private static String headOfSize(int size) {
+        String line = "GET / HTTP/1.1\r\n";
+        String name = "X-Pad: ";
+        String tail = "\r\nAccept: */*\r\n\r\n";
+        char[] pad = new char[size - line.length() - name.length() - tail.length()];
+        Arrays.fill(pad, 'a');
+        return line + name + new String(pad) + tail;
+    }
+
+    private void parse(String s) throws IOException {
+        byte[] bytes = bytes(s);
+        reader.parsePacket(packet(bytes, 0, bytes.length));
+    }
+
+    private SimpleSink sink() {
+        return new SimpleSink() {
+            public void enqueue(EventElement event) {
+                enqueueLossy(event);
+            }
+
+            public boolean enqueueLossy(EventElement event) {
+                if (event instanceof HttpRequest) {
+                    requests.add((HttpRequest) event);
+                }
+                return true;
+            }
+        };
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static ATcpInPacket packet(byte[] bytes, int offset, int length) {
+        return new ATcpInPacket(null, new BufferEvent(bytes, offset, length));
+    }
+}
@@ -0,0 +1,165 @@
+package seda.sandstorm.lib.disk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Closeable;
+import java.io.File;
+import java.lang.reflect.Field;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import seda.sandstorm.api.EventElement;
+import seda.sandstorm.api.SinkClosedEvent;
+import seda.sandstorm.api.SinkFlushedEvent;
+import seda.sandstorm.core.BufferEvent;
+import seda.sandstorm.core.EventQueueImpl;
+
+public class AsyncFileTest {
+    private static final String[] IMPLS = { AsyncFileManager.IMPL_THREADPOOL, AsyncFileManager.IMPL_CHANNEL,
+            AsyncFileManager.IMPL_ASYNC };
+    private static final int CHUNKS = 20;
+    private static final int CHUNK_SIZE = 16;
+    private static final int BASE = 1000;
+    private static final int TIMEOUT = 5000;
+
+    private final EventQueueImpl compQ = new EventQueueImpl("async.file.test");
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("afile", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        for (String impl : IMPLS) {
+            roundTrip(impl);
+        }
+    }
+
+    @Test
+    public void testIOExceptionIsTheOnlyCompletion() throws Exception {
+        // the thread pool implementation cannot fail a flush
+        for (String impl : new String[] { AsyncFileManager.IMPL_CHANNEL, AsyncFileManager.IMPL_ASYNC }) {
+            AsyncFile afile = new AsyncFile(file.getPath(), compQ, true, false, impl);
+            // the channel goes away behind the file's back
+            closeChannel(afile);
+
+            afile.readAt(new BufferEvent(10), 0);
+            AsyncFileIOExceptionOccurred failed = (AsyncFileIOExceptionOccurred) next(impl);
+            assertTrue(impl, failed.ioe instanceof ClosedChannelException);
+
+            afile.flush();
+            failed = (AsyncFileIOExceptionOccurred) next(impl);
+            assertTrue(impl, failed.getRequest() instanceof AsyncFileFlushRequest);
+            // and no SinkFlushedEvent after it
+            assertNull(impl, compQ.blockingDequeue(100));
+            afile.close();
+            next(impl);
+            assertNull(impl, compQ.blockingDequeue(100));
+        }
+    }
+
+    private void roundTrip(String impl) throws Exception {
+        AsyncFile afile = new AsyncFile(file.getPath(), compQ, true, false, impl);
+        byte[] head = "sequential".getBytes();
+        afile.write(new BufferEvent(head));
+        for (int i = 0; i < CHUNKS; i++) {
+            afile.writeAt(new BufferEvent(chunk(i)), BASE + i * CHUNK_SIZE);
+        }
+        // the flush is a barrier for the positional writes before it
+        afile.flush();
+        for (int i = 0; i < CHUNKS + 1; i++) {
+            assertTrue(impl, next(impl) instanceof AsyncFileIOCompleted);
+        }
+        assertTrue(impl, next(impl) instanceof SinkFlushedEvent);
+
+        byte[] contents = Files.readAllBytes(file.toPath());
+        assertEquals(impl, BASE + CHUNKS * CHUNK_SIZE, contents.length);
+        assertArrayEquals(impl, head, Arrays.copyOf(contents, head.length));
+
+        // positional reads complete in any order
+        BufferEvent[] bufs = new BufferEvent[CHUNKS];
+        for (int i = 0; i < CHUNKS; i++) {
+            bufs[i] = new BufferEvent(CHUNK_SIZE);
+            afile.readAt(bufs[i], BASE + i * CHUNK_SIZE);
+        }
+        for (int i = 0; i < CHUNKS; i++) {
+            AsyncFileIOCompleted done = (AsyncFileIOCompleted) next(impl);
+            assertEquals(impl, CHUNK_SIZE, done.sizeCompleted);
+        }
+        for (int i = 0; i < CHUNKS; i++) {
+            assertArrayEquals(impl, chunk(i), bufs[i].data);
+        }
+
+        // a vectored read fills its buffers in turn
+        BufferEvent[] vec = { new BufferEvent(CHUNK_SIZE), new BufferEvent(CHUNK_SIZE) };
+        afile.readAt(vec, BASE + 3 * CHUNK_SIZE);
+        assertEquals(impl, 2 * CHUNK_SIZE, ((AsyncFileIOCompleted) next(impl)).sizeCompleted);
+        assertArrayEquals(impl, chunk(3), vec[0].data);
+        assertArrayEquals(impl, chunk(4), vec[1].data);
+
+        // the offset is still where the sequential write left it
+        BufferEvent rest = new BufferEvent(4);
+        afile.read(rest);
+        next(impl);
+        assertArrayEquals(impl, new byte[4], rest.data);
+        BufferEvent start = new BufferEvent(head.length);
+        afile.read(start, 0);
+        next(impl);
+        assertArrayEquals(impl, head, start.data);
+
+        // a short read ends with EOF
+        BufferEvent tail = new BufferEvent(2 * CHUNK_SIZE);
+        afile.readAt(tail, BASE + (CHUNKS - 1) * CHUNK_SIZE);
+        assertEquals(impl, CHUNK_SIZE, ((AsyncFileIOCompleted) next(impl)).sizeCompleted);
+        assertTrue(impl, next(impl) instanceof AsyncFileEOFReached);
+        afile.readAt(new BufferEvent(1), BASE + CHUNKS * CHUNK_SIZE);
+        assertTrue(impl, next(impl) instanceof AsyncFileEOFReached);
+
+        afile.close();
+        assertTrue(impl, next(impl) instanceof SinkClosedEvent);
+        assertNull(impl, compQ.blockingDequeue(100));
+        assertTrue(file.delete());
+    }
+
+    private static byte[] chunk(int i) {
+        byte[] b = new byte[CHUNK_SIZE];
+        Arrays.fill(b, (byte) ('a' + i));
+        return b;
+    }
+
+    private EventElement next(String impl) {
+        EventElement ev = compQ.blockingDequeue(TIMEOUT);
+        assertNotNull(impl + ": no completion", ev);
+        return ev;
+    }
+
+    private static void closeChannel(AsyncFile afile) throws Exception {
+        Field f = AsyncFile.class.getDeclaredField("impl");
+        f.setAccessible(true);
+        AsyncFileChannelImpl impl = (AsyncFileChannelImpl) f.get(afile);
+        for (String name : new String[] { "channel", "asyncChannel" }) {
+            Field c = AsyncFileChannelImpl.class.getDeclaredField(name);
+            c.setAccessible(true);
+            Closeable channel = (Closeable) c.get(impl);
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+}
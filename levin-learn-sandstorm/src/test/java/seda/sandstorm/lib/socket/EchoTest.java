@@ -0,0 +1,133 @@
+package seda.sandstorm.lib.socket;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import seda.sandstorm.api.EventElement;
+import seda.sandstorm.core.BufferEvent;
+import seda.sandstorm.core.EventQueueImpl;
+
+public class EchoTest {
+    private static final int CLIENTS = 8;
+    private static final int ROUNDS = 400;
+    private static final int MESSAGE_SIZE = 100;
+    private static final int TIMEOUT = 5000;
+
+    @Test
+    public void testLoopbackEcho() throws Exception {
+        EventQueueImpl serverQ = new EventQueueImpl("echo server");
+        ATcpServerSocket server = new ATcpServerSocket(0, serverQ);
+        EventElement ev = serverQ.blockingDequeue(TIMEOUT);
+        assertTrue("listen: " + ev, ev instanceof ATcpListenSuccessEvent);
+        int port = server.getLocalPort();
+
+        Echo echo = new Echo(serverQ);
+        echo.start();
+        Client[] clients = new Client[CLIENTS];
+        for (int i = 0; i < CLIENTS; i++) {
+            clients[i] = new Client(port, i);
+            clients[i].start();
+        }
+        for (Client client : clients) {
+            client.join(60000);
+            if (client.error.get() != null) {
+                throw new AssertionError("client " + client.id, client.error.get());
+            }
+            assertEquals(ROUNDS, client.rounds);
+        }
+        echo.done = true;
+        echo.join(TIMEOUT);
+        if (echo.error.get() != null) {
+            throw new AssertionError("echo server", echo.error.get());
+        }
+        server.close();
+    }
+
+    // Sends every packet back on the connection it came in on
+    private static class Echo extends Thread {
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final EventQueueImpl q;
+        volatile boolean done;
+
+        Echo(EventQueueImpl q) {
+            this.q = q;
+        }
+
+        public void run() {
+            try {
+                while (!done) {
+                    EventElement ev = q.blockingDequeue(100);
+                    if (ev instanceof ATcpConnection) {
+                        ((ATcpConnection) ev).startReader(q);
+                    } else if (ev instanceof ATcpInPacket) {
+                        ATcpInPacket packet = (ATcpInPacket) ev;
+                        packet.getConnection().enqueue(new BufferEvent(packet.getBytes()));
+                    }
+                }
+            } catch (Throwable t) {
+                error.set(t);
+            }
+        }
+    }
+
+    // Runs ROUNDS round trips, each waiting for the whole message to return
+    private static class Client extends Thread {
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final int port;
+        final int id;
+        int rounds;
+
+        Client(int port, int id) {
+            this.port = port;
+            this.id = id;
+        }
+
+        public void run() {
+            try {
+                EventQueueImpl q = new EventQueueImpl("echo client " + id);
+                new ATcpClientSocket(InetAddress.getLoopbackAddress(), port, q);
+                ATcpConnection conn = null;
+                while (conn == null) {
+                    EventElement ev = q.blockingDequeue(TIMEOUT);
+                    assertNotNull("no connection", ev);
+                    if (ev instanceof ATcpConnectFailedEvent) {
+                        fail("connect failed");
+                    } else if (ev instanceof ATcpConnection) {
+                        conn = (ATcpConnection) ev;
+                    }
+                }
+                conn.startReader(q);
+
+                for (; rounds < ROUNDS; rounds++) {
+                    byte[] msg = new byte[MESSAGE_SIZE];
+                    for (int i = 0; i < MESSAGE_SIZE; i++) {
+                        msg[i] = (byte) (id + rounds + i);
+                    }
+                    conn.enqueue(new BufferEvent(msg));
+                    ByteArrayOutputStream reply = new ByteArrayOutputStream();
+                    while (reply.size() < MESSAGE_SIZE) {
+                        EventElement ev = q.blockingDequeue(TIMEOUT);
+                        assertNotNull("no reply in round " + rounds, ev);
+                        if (ev instanceof ATcpInPacket) {
+                            byte[] data = ((ATcpInPacket) ev).getBytes();
+                            reply.write(data, 0, data.length);
+                        }
+                    }
+                    assertArrayEquals(msg, reply.toByteArray());
+                }
+                conn.close(null);
+            } catch (Throwable t) {
+                error.set(t);
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package seda.sandstorm.lib.socket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import seda.sandstorm.api.EventElement;
+import seda.sandstorm.core.EventQueueImpl;
+import seda.sandstorm.main.Sandstorm;
+import seda.sandstorm.main.SandstormConfig;
+
+public class SocketShardsTest {
+    private static final int CONNECTIONS = 6;
+    private static final int TIMEOUT = 5000;
+
+    @Test
+    public void testLeastLoadFillsTheEmptiestShard() {
+        SocketShards shards = new SocketShards("read", 3, SocketShards.POLICY_LEAST_LOAD);
+        for (int i = 0; i < 9; i++) {
+            shards.add(shards.pick());
+        }
+        assertLoads(shards, 3, 3, 3);
+
+        shards.remove(1);
+        shards.remove(1);
+        shards.remove(2);
+        assertLoads(shards, 3, 1, 2);
+        int shard = shards.pick();
+        assertEquals(1, shard);
+        shards.add(shard);
+        // shards 1 and 2 now tie, either may be picked
+        shard = shards.pick();
+        assertTrue(shard == 1 || shard == 2);
+        shards.add(shard);
+        shards.add(shards.pick());
+        assertLoads(shards, 3, 3, 3);
+
+        for (int s = 0; s < 3; s++) {
+            for (int i = 0; i < 3; i++) {
+                shards.remove(s);
+            }
+        }
+        assertLoads(shards, 0, 0, 0);
+    }
+
+    @Test
+    public void testRoundRobinIgnoresLoad() {
+        SocketShards shards = new SocketShards("read", 3, SocketShards.POLICY_ROUND_ROBIN);
+        shards.add(1);
+        shards.add(1);
+        for (int i = 0; i < 6; i++) {
+            assertEquals(i % 3, shards.pick());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadPolicy() {
+        new SocketShards("read", 3, "random");
+    }
+
+    @Test
+    public void testSocketsSpreadAcrossShards() throws Exception {
+        // the aSocket layer is set up once per JVM, so it must not be running yet
+        assertNull(Sandstorm.getSandstorm());
+        SandstormConfig cfg = new SandstormConfig();
+        cfg.putInt("global.aSocket.readShards", 3);
+        cfg.putInt("global.aSocket.writeShards", 2);
+        cfg.putString("global.aSocket.shardPolicy", SocketShards.POLICY_LEAST_LOAD);
+        new Sandstorm(cfg);
+        SocketShards readShards = shards("readShards");
+        SocketShards writeShards = shards("writeShards");
+        assertEquals(3, readShards.size());
+        assertEquals(2, writeShards.size());
+
+        EventQueueImpl serverQ = new EventQueueImpl("shard server");
+        ATcpServerSocket server = new ATcpServerSocket(0, serverQ);
+        assertTrue(serverQ.blockingDequeue(TIMEOUT) instanceof ATcpListenSuccessEvent);
+        List<ATcpConnection> conns = new ArrayList<ATcpConnection>();
+        for (int i = 0; i < CONNECTIONS; i++) {
+            EventQueueImpl clientQ = new EventQueueImpl("shard client " + i);
+            new ATcpClientSocket(InetAddress.getLoopbackAddress(), server.getLocalPort(), clientQ);
+            conns.add(connection(clientQ));
+            conns.add(connection(serverQ));
+        }
+
+        // both ends of a connection may be placed at once, so two sockets
+        // can land on the same shard before either is counted
+        assertSpread(readShards, 2 * CONNECTIONS);
+        assertSpread(writeShards, 2 * CONNECTIONS);
+
+        for (ATcpConnection conn : conns) {
+            conn.close(null);
+        }
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (total(readShards) + total(writeShards) > 0) {
+            assertTrue("sockets still counted on their shards", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        assertLoads(readShards, 0, 0, 0);
+        assertLoads(writeShards, 0, 0);
+        server.close();
+    }
+
+    private static ATcpConnection connection(EventQueueImpl q) {
+        while (true) {
+            EventElement ev = q.blockingDequeue(TIMEOUT);
+            assertNotNull("no connection", ev);
+            if (ev instanceof ATcpConnection) {
+                return (ATcpConnection) ev;
+            }
+            assertTrue("connect failed", !(ev instanceof ATcpConnectFailedEvent));
+        }
+    }
+
+    private static SocketShards shards(String name) throws Exception {
+        Field f = SocketMgr.class.getDeclaredField(name);
+        f.setAccessible(true);
+        return (SocketShards) f.get(null);
+    }
+
+    private static void assertSpread(SocketShards shards, int sockets) {
+        int min = Integer.MAX_VALUE, max = 0;
+        for (int i = 0; i < shards.size(); i++) {
+            min = Math.min(min, shards.getSockets(i));
+            max = Math.max(max, shards.getSockets(i));
+        }
+        assertEquals(sockets, total(shards));
+        assertTrue("min " + min + ", max " + max, max - min <= 2);
+    }
+
+    private static int total(SocketShards shards) {
+        int total = 0;
+        for (int i = 0; i < shards.size(); i++) {
+            total += shards.getSockets(i);
+        }
+        return total;
+    }
+
+    private static void assertLoads(SocketShards shards, int... loads) {
+        for (int i = 0; i < loads.length; i++) {
+            assertEquals("shard " + i, loads[i], shards.getSockets(i));
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package seda.sandstorm.lib.socket.nio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import seda.sandstorm.core.FileRegionEvent;
+import seda.sandstorm.lib.socket.ATcpWriteRequest;
+
+public class FileRegionWriteTest {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int FILE_SIZE = 512 * 1024;
+
+    private ServerSocketChannel server;
+    private SocketChannel client;
+    private SocketChannel peer;
+    private NIOSelectSource selsource;
+    private SockState state;
+    private File file;
+    private byte[] contents;
+    private FileChannel channel;
+
+    @Before
+    public void setUp() throws Exception {
+        // small fixed buffers so the file cannot go out in one transfer
+        server = ServerSocketChannel.open();
+        server.socket().setReceiveBufferSize(BUFFER_SIZE);
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        client = SocketChannel.open();
+        client.socket().setSendBufferSize(BUFFER_SIZE);
+        client.connect(server.getLocalAddress());
+        client.configureBlocking(false);
+        peer = server.accept();
+        selsource = new NIOSelectSource(false);
+        state = new SockState(null, client.socket(), Integer.valueOf(-1));
+
+        file = File.createTempFile("region", ".bin");
+        contents = new byte[FILE_SIZE];
+        for (int i = 0; i < FILE_SIZE; i++) {
+            contents[i] = (byte) (i * 31);
+        }
+        Files.write(file.toPath(), contents);
+        channel = new RandomAccessFile(file, "r").getChannel();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        state.close(null);
+        peer.close();
+        server.close();
+        selsource.getSelector().close();
+        channel.close();
+        file.delete();
+    }
+
+    @Test
+    public void testEvictionDuringTransfer() throws Exception {
+        FileRegionEvent region = new FileRegionEvent(channel, 0, FILE_SIZE);
+        ATcpWriteRequest req = write(region);
+
+        state.initGatherWrite();
+        assertFalse(state.tryGatherWrite());
+        assertNull(state.nextCompletedWrite());
+
+        // the cache evicts the entry while the transfer is still pending
+        region.release();
+        assertTrue(channel.isOpen());
+
+        Reader reader = new Reader(FILE_SIZE);
+        reader.start();
+        while (!state.tryGatherWrite()) {
+            Thread.sleep(1);
+        }
+        assertSame(req, state.nextCompletedWrite());
+        assertFalse(channel.isOpen());
+        reader.join(5000);
+        assertArrayEquals(contents, reader.out.toByteArray());
+    }
+
+    @Test
+    public void testOwnerKeepsChannelOpen() throws Exception {
+        FileRegionEvent region = new FileRegionEvent(channel, 0, 100);
+        ATcpWriteRequest req = write(region);
+
+        state.initGatherWrite();
+        assertTrue(state.tryGatherWrite());
+        assertSame(req, state.nextCompletedWrite());
+        // a second release of the same request does nothing
+        req.release();
+        assertTrue(channel.isOpen());
+
+        region.release();
+        assertFalse(channel.isOpen());
+        try {
+            region.retain();
+            fail("retained a region whose channel is closed");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void testCloseReleasesQueuedWrites() throws Exception {
+        FileRegionEvent region = new FileRegionEvent(channel, 0, 100);
+        ATcpWriteRequest first = write(region);
+        write(region);
+
+        // the first has been written but is still on the list when the
+        // socket closes; only the second is released by close()
+        state.initGatherWrite();
+        assertTrue(state.tryGatherWrite());
+        assertSame(first, state.nextCompletedWrite());
+        state.close(null);
+        assertTrue(channel.isOpen());
+
+        region.release();
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void testCloseDuringTransfer() throws Exception {
+        FileRegionEvent region = new FileRegionEvent(channel, 0, FILE_SIZE);
+        write(region);
+
+        state.initGatherWrite();
+        assertFalse(state.tryGatherWrite());
+        region.release();
+        assertTrue(channel.isOpen());
+
+        state.close(null);
+        assertFalse(channel.isOpen());
+    }
+
+    private ATcpWriteRequest write(FileRegionEvent region) {
+        ATcpWriteRequest req = new ATcpWriteRequest(null, region);
+        assertTrue(state.addWriteRequest(req, selsource));
+        return req;
+    }
+
+    private class Reader extends Thread {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final int len;
+
+        Reader(int len) {
+            this.len = len;
+        }
+
+        public void run() {
+            ByteBuffer buf = ByteBuffer.allocate(8192);
+            try {
+                while (out.size() < len) {
+                    buf.clear();
+                    int n = peer.read(buf);
+                    if (n < 0) {
+                        return;
+                    }
+                    out.write(buf.array(), 0, n);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package seda.sandstorm.lib.socket.nio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import seda.sandstorm.core.BufferEvent;
+import seda.sandstorm.lib.socket.ATcpWriteRequest;
+import seda.sandstorm.lib.socket.aSocketConst;
+
+public class GatherWriteTest {
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private ServerSocketChannel server;
+    private SocketChannel client;
+    private SocketChannel peer;
+    private NIOSelectSource selsource;
+    private SockState state;
+
+    @Before
+    public void setUp() throws Exception {
+        // small fixed buffers so a large gather cannot go out in one write
+        server = ServerSocketChannel.open();
+        server.socket().setReceiveBufferSize(BUFFER_SIZE);
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        client = SocketChannel.open();
+        client.socket().setSendBufferSize(BUFFER_SIZE);
+        client.connect(server.getLocalAddress());
+        client.configureBlocking(false);
+        peer = server.accept();
+        selsource = new NIOSelectSource(false);
+        state = new SockState(null, client.socket(), Integer.valueOf(-1));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        state.close(null);
+        peer.close();
+        server.close();
+        selsource.getSelector().close();
+    }
+
+    @Test
+    public void testQueuedWritesGoOutTogetherInOrder() throws Exception {
+        List<ATcpWriteRequest> reqs = queue(5, 100);
+
+        state.initGatherWrite();
+        assertTrue(state.tryGatherWrite());
+        assertCompleted(reqs, 0, 5);
+        assertArrayEquals(expected(reqs), read(500));
+    }
+
+    @Test
+    public void testGatherStopsAtMaxGatherWrites() throws Exception {
+        List<ATcpWriteRequest> reqs = queue(aSocketConst.MAX_GATHER_WRITES + 3, 1);
+
+        state.initGatherWrite();
+        assertTrue(state.tryGatherWrite());
+        assertCompleted(reqs, 0, aSocketConst.MAX_GATHER_WRITES);
+        drop(aSocketConst.MAX_GATHER_WRITES);
+
+        state.initGatherWrite();
+        assertTrue(state.tryGatherWrite());
+        assertCompleted(reqs, aSocketConst.MAX_GATHER_WRITES, reqs.size());
+        assertArrayEquals(expected(reqs), read(reqs.size()));
+    }
+
+    @Test
+    public void testLargeFirstWriteIsGatheredAlone() throws Exception {
+        List<ATcpWriteRequest> reqs = new ArrayList<ATcpWriteRequest>();
+        reqs.add(write(aSocketConst.MAX_GATHER_BYTES + 1, 1));
+        reqs.add(write(10, 2));
+        Reader reader = new Reader(aSocketConst.MAX_GATHER_BYTES + 11);
+        reader.start();
+
+        state.initGatherWrite();
+        while (!state.tryGatherWrite()) {
+            Thread.sleep(1);
+        }
+        assertCompleted(reqs, 0, 1);
+        drop(1);
+
+        state.initGatherWrite();
+        while (!state.tryGatherWrite()) {
+            Thread.sleep(1);
+        }
+        assertCompleted(reqs, 1, 2);
+        reader.join(5000);
+        assertArrayEquals(expected(reqs), reader.out.toByteArray());
+    }
+
+    @Test
+    public void testPartialWriteCompletesOnlyWrittenRequests() throws Exception {
+        // one full gather, far more than the socket buffers hold
+        int num = aSocketConst.MAX_GATHER_BYTES / BUFFER_SIZE;
+        List<ATcpWriteRequest> reqs = queue(num, BUFFER_SIZE);
+        int total = num * BUFFER_SIZE;
+
+        state.initGatherWrite();
+        boolean done = state.tryGatherWrite();
+        int completed = 0;
+        while (state.nextCompletedWrite() != null) {
+            completed++;
+        }
+        assertFalse("all " + total + " bytes fit the socket buffers", done);
+        assertTrue(completed < reqs.size());
+
+        Reader reader = new Reader(total);
+        reader.start();
+        while (!state.tryGatherWrite()) {
+            Thread.sleep(1);
+        }
+        int more = 0;
+        ATcpWriteRequest req;
+        while ((req = state.nextCompletedWrite()) != null) {
+            assertSame(reqs.get(completed + more), req);
+            more++;
+        }
+        assertEquals(reqs.size(), completed + more);
+        reader.join(5000);
+        assertArrayEquals(expected(reqs), reader.out.toByteArray());
+    }
+
+    private List<ATcpWriteRequest> queue(int num, int size) {
+        List<ATcpWriteRequest> reqs = new ArrayList<ATcpWriteRequest>();
+        for (int i = 0; i < num; i++) {
+            reqs.add(write(size, i));
+        }
+        return reqs;
+    }
+
+    private ATcpWriteRequest write(int size, int fill) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (fill + i);
+        }
+        ATcpWriteRequest req = new ATcpWriteRequest(null, new BufferEvent(data));
+        assertTrue(state.addWriteRequest(req, selsource));
+        return req;
+    }
+
+    // What WriteEventHandler does once it has sent the completion upcalls
+    private void drop(int num) throws Exception {
+        Field f = seda.sandstorm.lib.socket.SockState.class.getDeclaredField("writeReqList");
+        f.setAccessible(true);
+        Deque list = (Deque) f.get(state);
+        for (int i = 0; i < num; i++) {
+            list.pollFirst();
+        }
+    }
+
+    private void assertCompleted(List<ATcpWriteRequest> reqs, int from, int to) {
+        for (int i = from; i < to; i++) {
+            assertSame(reqs.get(i), state.nextCompletedWrite());
+        }
+        assertNull(state.nextCompletedWrite());
+    }
+
+    private static byte[] expected(List<ATcpWriteRequest> reqs) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (ATcpWriteRequest req : reqs) {
+            out.write(req.buf.data, req.buf.offset, req.buf.size);
+        }
+        return out.toByteArray();
+    }
+
+    private byte[] read(int len) throws Exception {
+        Reader reader = new Reader(len);
+        reader.run();
+        return reader.out.toByteArray();
+    }
+
+    private class Reader extends Thread {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final int len;
+
+        Reader(int len) {
+            this.len = len;
+        }
+
+        public void run() {
+            ByteBuffer buf = ByteBuffer.allocate(8192);
+            try {
+                while (out.size() < len) {
+                    buf.clear();
+                    int n = peer.read(buf);
+                    if (n < 0) {
+                        return;
+                    }
+                    out.write(buf.array(), 0, n);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
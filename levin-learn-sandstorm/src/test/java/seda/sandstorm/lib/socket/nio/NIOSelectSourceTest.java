@@ -0,0 +1,300 @@
+package seda.sandstorm.lib.socket.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import seda.sandstorm.core.BufferEvent;
+import seda.sandstorm.lib.socket.ATcpWriteRequest;
+import seda.sandstorm.lib.socket.SelectQueueElement;
+
+public class NIOSelectSourceTest {
+    private ServerSocketChannel server;
+    private SocketChannel client;
+    private SocketChannel peer;
+    private NIOSelectSource selsource;
+    private final List<SocketChannel> channels = new ArrayList<SocketChannel>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        client = SocketChannel.open();
+        client.connect(server.getLocalAddress());
+        client.configureBlocking(false);
+        peer = server.accept();
+        selsource = new NIOSelectSource(false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+        client.close();
+        peer.close();
+        server.close();
+        selsource.getSelector().close();
+    }
+
+    @Test
+    public void testActiveFollowsInterestMask() throws Exception {
+        SelectionKey key = (SelectionKey) selsource.register(client, SelectionKey.OP_READ);
+        assertNotNull(key);
+        assertEquals(1, selsource.numRegistered());
+        assertEquals(1, selsource.numActive());
+
+        key.interestOps(0);
+        selsource.update(key);
+        assertEquals(1, selsource.numRegistered());
+        assertEquals(0, selsource.numActive());
+        selsource.update(key);
+        assertEquals(0, selsource.numActive());
+
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        selsource.update(key);
+        selsource.update(key);
+        assertEquals(1, selsource.numActive());
+
+        selsource.deregister(key);
+        assertEquals(0, selsource.numRegistered());
+        assertEquals(0, selsource.numActive());
+    }
+
+    @Test
+    public void testRegisterWithoutInterestIsInactive() throws Exception {
+        SelectionKey key = (SelectionKey) selsource.register(client, 0);
+        assertEquals(1, selsource.numRegistered());
+        assertEquals(0, selsource.numActive());
+
+        key.interestOps(SelectionKey.OP_READ);
+        selsource.update(key);
+        assertEquals(1, selsource.numActive());
+    }
+
+    @Test
+    public void testCancelledKeyLeavesActiveSet() throws Exception {
+        SelectionKey key = (SelectionKey) selsource.register(client, SelectionKey.OP_READ);
+        key.cancel();
+        selsource.update(key);
+        assertEquals(0, selsource.numActive());
+    }
+
+    @Test
+    public void testSockStateKeepsBothSourcesConsistent() throws Exception {
+        NIOSelectSource readSource = new NIOSelectSource(false);
+        SockState state = new SockState(null, client.socket(), Integer.valueOf(-1));
+        try {
+            state.readInit(readSource, null, -1);
+            assertEquals(1, readSource.numActive());
+            assertEquals(0, selsource.numActive());
+
+            // the first write registers the socket with OP_WRITE set
+            ATcpWriteRequest req = new ATcpWriteRequest(null, new BufferEvent(new byte[10]));
+            assertTrue(state.addWriteRequest(req, selsource));
+            assertEquals(1, selsource.numActive());
+
+            state.writeMaskDisable();
+            assertEquals(1, selsource.numRegistered());
+            assertEquals(0, selsource.numActive());
+            state.writeMaskEnable();
+            assertEquals(1, selsource.numActive());
+            assertEquals(1, readSource.numActive());
+
+            state.close(null);
+            assertEquals(0, readSource.numActive());
+            assertEquals(0, readSource.numRegistered());
+            assertEquals(0, selsource.numActive());
+            assertEquals(0, selsource.numRegistered());
+        } finally {
+            state.close(null);
+            readSource.getSelector().close();
+        }
+    }
+
+    @Test
+    public void testWakeupEndsBlockingDequeue() throws Exception {
+        // an active key which never becomes ready
+        selsource.register(client, SelectionKey.OP_READ);
+        Thread waiter = new Thread() {
+            public void run() {
+                selsource.blockingDequeueBatch(10000, -1);
+            }
+        };
+        waiter.start();
+        Thread.sleep(100);
+        assertTrue(waiter.isAlive());
+
+        selsource.wakeup();
+        waiter.join(2000);
+        assertFalse(waiter.isAlive());
+    }
+
+    @Test
+    public void testWakeupBeforeDequeueIsNotLost() throws Exception {
+        selsource.register(client, SelectionKey.OP_READ);
+        selsource.wakeup();
+        long start = System.currentTimeMillis();
+        assertEquals(0, selsource.blockingDequeueBatch(10000, -1));
+        assertTrue(System.currentTimeMillis() - start < 2000);
+    }
+
+    @Test
+    public void testBatchGrowsAndKeepsItsElements() throws Exception {
+        Set<SocketChannel> clients = readable(20);
+        register(selsource, clients);
+
+        assertEquals(1, selsource.blockingDequeueBatch(1000, 1));
+        SelectQueueElement[] batch = selsource.getBatch();
+        assertEquals(1, batch.length);
+        Set<SocketChannel> seen = new HashSet<SocketChannel>();
+        collect(seen, 1);
+
+        // the rest of the poll is handed out without another select
+        assertEquals(3, selsource.blockingDequeueBatch(1000, 3));
+        assertEquals(3, selsource.getBatch().length);
+        assertSame(batch[0], selsource.getBatch()[0]);
+        collect(seen, 3);
+        assertEquals(16, selsource.blockingDequeueBatch(1000, -1));
+        batch = selsource.getBatch();
+        assertEquals(16, batch.length);
+        collect(seen, 16);
+        assertEquals(clients, seen);
+
+        // the keys are still readable, so the next poll returns them all
+        assertEquals(20, selsource.blockingDequeueBatch(1000, -1));
+        SelectQueueElement[] grown = selsource.getBatch();
+        assertEquals(32, grown.length);
+        for (int i = 0; i < batch.length; i++) {
+            assertSame(batch[i], grown[i]);
+        }
+        seen.clear();
+        collect(seen, 20);
+        assertEquals(clients, seen);
+    }
+
+    @Test
+    public void testBatchIsReusedWithoutAllocation() throws Exception {
+        Set<SocketChannel> clients = readable(5);
+        register(selsource, clients);
+
+        assertEquals(5, selsource.blockingDequeueBatch(1000, -1));
+        SelectQueueElement[] batch = selsource.getBatch();
+        SelectQueueElement[] elements = batch.clone();
+        for (int round = 0; round < 10; round++) {
+            assertEquals(5, selsource.blockingDequeueBatch(1000, -1));
+            assertSame(batch, selsource.getBatch());
+            for (int i = 0; i < elements.length; i++) {
+                assertSame(elements[i], batch[i]);
+            }
+            Set<SocketChannel> seen = new HashSet<SocketChannel>();
+            collect(seen, 5);
+            assertEquals(clients, seen);
+        }
+    }
+
+    @Test
+    public void testNumLimitsEachBatch() throws Exception {
+        Set<SocketChannel> clients = readable(5);
+        register(selsource, clients);
+
+        Set<SocketChannel> seen = new HashSet<SocketChannel>();
+        assertEquals(2, selsource.blockingDequeueBatch(1000, 2));
+        collect(seen, 2);
+        assertEquals(2, selsource.blockingDequeueBatch(1000, 2));
+        collect(seen, 2);
+        assertEquals(1, selsource.blockingDequeueBatch(1000, 2));
+        collect(seen, 1);
+        assertEquals(clients, seen);
+        assertEquals(0, selsource.size());
+        // a batch larger than the poll is not padded out
+        assertEquals(5, selsource.blockingDequeueBatch(1000, 8));
+        assertTrue(selsource.getBatch().length >= 5);
+    }
+
+    @Test
+    public void testBalanceKeepsTheKeySet() throws Exception {
+        Set<SocketChannel> clients = readable(20);
+        NIOSelectSource balanced = new NIOSelectSource(true);
+        try {
+            register(selsource, clients);
+            register(balanced, clients);
+
+            for (int round = 0; round < 3; round++) {
+                assertEquals(20, selsource.blockingDequeueBatch(1000, -1));
+                Set<SocketChannel> plain = new HashSet<SocketChannel>();
+                collect(plain, 20);
+                assertEquals(20, balanced.blockingDequeueBatch(1000, -1));
+                Set<SocketChannel> shuffled = new HashSet<SocketChannel>();
+                for (int i = 0; i < 20; i++) {
+                    SelectionKey key = ((NIOSelectorQueueElement) balanced.getBatch()[i]).item;
+                    assertSame(balanced.getSelector(), key.selector());
+                    shuffled.add((SocketChannel) key.channel());
+                }
+                assertEquals(clients, plain);
+                assertEquals(plain, shuffled);
+            }
+        } finally {
+            balanced.getSelector().close();
+        }
+    }
+
+    // Open num connections whose client ends have a byte waiting to be read
+    private Set<SocketChannel> readable(int num) throws Exception {
+        Set<SocketChannel> clients = new HashSet<SocketChannel>();
+        Selector probe = Selector.open();
+        try {
+            for (int i = 0; i < num; i++) {
+                SocketChannel c = SocketChannel.open(server.getLocalAddress());
+                SocketChannel p = server.accept();
+                channels.add(c);
+                channels.add(p);
+                c.configureBlocking(false);
+                p.write(ByteBuffer.wrap(new byte[1]));
+                c.register(probe, SelectionKey.OP_READ);
+                clients.add(c);
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (probe.selectNow() < num) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+        } finally {
+            probe.close();
+        }
+        return clients;
+    }
+
+    private static void register(NIOSelectSource source, Set<SocketChannel> clients) {
+        for (SocketChannel c : clients) {
+            assertNotNull(source.register(c, SelectionKey.OP_READ));
+        }
+    }
+
+    // Add the channels of the first num elements of the batch
+    private void collect(Set<SocketChannel> seen, int num) {
+        SelectQueueElement[] batch = selsource.getBatch();
+        for (int i = 0; i < num; i++) {
+            SelectionKey key = ((NIOSelectorQueueElement) batch[i]).item;
+            assertTrue(seen.add((SocketChannel) key.channel()));
+        }
+    }
+}
@@ -66,6 +66,76 @@ public class JCycloneConfig implements Cloneable, IMutableSystemConfig {
 	 * Value for defaultThreadMgr to use the aggregating TPSTM.
 	 */
 	public static final String THREADMGR_AggTPSTM = "AggTPSTM";
+	/**
+	 * Value for defaultThreadMgr to use the work-stealing thread manager.
+	 * Its stages get segmented queues; other queue types are rejected.
+	 */
+	public static final String THREADMGR_WSTM = "WSTM";
+
+	/**
+	 * Value for global.threadPool.sizeController.type to add a thread
+	 * whenever the queue length exceeds the threshold. This is the default.
+	 */
+	public static final String SIZECTL_THRESHOLD = "threshold";
+	/**
+	 * Value for global.threadPool.sizeController.type to size pools with
+	 * Little's law from arrival rate, service time and queueing delay.
+	 */
+	public static final String SIZECTL_LITTLE = "littlesLaw";
+
+	/**
+	 * Value for global.timer.type to use the sorted-list JCycloneTimer.
+	 */
+	public static final String TIMER_LIST = "list";
+	/**
+	 * Value for global.timer.type to use the heap-based HeapTimer.
+	 */
+	public static final String TIMER_HEAP = "heap";
+
+	/**
+	 * Value for global.queue.type to use the DynamicArrayBlockingQueue.
+	 */
+	public static final String QUEUE_ARRAY = "array";
+	/**
+	 * Value for global.queue.type to use the LinkedBlockingQueue.
+	 */
+	public static final String QUEUE_LINKED = "linked";
+	/**
+	 * Value for global.queue.type to use the SegmentedArrayBlockingQueue.
+	 */
+	public static final String QUEUE_SEGMENTED = "segmented";
+	/**
+	 * Value for global.queue.type to use a MulticlassBlockingQueue.
+	 */
+	public static final String QUEUE_MULTICLASS = "multiclass";
+
+	/**
+	 * Value for global.batchController.type to use the AdaptiveBatchController.
+	 */
+	public static final String BATCH_ADAPTIVE = "adaptive";
+	/**
+	 * Value for global.batchController.type to use AggThrottle.
+	 */
+	public static final String BATCH_AGGTHROTTLE = "aggthrottle";
+
+	/**
+	 * Value for global.stats.type to use the synchronized StageStats.
+	 */
+	public static final String STATS_SYNCHRONIZED = "synchronized";
+	/**
+	 * Value for global.stats.type to use the lock-free ConcurrentStageStats.
+	 */
+	public static final String STATS_CONCURRENT = "concurrent";
+
+	/**
+	 * Value for global.signal.dispatch to deliver all signals on one thread.
+	 */
+	public static final String SIGNAL_SERIAL = "serial";
+	/**
+	 * Value for global.signal.dispatch to deliver signals on a pool of
+	 * threads, each handler always on the same one.
+	 */
+	public static final String SIGNAL_ASYNC = "async";
 
 	/**
 	 * String value for setting boolean configuration entries to true.
@@ -88,14 +158,41 @@ public class JCycloneConfig implements Cloneable, IMutableSystemConfig {
 		"global.threadPool.minThreads", "1",
 		"global.threadPool.maxThreads", "20",
 		"global.threadPool.blockTime", "1000",
+		"global.threadPool.batchCapacity", "256",
 		"global.threadPool.sizeController.enable", CONFIG_FALSE,
 		"global.threadPool.sizeController.delay", "2000",
 		"global.threadPool.sizeController.threshold", "1000",
 		"global.threadPool.sizeController.idleTimeThreshold", "1000",
+		"global.threadPool.sizeController.type", SIZECTL_THRESHOLD,
+		"global.threadPool.sizeController.delayTarget", "100",
+		"global.threadPool.sizeController.headroom", "0.2",
+		"global.threadPool.sizeController.maxTotalThreads", "0",
+		"global.threadPool.colocate", CONFIG_FALSE,
+		"global.threadPool.colocate.groupSize", "0",
+
+		"global.timer.type", TIMER_LIST,
+
+		"global.queue.type", QUEUE_ARRAY,
+		"global.queue.multiclass.numClasses", "2",
+		"global.queue.multiclass.policy", "fair",
+
+		"global.stats.type", STATS_SYNCHRONIZED,
 
 		"global.batchController.enable", CONFIG_FALSE,
+		"global.batchController.type", BATCH_ADAPTIVE,
 		"global.batchController.minBatch", "1",
 		"global.batchController.maxBatch", "-1",
+		"global.batchController.latencyTarget", "100",
+
+		"global.fusion.enable", CONFIG_FALSE,
+		"global.fusion.auto", CONFIG_TRUE,
+		"global.fusion.maxServiceTime", "1",
+		"global.fusion.maxDepth", "4",
+		"global.fusion.checkInterval", "1000",
+
+		"global.signal.dispatch", SIGNAL_SERIAL,
+		"global.signal.threads", "2",
+		"global.signal.queueSize", "10000",
 
 		"global.profile.enable", CONFIG_FALSE,
 		"global.profile.delay", "1000",
@@ -103,12 +200,17 @@ public class JCycloneConfig implements Cloneable, IMutableSystemConfig {
 		"global.profile.sockets", CONFIG_FALSE,
 		"global.profile.graph", CONFIG_FALSE,
 		"global.profile.graphfilename", "jcyclone-graph.txt",
+		"global.profile.ringfile.filename", "jcyclone-profile.ring",
+		"global.profile.ringfile.records", "3600",
+		"global.profile.ringfile.columns", "512",
 
 		/* Deprecated */
 		"global.AggTPSTM.governor.enable", CONFIG_FALSE,
 		"global.AggTPSTM.governor.delay", "2000",
 		"global.AggTPSTM.governor.threshold", "1000",
 
+		"global.WSTM.numThreads", "0",
+
 		/* Deprecated */
 		"global.TPPTM.numCpus", "1",
 		"global.TPPTM.maxThreads", "1",
@@ -0,0 +1,238 @@
+package org.jcyclone.core.internal;
+
+import org.jcyclone.core.cfg.ISystemConfig;
+import org.jcyclone.core.event.TimeStampedEvent;
+import org.jcyclone.core.profiler.IProfilable;
+import org.jcyclone.core.profiler.IProfiler;
+import org.jcyclone.core.stage.IStageManager;
+import org.jcyclone.util.Util;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An IBatchController which hill-climbs the batch size of a stage to
+ * maximise its throughput while keeping the 99th percentile latency of
+ * its events below a ceiling.
+ * <p/>
+ * Every <tt>recalcWindow</tt> msec the controller compares the
+ * throughput of the last window (events per second of handler time,
+ * summed over the stage's threads) with the previous one. While
+ * throughput improves it keeps moving the batch size in the same
+ * direction, by a factor of <tt>stepFactor</tt>; when throughput drops
+ * it turns around. Whenever the p99 latency of the window is above
+ * <tt>latencyTarget</tt> it halves the batch size instead.
+ * <p/>
+ * The latency of a TimeStampedEvent is the time from its timestamp to
+ * the end of its batch; other events are charged the run time of their
+ * batch, which is the delay batching adds to them.
+ * <p/>
+ * The first window starts with the first batch, so only the times passed
+ * to batchCompleted() count; the controller never reads the clock.
+ * The window counters only ever grow; the thread which moves the window
+ * swaps in a snapshot of them and works on the difference, so batches
+ * completing meanwhile count towards the next window.
+ * <p/>
+ * Configuration, per stage with a global fallback
+ * (<tt>stages.&lt;name&gt;.batchController.*</tt>, then
+ * <tt>global.batchController.*</tt>): <tt>minBatch</tt>,
+ * <tt>maxBatch</tt> (-1 for the batch capacity of the thread manager),
+ * <tt>recalcWindow</tt>, <tt>latencyTarget</tt> (msec, -1 for none) and
+ * <tt>stepFactor</tt>.
+ *
+ * @see AggThrottle
+ */
+public class AdaptiveBatchController implements IBatchController {
+
+	private static final boolean DEBUG = false;
+
+	// Relative change in throughput treated as noise
+	private static final double TOLERANCE = 0.02;
+	// Windows with fewer batches than this are not judged
+	private static final int MIN_BATCHES = 10;
+
+	private final String name;
+	private final int minBatch;
+	private final int maxBatch;
+	private final long recalcWindow;
+	private final long latencyTarget;
+	private final double stepFactor;
+
+	private volatile int target;
+	private volatile boolean increasing;
+	private volatile double lastThroughput;
+	private volatile long lastLatency;
+
+	private final LongAdder totalEvents = new LongAdder();
+	private final LongAdder totalBatches = new LongAdder();
+	private final LongAdder totalBusyTime = new LongAdder();
+	private final AtomicReference window;
+	private final LatencyHistogram windowLatency = new LatencyHistogram();
+
+	private static final class Window {
+		final long start, events, batches, busyTime;
+
+		Window(long start, long events, long batches, long busyTime) {
+			this.start = start;
+			this.events = events;
+			this.batches = batches;
+			this.busyTime = busyTime;
+		}
+	}
+
+	// Placeholder until the first batch completes
+	private static final Window FIRST = new Window(0, 0, 0, 0);
+
+	public AdaptiveBatchController(IStageWrapper stage, IStageManager mgr) {
+		this(stage.getStage().getName(), mgr.getConfig());
+		addProfiles(mgr.getProfiler());
+	}
+
+	private AdaptiveBatchController(String name, ISystemConfig config) {
+		this(name,
+		    config.getInt("stages." + name + ".batchController.minBatch", config.getInt("global.batchController.minBatch", 1)),
+		    config.getInt("stages." + name + ".batchController.maxBatch", config.getInt("global.batchController.maxBatch", -1)),
+		    config.getInt("global.threadPool.batchCapacity", EventBatch.DEFAULT_CAPACITY),
+		    config.getInt("stages." + name + ".batchController.recalcWindow", config.getInt("global.batchController.recalcWindow", 1000)),
+		    config.getInt("stages." + name + ".batchController.latencyTarget", config.getInt("global.batchController.latencyTarget", -1)),
+		    config.getDouble("stages." + name + ".batchController.stepFactor", config.getDouble("global.batchController.stepFactor", 1.25)));
+	}
+
+	/**
+	 * Create a controller with explicit settings and no profiles. A
+	 * maxBatch of 0 or less, or above capacity, means capacity.
+	 */
+	public AdaptiveBatchController(String name, int minBatch, int maxBatch, int capacity,
+	                               long recalcWindow, long latencyTarget, double stepFactor) {
+		this.name = name;
+		this.maxBatch = (maxBatch <= 0 || maxBatch > capacity) ? capacity : maxBatch;
+		this.minBatch = Math.max(1, Math.min(minBatch, this.maxBatch));
+		this.recalcWindow = recalcWindow;
+		this.latencyTarget = latencyTarget;
+		this.stepFactor = (stepFactor > 1.0) ? stepFactor : 1.25;
+
+		// Start small and climb; a large first batch can blow the ceiling
+		this.target = this.minBatch;
+		this.increasing = true;
+		this.window = new AtomicReference(FIRST);
+
+		System.err.println("AdaptiveBatchController <" + name + "> created: minBatch " + this.minBatch + ", maxBatch " + this.maxBatch + ", recalcWindow " + recalcWindow + ", latencyTarget " + latencyTarget);
+	}
+
+	public int getBatchTarget() {
+		return target;
+	}
+
+	/**
+	 * Return the throughput, in events per second of handler time, seen
+	 * in the last window.
+	 */
+	public double getThroughput() {
+		return lastThroughput;
+	}
+
+	/**
+	 * Return the 99th percentile latency, in msec, seen in the last window.
+	 */
+	public long getLatency() {
+		return lastLatency;
+	}
+
+	public void batchCompleted(IBatchDescr batch, long tstart, long tend) {
+		List events = batch.getBatch();
+		int numEvents = events.size();
+		long elapsed = tend - tstart;
+
+		int stamped = 0;
+		for (int i = 0; i < numEvents; i++) {
+			Object event = events.get(i);
+			if (event instanceof TimeStampedEvent) {
+				long time = ((TimeStampedEvent) event).timestamp;
+				if (time != 0) {
+					windowLatency.record(tend - time);
+					stamped++;
+				}
+			}
+		}
+		windowLatency.record(elapsed, numEvents - stamped);
+		totalEvents.add(numEvents);
+		totalBusyTime.add(elapsed);
+		totalBatches.increment();
+
+		Window start = (Window) window.get();
+		if (start == FIRST) {
+			window.compareAndSet(FIRST, new Window(tstart, 0, 0, 0));
+			start = (Window) window.get();
+		}
+		if ((tend - start.start) >= recalcWindow && totalBatches.sum() - start.batches >= MIN_BATCHES) {
+			// Only the thread which moves the window adjusts the target
+			Window end = new Window(tend, totalEvents.sum(), totalBatches.sum(), totalBusyTime.sum());
+			if (window.compareAndSet(start, end)) adjust(start, end);
+		}
+	}
+
+	private void adjust(Window start, Window end) {
+		long events = end.events - start.events;
+		long busy = end.busyTime - start.busyTime;
+		long latency = windowLatency.getValueAtPercentile(0.99);
+		windowLatency.reset();
+
+		double throughput = events / (Math.max(busy, 1) * 1.0e-3);
+		int cur = target;
+		int next;
+
+		if (latencyTarget > 0 && latency > latencyTarget) {
+			// Over the ceiling: back off hard, then climb again carefully
+			next = cur / 2;
+			increasing = true;
+		} else {
+			if (throughput < lastThroughput * (1.0 - TOLERANCE)) {
+				increasing = !increasing;
+			}
+			if (increasing) {
+				next = Math.max(cur + 1, (int) (cur * stepFactor));
+			} else {
+				next = Math.min(cur - 1, (int) (cur / stepFactor));
+			}
+		}
+		if (next < minBatch) next = minBatch;
+		if (next > maxBatch) next = maxBatch;
+		if (next == minBatch || next == maxBatch) {
+			// Bounce off the bounds
+			increasing = (next == minBatch);
+		}
+
+		if (DEBUG) System.err.println("AdaptiveBatchController <" + name + ">: throughput " + Util.format(throughput) + " (last " + Util.format(lastThroughput) + "), p99 " + latency + ", target " + cur + " -> " + next);
+
+		lastThroughput = throughput;
+		lastLatency = latency;
+		target = next;
+	}
+
+	private void addProfiles(IProfiler profiler) {
+		profiler.add("AdaptiveBatchController batchTarget <" + name + ">",
+		    new IProfilable() {
+			    public int profileSize() {
+				    return target;
+			    }
+		    });
+		profiler.add("AdaptiveBatchController throughput <" + name + ">",
+		    new IProfilable() {
+			    public int profileSize() {
+				    return (int) lastThroughput;
+			    }
+		    });
+		profiler.add("AdaptiveBatchController p99 <" + name + ">",
+		    new IProfilable() {
+			    public int profileSize() {
+				    return (int) lastLatency;
+			    }
+		    });
+	}
+
+	public String toString() {
+		return "AdaptiveBatchController <" + name + ">";
+	}
+
+}
@@ -36,8 +36,9 @@ import java.util.Random;
  * level based on observations of stage throughput.
  *
  * @author Matt Welsh
+ * @see AdaptiveBatchController
  */
-class AggThrottle {
+class AggThrottle implements IBatchController {
 
 	private static final boolean DEBUG = false;
 
@@ -125,6 +126,14 @@ class AggThrottle {
 		return "AggThrottle <" + name + ">";
 	}
 
+	public int getBatchTarget() {
+		return getAggTarget();
+	}
+
+	public void batchCompleted(IBatchDescr batch, long tstart, long tend) {
+		// Throughput is taken from the stage stats
+	}
+
 	synchronized int getAggTarget() {
 
 		long cur_time = System.currentTimeMillis();
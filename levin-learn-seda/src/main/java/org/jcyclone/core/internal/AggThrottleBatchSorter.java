@@ -24,27 +24,25 @@
 
 package org.jcyclone.core.internal;
 
+import org.jcyclone.core.cfg.JCycloneConfig;
 import org.jcyclone.core.queue.ISource;
 import org.jcyclone.core.stage.IStageManager;
 
-import java.util.ArrayList;
-import java.util.List;
-
 /**
- * An implementation of BatchSorter that uses the AggThrottle
- * mechanism to automatically determine the batch size.
+ * An implementation of BatchSorter that uses an IBatchController to
+ * automatically determine the batch size: the AdaptiveBatchController,
+ * or the older AggThrottle if <tt>global.batchController.type</tt> is
+ * <tt>aggthrottle</tt>.
  */
 public class AggThrottleBatchSorter implements IBatchSorter {
 
 	private static final boolean DEBUG = false;
 
 	private String name;
-	private AggThrottle aggThrottle;
+	private IBatchController controller;
 	private ISource source;
-	private ThreadLocalList list;
 
 	public AggThrottleBatchSorter() {
-		list = new ThreadLocalList();
 	}
 
 	/**
@@ -52,7 +50,14 @@ public class AggThrottleBatchSorter implements IBatchSorter {
 	 * batch sorter.
 	 */
 	public void init(IStageWrapper stage, IStageManager mgr) {
-		this.aggThrottle = new AggThrottle(stage, mgr);
+		String type = mgr.getConfig().getString("global.batchController.type");
+		if (type == null || type.equals(JCycloneConfig.BATCH_ADAPTIVE)) {
+			this.controller = new AdaptiveBatchController(stage, mgr);
+		} else if (type.equals(JCycloneConfig.BATCH_AGGTHROTTLE)) {
+			this.controller = new AggThrottle(stage, mgr);
+		} else {
+			throw new IllegalArgumentException("Bad batch controller type specified by configuration: " + type);
+		}
 		this.source = stage.getSource();
 		this.name = stage.getStage().getName();
 	}
@@ -61,37 +66,21 @@ public class AggThrottleBatchSorter implements IBatchSorter {
 	 * Returns a single batch for processing by the stage's event handler.
 	 * Blocks until a batch can be returned.
 	 */
-	public IBatchDescr nextBatch(int timeout) throws InterruptedException {
-
-		final List buffer = (List) list.get();
-
-		int aggTarget = aggThrottle.getAggTarget();
-
-		int num;
-		if (aggTarget == -1) {
-			num = source.blockingDequeueAll(buffer, timeout);
-		} else {
-			num = source.blockingDequeue(buffer, timeout, aggTarget);
+	public IBatchDescr nextBatch(EventBatch buffer, int timeout) throws InterruptedException {
+		int aggTarget = controller.getBatchTarget();
+		if (aggTarget == -1 || aggTarget > buffer.capacity()) {
+			aggTarget = buffer.capacity();
 		}
 
+		int num = source.blockingDequeue(buffer.elements(), timeout, aggTarget);
 		if (num == 0)
 			return null;
-		else
-			return new IBatchDescr() {
-				public List getBatch() {
-					return buffer;
-				}
-
-				public void batchDone() {
-					buffer.clear();
-				}
-			};
+		buffer.setCount(num);
+		return buffer;
 	}
 
-	class ThreadLocalList extends ThreadLocal {
-		public Object initialValue() {
-			return new ArrayList();
-		}
+	public void batchCompleted(IBatchDescr batch, long tstart, long tend) {
+		controller.batchCompleted(batch, tstart, tend);
 	}
 
 }
@@ -0,0 +1,201 @@
+package org.jcyclone.core.internal;
+
+import org.jcyclone.core.event.TimeStampedEvent;
+import org.jcyclone.core.profiler.IProfilable;
+import org.jcyclone.core.profiler.IProfiler;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free IStageStats. Counters are striped LongAdders, so the
+ * workers of a stage never contend on a monitor when they finish a
+ * batch. The counters only ever grow: once per estimation window one of
+ * the workers replaces the snapshot of the counters taken at the start of
+ * the window with a new one, and folds the difference into the moving
+ * average of the service rate. Batches recorded while the window is
+ * being folded simply count towards the next window.
+ * <p/>
+ * Queueing delay and response time (msec) and service time (usec) are
+ * kept in LatencyHistograms which response time controllers and the
+ * profiler can read at any time.
+ *
+ * @see StageStats
+ */
+public class ConcurrentStageStats implements IStageLatencyStats {
+	private static final boolean DEBUG = false;
+
+	private static final double SMOOTH_ALPHA = 0.7;
+	private static final int ESTIMATION_SIZE = 100;
+	private static final long ESTIMATION_TIME = 1000;
+
+	/* A handle to the stage. */
+	IStageWrapper stage;
+
+	private volatile double serviceRate;
+	private volatile double rt90thPercentile;
+
+	private final LongAdder totalBatches = new LongAdder();
+	private final LongAdder totalEvents = new LongAdder();
+	private final LongAdder totalServiceTime = new LongAdder();
+
+	// snapshot of the totals at the start of the current window and at the
+	// last reset
+	private final AtomicReference window = new AtomicReference();
+	private volatile Snapshot base;
+
+	private static final class Snapshot {
+		final long time, batches, events, serviceTime;
+
+		Snapshot(long time, long batches, long events, long serviceTime) {
+			this.time = time;
+			this.batches = batches;
+			this.events = events;
+			this.serviceTime = serviceTime;
+		}
+	}
+
+	private final LatencyHistogram queueDelay = new LatencyHistogram();
+	private final LatencyHistogram serviceTime = new LatencyHistogram();
+	private final LatencyHistogram responseTime = new LatencyHistogram();
+
+	public ConcurrentStageStats(IStageWrapper stage) {
+		this.stage = stage;
+		reset();
+	}
+
+	/**
+	 * Reset all statistics.
+	 */
+	public void reset() {
+		serviceRate = 0.0;
+		base = snapshot(System.currentTimeMillis());
+		window.set(base);
+		queueDelay.reset();
+		serviceTime.reset();
+		responseTime.reset();
+	}
+
+	/**
+	 * Return a moving average of the service rate.
+	 */
+	public double getServiceRate() {
+		return serviceRate;
+	}
+
+	/**
+	 * Get total number of processed events.
+	 */
+	public long getTotalEvents() {
+		return totalEvents.sum() - base.events;
+	}
+
+	/**
+	 * Record the service time for numEvents taking 'time' msec to
+	 * be processed.
+	 */
+	public void recordServiceRate(int numEvents, long time) {
+		if (numEvents > 0) serviceTime.record(time * 1000 / numEvents, numEvents);
+		recordRate(numEvents, time);
+	}
+
+	private void recordRate(int numEvents, long time) {
+		totalEvents.add(numEvents);
+		totalServiceTime.add(time);
+		totalBatches.increment();
+
+		Snapshot start = (Snapshot) window.get();
+		long curTime = System.currentTimeMillis();
+		if ((totalBatches.sum() - start.batches >= ESTIMATION_SIZE) || (curTime - start.time >= ESTIMATION_TIME)) {
+			// Only the thread which moves the window folds it in
+			Snapshot end = snapshot(curTime);
+			if (!window.compareAndSet(start, end)) return;
+			long events = end.events - start.events;
+			long totalTime = end.serviceTime - start.serviceTime;
+			if (totalTime == 0) totalTime = 1;
+			double rate = events / (totalTime * 1.0e-3);
+			serviceRate = (rate * SMOOTH_ALPHA) + (serviceRate * (1.0 - SMOOTH_ALPHA));
+			if (DEBUG) System.err.println("Stats <" + stage.getStage().getName() + ">: numEvents=" + events + " time=" + totalTime + ", rate=" + serviceRate);
+		}
+	}
+
+	private Snapshot snapshot(long time) {
+		return new Snapshot(time, totalBatches.sum(), totalEvents.sum(), totalServiceTime.sum());
+	}
+
+	public void recordBatch(List events, long tstart, long tend, long serviceNanos) {
+		int numEvents = events.size();
+		for (int i = 0; i < numEvents; i++) {
+			Object event = events.get(i);
+			if (event instanceof TimeStampedEvent) {
+				long time = ((TimeStampedEvent) event).timestamp;
+				if (time != 0) {
+					queueDelay.record(tstart - time);
+					responseTime.record(tend - time);
+				}
+			}
+		}
+		// Whole msec would record 0 for every handler under 1 msec/event
+		if (numEvents > 0) serviceTime.record(serviceNanos / 1000 / numEvents, numEvents);
+		recordRate(numEvents, tend - tstart);
+	}
+
+	/**
+	 * Record 90th percentile response time in msec.
+	 */
+	public void record90thRT(double rt_sample) {
+		this.rt90thPercentile = rt_sample;
+	}
+
+	/**
+	 * Get 90th percentile response time in msec.
+	 */
+	public double get90thRT() {
+		return this.rt90thPercentile;
+	}
+
+	public LatencyHistogram getQueueDelay() {
+		return queueDelay;
+	}
+
+	public LatencyHistogram getServiceTime() {
+		return serviceTime;
+	}
+
+	public LatencyHistogram getResponseTime() {
+		return responseTime;
+	}
+
+	/**
+	 * Add the service rate and the p50/p90/p99/p999 of each histogram of
+	 * this stage to the given profiler.
+	 */
+	public void addProfiles(IProfiler profiler) {
+		String name = stage.getStage().getName();
+		profiler.add("StageStats serviceRate <" + name + ">",
+		    new IProfilable() {
+			    public int profileSize() {
+				    return (int) serviceRate;
+			    }
+		    });
+		addProfiles(profiler, "queueDelay", name, queueDelay);
+		addProfiles(profiler, "serviceTime", name, serviceTime);
+		addProfiles(profiler, "responseTime", name, responseTime);
+	}
+
+	private static void addProfiles(IProfiler profiler, String what, String name, final LatencyHistogram hist) {
+		final double[] fractions = {0.5, 0.9, 0.99, 0.999};
+		final String[] labels = {"p50", "p90", "p99", "p999"};
+		for (int i = 0; i < fractions.length; i++) {
+			final double fraction = fractions[i];
+			profiler.add("StageStats " + what + " " + labels[i] + " <" + name + ">",
+			    new IProfilable() {
+				    public int profileSize() {
+					    return (int) hist.getValueAtPercentile(fraction);
+				    }
+			    });
+		}
+	}
+
+}
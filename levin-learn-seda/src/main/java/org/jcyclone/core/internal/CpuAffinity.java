@@ -0,0 +1,222 @@
+package org.jcyclone.core.internal;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * CpuAffinity pins native threads to a set of CPUs. It is only supported
+ * on Linux, where the kernel thread id of the calling thread is read from
+ * <tt>/proc/thread-self</tt> and the mask is applied with
+ * <tt>taskset(1)</tt>; everywhere else every call is a no-op which
+ * returns false.
+ * <p/>
+ * Setting the affinity starts a process, so it is meant to be done once
+ * when a thread starts (or when its placement changes), never per event.
+ * CPU sets use the Linux cpulist syntax, e.g. <tt>"0-3,8,10-11"</tt>.
+ *
+ * @see StagePlacement
+ */
+public final class CpuAffinity {
+
+	private static final boolean DEBUG = false;
+
+	private static final String TASKSET = findTaskset();
+	private static final boolean SUPPORTED = (TASKSET != null) &&
+	    System.getProperty("os.name", "").startsWith("Linux") &&
+	    new File("/proc/thread-self").exists();
+
+	private static boolean warned = false;
+
+	private CpuAffinity() {
+	}
+
+	private static String findTaskset() {
+		String[] paths = {"/usr/bin/taskset", "/bin/taskset", "/usr/local/bin/taskset"};
+		for (int i = 0; i < paths.length; i++) {
+			if (new File(paths[i]).canExecute()) return paths[i];
+		}
+		return null;
+	}
+
+	/**
+	 * Return true if thread affinity can be set on this platform.
+	 */
+	public static boolean isSupported() {
+		return SUPPORTED;
+	}
+
+	/**
+	 * Return the kernel thread id of the calling thread, or -1 if it is not
+	 * known.
+	 */
+	public static int currentThreadId() {
+		if (!SUPPORTED) return -1;
+		try {
+			// The link reads "<pid>/task/<tid>"
+			String link = new File("/proc/thread-self").getCanonicalFile().getName();
+			return Integer.parseInt(link);
+		} catch (IOException e) {
+			return -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Pin the calling thread to the given CPUs.
+	 */
+	public static boolean setAffinity(BitSet cpus) {
+		return setAffinity(currentThreadId(), cpus);
+	}
+
+	/**
+	 * Pin the thread with the given kernel thread id to the given CPUs.
+	 * Returns false if affinity is not supported, the set is empty, or
+	 * the kernel refused the mask.
+	 */
+	public static boolean setAffinity(int tid, BitSet cpus) {
+		if (!SUPPORTED || tid < 0 || cpus == null || cpus.isEmpty()) return false;
+		String list = toCpuList(cpus);
+		try {
+			Process p = new ProcessBuilder(new String[]{TASKSET, "-p", "-c", list, Integer.toString(tid)})
+			    .redirectErrorStream(true).start();
+			InputStream in = p.getInputStream();
+			byte[] buf = new byte[256];
+			while (in.read(buf) != -1) ;
+			in.close();
+			int rc = p.waitFor();
+			if (DEBUG) System.err.println("CpuAffinity: tid " + tid + " -> " + list + ", rc " + rc);
+			if (rc != 0) warn("taskset exited with " + rc + " for cpus " + list);
+			return rc == 0;
+		} catch (IOException e) {
+			warn(e.toString());
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private static synchronized void warn(String msg) {
+		if (warned) return;
+		warned = true;
+		System.err.println("CpuAffinity: Warning: could not set thread affinity (" + msg + "), further errors are not reported");
+	}
+
+	/**
+	 * Return the online CPUs, or CPUs 0 to availableProcessors()-1 if they
+	 * cannot be read.
+	 */
+	public static BitSet onlineCpus() {
+		BitSet cpus = readCpuList("/sys/devices/system/cpu/online");
+		if (cpus == null || cpus.isEmpty()) {
+			cpus = new BitSet();
+			cpus.set(0, Runtime.getRuntime().availableProcessors());
+		}
+		return cpus;
+	}
+
+	/**
+	 * Return the CPUs of each NUMA node with CPUs, in node order. Without
+	 * NUMA information the whole machine is a single node.
+	 */
+	public static BitSet[] numaNodes() {
+		List nodes = new ArrayList();
+		File[] dirs = new File("/sys/devices/system/node").listFiles();
+		if (dirs != null) {
+			int max = -1;
+			for (int i = 0; i < dirs.length; i++) {
+				String name = dirs[i].getName();
+				if (name.startsWith("node") && name.length() > 4 && Character.isDigit(name.charAt(4))) {
+					try {
+						max = Math.max(max, Integer.parseInt(name.substring(4)));
+					} catch (NumberFormatException e) {
+						// ignore
+					}
+				}
+			}
+			for (int n = 0; n <= max; n++) {
+				BitSet cpus = readCpuList("/sys/devices/system/node/node" + n + "/cpulist");
+				if (cpus != null && !cpus.isEmpty()) nodes.add(cpus);
+			}
+		}
+		if (nodes.isEmpty()) nodes.add(onlineCpus());
+		return (BitSet[]) nodes.toArray(new BitSet[nodes.size()]);
+	}
+
+	private static BitSet readCpuList(String path) {
+		BufferedReader r = null;
+		try {
+			r = new BufferedReader(new FileReader(path));
+			String line = r.readLine();
+			return (line == null) ? null : parseCpuList(line);
+		} catch (IOException e) {
+			return null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		} finally {
+			if (r != null) {
+				try {
+					r.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parse a cpulist such as <tt>"0-3,8,10-11"</tt>. Whitespace is
+	 * ignored; an empty string is an empty set.
+	 *
+	 * @throws IllegalArgumentException if the list is malformed
+	 */
+	public static BitSet parseCpuList(String list) {
+		BitSet cpus = new BitSet();
+		String s = list.replaceAll("\\s", "");
+		if (s.length() == 0) return cpus;
+		String[] ranges = s.split(",");
+		for (int i = 0; i < ranges.length; i++) {
+			String range = ranges[i];
+			int dash = range.indexOf('-');
+			try {
+				if (dash < 0) {
+					cpus.set(Integer.parseInt(range));
+				} else {
+					int lo = Integer.parseInt(range.substring(0, dash));
+					int hi = Integer.parseInt(range.substring(dash + 1));
+					if (lo > hi) throw new IllegalArgumentException("Bad CPU range " + range + " in " + list);
+					cpus.set(lo, hi + 1);
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Bad CPU list " + list);
+			} catch (IndexOutOfBoundsException e) {
+				throw new IllegalArgumentException("Bad CPU list " + list);
+			}
+		}
+		return cpus;
+	}
+
+	/**
+	 * Format a set of CPUs as a cpulist, collapsing runs into ranges.
+	 */
+	public static String toCpuList(BitSet cpus) {
+		StringBuffer sb = new StringBuffer();
+		int lo = cpus.nextSetBit(0);
+		while (lo >= 0) {
+			int hi = cpus.nextClearBit(lo) - 1;
+			if (sb.length() > 0) sb.append(',');
+			sb.append(lo);
+			if (hi > lo) sb.append('-').append(hi);
+			lo = cpus.nextSetBit(hi + 1);
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,94 @@
+package org.jcyclone.core.internal;
+
+import org.jcyclone.core.queue.IElement;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * An EventBatch is a reusable IBatchDescr holding its events in an
+ * array. Each scheduler worker owns one and passes it to
+ * IBatchSorter.nextBatch, which fills it with
+ * <tt>ISource.dequeue(IElement[], int)</tt>, so handing a batch to a
+ * stage allocates nothing.
+ * <p/>
+ * The list returned by getBatch() is a fixed view of the array which is
+ * only valid until batchDone() is called.
+ *
+ * @see IBatchSorter
+ */
+public class EventBatch implements IBatchDescr {
+
+	/**
+	 * Default number of events a batch can hold.
+	 */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	private final IElement[] elements;
+	private int count;
+	private final List view = new View();
+
+	public EventBatch() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public EventBatch(int capacity) {
+		if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+		elements = new IElement[capacity];
+	}
+
+	/**
+	 * Return the array to dequeue events into.
+	 */
+	public IElement[] elements() {
+		return elements;
+	}
+
+	/**
+	 * Return the maximum number of events in a batch.
+	 */
+	public int capacity() {
+		return elements.length;
+	}
+
+	/**
+	 * Set the number of events stored at the start of the array.
+	 */
+	public void setCount(int count) {
+		this.count = count;
+	}
+
+	/**
+	 * Return the number of events in the batch.
+	 */
+	public int count() {
+		return count;
+	}
+
+	public List getBatch() {
+		return view;
+	}
+
+	/**
+	 * Clear the batch so that the events can be garbage collected.
+	 */
+	public void batchDone() {
+		for (int i = 0; i < count; i++) {
+			elements[i] = null;
+		}
+		count = 0;
+	}
+
+	private class View extends AbstractList implements RandomAccess {
+		public Object get(int index) {
+			if (index >= count) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+			return elements[index];
+		}
+
+		public int size() {
+			return count;
+		}
+	}
+
+}
@@ -0,0 +1,249 @@
+package org.jcyclone.core.internal;
+
+import org.jcyclone.core.cfg.ISystemConfig;
+import org.jcyclone.core.handler.IEventHandler;
+import org.jcyclone.core.handler.ISingleThreadedEventHandler;
+import org.jcyclone.core.profiler.JCycloneProfiler;
+import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.queue.ISink;
+import org.jcyclone.core.queue.SinkException;
+import org.jcyclone.core.rtc.IEnqueuePredicate;
+import org.jcyclone.core.stage.IStageManager;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A FusedSink is the sink of a stage which may be fused with the stage
+ * feeding it: when a thread of the upstream stage enqueues onto it, the
+ * events are handed straight to the event handler on that thread instead
+ * of going through the queue, which saves the enqueue, the queue lock and
+ * the thread handoff of every hop of a pipeline.
+ * <p/>
+ * A stage is fused when <tt>stages.&lt;name&gt;.fusion.enable</tt> is
+ * true, meaning its handler is cheap and never blocks. If the option is
+ * not set and <tt>global.fusion.auto</tt> is, the stage is fused while
+ * StageGraph shows a single upstream stage and its mean service time is
+ * at most <tt>global.fusion.maxServiceTime</tt> msec; this is checked
+ * again every <tt>global.fusion.checkInterval</tt> msec. An
+ * ISingleThreadedEventHandler is never fused, whatever the options say.
+ * <p/>
+ * The caller is the stage whose handler is running on the calling
+ * thread, as told by the scheduler through enterStage() and leaveStage();
+ * with a shared pool (WSScheduler) the thread alone does not say which
+ * stage that is. Events are queued as usual when the calling thread is
+ * not running a stage, when <tt>global.fusion.maxDepth</tt> fused stages
+ * already run on it, or when the stage is pushing back: its queue is
+ * not empty (which also keeps events in order) or its enqueue predicate
+ * rejects the events.
+ *
+ * @see MonitoredSink
+ * @see StageGraph
+ */
+public class FusedSink extends MonitoredSink {
+
+	private static final boolean DEBUG = false;
+
+	private static final ThreadLocal frames = new ThreadLocal() {
+		protected Object initialValue() {
+			return new Frame();
+		}
+	};
+
+	private IStageWrapper stage;
+	private StageGraph stageGraph;
+	private int forced;         // 1 fused, 0 never, -1 detect
+	private int maxDepth;
+	private double maxServiceTime;
+	private long checkInterval;
+	private boolean crashOnException;
+
+	private volatile boolean fused;
+	private volatile long nextCheck;
+
+	/**
+	 * Create a FusedSink for the given sink.
+	 *
+	 * @param sink    The sink of the stage.
+	 * @param mgr     The associated manager.
+	 * @param toStage The stage which this sink pushes events to.
+	 */
+	public FusedSink(ISink sink, IStageManager mgr, IStageWrapper toStage) {
+		super(sink, mgr, toStage);
+		this.stage = toStage;
+		this.stageGraph = ((JCycloneProfiler) mgr.getProfiler()).getGraphProfiler();
+
+		ISystemConfig config = mgr.getConfig();
+		String tag = "stages." + toStage.getName() + ".fusion.";
+		String val = config.getString(tag + "enable");
+		if (toStage.getEventHandler() instanceof ISingleThreadedEventHandler) {
+			// Inline runs would put it on several upstream threads at once
+			forced = 0;
+		} else if (val != null) {
+			forced = val.equalsIgnoreCase("true") ? 1 : 0;
+		} else {
+			forced = config.getBoolean("global.fusion.auto") ? -1 : 0;
+		}
+		maxDepth = config.getInt(tag + "maxDepth", config.getInt("global.fusion.maxDepth", 4));
+		maxServiceTime = config.getDouble(tag + "maxServiceTime", config.getDouble("global.fusion.maxServiceTime", 1.0));
+		checkInterval = config.getInt("global.fusion.checkInterval", 1000);
+		crashOnException = config.getBoolean("global.crashOnException");
+		fused = (forced == 1);
+	}
+
+	/**
+	 * Record that the calling thread runs the handler of the given stage
+	 * until the matching leaveStage(). Schedulers call this around
+	 * handleEvents().
+	 */
+	static void enterStage(IStageWrapper stage) {
+		((Frame) frames.get()).push(stage);
+	}
+
+	/**
+	 * Undo the matching enterStage().
+	 */
+	static void leaveStage() {
+		((Frame) frames.get()).pop();
+	}
+
+	/**
+	 * Return the stage whose handler is running on the calling thread,
+	 * inline or not, or null.
+	 */
+	static IStageWrapper currentStage() {
+		Frame f = (Frame) frames.get();
+		return (f.depth == 0) ? null : f.stack[f.depth - 1];
+	}
+
+	/**
+	 * Return true if events may currently be run inline.
+	 */
+	public boolean isFused() {
+		if (forced != -1) return fused;
+		long now = System.currentTimeMillis();
+		if (now >= nextCheck) {
+			nextCheck = now + checkInterval;
+			boolean f = detect();
+			if (DEBUG && f != fused) System.err.println("FusedSink <" + stage.getName() + ">: fused " + f);
+			fused = f;
+		}
+		return fused;
+	}
+
+	/**
+	 * Fuse the stage if it has a single upstream stage and a cheap handler.
+	 */
+	private boolean detect() {
+		IStageWrapper upstream = null;
+		StageGraphEdge[] edges = stageGraph.getEdges();
+		for (int i = 0; i < edges.length; i++) {
+			if (edges[i].toStage != stage) continue;
+			if (upstream != null && edges[i].fromStage != upstream) return false;
+			upstream = edges[i].fromStage;
+		}
+		if (upstream == null || upstream == stage) return false;
+
+		double rate = stage.getStats().getServiceRate();
+		return (rate > 0.0) && (1000.0 / rate <= maxServiceTime);
+	}
+
+	public void enqueue(IElement enqueueMe) throws SinkException {
+		if (!runInline(enqueueMe, null))
+			super.enqueue(enqueueMe);
+	}
+
+	public boolean enqueueLossy(IElement enqueueMe) {
+		if (runInline(enqueueMe, null))
+			return true;
+		return super.enqueueLossy(enqueueMe);
+	}
+
+	public void enqueueMany(List list) throws SinkException {
+		if (list == null || list.isEmpty() || !runInline(null, list))
+			super.enqueueMany(list);
+	}
+
+	/**
+	 * Run the event (or the list of events) on the calling thread if the
+	 * stage is fused with the caller and is not pushing back.
+	 */
+	private boolean runInline(IElement elem, List list) {
+		if (!isFused()) return false;
+
+		Frame f = (Frame) frames.get();
+		// The bottom frame is the stage run by the scheduler
+		if (f.depth == 0 || f.depth > maxDepth) return false;
+		if (f.stack[f.depth - 1] == stage) return false;
+
+		// Back pressure: fall back to the queue
+		if (stage.getSource().size() > 0) return false;
+		IEnqueuePredicate pred = stage.getSink().getEnqueuePredicate();
+		if (pred != null) {
+			if (elem != null ? !pred.accept(elem) : !pred.acceptMany(list)) return false;
+		}
+
+		recordUse();
+		int numEvents = (elem != null) ? 1 : list.size();
+		enqueueCount += numEvents;
+		enqueueSuccessCount += numEvents;
+
+		f.push(stage);
+		try {
+			IEventHandler handler = stage.getEventHandler();
+			long tstart = System.currentTimeMillis();
+			long nstart = System.nanoTime();
+			if (elem != null)
+				handler.handleEvent(elem);
+			else
+				handler.handleEvents(list);
+			long nend = System.nanoTime();
+			long tend = System.currentTimeMillis();
+
+			IStageStats stats = stage.getStats();
+			if (stats instanceof IStageLatencyStats) {
+				if (list == null) list = Collections.singletonList(elem);
+				((IStageLatencyStats) stats).recordBatch(list, tstart, tend, nend - nstart);
+			} else {
+				stats.recordServiceRate(numEvents, tend - tstart);
+			}
+		} catch (Exception e) {
+			// The events were accepted; handle the failure like a scheduler
+			System.err.println("JCyclone: Stage <" + stage.getName() + "> got exception: " + e);
+			e.printStackTrace();
+			if (crashOnException) {
+				System.err.println("JCyclone: Crashing runtime due to exception - goodbye");
+				System.exit(-1);
+			}
+		} finally {
+			f.pop();
+		}
+		return true;
+	}
+
+	public String toString() {
+		return "[FusedSink for toStage=" + stage + "]";
+	}
+
+	/**
+	 * The stages running inline on a thread.
+	 */
+	private static class Frame {
+		IStageWrapper[] stack = new IStageWrapper[8];
+		int depth;
+
+		void push(IStageWrapper stage) {
+			if (depth == stack.length) {
+				IStageWrapper[] s = new IStageWrapper[depth * 2];
+				System.arraycopy(stack, 0, s, 0, depth);
+				stack = s;
+			}
+			stack[depth++] = stage;
+		}
+
+		void pop() {
+			stack[--depth] = null;
+		}
+	}
+
+}
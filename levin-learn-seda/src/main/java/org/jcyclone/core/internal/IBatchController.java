@@ -0,0 +1,25 @@
+package org.jcyclone.core.internal;
+
+/**
+ * An IBatchController decides how many events an IBatchSorter should
+ * release in each batch of a stage, from feedback given by the thread
+ * manager after each batch has run.
+ *
+ * @see AggThrottleBatchSorter
+ * @see AdaptiveBatchController
+ */
+public interface IBatchController {
+
+	/**
+	 * Return the number of events to release in the next batch, or -1 for
+	 * all pending events. Called for every batch, so it must be cheap.
+	 */
+	int getBatchTarget();
+
+	/**
+	 * Called after the event handler ran the given batch from
+	 * <tt>tstart</tt> to <tt>tend</tt> (msec).
+	 */
+	void batchCompleted(IBatchDescr batch, long tstart, long tend);
+
+}
@@ -58,8 +58,20 @@ public interface IBatchSorter {
 	 * events in the batch, as well as a "batchDone()" callback that is
 	 * invoked by the thread manager after the event handler returns.
 	 * Blocks for up to timeout_millis milliseconds if no batch is
-	 * available.
+	 * available, and returns null if there is none.
+	 * <p/>
+	 * <tt>buffer</tt> is owned by the calling thread and is empty; the
+	 * sorter should fill it and return it, so that no garbage is created
+	 * per batch, but may instead return an IBatchDescr of its own.
 	 */
-	IBatchDescr nextBatch(int timeout_millis) throws InterruptedException;
+	IBatchDescr nextBatch(EventBatch buffer, int timeout_millis) throws InterruptedException;
+
+	/**
+	 * Invoked by the thread manager after the event handler has processed
+	 * a batch returned by nextBatch, and before the batch's batchDone(),
+	 * with the times (msec) the handler was called and returned. Allows
+	 * the sorter to tune its batches.
+	 */
+	void batchCompleted(IBatchDescr batch, long tstart, long tend);
 
 }
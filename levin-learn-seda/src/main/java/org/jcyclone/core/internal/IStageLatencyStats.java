@@ -0,0 +1,40 @@
+package org.jcyclone.core.internal;
+
+import java.util.List;
+
+/**
+ * An IStageStats which also keeps latency histograms for the stage.
+ * All methods may be called from any thread without blocking the
+ * stage's workers.
+ *
+ * @see ConcurrentStageStats
+ */
+public interface IStageLatencyStats extends IStageStats {
+
+	/**
+	 * Record a batch of events handled from <tt>tstart</tt> to
+	 * <tt>tend</tt> (msec), taking <tt>serviceNanos</tt> as measured by
+	 * System.nanoTime(). This records the service rate, the service
+	 * time and, for every TimeStampedEvent in the batch, its queueing
+	 * delay and response time.
+	 */
+	void recordBatch(List events, long tstart, long tend, long serviceNanos);
+
+	/**
+	 * Return the histogram of the time, in msec, time-stamped events
+	 * spent between their timestamp and the start of their batch.
+	 */
+	LatencyHistogram getQueueDelay();
+
+	/**
+	 * Return the histogram of the per-event service time in usec.
+	 */
+	LatencyHistogram getServiceTime();
+
+	/**
+	 * Return the histogram of the time, in msec, time-stamped events
+	 * spent between their timestamp and the end of their batch.
+	 */
+	LatencyHistogram getResponseTime();
+
+}
@@ -0,0 +1,178 @@
+package org.jcyclone.core.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free log-linear histogram of non-negative latencies (usually in
+ * msec). Values below 2^SUB_BITS are counted exactly; larger values fall
+ * into one of 2^SUB_BITS linear sub-buckets per power of two, so every
+ * recorded value is known to within about 3%.
+ * <p/>
+ * Recording is a single atomic add and never blocks. Readers scan the
+ * counts without stopping writers, so a percentile read concurrently with
+ * recording may miss the most recent samples.
+ * <p/>
+ * The counts only ever grow. <tt>reset()</tt> takes a snapshot of them
+ * and the readers report the difference, so every sample lands wholly on
+ * one side of a reset, however it interleaves with concurrent recording.
+ *
+ * @see ConcurrentStageStats
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BITS = 5;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int NUM_BUCKETS = (63 - SUB_BITS + 1) * SUB_COUNT;
+
+	private static final long[] NO_COUNTS = new long[0];
+
+	private final AtomicLongArray counts;
+	private final AtomicLong total;
+	private final AtomicLong max;         // largest value ever recorded
+
+	// counts at the last reset; buckets past the end of the array were 0
+	private volatile long[] base = NO_COUNTS;
+	private volatile long baseTotal;
+
+	public LatencyHistogram() {
+		counts = new AtomicLongArray(NUM_BUCKETS);
+		total = new AtomicLong();
+		max = new AtomicLong();
+	}
+
+	/**
+	 * Record a single value; negative values are counted as 0.
+	 */
+	public void record(long value) {
+		record(value, 1);
+	}
+
+	/**
+	 * Record <tt>count</tt> occurrences of the given value.
+	 */
+	public void record(long value, long count) {
+		if (count <= 0) return;
+		if (value < 0) value = 0;
+		counts.addAndGet(indexOf(value), count);
+		total.addAndGet(count);
+		long m;
+		while (value > (m = max.get())) {
+			if (max.compareAndSet(m, value)) break;
+		}
+	}
+
+	/**
+	 * Return the number of values recorded since the last reset.
+	 */
+	public long getCount() {
+		long n = total.get() - baseTotal;
+		return (n < 0) ? 0 : n;
+	}
+
+	/**
+	 * Return the largest value recorded since the last reset, to within
+	 * the precision of its bucket, or 0 if nothing has been recorded.
+	 */
+	public long getMax() {
+		long[] b = base;
+		long m = max.get();
+		for (int i = indexOf(m); i >= 0; i--) {
+			if (countAt(b, i) > 0) return Math.min(highestValueAt(i), m);
+		}
+		return 0;
+	}
+
+	/**
+	 * Return the value below which the given fraction (0.0 to 1.0) of the
+	 * recorded values fall, or 0 if nothing has been recorded. The result
+	 * is the highest value of the bucket holding that rank.
+	 */
+	public long getValueAtPercentile(double fraction) {
+		long[] b = base;
+		long m = max.get();
+		int last = indexOf(m);
+		long n = 0;
+		for (int i = 0; i <= last; i++) {
+			n += countAt(b, i);
+		}
+		if (n == 0) return 0;
+		long rank = (long) Math.ceil(fraction * n);
+		if (rank < 1) rank = 1;
+		long seen = 0;
+		int highest = 0;
+		for (int i = 0; i <= last; i++) {
+			long c = countAt(b, i);
+			if (c == 0) continue;
+			highest = i;
+			seen += c;
+			if (seen >= rank) return Math.min(highestValueAt(i), m);
+		}
+		return Math.min(highestValueAt(highest), m);
+	}
+
+	/**
+	 * Return the mean of the recorded values, using the middle of each
+	 * bucket.
+	 */
+	public double getMean() {
+		long[] b = base;
+		int last = indexOf(max.get());
+		long n = 0;
+		double sum = 0.0;
+		for (int i = 0; i <= last; i++) {
+			long c = countAt(b, i);
+			if (c == 0) continue;
+			n += c;
+			sum += c * ((lowestValueAt(i) + highestValueAt(i)) / 2.0);
+		}
+		return (n == 0) ? 0.0 : (sum / n);
+	}
+
+	/**
+	 * Clear the histogram: later reads only see values recorded after the
+	 * snapshot of each bucket was taken.
+	 */
+	public synchronized void reset() {
+		int last = indexOf(max.get());
+		long[] b = new long[last + 1];
+		long n = 0;
+		for (int i = 0; i <= last; i++) {
+			b[i] = counts.get(i);
+			n += b[i];
+		}
+		base = b;
+		baseTotal = n;
+	}
+
+	private long countAt(long[] b, int i) {
+		long c = counts.get(i);
+		return (i < b.length) ? c - b[i] : c;
+	}
+
+	static int indexOf(long value) {
+		if (value < SUB_COUNT) return (int) value;
+		int exp = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+		return ((exp - SUB_BITS + 1) << SUB_BITS) + sub;
+	}
+
+	static long lowestValueAt(int index) {
+		if (index < SUB_COUNT) return index;
+		int shift = (index >> SUB_BITS) - 1;
+		long sub = index & (SUB_COUNT - 1);
+		return (SUB_COUNT + sub) << shift;
+	}
+
+	static long highestValueAt(int index) {
+		if (index < SUB_COUNT) return index;
+		int shift = (index >> SUB_BITS) - 1;
+		return lowestValueAt(index) + (1L << shift) - 1;
+	}
+
+	public String toString() {
+		return "LatencyHistogram [count=" + getCount() + ", p50=" + getValueAtPercentile(0.5) +
+		    ", p90=" + getValueAtPercentile(0.9) + ", p99=" + getValueAtPercentile(0.99) +
+		    ", max=" + getMax() + "]";
+	}
+}
@@ -53,6 +53,7 @@ public class MonitoredSink implements ISink, IProfilable {
 	public ISink thesink;
 	private Thread client = null;
 	private Hashtable clientTbl = null;
+	private Hashtable inlineTbl = null;
 
 	/**
 	 * Maintains a running sum of the number of elements enqueued onto
@@ -162,9 +163,27 @@ public class MonitoredSink implements ISink, IProfilable {
 		return "[SinkProxy for toStage=" + toStage + "]";
 	}
 
-	private void recordUse() {
+	protected void recordUse() {
 		if (DEBUG) System.err.println("SinkProxy: Recording use of " + this + " by thread " + Thread.currentThread());
 
+		// A fused stage runs on the thread of its upstream stage, and a
+		// shared pool runs many stages, so the thread does not tell us who
+		// is enqueueing; the scheduler does
+		IStageWrapper inline = FusedSink.currentStage();
+		if (inline != null) {
+			if (inlineTbl == null) inlineTbl = new Hashtable();
+			if (inlineTbl.get(inline) == null) {
+				inlineTbl.put(inline, inline);
+
+				StageGraphEdge edge = new StageGraphEdge();
+				edge.fromStage = inline;
+				edge.toStage = toStage;
+				edge.sink = this;
+				stageGraph.addEdge(edge);
+			}
+			return;
+		}
+
 		if (client == null) {
 			client = Thread.currentThread();
 
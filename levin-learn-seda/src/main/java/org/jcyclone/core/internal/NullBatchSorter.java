@@ -27,12 +27,11 @@ package org.jcyclone.core.internal;
 import org.jcyclone.core.queue.ISource;
 import org.jcyclone.core.stage.IStageManager;
 
-import java.util.ArrayList;
-import java.util.List;
-
 /**
- * A "null" implementation of IBatchSorter that always releases
- * all pending events in the next batch. Should not typically be
+ * A "null" implementation of IBatchSorter that releases as many
+ * pending events as fit in the batch buffer, that is up to
+ * global.threadPool.batchCapacity (256 by default). Any events beyond
+ * that are left for the next batch. Should not typically be
  * used by stages; the default IBatchSorter makes use of the
  * batching controller to tune the size of each batch based on stage
  * throughput.
@@ -42,10 +41,8 @@ import java.util.List;
 public class NullBatchSorter implements IBatchSorter {
 
 	private ISource source;
-	private ThreadLocalList list;
 
 	public NullBatchSorter() {
-		list = new ThreadLocalList();
 	}
 
 	/**
@@ -60,35 +57,21 @@ public class NullBatchSorter implements IBatchSorter {
 	 * Returns a single batch for processing by the stage's event handler.
 	 * Blocks until a batch can be returned.
 	 */
-	public IBatchDescr nextBatch(int timeout) throws InterruptedException {
-
-		final List buffer = (List) list.get();
-
+	public IBatchDescr nextBatch(EventBatch buffer, int timeout) throws InterruptedException {
 		int num;
 		// XXX JM: should it be 'if (timeout <= 0)' ? 
 		if (timeout == 0) {
-			num = source.dequeueAll(buffer);
+			num = source.dequeue(buffer.elements(), buffer.capacity());
 		} else {
-			num = source.blockingDequeueAll(buffer, timeout);
+			num = source.blockingDequeue(buffer.elements(), timeout, buffer.capacity());
 		}
 		if (num == 0)
 			return null;
-		else
-			return new IBatchDescr() {
-				public List getBatch() {
-					return buffer;
-				}
-
-				public void batchDone() {
-					buffer.clear();
-				}
-			};
+		buffer.setCount(num);
+		return buffer;
 	}
 
-	class ThreadLocalList extends ThreadLocal {
-		public Object initialValue() {
-			return new ArrayList();
-		}
+	public void batchCompleted(IBatchDescr batch, long tstart, long tend) {
 	}
 
 }
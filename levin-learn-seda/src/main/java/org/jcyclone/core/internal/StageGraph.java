@@ -52,9 +52,11 @@ public class StageGraph {
 	private Hashtable threads = new Hashtable(1);
 	private Hashtable edgesFrom = new Hashtable(1);
 	private PrintWriter graphpw = null;
+	private StagePlacement placement;
 
 	public StageGraph(IStageManager mgr) {
 		ISystemConfig config = mgr.getConfig();
+		placement = new StagePlacement(mgr);
 		boolean dumpModuleGraph = config.getBoolean("global.profile.graph");
 		if (dumpModuleGraph) {
 			String gfilename = config.getString("global.profile.graphfilename");
@@ -103,12 +105,26 @@ public class StageGraph {
 		threads.put(thread, stage);
 	}
 
-	public synchronized void addEdge(StageGraphEdge edge) {
+	/**
+	 * Return the placement of stage threads on CPUs, which follows the
+	 * edges of this graph when pipeline colocation is enabled.
+	 */
+	public StagePlacement getPlacement() {
+		return placement;
+	}
+
+	public void addEdge(StageGraphEdge edge) {
+		// Outside our lock: moving threads takes the thread pool locks
+		if (doAddEdge(edge))
+			placement.edgeAdded(edge);
+	}
+
+	private synchronized boolean doAddEdge(StageGraphEdge edge) {
 		if (!edges.contains(edge)) {
 			if ((edge.fromStage == null) ||
 			    (edge.toStage == null) ||
 			    (edge.sink == null))
-				return;
+				return false;
 
 			addStage(edge.fromStage);
 			addStage(edge.toStage);
@@ -124,7 +140,9 @@ public class StageGraph {
 			} else {
 				list.add(edge);
 			}
+			return true;
 		}
+		return false;
 	}
 
 	/**
@@ -0,0 +1,233 @@
+package org.jcyclone.core.internal;
+
+import org.jcyclone.core.cfg.ISystemConfig;
+import org.jcyclone.core.stage.IStageManager;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Hashtable;
+import java.util.List;
+
+/**
+ * StagePlacement decides which CPUs the threads of each stage run on.
+ * <p/>
+ * A stage is pinned explicitly with, first per stage and then globally:
+ * <ul>
+ * <li><tt>threadPool.cpus</tt>: a cpulist such as <tt>"0-3,8"</tt>;</li>
+ * <li><tt>threadPool.numaNode</tt>: all CPUs of the given NUMA node.</li>
+ * </ul>
+ * With <tt>global.threadPool.colocate</tt> enabled, stages that are not
+ * pinned explicitly are placed on core groups (one per NUMA node, or
+ * <tt>global.threadPool.colocate.groupSize</tt> CPUs each). A new stage
+ * goes to the group with the fewest stages; when StageGraph records an
+ * edge between two stages, the pipelines they belong to are merged onto
+ * the group of the larger one, so that an event stays in the same
+ * caches as it moves from stage to stage.
+ * <p/>
+ * Placement only takes effect where CpuAffinity is supported.
+ *
+ * @see CpuAffinity
+ * @see StageGraph
+ */
+public class StagePlacement {
+
+	private static final boolean DEBUG = false;
+
+	private ISystemConfig config;
+	private boolean colocate;
+	private BitSet[] groups;
+	private int[] groupLoad;
+
+	private Hashtable pools = new Hashtable();      // IStageWrapper --> ThreadPool
+	private Hashtable explicit = new Hashtable();   // IStageWrapper --> BitSet
+	private Hashtable parent = new Hashtable();     // IStageWrapper --> IStageWrapper (union-find)
+	private Hashtable size = new Hashtable();       // root --> Integer (registered stages)
+	private Hashtable group = new Hashtable();      // root --> Integer
+	private Hashtable retired = new Hashtable();    // IStageWrapper --> Boolean (deregistered)
+
+	public StagePlacement(IStageManager mgr) {
+		this.config = mgr.getConfig();
+		this.colocate = config.getBoolean("global.threadPool.colocate");
+		if (colocate) {
+			if (!CpuAffinity.isSupported()) {
+				System.err.println("StagePlacement: Warning: thread affinity is not supported on this platform, not colocating stages");
+				colocate = false;
+			} else {
+				groups = makeGroups(config.getInt("global.threadPool.colocate.groupSize", 0));
+				groupLoad = new int[groups.length];
+				System.err.println("StagePlacement: colocating pipelines on " + groups.length + " core groups");
+			}
+		}
+	}
+
+	/**
+	 * Create a placement which colocates pipelines on the given core
+	 * groups, whatever the configuration says.
+	 */
+	StagePlacement(IStageManager mgr, BitSet[] groups) {
+		this.config = mgr.getConfig();
+		this.colocate = true;
+		this.groups = groups;
+		this.groupLoad = new int[groups.length];
+	}
+
+	private static BitSet[] makeGroups(int groupSize) {
+		if (groupSize <= 0) return CpuAffinity.numaNodes();
+		BitSet online = CpuAffinity.onlineCpus();
+		List list = new ArrayList();
+		BitSet cur = null;
+		for (int cpu = online.nextSetBit(0); cpu >= 0; cpu = online.nextSetBit(cpu + 1)) {
+			if (cur == null || cur.cardinality() == groupSize) {
+				cur = new BitSet();
+				list.add(cur);
+			}
+			cur.set(cpu);
+		}
+		return (BitSet[]) list.toArray(new BitSet[list.size()]);
+	}
+
+	/**
+	 * Return true if pipeline colocation is active.
+	 */
+	public boolean isColocating() {
+		return colocate;
+	}
+
+	/**
+	 * Register the thread pool of a stage and return the CPUs its threads
+	 * should run on, or null to leave them unpinned.
+	 */
+	public synchronized BitSet register(IStageWrapper stage, ThreadPool pool) {
+		pools.put(stage, pool);
+		BitSet cpus = explicitCpus(stage);
+		if (cpus != null) {
+			explicit.put(stage, cpus);
+			return cpus;
+		}
+		if (!colocate) return null;
+		IStageWrapper root = find(stage);
+		if (retired.remove(stage) != null) {
+			// Registered again: count it towards its pipeline once more
+			addLoad(root, 1);
+		}
+		return groups[groupOf(root)];
+	}
+
+	/**
+	 * Deregister the thread pool of a stage, and stop counting the stage
+	 * towards the load of its core group.
+	 */
+	public synchronized void deregister(IStageWrapper stage, ThreadPool pool) {
+		if (pools.get(stage) != pool) return;
+		pools.remove(stage);
+		if (!colocate || explicit.containsKey(stage) || !parent.containsKey(stage)) return;
+		if (retired.put(stage, Boolean.TRUE) == null) {
+			addLoad(find(stage), -1);
+		}
+	}
+
+	private void addLoad(IStageWrapper root, int delta) {
+		size.put(root, Integer.valueOf(((Integer) size.get(root)).intValue() + delta));
+		Integer g = (Integer) group.get(root);
+		if (g != null) groupLoad[g.intValue()] += delta;
+	}
+
+	private BitSet explicitCpus(IStageWrapper stage) {
+		String tag = "stages." + stage.getStage().getName() + ".threadPool.";
+		String globaltag = "global.threadPool.";
+
+		String list = config.getString(tag + "cpus");
+		if (list == null) list = config.getString(globaltag + "cpus");
+		if (list != null && list.trim().length() > 0) {
+			try {
+				BitSet cpus = CpuAffinity.parseCpuList(list);
+				if (!cpus.isEmpty()) return cpus;
+			} catch (IllegalArgumentException e) {
+				System.err.println("StagePlacement: Warning: " + e.getMessage() + " for stage " + stage.getStage().getName());
+			}
+		}
+
+		int node = config.getInt(tag + "numaNode", config.getInt(globaltag + "numaNode", -1));
+		if (node >= 0) {
+			BitSet[] nodes = CpuAffinity.numaNodes();
+			if (node < nodes.length) return nodes[node];
+			System.err.println("StagePlacement: Warning: no NUMA node " + node + " for stage " + stage.getStage().getName());
+		}
+		return null;
+	}
+
+	/**
+	 * Called by StageGraph when an edge is added: merge the pipelines of
+	 * both stages and move the threads of the smaller one.
+	 */
+	void edgeAdded(StageGraphEdge edge) {
+		List moved = new ArrayList();
+		BitSet cpus;
+		synchronized (this) {
+			if (!colocate) return;
+			IStageWrapper a = edge.fromStage, b = edge.toStage;
+			if (a == b || explicit.containsKey(a) || explicit.containsKey(b)) return;
+			IStageWrapper ra = find(a), rb = find(b);
+			if (ra == rb) return;
+
+			int sa = ((Integer) size.get(ra)).intValue();
+			int sb = ((Integer) size.get(rb)).intValue();
+			if (sa < sb) {
+				IStageWrapper t = ra;
+				ra = rb;
+				rb = t;
+			}
+			// rb joins ra
+			int ga = groupOf(ra), gb = groupOf(rb);
+			if (ga != gb) {
+				Object[] stages = pools.keySet().toArray();
+				for (int i = 0; i < stages.length; i++) {
+					IStageWrapper s = (IStageWrapper) stages[i];
+					if (!explicit.containsKey(s) && find(s) == rb) moved.add(pools.get(s));
+				}
+				int smaller = Math.min(sa, sb);
+				groupLoad[gb] -= smaller;
+				groupLoad[ga] += smaller;
+			}
+			parent.put(rb, ra);
+			size.put(ra, Integer.valueOf(sa + sb));
+			group.remove(rb);
+			size.remove(rb);
+
+			cpus = groups[ga];
+			if (DEBUG) System.err.println("StagePlacement: " + edge.fromStage + " -> " + edge.toStage + ", moving " + moved.size() + " pools to cpus " + CpuAffinity.toCpuList(cpus));
+		}
+		// Re-pin outside the lock; setCpus() starts processes
+		for (int i = 0; i < moved.size(); i++) {
+			((ThreadPool) moved.get(i)).setCpus(cpus);
+		}
+	}
+
+	private IStageWrapper find(IStageWrapper stage) {
+		IStageWrapper p = (IStageWrapper) parent.get(stage);
+		if (p == null) {
+			parent.put(stage, stage);
+			size.put(stage, Integer.valueOf(1));
+			return stage;
+		}
+		if (p == stage) return stage;
+		IStageWrapper root = find(p);
+		parent.put(stage, root);
+		return root;
+	}
+
+	private int groupOf(IStageWrapper root) {
+		Integer g = (Integer) group.get(root);
+		if (g == null) {
+			int best = 0;
+			for (int i = 1; i < groupLoad.length; i++) {
+				if (groupLoad[i] < groupLoad[best]) best = i;
+			}
+			groupLoad[best] += ((Integer) size.get(root)).intValue();
+			g = Integer.valueOf(best);
+			group.put(root, g);
+		}
+		return g.intValue();
+	}
+
+}
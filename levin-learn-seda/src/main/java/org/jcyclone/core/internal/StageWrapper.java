@@ -27,6 +27,7 @@ package org.jcyclone.core.internal;
 import org.jcyclone.core.cfg.ConfigData;
 import org.jcyclone.core.cfg.ConfigDataProxy;
 import org.jcyclone.core.cfg.IConfigData;
+import org.jcyclone.core.cfg.JCycloneConfig;
 import org.jcyclone.core.cfg.ISystemConfig;
 import org.jcyclone.core.handler.IEventHandler;
 import org.jcyclone.core.profiler.IProfilable;
@@ -114,10 +115,8 @@ public class StageWrapper implements IStageWrapper {
 			}
 		}
 
-		// XXX JM: queue implementation should be specified in the config
 		if (this.eventQ == null)
-//			this.eventQ = new LinkedBlockingQueue();
-			this.eventQ = new DynamicArrayBlockingQueue();
+			this.eventQ = createQueue(mgrcfg, tag);
 		else {
 			// XXX JM: change the queue only if it's not the same implementation
 			// create the new queue
@@ -149,8 +148,8 @@ public class StageWrapper implements IStageWrapper {
 			this.sorter = new NullBatchSorter();
 		}
 
-		this.stats = new StageStats(this);
 		this.stage = new Stage(name, this, (ISink) admContSink, config);
+		this.stats = createStats(mgrcfg);
 
 		// XXX JM: I know, this is ugly
 		if (config instanceof ConfigData) {
@@ -201,6 +200,63 @@ public class StageWrapper implements IStageWrapper {
 		status = PROGRAMMED;
 	}
 
+	private IBlockingQueue createQueue(ISystemConfig mgrcfg, String tag) {
+		String qtype = mgrcfg.getString(tag + "queue.type", mgrcfg.getString("global.queue.type"));
+		if (threadmgr instanceof WSScheduler) {
+			// WSScheduler never polls; it needs a queue that notifies it
+			if (qtype == null || qtype.equals(JCycloneConfig.QUEUE_ARRAY)) {
+				qtype = JCycloneConfig.QUEUE_SEGMENTED;
+			} else if (!qtype.equals(JCycloneConfig.QUEUE_SEGMENTED)) {
+				throw new IllegalArgumentException("StageWrapper <" + name + ">: Queue type " + qtype
+				    + " cannot be used with " + JCycloneConfig.THREADMGR_WSTM + ", use " + JCycloneConfig.QUEUE_SEGMENTED);
+			}
+		}
+		if (qtype == null || qtype.equals(JCycloneConfig.QUEUE_ARRAY)) {
+			System.err.print(", array queue");
+			return new DynamicArrayBlockingQueue();
+		} else if (qtype.equals(JCycloneConfig.QUEUE_SEGMENTED)) {
+			System.err.print(", segmented queue");
+			return new SegmentedArrayBlockingQueue();
+		} else if (qtype.equals(JCycloneConfig.QUEUE_LINKED)) {
+			System.err.print(", linked queue");
+			return new LinkedBlockingQueue();
+		} else if (qtype.equals(JCycloneConfig.QUEUE_MULTICLASS)) {
+			return createMulticlassQueue(mgrcfg, tag + "queue.multiclass.", "global.queue.multiclass.");
+		} else {
+			throw new IllegalArgumentException("StageWrapper <" + name + ">: Bad queue type " + qtype);
+		}
+	}
+
+	private IBlockingQueue createMulticlassQueue(ISystemConfig mgrcfg, String tag, String globaltag) {
+		int numClasses = mgrcfg.getInt(tag + "numClasses", mgrcfg.getInt(globaltag + "numClasses", 2));
+		String policy = mgrcfg.getString(tag + "policy", mgrcfg.getString(globaltag + "policy", "fair"));
+		int pol;
+		if (policy.equals("fair")) {
+			pol = MulticlassBlockingQueue.WEIGHTED_FAIR;
+		} else if (policy.equals("edf")) {
+			pol = MulticlassBlockingQueue.EARLIEST_DEADLINE;
+		} else {
+			throw new IllegalArgumentException("StageWrapper <" + name + ">: Bad multiclass queue policy " + policy);
+		}
+		System.err.print(", multiclass queue (" + numClasses + " classes, " + policy + ")");
+
+		MulticlassBlockingQueue q = new MulticlassBlockingQueue(numClasses, pol);
+		for (int c = 0; c < numClasses; c++) {
+			int weight = mgrcfg.getInt(tag + "class" + c + "Weight", mgrcfg.getInt(globaltag + "class" + c + "Weight", -1));
+			if (weight > 0) q.setWeight(c, weight);
+			int cap = mgrcfg.getInt(tag + "class" + c + "Capacity", mgrcfg.getInt(globaltag + "class" + c + "Capacity", -1));
+			if (cap > 0) q.setCapacity(c, cap);
+			// Deadlines default to the response time target of the class
+			double deadline = mgrcfg.getDouble(tag + "class" + c + "Deadline", mgrcfg.getDouble(globaltag + "class" + c + "Deadline", -1));
+			if (deadline < 0) {
+				deadline = mgrcfg.getDouble("stages." + name + ".rtController.multiclass.class" + c + "Target",
+				    mgrcfg.getDouble("global.rtController.multiclass.class" + c + "Target", -1));
+			}
+			if (deadline >= 0) q.setDeadline(c, (long) deadline);
+		}
+		return q;
+	}
+
 	/**
 	 * Initialize this stage.
 	 */
@@ -282,6 +338,22 @@ public class StageWrapper implements IStageWrapper {
 		return threadmgr;
 	}
 
+	// Create the statistics object selected by global.stats.type
+	private IStageStats createStats(ISystemConfig mgrcfg) {
+		String type = mgrcfg.getString("global.stats.type");
+		if (type == null || type.equals(JCycloneConfig.STATS_SYNCHRONIZED)) {
+			return new StageStats(this);
+		} else if (type.equals(JCycloneConfig.STATS_CONCURRENT)) {
+			ConcurrentStageStats cstats = new ConcurrentStageStats(this);
+			if (mgrcfg.getBoolean("global.profile.enable")) {
+				cstats.addProfiles(mgr.getProfiler());
+			}
+			return cstats;
+		} else {
+			throw new IllegalArgumentException("Bad stats type specified by configuration: " + type);
+		}
+	}
+
 	/**
 	 * Return execution statistics for this stage.
 	 */
@@ -258,7 +258,12 @@ public class TPPScheduler implements IScheduler {
 
 						// No need to pay synchronization cost here for
 						// stages that are SingleThreaded
-						handler.handleEvents(buffer);
+						FusedSink.enterStage(element.stage);
+						try {
+							handler.handleEvents(buffer);
+						} finally {
+							FusedSink.leaveStage();
+						}
 						buffer.clear();
 
 						if (DEBUG) System.err.println(name + ": returned from handleEvents for " + element.stage);
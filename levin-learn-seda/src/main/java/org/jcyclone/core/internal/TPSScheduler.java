@@ -50,6 +50,7 @@ public class TPSScheduler implements IScheduler {
 	protected Hashtable srTbl;     // IStageWrapper --> stageRunnable
 	protected ThreadPoolController sizeController;
 	protected boolean crashOnException;
+	protected int batchCapacity;
 
 	public TPSScheduler(IStageManager mgr) {
 		this(mgr, true);
@@ -67,6 +68,7 @@ public class TPSScheduler implements IScheduler {
 		}
 
 		crashOnException = config.getBoolean("global.crashOnException");
+		batchCapacity = config.getInt("global.threadPool.batchCapacity", EventBatch.DEFAULT_CAPACITY);
 	}
 
 	/**
@@ -186,10 +188,13 @@ public class TPSScheduler implements IScheduler {
 
 		public void run() {
 			long t1, t2;
-			long tstart = 0, tend = 0;
+			long tstart = 0, tend = 0, nstart = 0, nend = 0;
 
 			if (DEBUG) System.err.println(name + ": starting, source is " + source);
 
+			// Reused for every batch run by this thread
+			EventBatch buffer = new EventBatch(batchCapacity);
+
 			t1 = System.currentTimeMillis();
 
 			while (true) {
@@ -197,30 +202,41 @@ public class TPSScheduler implements IScheduler {
 				try {
 					if (DEBUG_VERBOSE) System.err.println(name + ": Doing blocking dequeue for " + wrapper);
 
-					Thread.yield(); // only accomplishes delay
-
 					// Run any pending batches
 					boolean ranbatch = false;
 					IBatchDescr batch;
 
-					while ((batch = sorter.nextBatch(blockTime)) != null) {
+					while ((batch = sorter.nextBatch(buffer, blockTime)) != null) {
 						ranbatch = true;
 						List events = batch.getBatch();
 						if (DEBUG_VERBOSE) System.err.println("<" + name + ">: Got batch of " + events.size() + " events");
 
 						// Call event handler
 						tstart = System.currentTimeMillis();
-						handler.handleEvents(events);
-						batch.batchDone();
+						nstart = System.nanoTime();
+						FusedSink.enterStage(wrapper);
+						try {
+							handler.handleEvents(events);
+						} finally {
+							FusedSink.leaveStage();
+						}
+						nend = System.nanoTime();
 						tend = System.currentTimeMillis();
 
 						// Record service rate
-						wrapper.getStats().recordServiceRate(events.size(), tend - tstart);
+						IStageStats stats = wrapper.getStats();
+						if (stats instanceof IStageLatencyStats) {
+							((IStageLatencyStats) stats).recordBatch(events, tstart, tend, nend - nstart);
+						} else {
+							stats.recordServiceRate(events.size(), tend - tstart);
+						}
 
-						// Run response time controller
+						// Run response time controller before the batch is recycled
 						if (rtController != null) {
 							rtController.adjustThreshold(events, tend - tstart);
 						}
+						sorter.batchCompleted(batch, tstart, tend);
+						batch.batchDone();
 					}
 
 					// Check if idle
@@ -233,7 +249,7 @@ public class TPSScheduler implements IScheduler {
 						continue;
 					}
 
-					t1 = System.currentTimeMillis();
+					t1 = tend;
 
 					if (tp.timeToStop(0)) {
 						if (DEBUG) System.err.println(name + ": Exiting");
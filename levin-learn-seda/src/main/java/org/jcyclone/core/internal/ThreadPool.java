@@ -33,6 +33,10 @@ import java.util.*;
 
 /**
  * ThreadPool is a generic class which provides a thread pool.
+ * <p/>
+ * The threads of the pool can be pinned to a set of CPUs, either with
+ * the <tt>threadPool.cpus</tt> or <tt>threadPool.numaNode</tt> options or
+ * by pipeline colocation; see StagePlacement.
  *
  * @author Matt Welsh and Jean Morissette
  */
@@ -47,6 +51,8 @@ public class ThreadPool implements IProfilable {
 	private Runnable runnable;
 	private List threads;
 	private List stoppingThreads;
+	private Map threadIds;  // Thread --> Integer (kernel thread id)
+	private volatile BitSet cpus;
 
 	private int initialThreads, minThreads, maxThreads;
 
@@ -140,6 +146,7 @@ public class ThreadPool implements IProfilable {
 		this.runnable = runnable;
 		threads = Collections.synchronizedList(new LinkedList());
 		stoppingThreads = Collections.synchronizedList(new ArrayList());
+		threadIds = Collections.synchronizedMap(new HashMap());
 
 		this.minThreads = minThreads;
 		if (this.minThreads < 1) this.minThreads = 1;
@@ -163,6 +170,10 @@ public class ThreadPool implements IProfilable {
 		if (state == RUNNING) return;
 
 		pooltg = new ThreadGroup(getName());
+		cpus = getPlacement().register(stage, this);
+		if (cpus != null) {
+			System.err.println(getName() + ": Pinning threads to cpus " + CpuAffinity.toCpuList(cpus));
+		}
 		addThreads(initialThreads, false);
 		mgr.getProfiler().add(getName(), this);
 
@@ -331,6 +342,21 @@ public class ThreadPool implements IProfilable {
 		return threads.size();
 	}
 
+	/**
+	 * Return the number of threads below which the pool does not shrink.
+	 */
+	public int getMinThreads() {
+		return minThreads;
+	}
+
+	/**
+	 * Return the maximum number of threads in the pool, or -1 if there is
+	 * no limit.
+	 */
+	public int getMaxThreads() {
+		return maxThreads;
+	}
+
 	/**
 	 * Used by a thread to determine its queue block time.
 	 * TODO: move this method in another class
@@ -357,6 +383,33 @@ public class ThreadPool implements IProfilable {
 		return stoppingThreads.contains(t);
 	}
 
+	/**
+	 * Pin the threads of this pool, including those added later, to the
+	 * given CPUs.
+	 */
+	public void setCpus(BitSet cpus) {
+		this.cpus = cpus;
+		Object[] ids;
+		synchronized (threadIds) {
+			ids = threadIds.values().toArray();
+		}
+		for (int i = 0; i < ids.length; i++) {
+			CpuAffinity.setAffinity(((Integer) ids[i]).intValue(), cpus);
+		}
+	}
+
+	/**
+	 * Return the CPUs the threads of this pool are pinned to, or null if
+	 * they are not pinned.
+	 */
+	public BitSet getCpus() {
+		return cpus;
+	}
+
+	private StagePlacement getPlacement() {
+		return ((JCycloneProfiler) mgr.getProfiler()).getGraphProfiler().getPlacement();
+	}
+
 	public String toString() {
 		return "TP (size=" + numThreads() + ") for <" + poolname + ">";
 	}
@@ -378,12 +431,25 @@ public class ThreadPool implements IProfilable {
 		}
 
 		public void run() {
-			proxied.run();
+			Thread t = Thread.currentThread();
+			if (CpuAffinity.isSupported()) {
+				int tid = CpuAffinity.currentThreadId();
+				if (tid >= 0) {
+					threadIds.put(t, Integer.valueOf(tid));
+					BitSet c = cpus;
+					if (c != null) CpuAffinity.setAffinity(tid, c);
+				}
+			}
+
+			try {
+				proxied.run();
+			} finally {
+				threadIds.remove(t);
+			}
 			// XXX JM: rerun if thread count < minThread?
 
 //			assert runState != TERMINATED;
 
-			Thread t = Thread.currentThread();
 			synchronized (removeThreadLock) {
 				if (!stoppingThreads.remove(t)) {
 					// this should not happen... but just in case, we keep a consistent state
@@ -399,6 +465,7 @@ public class ThreadPool implements IProfilable {
 //					assert threads.size() == 0;
 					runState = TERMINATED;
 					mgr.getProfiler().remove(getName());
+					getPlacement().deregister(stage, ThreadPool.this);
 					synchronized (terminationMonitor) {
 						terminationMonitor.notifyAll();
 					}
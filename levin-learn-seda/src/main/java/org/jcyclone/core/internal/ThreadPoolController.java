@@ -25,6 +25,7 @@
 package org.jcyclone.core.internal;
 
 import org.jcyclone.core.cfg.ISystemConfig;
+import org.jcyclone.core.cfg.JCycloneConfig;
 import org.jcyclone.core.profiler.IProfilable;
 import org.jcyclone.core.stage.IStageManager;
 
@@ -34,6 +35,22 @@ import java.util.Vector;
 /**
  * The ThreadPoolController is responsible for dynamically adusting the
  * size of a given ThreadPool.
+ * <p/>
+ * With <tt>sizeController.type</tt> set to <tt>threshold</tt> (the
+ * default), a thread is added whenever the queue length exceeds the
+ * threshold. With <tt>littlesLaw</tt>, every <tt>delay</tt> msec each pool
+ * is sized from its measured arrival rate L, per-event service time S
+ * and queue length Q as
+ * <pre>
+ *   threads = ceil(L * S * (1 + headroom) + Q * S / delayTarget)
+ * </pre>
+ * i.e. the threads busy by Little's law, plus enough to drain the
+ * backlog within the target queueing delay. Rates are smoothed, a pool
+ * grows by at most its size per period and only shrinks after the
+ * target stayed lower for SHRINK_PERIODS periods, which damps
+ * oscillation under bursty load. When the sum of all pools would exceed
+ * <tt>maxTotalThreads</tt>, the budget is shared out in proportion to
+ * the demand of each pool.
  *
  * @author Matt Welsh
  */
@@ -55,12 +72,20 @@ public class ThreadPoolController {
 
 	private static final double SMOOTH_CONST = 0.3;
 
+	// Periods the Little's law target must stay below the pool size before
+	// the pool shrinks
+	private static final int SHRINK_PERIODS = 2;
+
 	private IStageManager mgr;
 	private Vector tpvec;
 
 	private boolean autoMaxDetect;
 	private Thread controller;
 	private int controllerDelay, controllerThreshold;
+	private boolean littlesLaw;
+	private double headroom;
+	private int delayTarget;
+	private int maxTotalThreads;
 
 	public ThreadPoolController(IStageManager mgr) {
 		this.mgr = mgr;
@@ -70,6 +95,7 @@ public class ThreadPoolController {
 		this.controllerDelay = config.getInt("global.threadPool.sizeController.delay");
 		this.controllerThreshold = config.getInt("global.threadPool.sizeController.threshold");
 		this.autoMaxDetect = config.getBoolean("global.threadPool.sizeController.autoMaxDetect");
+		initSizing(config);
 
 		start();
 	}
@@ -88,17 +114,33 @@ public class ThreadPoolController {
 		}
 
 		this.autoMaxDetect = config.getBoolean("global.threadPool.sizeController.autoMaxDetect");
+		initSizing(config);
 		start();
 	}
 
+	private void initSizing(ISystemConfig config) {
+		String type = config.getString("global.threadPool.sizeController.type", JCycloneConfig.SIZECTL_THRESHOLD);
+		this.littlesLaw = type.equals(JCycloneConfig.SIZECTL_LITTLE);
+		if (!littlesLaw && !type.equals(JCycloneConfig.SIZECTL_THRESHOLD)) {
+			System.err.println("ThreadPoolController: Warning: unknown sizeController.type " + type + ", using " + JCycloneConfig.SIZECTL_THRESHOLD);
+		}
+		this.headroom = config.getDouble("global.threadPool.sizeController.headroom", 0.2);
+		this.delayTarget = config.getInt("global.threadPool.sizeController.delayTarget", 100);
+		if (this.delayTarget < 1) this.delayTarget = 1;
+		this.maxTotalThreads = config.getInt("global.threadPool.sizeController.maxTotalThreads", 0);
+	}
+
 	/**
 	 * Register a thread pool with this controller, using the queue threshold
 	 * specified by the system configuration.
 	 */
 	public void register(IStageWrapper stage, ThreadPool tp) {
 		ISystemConfig config = mgr.getConfig();
-		int thresh = config.getInt("stages." + stage.getStage().getName() + ".threadPool.sizeController.threshold", controllerThreshold);
-		tpvec.addElement(new tpcClient(stage, tp, null, thresh));
+		String tag = "stages." + stage.getStage().getName() + ".threadPool.sizeController.";
+		int thresh = config.getInt(tag + "threshold", controllerThreshold);
+		tpcClient tpc = new tpcClient(stage, tp, null, thresh);
+		tpc.delayTarget = Math.max(1, config.getInt(tag + "delayTarget", delayTarget));
+		tpvec.addElement(tpc);
 	}
 
 	/**
@@ -110,7 +152,11 @@ public class ThreadPoolController {
 	}
 
 	private void start() {
-		System.err.println("ThreadPoolController: Started, delay " + controllerDelay + " ms, threshold " + controllerThreshold + ", autoMaxDetect " + autoMaxDetect);
+		if (littlesLaw) {
+			System.err.println("ThreadPoolController: Started, delay " + controllerDelay + " ms, Little's law, delayTarget " + delayTarget + " ms, headroom " + headroom + ", maxTotalThreads " + maxTotalThreads);
+		} else {
+			System.err.println("ThreadPoolController: Started, delay " + controllerDelay + " ms, threshold " + controllerThreshold + ", autoMaxDetect " + autoMaxDetect);
+		}
 		controller = new Thread(new controllerThread(), "TPC");
 		controller.start();
 	}
@@ -129,6 +175,14 @@ public class ThreadPoolController {
 		double savedThroughput, avgThroughput;
 		long last_time, reset_time;
 
+		// Little's law sizing
+		int delayTarget;
+		int lastQueue;
+		long lastEvents, lastSample;
+		double arrivalRate;     // events/sec, smoothed
+		double serviceTime;     // sec/event, smoothed
+		int demand, belowTarget;
+
 		tpcClient(final IStageWrapper stage, ThreadPool tp, IProfilable metric, int threshold) {
 			this.stage = stage;
 			this.tp = tp;
@@ -144,6 +198,11 @@ public class ThreadPoolController {
 
 			savedThreads = tp.numThreads();
 			reset_time = last_time = System.currentTimeMillis();
+			this.delayTarget = ThreadPoolController.this.delayTarget;
+			lastSample = last_time;
+			lastEvents = stage.getStats().getTotalEvents();
+			lastQueue = this.metric.profileSize();
+			demand = savedThreads;
 
 			mgr.getProfiler().add("TPController savedThreads <" + stage.getStage().getName() + ">",
 			    new IProfilable() {
@@ -172,9 +231,123 @@ public class ThreadPoolController {
 					    return (int) avgThroughput;
 				    }
 			    });
+
+			if (littlesLaw) {
+				mgr.getProfiler().add("TPController arrivalRate <" + stage.getStage().getName() + ">",
+				    new IProfilable() {
+					    public int profileSize() {
+						    return (int) arrivalRate;
+					    }
+				    });
+
+				mgr.getProfiler().add("TPController demand <" + stage.getStage().getName() + ">",
+				    new IProfilable() {
+					    public int profileSize() {
+						    return demand;
+					    }
+				    });
+			}
+		}
+
+		/**
+		 * Sample the stage and return the number of threads it needs.
+		 */
+		int measureDemand(long curTime) {
+			long elapsed = curTime - lastSample;
+			if (elapsed <= 0) return demand;
+			long events = stage.getStats().getTotalEvents();
+			int queue = metric.profileSize();
+
+			// Whatever was not processed is still in the queue
+			long arrivals = Math.max(0, (events - lastEvents) + (queue - lastQueue));
+			double rate = arrivals / (elapsed * 1.0e-3);
+			arrivalRate = (SMOOTH_CONST * rate) + ((1.0 - SMOOTH_CONST) * arrivalRate);
+
+			double serviceRate = stage.getStats().getServiceRate();
+			if (serviceRate > 0.0) {
+				double s = 1.0 / serviceRate;
+				serviceTime = (serviceTime == 0.0) ? s : (SMOOTH_CONST * s) + ((1.0 - SMOOTH_CONST) * serviceTime);
+			}
+
+			lastSample = curTime;
+			lastEvents = events;
+			lastQueue = queue;
+
+			int n = littlesLawThreads(arrivalRate, serviceTime, queue, headroom, delayTarget,
+			    tp.getMinThreads(), tp.getMaxThreads());
+			if (DEBUG) System.err.println("TP controller <" + stage.getStage().getName() + "> rate " + arrivalRate + " S " + serviceTime + " queue " + queue + " -> " + n + " threads");
+			return n;
+		}
+
+		/**
+		 * Move the pool towards the given number of threads.
+		 */
+		void resize(int target) {
+			int cur = tp.numThreads();
+			if (target > cur) {
+				belowTarget = 0;
+				// At most double per period so a burst does not overshoot
+				tp.addThreads(Math.min(target - cur, Math.max(1, cur)));
+			} else if (target < cur) {
+				if (++belowTarget >= SHRINK_PERIODS) {
+					belowTarget = 0;
+					tp.removeThreads(cur - target);
+				}
+			} else {
+				belowTarget = 0;
+			}
 		}
 	}
 
+	/**
+	 * Return the number of threads a pool needs for the given arrival rate
+	 * (events/sec), service time (sec/event) and queue length, kept
+	 * between minThreads (at least 1) and maxThreads (if positive).
+	 */
+	static int littlesLawThreads(double arrivalRate, double serviceTime, int queue,
+	                             double headroom, int delayTarget, int minThreads, int maxThreads) {
+		// Threads busy by Little's law, plus those needed to drain the
+		// backlog within the target delay
+		double busy = arrivalRate * serviceTime * (1.0 + headroom);
+		double drain = queue * serviceTime / (delayTarget * 1.0e-3);
+		int n = (int) Math.ceil(busy + drain);
+
+		n = Math.max(n, Math.max(1, minThreads));
+		if (maxThreads > 0) n = Math.min(n, maxThreads);
+		return n;
+	}
+
+	/**
+	 * Share maxTotalThreads among the pools when their demands exceed it.
+	 * Each pool first gets its minimum (at least 1); the rest of the budget
+	 * is shared in proportion to the demand above the minimums. Only when
+	 * the minimums alone exceed the budget is it overrun. The demands are
+	 * returned unchanged if within budget.
+	 */
+	static int[] shareBudget(int[] demands, int[] minThreads, int maxTotalThreads) {
+		long total = 0;
+		for (int i = 0; i < demands.length; i++) {
+			total += demands[i];
+		}
+		int[] targets = demands.clone();
+		if (maxTotalThreads > 0 && total > maxTotalThreads) {
+			long floors = 0, extra = 0;
+			for (int i = 0; i < targets.length; i++) {
+				targets[i] = Math.max(1, minThreads[i]);
+				floors += targets[i];
+				extra += Math.max(0, demands[i] - targets[i]);
+			}
+			long spare = maxTotalThreads - floors;
+			if (spare > 0 && extra > 0) {
+				for (int i = 0; i < targets.length; i++) {
+					targets[i] += (int) (Math.max(0, demands[i] - targets[i]) * spare / extra);
+				}
+			}
+			if (DEBUG) System.err.println("TP controller: demand " + total + " threads over budget " + maxTotalThreads + ", " + floors + " held by minimums");
+		}
+		return targets;
+	}
+
 	/**
 	 * Internal class implementing the controller.
 	 */
@@ -200,10 +373,40 @@ public class ThreadPoolController {
 			}
 		}
 
+		/**
+		 * Size every pool from its Little's law demand, sharing out the
+		 * global thread budget if there is one.
+		 */
+		private void sizeThreadPools() {
+			long curTime = System.currentTimeMillis();
+			int n = tpvec.size();
+			tpcClient[] clients = new tpcClient[n];
+			int[] demands = new int[n];
+			int[] mins = new int[n];
+			for (int i = 0; i < n; i++) {
+				clients[i] = (tpcClient) tpvec.elementAt(i);
+				clients[i].demand = clients[i].measureDemand(curTime);
+				demands[i] = clients[i].demand;
+				mins[i] = clients[i].tp.getMinThreads();
+			}
+
+			// Over budget: scale every pool down in proportion to its demand
+			int[] targets = shareBudget(demands, mins, maxTotalThreads);
+
+			for (int i = 0; i < n; i++) {
+				clients[i].resize(targets[i]);
+			}
+		}
+
 		private void adjustThreadPools() {
 
 			adjust_count++;
 
+			if (littlesLaw) {
+				sizeThreadPools();
+				return;
+			}
+
 			if ((adjust_count % CONTROLLER_DELAY) == 0) {
 
 				for (int i = 0; i < tpvec.size(); i++) {
@@ -0,0 +1,347 @@
+package org.jcyclone.core.internal;
+
+import org.jcyclone.core.cfg.ISystemConfig;
+import org.jcyclone.core.handler.IEventHandler;
+import org.jcyclone.core.handler.ISingleThreadedEventHandler;
+import org.jcyclone.core.queue.ISource;
+import org.jcyclone.core.queue.ISourceListener;
+import org.jcyclone.core.queue.SegmentedArrayBlockingQueue;
+import org.jcyclone.core.rtc.IResponseTimeController;
+import org.jcyclone.core.stage.IStageManager;
+
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * WSScheduler is a work-stealing IScheduler: a fixed set of worker
+ * threads (one per CPU by default) shares all stages instead of each
+ * stage owning a thread pool.
+ * <p/>
+ * Every worker has its own deque of runnable stages. A stage is pushed
+ * on the deque of the current worker when its source goes from empty to
+ * non-empty, so a downstream stage usually runs on the same CPU right
+ * after the stage that fed it; idle workers steal from the other end of
+ * the other deques. Idle workers never poll sources, so every stage must
+ * have a source that notifies the scheduler through an ISourceListener;
+ * StageWrapper gives the stages of a WSScheduler a
+ * SegmentedArrayBlockingQueue and register() rejects other sources.
+ * <p/>
+ * Each run of a stage takes one batch from its IBatchSorter, and records
+ * the service rate and runs the response time controller exactly like
+ * TPSScheduler. A multi-threaded stage may run on up to
+ * <tt>threadPool.maxThreads</tt> workers at once; an
+ * ISingleThreadedEventHandler never runs concurrently with itself.
+ *
+ * @see TPSScheduler
+ */
+public class WSScheduler implements IScheduler {
+
+	private static final boolean DEBUG = false;
+	private static final boolean DEBUG_VERBOSE = false;
+
+	protected IStageManager mgr;
+	protected ISystemConfig config;
+	protected Hashtable taskTbl;     // IStageWrapper --> stageTask
+	protected volatile stageTask[] tasks = new stageTask[0];
+	protected Worker[] workers;
+	protected boolean crashOnException;
+	protected int blockTime;
+	protected int batchCapacity;
+	protected volatile boolean stopped;
+
+	private final ConcurrentLinkedQueue idleWorkers = new ConcurrentLinkedQueue();
+	private final AtomicInteger nextWorker = new AtomicInteger();
+
+	public WSScheduler(IStageManager mgr) {
+		this.mgr = mgr;
+		this.config = mgr.getConfig();
+		this.taskTbl = new Hashtable();
+
+		crashOnException = config.getBoolean("global.crashOnException");
+		blockTime = config.getInt("global.threadPool.blockTime", 1000);
+		batchCapacity = config.getInt("global.threadPool.batchCapacity", EventBatch.DEFAULT_CAPACITY);
+
+		int numThreads = config.getInt("global.WSTM.numThreads", 0);
+		if (numThreads <= 0)
+			numThreads = Runtime.getRuntime().availableProcessors();
+
+		workers = new Worker[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			workers[i] = new Worker(i);
+		}
+		for (int i = 0; i < numThreads; i++) {
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * Register a stage with this thread manager.
+	 *
+	 * @throws IllegalArgumentException if the source of the stage is not a
+	 *                                  SegmentedArrayBlockingQueue
+	 */
+	public synchronized void register(IStageWrapper stage) {
+		if (!(stage.getSource() instanceof SegmentedArrayBlockingQueue))
+			throw new IllegalArgumentException("WSScheduler: Stage " + stage.getStage().getName()
+			    + " needs a segmented queue, not " + stage.getSource().getClass().getName());
+		if (taskTbl.containsKey(stage))
+			throw new IllegalStateException("Stage " + stage.getStage().getName() + " already registered");
+		stageTask task = new stageTask(stage);
+		taskTbl.put(stage, task);
+		tasks = (stageTask[]) taskTbl.values().toArray(new stageTask[taskTbl.size()]);
+		task.start();
+	}
+
+	/**
+	 * Deregister a stage with this thread manager.
+	 */
+	public synchronized void deregister(IStageWrapper stage) {
+		stageTask task = (stageTask) taskTbl.remove(stage);
+		if (task == null) {
+			throw new IllegalStateException("Stage " + stage.getStage().getName() + " not registered");
+		}
+		tasks = (stageTask[]) taskTbl.values().toArray(new stageTask[taskTbl.size()]);
+		task.stop();
+	}
+
+	/**
+	 * Stop the thread manager and all threads managed by it.
+	 */
+	public synchronized void deregisterAll() {
+		for (int i = 0; i < tasks.length; i++) {
+			tasks[i].stop();
+		}
+		taskTbl.clear();
+		tasks = new stageTask[0];
+
+		stopped = true;
+		for (int i = 0; i < workers.length; i++) {
+			LockSupport.unpark(workers[i]);
+		}
+	}
+
+	/**
+	 * Push a runnable stage on a worker deque and wake an idle worker to
+	 * steal it. From a worker thread the stage goes on the worker's own
+	 * deque: at the head if it was just made runnable, at the tail if it is
+	 * continuing after a batch so that the other stages get their turn.
+	 */
+	void submit(stageTask task, boolean continuing) {
+		Thread cur = Thread.currentThread();
+		if (cur instanceof Worker && ((Worker) cur).scheduler() == this) {
+			if (continuing)
+				((Worker) cur).deque.addLast(task);
+			else
+				((Worker) cur).deque.addFirst(task);
+		} else {
+			int i = (nextWorker.getAndIncrement() & Integer.MAX_VALUE) % workers.length;
+			workers[i].deque.addLast(task);
+		}
+
+		Worker idle = (Worker) idleWorkers.poll();
+		if (idle != null) {
+			if (DEBUG_VERBOSE) System.err.println("WSScheduler: waking " + idle.getName() + " for " + task.name);
+			LockSupport.unpark(idle);
+		}
+	}
+
+	/**
+	 * A worker thread with its own deque of runnable stages.
+	 */
+	class Worker extends Thread {
+		final ConcurrentLinkedDeque deque = new ConcurrentLinkedDeque();
+		final int index;
+		final EventBatch buffer = new EventBatch(batchCapacity);
+
+		Worker(int index) {
+			super("WSTM-" + index);
+			this.index = index;
+			setDaemon(true);
+		}
+
+		WSScheduler scheduler() {
+			return WSScheduler.this;
+		}
+
+		public void run() {
+			if (DEBUG) System.err.println(getName() + ": starting");
+			while (!stopped) {
+				stageTask task = findTask();
+				if (task == null)
+					task = awaitTask();
+				if (task != null)
+					task.run(buffer);
+			}
+			if (DEBUG) System.err.println(getName() + ": Exiting");
+		}
+
+		private stageTask findTask() {
+			stageTask task = (stageTask) deque.pollFirst();
+			if (task != null)
+				return task;
+			// steal from the tail of the other deques
+			for (int i = 1; i < workers.length; i++) {
+				Worker victim = workers[(index + i) % workers.length];
+				task = (stageTask) victim.deque.pollLast();
+				if (task != null) {
+					if (DEBUG_VERBOSE) System.err.println(getName() + ": stole " + task.name + " from " + victim.getName());
+					return task;
+				}
+			}
+			return null;
+		}
+
+		private stageTask awaitTask() {
+			// Announce ourselves before the last look so that a concurrent
+			// submit either sees us idle or is seen by findTask
+			idleWorkers.add(this);
+			stageTask task = findTask();
+			if (task == null && !stopped) {
+				if (DEBUG_VERBOSE) System.err.println(getName() + ": No work.  Going to sleep.");
+				LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(blockTime));
+			}
+			idleWorkers.remove(this);
+			return task;
+		}
+	}
+
+	/**
+	 * Internal class representing the runnable state of a single stage.
+	 */
+	protected class stageTask implements ISourceListener {
+
+		protected IStageWrapper wrapper;
+		protected IBatchSorter sorter;
+		protected IEventHandler handler;
+		protected ISource source;
+		protected String name;
+		protected IResponseTimeController rtController = null;
+		protected int maxActive;
+		protected final AtomicInteger active = new AtomicInteger();
+		protected volatile boolean taskStopped;
+
+		protected stageTask(IStageWrapper wrapper) {
+			this.wrapper = wrapper;
+			this.source = wrapper.getSource();
+			this.handler = wrapper.getEventHandler();
+			this.name = wrapper.getStage().getName();
+			this.rtController = wrapper.getResponseTimeController();
+
+			if (handler instanceof ISingleThreadedEventHandler) {
+				maxActive = 1;
+			} else {
+				maxActive = config.getInt("stages." + name + ".threadPool.maxThreads", 0);
+				if (maxActive <= 0 || maxActive > workers.length)
+					maxActive = workers.length;
+			}
+
+			this.sorter = wrapper.getBatchSorter();
+			if (this.sorter == null) {
+				// XXX MDW: Should be ControlledBatchSorter
+				this.sorter = new NullBatchSorter();
+			}
+			sorter.init(wrapper, mgr);
+		}
+
+		void start() {
+			((SegmentedArrayBlockingQueue) source).setSourceListener(this);
+			if (source.size() > 0)
+				schedule(false);
+		}
+
+		void stop() {
+			taskStopped = true;
+			((SegmentedArrayBlockingQueue) source).setSourceListener(null);
+		}
+
+		public void sourceNotEmpty(ISource source) {
+			schedule(false);
+		}
+
+		/**
+		 * Make the stage runnable unless it already runs on as many workers
+		 * as it may.
+		 */
+		void schedule(boolean continuing) {
+			for (; ;) {
+				int n = active.get();
+				if (n >= maxActive || taskStopped)
+					return;
+				if (active.compareAndSet(n, n + 1))
+					break;
+			}
+			submit(this, continuing);
+		}
+
+		public void run(EventBatch buffer) {
+			try {
+				if (!taskStopped)
+					runBatch(buffer);
+			} catch (InterruptedException e) {
+				// Ignore
+			} catch (Exception e) {
+				System.err.println("JCyclone: Stage <" + name + "> got exception: " + e);
+				e.printStackTrace();
+				if (crashOnException) {
+					System.err.println("JCyclone: Crashing runtime due to exception - goodbye");
+					System.exit(-1);
+				}
+			} finally {
+				// An enqueue that raced with this run saw us active and did
+				// not schedule us; pick its events up here
+				active.decrementAndGet();
+				if (source.size() > 0)
+					schedule(true);
+			}
+		}
+
+		private void runBatch(EventBatch buffer) throws Exception {
+			long tstart, tend, nstart, nend;
+
+			IBatchDescr batch = sorter.nextBatch(buffer, 0);
+			if (batch == null)
+				return;
+
+			// Let other workers help with what is left
+			if (source.size() > 0)
+				schedule(false);
+
+			List events = batch.getBatch();
+			int numEvents = events.size();
+			if (DEBUG_VERBOSE) System.err.println("<" + name + ">: Got batch of " + numEvents + " events");
+
+			// Call event handler
+			tstart = System.currentTimeMillis();
+			nstart = System.nanoTime();
+			FusedSink.enterStage(wrapper);
+			try {
+				handler.handleEvents(events);
+			} finally {
+				FusedSink.leaveStage();
+			}
+			nend = System.nanoTime();
+			tend = System.currentTimeMillis();
+
+			// Record service rate
+			IStageStats stats = wrapper.getStats();
+			if (stats instanceof IStageLatencyStats) {
+				((IStageLatencyStats) stats).recordBatch(events, tstart, tend, nend - nstart);
+			} else {
+				stats.recordServiceRate(numEvents, tend - tstart);
+			}
+
+			// Run response time controller before the batch is recycled
+			if (rtController != null) {
+				rtController.adjustThreshold(events, tend - tstart);
+			}
+			sorter.batchCompleted(batch, tstart, tend);
+			batch.batchDone();
+		}
+	}
+
+}
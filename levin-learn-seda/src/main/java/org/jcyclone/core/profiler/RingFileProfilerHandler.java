@@ -0,0 +1,210 @@
+package org.jcyclone.core.profiler;
+
+import org.jcyclone.core.cfg.ISystemConfig;
+import org.jcyclone.core.stage.IStageManager;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A profiler handler that writes fixed-width binary samples into a
+ * memory-mapped ring file. A sample costs a few absolute stores per
+ * column and no allocation, formatting or system call, so profiling
+ * can be left on permanently at sub-second <tt>global.profile.delay</tt>;
+ * the file always holds the last <tt>global.profile.ringfile.records</tt>
+ * samples. Use RingFileReader to convert it to CSV.
+ * <p/>
+ * The file is a header followed by the ring of records, all big-endian:
+ * <pre>
+ * header:  0  long   MAGIC
+ *          8  int    VERSION
+ *         12  int    header size
+ *         16  int    max columns
+ *         20  int    number of records
+ *         24  int    record size
+ *         28  int    sample delay (msec)
+ *         32  long   start time (msec)
+ *         40  int    number of columns
+ *         48  long   sequence number of the next record
+ *         64  column names, NAME_SIZE bytes each: short length, UTF-8 bytes
+ * record:  0  long   sequence number, -1 while being written
+ *          8  long   time (msec)
+ *         16  int    number of columns written
+ *         24  int[]  values, ABSENT for a column not profiled at that time
+ * </pre>
+ * Record <tt>seq</tt> is at slot <tt>seq % number of records</tt>. A
+ * column is assigned to each profilable name the first time it is seen
+ * and keeps it when the profilable is removed and added again; names
+ * beyond <tt>global.profile.ringfile.columns</tt> are not recorded.
+ *
+ * @see RingFileReader
+ */
+public class RingFileProfilerHandler implements IProfilerHandler {
+
+	private static final boolean DEBUG = false;
+
+	public static final long MAGIC = 0x4a4350524f46494cL;   // "JCPROFIL"
+	public static final int VERSION = 1;
+	public static final int NAME_SIZE = 128;
+	public static final int ABSENT = Integer.MIN_VALUE;
+
+	static final int OFF_MAGIC = 0;
+	static final int OFF_VERSION = 8;
+	static final int OFF_HEADERSIZE = 12;
+	static final int OFF_MAXCOLUMNS = 16;
+	static final int OFF_NUMRECORDS = 20;
+	static final int OFF_RECORDSIZE = 24;
+	static final int OFF_DELAY = 28;
+	static final int OFF_STARTTIME = 32;
+	static final int OFF_NUMCOLUMNS = 40;
+	static final int OFF_SEQ = 48;
+	static final int OFF_NAMES = 64;
+
+	static final int REC_SEQ = 0;
+	static final int REC_TIME = 8;
+	static final int REC_NUMCOLUMNS = 16;
+	static final int REC_VALUES = 24;
+
+	private RandomAccessFile file;
+	private MappedByteBuffer buf;
+	private int maxColumns;
+	private int numRecords;
+	private int recordSize;
+	private int headerSize;
+	private long seq;
+
+	private Map columns = new HashMap();    // name --> Integer column
+	private List names = new ArrayList();   // names in snapshot order
+	private int[] columnOf = new int[0];    // snapshot index --> column, -1 if none
+	private int numColumns;
+
+	public synchronized void init(IStageManager mgr) {
+		ISystemConfig config = mgr.getConfig();
+		String filename = config.getString("global.profile.ringfile.filename");
+		numRecords = config.getInt("global.profile.ringfile.records", 3600);
+		maxColumns = config.getInt("global.profile.ringfile.columns", 512);
+		if (numRecords < 1) numRecords = 1;
+		if (maxColumns < 1) maxColumns = 1;
+
+		headerSize = align(OFF_NAMES + maxColumns * NAME_SIZE);
+		recordSize = align(REC_VALUES + maxColumns * 4);
+		long length = headerSize + (long) numRecords * recordSize;
+		try {
+			file = new RandomAccessFile(filename, "rw");
+			file.setLength(0);
+			file.setLength(length);
+			buf = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+		} catch (IOException e) {
+			System.err.println("RingFileProfilerHandler: Cannot map " + filename + ": " + e);
+			destroy();
+			return;
+		}
+		buf.order(ByteOrder.BIG_ENDIAN);
+		buf.putInt(OFF_VERSION, VERSION);
+		buf.putInt(OFF_HEADERSIZE, headerSize);
+		buf.putInt(OFF_MAXCOLUMNS, maxColumns);
+		buf.putInt(OFF_NUMRECORDS, numRecords);
+		buf.putInt(OFF_RECORDSIZE, recordSize);
+		buf.putLong(OFF_STARTTIME, System.currentTimeMillis());
+		buf.putInt(OFF_NUMCOLUMNS, 0);
+		buf.putLong(OFF_SEQ, 0);
+		// Written last so that a reader never sees a half-built header
+		buf.putLong(OFF_MAGIC, MAGIC);
+		if (DEBUG) System.err.println("RingFileProfilerHandler: " + filename + ", " + numRecords + " records of " + recordSize + " bytes");
+	}
+
+	private static int align(int n) {
+		return (n + 63) & ~63;
+	}
+
+	public synchronized void profilableAdded(String name) {
+		names.add(name);
+		mapColumns();
+	}
+
+	public synchronized void profilableRemoved(String name) {
+		names.remove(name);
+		mapColumns();
+	}
+
+	private void mapColumns() {
+		columnOf = new int[names.size()];
+		for (int i = 0; i < columnOf.length; i++) {
+			columnOf[i] = columnFor((String) names.get(i));
+		}
+	}
+
+	private int columnFor(String name) {
+		Integer c = (Integer) columns.get(name);
+		if (c != null) return c.intValue();
+		if (buf == null || numColumns == maxColumns) {
+			if (buf != null && numColumns == maxColumns)
+				System.err.println("RingFileProfilerHandler: Warning: more than " + maxColumns + " profilables, not recording '" + name + "'");
+			columns.put(name, Integer.valueOf(-1));
+			return -1;
+		}
+		byte[] b;
+		try {
+			b = name.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			b = name.getBytes();
+		}
+		int len = Math.min(b.length, NAME_SIZE - 2);
+		int off = OFF_NAMES + numColumns * NAME_SIZE;
+		buf.putShort(off, (short) len);
+		for (int i = 0; i < len; i++) {
+			buf.put(off + 2 + i, b[i]);
+		}
+		c = Integer.valueOf(numColumns++);
+		columns.put(name, c);
+		buf.putInt(OFF_NUMCOLUMNS, numColumns);
+		return c.intValue();
+	}
+
+	public synchronized void sampleDelayChanged(int newDelay) {
+		if (buf != null) buf.putInt(OFF_DELAY, newDelay);
+	}
+
+	public synchronized void profilablesSnapshot(int[] sizes) {
+		if (buf == null) return;
+		int base = headerSize + (int) (seq % numRecords) * recordSize;
+		int ncols = numColumns;
+		buf.putLong(base + REC_SEQ, -1);
+		for (int c = 0; c < ncols; c++) {
+			buf.putInt(base + REC_VALUES + c * 4, ABSENT);
+		}
+		int n = Math.min(sizes.length, columnOf.length);
+		for (int i = 0; i < n; i++) {
+			int c = columnOf[i];
+			if (c >= 0) buf.putInt(base + REC_VALUES + c * 4, sizes[i]);
+		}
+		buf.putLong(base + REC_TIME, System.currentTimeMillis());
+		buf.putInt(base + REC_NUMCOLUMNS, ncols);
+		buf.putLong(base + REC_SEQ, seq);
+		buf.putLong(OFF_SEQ, ++seq);
+	}
+
+	public synchronized void destroy() {
+		if (buf != null) {
+			buf.force();
+			buf = null;
+		}
+		if (file != null) {
+			try {
+				file.close();
+			} catch (IOException e) {
+				// ignore
+			}
+			file = null;
+		}
+	}
+
+}
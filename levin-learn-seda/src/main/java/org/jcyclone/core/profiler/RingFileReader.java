@@ -0,0 +1,153 @@
+package org.jcyclone.core.profiler;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+
+/**
+ * Converts a ring file written by RingFileProfilerHandler to CSV, oldest
+ * sample first. The first line holds the column names, each following
+ * line the time in msec followed by the values; a value is left empty
+ * when the profilable did not exist at that time. The file may be read
+ * while the profiler is still writing it; a record being overwritten is
+ * skipped.
+ * <p/>
+ * Usage: <tt>java org.jcyclone.core.profiler.RingFileReader
+ * &lt;ringfile&gt; [&lt;csvfile&gt;]</tt>
+ *
+ * @see RingFileProfilerHandler
+ */
+public class RingFileReader {
+
+	private RandomAccessFile file;
+	private int headerSize;
+	private int maxColumns;
+	private int numRecords;
+	private int recordSize;
+	private int delay;
+	private long startTime;
+	private String[] names;
+	private long nextSeq;
+
+	public RingFileReader(String filename) throws IOException {
+		file = new RandomAccessFile(filename, "r");
+		if (file.length() < RingFileProfilerHandler.OFF_NAMES || file.readLong() != RingFileProfilerHandler.MAGIC)
+			throw new IOException(filename + " is not a profiler ring file");
+		int version = file.readInt();
+		if (version != RingFileProfilerHandler.VERSION)
+			throw new IOException(filename + ": unsupported version " + version);
+		headerSize = file.readInt();
+		maxColumns = file.readInt();
+		numRecords = file.readInt();
+		recordSize = file.readInt();
+		delay = file.readInt();
+		startTime = file.readLong();
+		int numColumns = Math.min(file.readInt(), maxColumns);
+		file.seek(RingFileProfilerHandler.OFF_SEQ);
+		nextSeq = file.readLong();
+
+		names = new String[numColumns];
+		for (int c = 0; c < numColumns; c++) {
+			file.seek(RingFileProfilerHandler.OFF_NAMES + c * RingFileProfilerHandler.NAME_SIZE);
+			int len = file.readShort();
+			byte[] b = new byte[len];
+			file.readFully(b);
+			names[c] = new String(b, "UTF-8");
+		}
+	}
+
+	public String[] getNames() {
+		return names;
+	}
+
+	public int getDelay() {
+		return delay;
+	}
+
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * Return the number of samples in the file.
+	 */
+	public int getNumSamples() {
+		return (int) Math.min(nextSeq, numRecords);
+	}
+
+	/**
+	 * Write all samples as CSV.
+	 */
+	public void writeCSV(Writer w) throws IOException {
+		PrintWriter out = new PrintWriter(w);
+		out.print("time");
+		for (int c = 0; c < names.length; c++) {
+			out.print(',');
+			out.print(quote(names[c]));
+		}
+		out.println();
+
+		byte[] rec = new byte[recordSize];
+		for (long seq = Math.max(0, nextSeq - numRecords); seq < nextSeq; seq++) {
+			file.seek(headerSize + (seq % numRecords) * recordSize);
+			file.readFully(rec);
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(rec));
+			if (in.readLong() != seq) continue;
+			long time = in.readLong();
+			int ncols = Math.min(in.readInt(), names.length);
+			in.readInt();
+
+			out.print(time);
+			for (int c = 0; c < names.length; c++) {
+				out.print(',');
+				int v = (c < ncols) ? in.readInt() : RingFileProfilerHandler.ABSENT;
+				if (v != RingFileProfilerHandler.ABSENT) out.print(v);
+			}
+			out.println();
+		}
+		out.flush();
+	}
+
+	private static String quote(String s) {
+		if (s.indexOf(',') < 0 && s.indexOf('"') < 0) return s;
+		StringBuffer sb = new StringBuffer("\"");
+		for (int i = 0; i < s.length(); i++) {
+			char ch = s.charAt(i);
+			if (ch == '"') sb.append('"');
+			sb.append(ch);
+		}
+		return sb.append('"').toString();
+	}
+
+	public void close() throws IOException {
+		file.close();
+	}
+
+	public static void main(String args[]) {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("Usage: java org.jcyclone.core.profiler.RingFileReader <ringfile> [<csvfile>]");
+			System.exit(1);
+		}
+		try {
+			RingFileReader reader = new RingFileReader(args[0]);
+			Writer w;
+			if (args.length == 2)
+				w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(args[1]), "UTF-8"));
+			else
+				w = new BufferedWriter(new OutputStreamWriter(System.out));
+			reader.writeCSV(w);
+			w.close();
+			reader.close();
+		} catch (IOException e) {
+			System.err.println("RingFileReader: " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+}
@@ -150,6 +150,19 @@ public class DynamicArrayBlockingQueue implements IBlockingQueue, IProfilable {
 		return n;
 	}
 
+	public int dequeue(IElement[] elements, int maxElements) {
+		maxElements = Math.min(maxElements, elements.length);
+		if (maxElements <= 0) return 0;
+		int n;
+		synchronized (takeMonitor) {
+			if (usedSlots <= 0)
+				return 0;
+			n = extractMany(elements, maxElements);
+		}
+		incEmptySlots(n);
+		return n;
+	}
+
 	public IElement blockingDequeue(int timeout_millis) throws InterruptedException {
 		if (timeout_millis == -1)
 			return take();
@@ -189,9 +202,18 @@ public class DynamicArrayBlockingQueue implements IBlockingQueue, IProfilable {
 	public int blockingDequeue(List list, int timeout_millis, int maxElements)
 	    throws InterruptedException {
 		if (timeout_millis < 0)
-			return takeMany(list, maxElements);
+			return takeMany(list, null, maxElements);
+		else
+			return pollMany(list, null, timeout_millis, maxElements);
+	}
+
+	public int blockingDequeue(IElement[] elements, int timeout_millis, int maxElements)
+	    throws InterruptedException {
+		maxElements = Math.min(maxElements, elements.length);
+		if (timeout_millis < 0)
+			return takeMany(null, elements, maxElements);
 		else
-			return pollMany(list, timeout_millis, maxElements);
+			return pollMany(null, elements, timeout_millis, maxElements);
 	}
 
 // --------------------- Interface ISink ---------------------
@@ -513,6 +535,17 @@ public class DynamicArrayBlockingQueue implements IBlockingQueue, IProfilable {
 		return count;
 	}
 
+	protected final int extractMany(IElement[] elements, int maxElements) { // mechanics of take
+		int count = Math.min(usedSlots, maxElements);
+		usedSlots -= count;
+		for (int i = 0; i < count; i++) {
+			elements[i] = array[takePtr];
+			array[takePtr] = null;
+			if (++takePtr >= array.length) takePtr = 0;
+		}
+		return count;
+	}
+
 	public int takeWait;
 
 	public IElement take() throws InterruptedException {
@@ -566,7 +599,7 @@ public class DynamicArrayBlockingQueue implements IBlockingQueue, IProfilable {
 		return old;
 	}
 
-	private int pollMany(List list, int msecs, int maxElements) throws InterruptedException {
+	private int pollMany(List list, IElement[] elements, int msecs, int maxElements) throws InterruptedException {
 		if (maxElements <= 0) return 0;
 		if (Thread.interrupted()) throw new InterruptedException();
 		int n;
@@ -587,7 +620,7 @@ public class DynamicArrayBlockingQueue implements IBlockingQueue, IProfilable {
 				}
 				waitTime = msecs - (System.currentTimeMillis() - start);
 			}
-			n = extractMany(list, maxElements);
+			n = (list != null) ? extractMany(list, maxElements) : extractMany(elements, maxElements);
 		}
 		incEmptySlots(n);
 		return n;
@@ -614,7 +647,7 @@ public class DynamicArrayBlockingQueue implements IBlockingQueue, IProfilable {
 		return n;
 	}
 
-	private int takeMany(List list, int maxElements) throws InterruptedException {
+	private int takeMany(List list, IElement[] elements, int maxElements) throws InterruptedException {
 		if (maxElements <= 0) return 0;
 		if (Thread.interrupted()) throw new InterruptedException();
 		int n;
@@ -630,7 +663,7 @@ public class DynamicArrayBlockingQueue implements IBlockingQueue, IProfilable {
 					--waitingTakes;
 				}
 			}
-			n = extractMany(list, maxElements);
+			n = (list != null) ? extractMany(list, maxElements) : extractMany(elements, maxElements);
 		}
 		incEmptySlots(n);
 		return n;
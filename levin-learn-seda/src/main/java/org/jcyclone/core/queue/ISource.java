@@ -57,6 +57,15 @@ public interface ISource {
 	 */
 	int dequeue(List list, int maxElements);
 
+	/**
+	 * Dequeues at most <code>maxElements</code> available elements into
+	 * <code>elements</code>, starting at index 0, without allocating.
+	 * At most <code>elements.length</code> elements are dequeued.
+	 *
+	 * @return the number of elements stored in the array
+	 */
+	int dequeue(IElement[] elements, int maxElements);
+
 	/**
 	 * Just like blocking_dequeue_all, but returns only a single element.
 	 */
@@ -88,6 +97,13 @@ public interface ISource {
 	 */
 	int blockingDequeue(List list, int msecs, int maxElements) throws InterruptedException;
 
+	/**
+	 * Just like <code>blockingDequeue(List, int, int)</code>, but stores the
+	 * elements in <code>elements</code> starting at index 0. At most
+	 * <code>elements.length</code> elements are dequeued.
+	 */
+	int blockingDequeue(IElement[] elements, int msecs, int maxElements) throws InterruptedException;
+
 	/**
 	 * Returns the number of elements waiting in this queue.
 	 */
@@ -0,0 +1,19 @@
+package org.jcyclone.core.queue;
+
+/**
+ * A source listener is notified when a queue goes from empty to
+ * non-empty. Schedulers use it to make a stage runnable only when there
+ * is work for it instead of polling its source. Like an enqueue
+ * predicate, the listener runs in the context of the <b>caller of
+ * enqueue()</b>, so it must be simple and fast.
+ *
+ * @see SegmentedArrayBlockingQueue#setSourceListener
+ */
+public interface ISourceListener {
+
+	/**
+	 * Called after the first element has been added to an empty source.
+	 */
+	void sourceNotEmpty(ISource source);
+
+}
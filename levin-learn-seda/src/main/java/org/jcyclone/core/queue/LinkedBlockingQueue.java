@@ -357,7 +357,12 @@ public class LinkedBlockingQueue implements IBlockingQueue, IProfilable {
 
 	public int dequeue(List list, int maxElements) {
 		if (list == null) throw new NullPointerException();
-		return extract(list, maxElements);
+		return extract(list, null, maxElements);
+	}
+
+	public int dequeue(IElement[] elements, int maxElements) {
+		if (elements == null) throw new NullPointerException();
+		return extract(null, elements, Math.min(maxElements, elements.length));
 	}
 
 	public IElement blockingDequeue(int timeout_millis)
@@ -369,8 +374,18 @@ public class LinkedBlockingQueue implements IBlockingQueue, IProfilable {
 	}
 
 	public int blockingDequeue(List list, int msecs, int maxElements) throws InterruptedException {
+		if (list == null) throw new NullPointerException();
+		return blockingExtract(list, null, msecs, maxElements);
+	}
+
+	public int blockingDequeue(IElement[] elements, int msecs, int maxElements) throws InterruptedException {
+		if (elements == null) throw new NullPointerException();
+		return blockingExtract(null, elements, msecs, Math.min(maxElements, elements.length));
+	}
+
+	private int blockingExtract(List list, IElement[] elements, int msecs, int maxElements) throws InterruptedException {
 		if (Thread.interrupted()) throw new InterruptedException();
-		int n = extract(list, maxElements);
+		int n = extract(list, elements, maxElements);
 		if (n > 0)
 			return n;
 		else {
@@ -379,7 +394,7 @@ public class LinkedBlockingQueue implements IBlockingQueue, IProfilable {
 					long waitTime = msecs;
 					long start = (msecs <= 0) ? 0 : System.currentTimeMillis();
 					for (; ;) {
-						n = extract(list, maxElements);
+						n = extract(list, elements, maxElements);
 						if (n > 0 || waitTime <= 0) {
 							return n;
 						} else {
@@ -438,7 +453,7 @@ public class LinkedBlockingQueue implements IBlockingQueue, IProfilable {
 		}
 		synchronized (this.last) {
 			this.last.next = n;
-			this.last = n;
+			this.last = last;
 		}
 	}
 
@@ -579,7 +594,8 @@ public class LinkedBlockingQueue implements IBlockingQueue, IProfilable {
 		return count;
 	}
 
-	private int extract(List list, int maxElements) {
+	// Add to the list, or store in the array if the list is null
+	private int extract(List list, IElement[] elements, int maxElements) {
 		if (maxElements <= 0)
 			return 0;
 
@@ -608,9 +624,13 @@ public class LinkedBlockingQueue implements IBlockingQueue, IProfilable {
 
 		// Transfer the elements outside of locks
 		LinkedNode p = first;
+		int i = 0;
 		while (p != tail) {
 			p = p.next;
-			list.add(p.value);
+			if (list != null)
+				list.add(p.value);
+			else
+				elements[i++] = p.value;
 			p.value = null;
 		}
 		return count;
@@ -633,7 +653,7 @@ public class LinkedBlockingQueue implements IBlockingQueue, IProfilable {
 			}
 			synchronized (this.last) {
 				this.last.next = n;
-				this.last = n;
+				this.last = last;
 			}
 		}
 		// call outside of lock to loosen put/take coupling
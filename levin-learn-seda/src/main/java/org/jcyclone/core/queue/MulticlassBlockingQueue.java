@@ -0,0 +1,542 @@
+package org.jcyclone.core.queue;
+
+import org.jcyclone.core.event.TimeStampedEvent;
+import org.jcyclone.core.internal.LatencyHistogram;
+import org.jcyclone.core.profiler.IProfilable;
+import org.jcyclone.core.rtc.IClassEvent;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A IBlockingQueue which keeps one FIFO sub-queue per request class, so
+ * that low-priority bulk traffic already admitted does not delay the
+ * requests of a more important class. The class of an element is
+ * <tt>IClassEvent.getRequestClass()</tt>; other elements, and class -1,
+ * go to class 0, and classes beyond the last one go to the last one.
+ * As in ResponseTimeControllerMulticlass, a higher class is a more
+ * important one.
+ * <p/>
+ * Elements are dequeued in one of two orders:
+ * <ul>
+ * <li>WEIGHTED_FAIR: deficit round robin, where class c gets
+ * <tt>weight(c)</tt> elements per round (by default c+1);</li>
+ * <li>EARLIEST_DEADLINE: the head with the earliest deadline first, the
+ * deadline being the TimeStampedEvent timestamp (or the enqueue time)
+ * plus <tt>deadline(c)</tt> msec.</li>
+ * </ul>
+ * Besides the total capacity, each class may be given its own capacity,
+ * so that one class filling up cannot shut the others out.
+ * The queue records the depth and the queueing delay of every class,
+ * which the response time controllers can read.
+ *
+ * @see org.jcyclone.core.rtc.MulticlassRateLimitingPredicate
+ * @see org.jcyclone.core.rtc.ResponseTimeControllerMulticlass
+ */
+public class MulticlassBlockingQueue implements IBlockingQueue, IProfilable {
+
+	/**
+	 * Dequeue by deficit round robin over the class weights.
+	 */
+	public static final int WEIGHTED_FAIR = 0;
+	/**
+	 * Dequeue the element with the earliest deadline.
+	 */
+	public static final int EARLIEST_DEADLINE = 1;
+
+	private final ClassQueue[] queues;
+	private final int policy;
+	private int size;
+	private int reserved;
+	private int capacity;
+	private int current;   // round robin position
+
+	// transactional map
+	protected Map txnMap = Collections.synchronizedMap(new WeakHashMap());
+
+	/**
+	 * Create an unbounded queue for the given number of classes.
+	 *
+	 * @param numClasses the number of request classes
+	 * @param policy     WEIGHTED_FAIR or EARLIEST_DEADLINE
+	 */
+	public MulticlassBlockingQueue(int numClasses, int policy) {
+		this(numClasses, policy, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Create a queue for the given number of classes holding at most
+	 * <tt>capacity</tt> elements in total.
+	 */
+	public MulticlassBlockingQueue(int numClasses, int policy, int capacity) {
+		if (numClasses <= 0 || capacity <= 0) throw new IllegalArgumentException();
+		if (policy != WEIGHTED_FAIR && policy != EARLIEST_DEADLINE)
+			throw new IllegalArgumentException("Bad policy " + policy);
+		this.policy = policy;
+		this.capacity = capacity;
+		this.queues = new ClassQueue[numClasses];
+		for (int c = 0; c < numClasses; c++) {
+			queues[c] = new ClassQueue(c + 1);
+		}
+	}
+
+	/**
+	 * Return the number of request classes.
+	 */
+	public int numClasses() {
+		return queues.length;
+	}
+
+	/**
+	 * Return the dequeue policy.
+	 */
+	public int getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Set the number of elements class c may dequeue per round under
+	 * WEIGHTED_FAIR.
+	 */
+	public synchronized void setWeight(int c, int weight) {
+		if (weight <= 0) throw new IllegalArgumentException("weight must be positive");
+		queues[c].weight = weight;
+	}
+
+	public synchronized int getWeight(int c) {
+		return queues[c].weight;
+	}
+
+	/**
+	 * Set the time in msec within which elements of class c should be
+	 * dequeued under EARLIEST_DEADLINE.
+	 */
+	public synchronized void setDeadline(int c, long msecs) {
+		queues[c].deadline = msecs;
+	}
+
+	public synchronized long getDeadline(int c) {
+		return queues[c].deadline;
+	}
+
+	/**
+	 * Set the number of elements of class c the queue may hold.
+	 */
+	public synchronized void setCapacity(int c, int capacity) {
+		if (capacity <= 0) throw new IllegalArgumentException();
+		queues[c].capacity = capacity;
+		notifyAll();
+	}
+
+	public synchronized int capacity(int c) {
+		return queues[c].capacity;
+	}
+
+	/**
+	 * Return the number of elements of class c in the queue.
+	 */
+	public synchronized int size(int c) {
+		return queues[c].count;
+	}
+
+	/**
+	 * Return how long in msec the oldest element of class c has been
+	 * waiting, or 0 if there is none.
+	 */
+	public synchronized long getOldestWait(int c) {
+		ClassQueue q = queues[c];
+		if (q.count == 0) return 0;
+		return System.currentTimeMillis() - q.arrivals[q.head];
+	}
+
+	/**
+	 * Return the histogram of the time in msec elements of class c spent
+	 * in this queue. It is never reset by the queue.
+	 */
+	public LatencyHistogram getWaitTime(int c) {
+		return queues[c].waitTime;
+	}
+
+	private int classOf(IElement element) {
+		int c = 0;
+		if (element instanceof IClassEvent) {
+			c = ((IClassEvent) element).getRequestClass();
+			if (c < 0) c = 0;
+			if (c >= queues.length) c = queues.length - 1;
+		}
+		return c;
+	}
+
+	// Return the number of elements of each class in the list
+	private int[] countClasses(List elements) {
+		int[] counts = new int[queues.length];
+		for (int i = 0; i < elements.size(); i++) {
+			counts[classOf((IElement) elements.get(i))]++;
+		}
+		return counts;
+	}
+
+	// Call only under synch on this
+	private boolean full(int c) {
+		ClassQueue q = queues[c];
+		return size + reserved >= capacity || q.count + q.reserved >= q.capacity;
+	}
+
+	// Call only under synch on this
+	private boolean fits(int[] counts, int n) {
+		if ((long) size + reserved + n > capacity) return false;
+		for (int c = 0; c < queues.length; c++) {
+			ClassQueue q = queues[c];
+			if ((long) q.count + q.reserved + counts[c] > q.capacity) return false;
+		}
+		return true;
+	}
+
+	// Call only under synch on this
+	private void insert(IElement element, long now) {
+		queues[classOf(element)].add(element, now);
+		size++;
+	}
+
+	// Call only under synch on this
+	private IElement extract(long now) {
+		if (size == 0) return null;
+		ClassQueue q = (policy == WEIGHTED_FAIR) ? nextFair() : nextDeadline();
+		size--;
+		return q.remove(now);
+	}
+
+	private ClassQueue nextFair() {
+		for (; ;) {
+			ClassQueue q = queues[current];
+			if (q.count > 0 && q.deficit > 0) {
+				q.deficit--;
+				return q;
+			}
+			if (q.count == 0) q.deficit = 0;
+			current = (current + 1) % queues.length;
+			queues[current].deficit += queues[current].weight;
+		}
+	}
+
+	private ClassQueue nextDeadline() {
+		ClassQueue best = null;
+		long bestDeadline = 0;
+		// Ties go to the more important class
+		for (int c = queues.length - 1; c >= 0; c--) {
+			ClassQueue q = queues[c];
+			if (q.count == 0) continue;
+			long d = q.headDeadline();
+			if (best == null || d < bestDeadline) {
+				best = q;
+				bestDeadline = d;
+			}
+		}
+		return best;
+	}
+
+	private int extract(List list, IElement[] elements, int maxElements) {
+		int n;
+		synchronized (this) {
+			n = Math.min(maxElements, size);
+			if (n <= 0) return 0;
+			long now = System.currentTimeMillis();
+			for (int i = 0; i < n; i++) {
+				IElement e = extract(now);
+				if (list != null)
+					list.add(e);
+				else
+					elements[i] = e;
+			}
+			notifyAll();
+		}
+		return n;
+	}
+
+	private int blockingExtract(List list, IElement[] elements, int msecs, int maxElements) throws InterruptedException {
+		if (Thread.interrupted()) throw new InterruptedException();
+		synchronized (this) {
+			long start = (msecs <= 0) ? 0 : System.currentTimeMillis();
+			long waitTime = msecs;
+			while (size == 0) {
+				if (msecs >= 0 && waitTime <= 0) return 0;
+				if (msecs < 0)
+					wait();
+				else
+					wait(waitTime);
+				waitTime = msecs - (System.currentTimeMillis() - start);
+			}
+			return extract(list, elements, maxElements);
+		}
+	}
+
+	public IElement dequeue() {
+		synchronized (this) {
+			IElement e = extract(System.currentTimeMillis());
+			if (e != null) notifyAll();
+			return e;
+		}
+	}
+
+	public int dequeueAll(List list) {
+		if (list == null) throw new NullPointerException();
+		return extract(list, null, Integer.MAX_VALUE);
+	}
+
+	public int dequeue(List list, int maxElements) {
+		if (list == null) throw new NullPointerException();
+		return extract(list, null, maxElements);
+	}
+
+	public int dequeue(IElement[] elements, int maxElements) {
+		if (elements == null) throw new NullPointerException();
+		return extract(null, elements, Math.min(maxElements, elements.length));
+	}
+
+	public IElement blockingDequeue(int timeout_millis) throws InterruptedException {
+		IElement[] one = new IElement[1];
+		return (blockingExtract(null, one, timeout_millis, 1) == 0) ? null : one[0];
+	}
+
+	public int blockingDequeueAll(List list, int msecs) throws InterruptedException {
+		if (list == null) throw new NullPointerException();
+		return blockingExtract(list, null, msecs, Integer.MAX_VALUE);
+	}
+
+	public int blockingDequeue(List list, int msecs, int maxElements) throws InterruptedException {
+		if (list == null) throw new NullPointerException();
+		return blockingExtract(list, null, msecs, maxElements);
+	}
+
+	public int blockingDequeue(IElement[] elements, int msecs, int maxElements) throws InterruptedException {
+		if (elements == null) throw new NullPointerException();
+		return blockingExtract(null, elements, msecs, Math.min(maxElements, elements.length));
+	}
+
+	public void enqueue(IElement element) throws SinkException {
+		if (element == null) throw new NullPointerException();
+		synchronized (this) {
+			if (full(classOf(element))) throw new SinkFullException();
+			insert(element, System.currentTimeMillis());
+			notifyAll();
+		}
+	}
+
+	public boolean enqueueLossy(IElement element) {
+		if (element == null) throw new IllegalArgumentException();
+		synchronized (this) {
+			if (full(classOf(element))) return false;
+			insert(element, System.currentTimeMillis());
+			notifyAll();
+		}
+		return true;
+	}
+
+	public void enqueueMany(List elements) throws SinkException {
+		if (elements == null) throw new IllegalArgumentException();
+		int n = elements.size();
+		int[] counts = countClasses(elements);
+		synchronized (this) {
+			if (!fits(counts, n)) throw new SinkFullException();
+			long now = System.currentTimeMillis();
+			for (int i = 0; i < n; i++) {
+				insert((IElement) elements.get(i), now);
+			}
+			notifyAll();
+		}
+	}
+
+	public void blockingEnqueue(IElement element) throws InterruptedException {
+		if (element == null) throw new IllegalArgumentException();
+		if (Thread.interrupted()) throw new InterruptedException();
+		synchronized (this) {
+			int c = classOf(element);
+			while (full(c)) {
+				wait();
+			}
+			insert(element, System.currentTimeMillis());
+			notifyAll();
+		}
+	}
+
+	public boolean enqueueLossy(IElement element, int timeout_millis) throws InterruptedException {
+		if (element == null) throw new IllegalArgumentException();
+		if (Thread.interrupted()) throw new InterruptedException();
+		synchronized (this) {
+			long start = System.currentTimeMillis();
+			long waitTime = timeout_millis;
+			int c = classOf(element);
+			while (full(c)) {
+				if (waitTime <= 0) return false;
+				wait(waitTime);
+				waitTime = timeout_millis - (System.currentTimeMillis() - start);
+			}
+			insert(element, System.currentTimeMillis());
+			notifyAll();
+		}
+		return true;
+	}
+
+	public ITransaction enqueuePrepare(List elements) throws SinkException {
+		if (elements == null) throw new IllegalArgumentException();
+		int n = elements.size();
+		int[] counts = countClasses(elements);
+		synchronized (this) {
+			if (!fits(counts, n)) throw new SinkFullException();
+			reserve(counts, n);
+		}
+		Txn key = new Txn(n, counts);
+		txnMap.put(key, elements);
+		return key;
+	}
+
+	public void enqueuePrepare(List elements, ITransaction txn) throws SinkException {
+		txn.join(enqueuePrepare(elements));
+	}
+
+	private void enqueueCommit(Txn key) {
+		List list = (List) txnMap.remove(key);
+		if (list == null) throw new IllegalArgumentException("unknown key " + key);
+		if (list.size() != key.reservedSize) {
+			enqueueAbort(key.reservedClasses, key.reservedSize);
+			throw new IllegalStateException("transaction aborted: the size of the provisionally enqueued list has been modified");
+		}
+		synchronized (this) {
+			reserve(key.reservedClasses, -key.reservedSize);
+			long now = System.currentTimeMillis();
+			for (int i = 0; i < list.size(); i++) {
+				insert((IElement) list.get(i), now);
+			}
+			notifyAll();
+		}
+	}
+
+	private void enqueueAbort(Txn key) {
+		List list = (List) txnMap.remove(key);
+		if (list == null) throw new IllegalArgumentException("unknown key " + key);
+		enqueueAbort(key.reservedClasses, key.reservedSize);
+	}
+
+	private synchronized void enqueueAbort(int[] counts, int releasedPermits) {
+		reserve(counts, -releasedPermits);
+		notifyAll();
+	}
+
+	// Call only under synch on this; a negative n releases the permits
+	private void reserve(int[] counts, int n) {
+		int sign = (n < 0) ? -1 : 1;
+		reserved += n;
+		for (int c = 0; c < queues.length; c++) {
+			queues[c].reserved += sign * counts[c];
+		}
+	}
+
+	/**
+	 * Return the number of elements in the queue.
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized void setCapacity(int newCapacity) {
+		if (newCapacity <= 0) throw new IllegalArgumentException();
+		capacity = newCapacity;
+		notifyAll();
+	}
+
+	public synchronized int capacity() {
+		return capacity;
+	}
+
+	public int profileSize() {
+		return size();
+	}
+
+	public synchronized String toString() {
+		StringBuffer sb = new StringBuffer("MulticlassBlockingQueue [");
+		sb.append(policy == WEIGHTED_FAIR ? "fair" : "edf");
+		for (int c = 0; c < queues.length; c++) {
+			sb.append(", class").append(c).append('=').append(queues[c].count);
+		}
+		return sb.append(']').toString();
+	}
+
+	/**
+	 * The FIFO of one class: a growable ring of elements and their
+	 * enqueue times.
+	 */
+	private static class ClassQueue {
+		IElement[] elements = new IElement[16];
+		long[] arrivals = new long[16];
+		int head, count;
+		int capacity = Integer.MAX_VALUE;
+		int reserved;
+		int weight;
+		int deficit;
+		long deadline;
+		final LatencyHistogram waitTime = new LatencyHistogram();
+
+		ClassQueue(int weight) {
+			this.weight = weight;
+		}
+
+		void add(IElement e, long now) {
+			if (count == elements.length) grow();
+			int tail = (head + count) % elements.length;
+			elements[tail] = e;
+			arrivals[tail] = now;
+			count++;
+		}
+
+		IElement remove(long now) {
+			IElement e = elements[head];
+			elements[head] = null;
+			waitTime.record(now - arrivals[head]);
+			head = (head + 1) % elements.length;
+			count--;
+			return e;
+		}
+
+		long headDeadline() {
+			IElement e = elements[head];
+			long t = arrivals[head];
+			if (e instanceof TimeStampedEvent && ((TimeStampedEvent) e).timestamp != 0)
+				t = ((TimeStampedEvent) e).timestamp;
+			return t + deadline;
+		}
+
+		private void grow() {
+			int n = elements.length;
+			IElement[] ne = new IElement[n * 2];
+			long[] na = new long[n * 2];
+			for (int i = 0; i < count; i++) {
+				ne[i] = elements[(head + i) % n];
+				na[i] = arrivals[(head + i) % n];
+			}
+			elements = ne;
+			arrivals = na;
+			head = 0;
+		}
+	}
+
+	class Txn extends ITransaction.AbstractTransaction {
+		int reservedSize;
+		int[] reservedClasses;
+
+		public Txn(int size, int[] classes) {
+			this.reservedSize = size;
+			this.reservedClasses = classes;
+		}
+
+		protected void doCommit() {
+			MulticlassBlockingQueue.this.enqueueCommit(this);
+		}
+
+		protected void doAbort() {
+			MulticlassBlockingQueue.this.enqueueAbort(this);
+		}
+	}
+
+}
@@ -28,7 +28,11 @@ public class QueueProxy implements IQueue {
 	}
 
 	public int dequeue(List list, int maxElements) {
-		return dequeue(list, maxElements);
+		return q.dequeue(list, maxElements);
+	}
+
+	public int dequeue(IElement[] elements, int maxElements) {
+		return q.dequeue(elements, maxElements);
 	}
 
 	public IElement blockingDequeue(int timeout_millis) throws InterruptedException {
@@ -43,6 +47,10 @@ public class QueueProxy implements IQueue {
 		return q.blockingDequeue(list, msecs, maxElements);
 	}
 
+	public int blockingDequeue(IElement[] elements, int msecs, int maxElements) throws InterruptedException {
+		return q.blockingDequeue(elements, msecs, maxElements);
+	}
+
 	public int size() {
 		return q.size();
 	}
@@ -0,0 +1,613 @@
+package org.jcyclone.core.queue;
+
+import org.jcyclone.core.profiler.IProfilable;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * IBlockingQueue implementation built on a growable chain of array
+ * segments. Producers claim a slot with an atomic increment of the tail
+ * sequence and consumers claim runs of published slots with a CAS on the
+ * head sequence, so neither side takes a lock on the fast path and
+ * <tt>size()</tt> is a plain read.
+ * <p/>
+ * A new segment is linked in each time the producers run past the last
+ * one. Once the consumers have cleared every slot of a segment its slot
+ * array is kept as a spare and handed to the next segment, so a queue in
+ * steady state only allocates the small segment header every
+ * <tt>segmentSize</tt> puts; the slot arrays are only allocated when the
+ * queue grows. The capacity is a logical bound on the number of queued (and
+ * provisionally enqueued) elements and may be changed at any time with
+ * <tt>setCapacity</tt>.
+ * <p/>
+ * Consumers block on a monitor when they find no published element, and
+ * producers only take that monitor when a consumer is waiting. Dequeuing into a list never
+ * allocates.
+ *
+ * @see DynamicArrayBlockingQueue
+ */
+public class SegmentedArrayBlockingQueue implements IBlockingQueue, IProfilable {
+
+	private static final boolean DEBUG = false;
+
+	public static final int DEFAULT_SEGMENT_SIZE = 256;
+
+	private static final AtomicReferenceFieldUpdater NEXT_UPDATER =
+	    AtomicReferenceFieldUpdater.newUpdater(Segment.class, Segment.class, "next");
+
+	private static final AtomicIntegerFieldUpdater CLEARED_UPDATER =
+	    AtomicIntegerFieldUpdater.newUpdater(Segment.class, "cleared");
+
+	/*
+	 * A segment header is never reused, so a thread holding a stale hint
+	 * can always walk forward through next. Only the slot array is
+	 * recycled, and only after every slot has been claimed and cleared:
+	 * a consumer reading a slot of a recycled array cannot win the CAS on
+	 * head, since head is already past the segment.
+	 */
+	static final class Segment {
+		final long base;                      // sequence of the first slot
+		final AtomicReferenceArray slots;
+		volatile Segment next;
+		volatile int cleared;                 // slots taken and nulled
+
+		Segment(long base, AtomicReferenceArray slots) {
+			this.base = base;
+			this.slots = slots;
+		}
+	}
+
+	protected final int segmentSize;
+	protected final int segmentMask;
+
+	// next sequence to take and next sequence to put
+	protected final AtomicLong head = new AtomicLong();
+	protected final AtomicLong tail = new AtomicLong();
+
+	// hints: segments holding (or preceding) head and tail
+	protected final AtomicReference headSeg;
+	protected final AtomicReference tailSeg;
+
+	// drained slot array waiting to be reused by the next segment
+	protected final AtomicReference spare = new AtomicReference();
+
+	// elements visible to consumers, including ones being published
+	protected final AtomicInteger count = new AtomicInteger();
+	// count plus provisionally enqueued elements; bounded by capacity
+	protected final AtomicInteger used = new AtomicInteger();
+
+	protected volatile int capacity;      // number of elements allowed
+
+	protected volatile ISourceListener listener;
+
+	protected volatile int waitingTakes;  // counts of waiting threads
+	protected volatile int waitingPuts;
+
+	/**
+	 * Helper monitor on which consumers wait while the queue is empty.
+	 */
+	protected final Object takeMonitor = new Object();
+
+	/**
+	 * Helper monitor on which producers wait while the queue is full.
+	 */
+	protected final Object putMonitor = new Object();
+
+	// transactional map
+	protected Map txnMap = Collections.synchronizedMap(new WeakHashMap());
+
+	/**
+	 * Create an unbounded queue with the default segment size.
+	 */
+	public SegmentedArrayBlockingQueue() {
+		this(DEFAULT_SEGMENT_SIZE, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Create a queue with the given segment size (rounded up to a power of
+	 * two) and capacity.
+	 *
+	 * @throws IllegalArgumentException if a size is less or equal to zero
+	 */
+	public SegmentedArrayBlockingQueue(int segmentSize, int maxCapacity) throws IllegalArgumentException {
+		if (segmentSize <= 0 || maxCapacity <= 0) throw new IllegalArgumentException();
+		int size = 1;
+		while (size < segmentSize) size <<= 1;
+		this.segmentSize = size;
+		this.segmentMask = size - 1;
+		this.capacity = maxCapacity;
+		Segment first = new Segment(0, new AtomicReferenceArray(size));
+		headSeg = new AtomicReference(first);
+		tailSeg = new AtomicReference(first);
+	}
+
+// --------------------- Interface ISink ---------------------
+
+	public void enqueue(IElement element) throws SinkException {
+		if (!enqueueLossy(element))
+			throw new SinkFullException();
+	}
+
+	public boolean enqueueLossy(IElement element) {
+		if (element == null) throw new IllegalArgumentException();
+		if (!reserve(1))
+			return false;
+		publish(element);
+		return true;
+	}
+
+	public void enqueueMany(List elements) throws SinkException {
+		int size = checkElements(elements);
+		if (size == 0)
+			return;
+		if (!reserve(size))
+			throw new SinkFullException();
+		publishMany(elements, size);
+	}
+
+	public ITransaction enqueuePrepare(List elements) throws SinkException {
+		int size = checkElements(elements);
+		if (!reserve(size))
+			throw new SinkFullException();
+		Txn key = new Txn(size);
+		txnMap.put(key, elements);
+		return key;
+	}
+
+	public void enqueuePrepare(List elements, ITransaction txn) throws SinkException {
+		txn.join(enqueuePrepare(elements));
+	}
+
+	class Txn extends ITransaction.AbstractTransaction {
+		int reservedSize;
+
+		public Txn(int size) {
+			this.reservedSize = size;
+		}
+
+		protected void doCommit() {
+			SegmentedArrayBlockingQueue.this.enqueueCommit(this);
+		}
+
+		protected void doAbort() {
+			SegmentedArrayBlockingQueue.this.enqueueAbort(this);
+		}
+	}
+
+	private void enqueueCommit(Txn key) {
+		List list = (List) txnMap.remove(key);
+		if (list == null) throw new IllegalArgumentException("unknown key " + key);
+		if (list.size() != key.reservedSize) {
+			release(key.reservedSize);  // abort
+			throw new IllegalStateException("transaction aborted: the size of the provisionally enqueued list has been modified");
+		}
+		if (key.reservedSize > 0)
+			publishMany(list, key.reservedSize);
+	}
+
+	private void enqueueAbort(Txn key) {
+		List list = (List) txnMap.remove(key);
+		if (list == null) throw new IllegalArgumentException("unknown key " + key);
+		release(key.reservedSize);
+	}
+
+	/**
+	 * Return the number of elements in the queue.
+	 * This is only a snapshot value, that may change
+	 * immediately after returning.
+	 */
+	public int size() {
+		return count.get();
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Reset the capacity of this queue. If the new capacity is less than
+	 * the current size, existing elements are kept but puts will fail until
+	 * the queue has drained below the new capacity.
+	 */
+	public void setCapacity(int newCapacity) {
+		if (newCapacity <= 0) throw new IllegalArgumentException();
+		int oldCapacity = capacity;
+		capacity = newCapacity;
+		if (newCapacity > oldCapacity && waitingPuts > 0) {
+			synchronized (putMonitor) {
+				putMonitor.notifyAll();
+			}
+		}
+	}
+
+// --------------------- Interface IBlockingSink ---------------------
+
+	public void blockingEnqueue(IElement element) throws InterruptedException {
+		if (element == null) throw new IllegalArgumentException();
+		if (Thread.interrupted()) throw new InterruptedException();
+		while (!reserve(1)) {
+			awaitNotFull(-1, 0);
+		}
+		publish(element);
+	}
+
+	public boolean enqueueLossy(IElement element, int msecs) throws InterruptedException {
+		if (element == null) throw new IllegalArgumentException();
+		if (Thread.interrupted()) throw new InterruptedException();
+		long start = (msecs <= 0) ? 0 : System.currentTimeMillis();
+		while (!reserve(1)) {
+			if (!awaitNotFull(msecs, start))
+				return false;
+		}
+		publish(element);
+		return true;
+	}
+
+// --------------------- Interface ISource ---------------------
+
+	public IElement dequeue() {
+		for (; ;) {
+			Segment seg = (Segment) headSeg.get();
+			long h = head.get();
+			seg = segmentFor(seg, h);
+			int offset = (int) (h & segmentMask);
+			IElement x = (IElement) seg.slots.get(offset);
+			if (x == null)
+				return null;
+			if (head.compareAndSet(h, h + 1)) {
+				seg.slots.lazySet(offset, null);
+				advance(headSeg, seg);
+				cleared(seg, 1);
+				taken(1);
+				return x;
+			}
+		}
+	}
+
+	public int dequeueAll(List list) {
+		if (list == null) throw new NullPointerException();
+		return extract(list, null, Integer.MAX_VALUE);
+	}
+
+	public int dequeue(List list, int maxElements) {
+		if (list == null) throw new NullPointerException();
+		if (maxElements <= 0) return 0;
+		return extract(list, null, maxElements);
+	}
+
+	public int dequeue(IElement[] elements, int maxElements) {
+		if (elements == null) throw new NullPointerException();
+		maxElements = Math.min(maxElements, elements.length);
+		if (maxElements <= 0) return 0;
+		return extract(null, elements, maxElements);
+	}
+
+// --------------------- Interface IBlockingSource ---------------------
+
+	public IElement blockingDequeue(int timeout_millis) throws InterruptedException {
+		if (Thread.interrupted()) throw new InterruptedException();
+		long start = (timeout_millis <= 0) ? 0 : System.currentTimeMillis();
+		for (; ;) {
+			IElement x = dequeue();
+			if (x != null)
+				return x;
+			if (!awaitNotEmpty(timeout_millis, start))
+				return null;
+		}
+	}
+
+	public int blockingDequeueAll(List list, int msecs) throws InterruptedException {
+		return blockingDequeue(list, msecs, Integer.MAX_VALUE);
+	}
+
+	public int blockingDequeue(List list, int msecs, int maxElements) throws InterruptedException {
+		if (list == null) throw new NullPointerException();
+		return blockingExtract(list, null, msecs, maxElements);
+	}
+
+	public int blockingDequeue(IElement[] elements, int msecs, int maxElements) throws InterruptedException {
+		if (elements == null) throw new NullPointerException();
+		return blockingExtract(null, elements, msecs, Math.min(maxElements, elements.length));
+	}
+
+	private int blockingExtract(List list, IElement[] elements, int msecs, int maxElements) throws InterruptedException {
+		if (maxElements <= 0) return 0;
+		if (Thread.interrupted()) throw new InterruptedException();
+		int n = extract(list, elements, maxElements);
+		if (n > 0)
+			return n;
+		long start = (msecs <= 0) ? 0 : System.currentTimeMillis();
+		for (; ;) {
+			if (!awaitNotEmpty(msecs, start))
+				return 0;
+			n = extract(list, elements, maxElements);
+			if (n > 0)
+				return n;
+		}
+	}
+
+// -------------------------- OTHER METHODS --------------------------
+
+	/**
+	 * Register a listener to be told when this queue goes from empty to
+	 * non-empty. Pass null to remove it.
+	 */
+	public void setSourceListener(ISourceListener listener) {
+		this.listener = listener;
+	}
+
+	public IElement peek() {
+		for (; ;) {
+			Segment seg = (Segment) headSeg.get();
+			long h = head.get();
+			seg = segmentFor(seg, h);
+			IElement x = (IElement) seg.slots.get((int) (h & segmentMask));
+			// the slot array may have been recycled if head moved on
+			if (head.get() == h)
+				return x;
+		}
+	}
+
+	/**
+	 * Drop the spare slot array and any drained segments still pinned by a
+	 * lagging producer hint.
+	 */
+	public void trimToSize() {
+		spare.set(null);
+		advance(tailSeg, (Segment) headSeg.get());
+	}
+
+	public int profileSize() {
+		return size();
+	}
+
+	private int checkElements(List elements) {
+		if (elements == null) throw new IllegalArgumentException();
+		int size = elements.size();
+		for (int i = 0; i < size; i++) {
+			if (elements.get(i) == null) throw new IllegalArgumentException();
+		}
+		return size;
+	}
+
+	/**
+	 * Take n permits out of the capacity; return false if the queue is full.
+	 */
+	protected final boolean reserve(int n) {
+		for (; ;) {
+			int u = used.get();
+			int next = u + n;
+			if (next > capacity || next < 0)
+				return false;
+			if (used.compareAndSet(u, next))
+				return true;
+		}
+	}
+
+	/**
+	 * Give back n permits and wake up blocked producers, if any.
+	 */
+	protected final void release(int n) {
+		used.addAndGet(-n);
+		if (waitingPuts > 0) {
+			synchronized (putMonitor) {
+				putMonitor.notifyAll();
+			}
+		}
+	}
+
+	private void publish(IElement x) { // mechanics of put
+		Segment seg = (Segment) tailSeg.get();
+		long seq = tail.getAndIncrement();
+		int prev = count.getAndIncrement();
+		seg = segmentFor(seg, seq);
+		seg.slots.set((int) (seq & segmentMask), x);
+		advance(tailSeg, seg);
+		if (prev == 0)
+			becameNotEmpty(false);
+		else
+			signalNotEmpty(false);
+	}
+
+	private void publishMany(List elements, int size) {
+		Segment seg = (Segment) tailSeg.get();
+		long seq = tail.getAndAdd(size);
+		int prev = count.getAndAdd(size);
+		for (int i = 0; i < size; i++, seq++) {
+			seg = segmentFor(seg, seq);
+			seg.slots.set((int) (seq & segmentMask), elements.get(i));
+		}
+		advance(tailSeg, seg);
+		if (prev == 0)
+			becameNotEmpty(size > 1);
+		else
+			signalNotEmpty(size > 1);
+	}
+
+	/**
+	 * Claim the run of published elements at the head of the queue, up to
+	 * maxElements, and add them to the list, or store them in the array if
+	 * the list is null; return the number taken.
+	 */
+	private int extract(List list, IElement[] elements, int maxElements) {
+		for (; ;) {
+			Segment first = (Segment) headSeg.get();
+			long h = head.get();
+			first = segmentFor(first, h);
+
+			// Count the published slots; they cannot change until claimed
+			Segment seg = first;
+			int n = 0;
+			long seq = h;
+			while (n < maxElements) {
+				int offset = (int) (seq & segmentMask);
+				if (offset == 0 && seq != h) {
+					seg = seg.next;
+					if (seg == null) break;
+				}
+				if (seg.slots.get(offset) == null) break;
+				n++;
+				seq++;
+			}
+			if (n == 0)
+				return 0;
+			if (!head.compareAndSet(h, h + n))
+				continue;
+
+			seg = first;
+			int run = 0;
+			for (seq = h; seq < h + n; seq++) {
+				int offset = (int) (seq & segmentMask);
+				if (offset == 0 && seq != h) {
+					Segment next = seg.next;
+					cleared(seg, run);
+					seg = next;
+					run = 0;
+				}
+				if (list != null)
+					list.add(seg.slots.get(offset));
+				else
+					elements[(int) (seq - h)] = (IElement) seg.slots.get(offset);
+				seg.slots.lazySet(offset, null);
+				run++;
+			}
+			advance(headSeg, seg);
+			cleared(seg, run);
+			taken(n);
+			return n;
+		}
+	}
+
+	/**
+	 * Record that n slots of seg have been taken and nulled; the consumer
+	 * clearing the last one keeps the slot array as the spare.
+	 */
+	private void cleared(Segment seg, int n) {
+		if (CLEARED_UPDATER.addAndGet(seg, n) == segmentSize)
+			spare.set(seg.slots);
+	}
+
+	private void taken(int n) {
+		int remaining = count.addAndGet(-n);
+		release(n);
+		// pass the wakeup on if other consumers are still waiting
+		if (remaining > 0)
+			signalNotEmpty(false);
+	}
+
+	private void becameNotEmpty(boolean all) {
+		signalNotEmpty(all);
+		ISourceListener l = listener;
+		if (l != null)
+			l.sourceNotEmpty(this);
+	}
+
+	private void signalNotEmpty(boolean all) {
+		if (waitingTakes > 0) {
+			synchronized (takeMonitor) {
+				if (DEBUG) System.err.println("SegmentedArrayBlockingQueue: waking " + (all ? "all" : "one") + " of " + waitingTakes);
+				if (all)
+					takeMonitor.notifyAll();
+				else
+					takeMonitor.notify();
+			}
+		}
+	}
+
+	/**
+	 * Wait until an element has been published at the head of the queue.
+	 * A negative timeout waits forever. Return false if the timeout expired.
+	 * <p/>
+	 * The element counted by a producer may not be visible yet; since
+	 * producers signal after storing whenever a consumer is waiting, this
+	 * waits for the head slot rather than for the count.
+	 */
+	private boolean awaitNotEmpty(int msecs, long start) throws InterruptedException {
+		synchronized (takeMonitor) {
+			++waitingTakes;
+			try {
+				while (peek() == null) {
+					long waitTime = 0;
+					if (msecs >= 0) {
+						waitTime = msecs - (System.currentTimeMillis() - start);
+						if (waitTime <= 0) return false;
+					}
+					takeMonitor.wait(waitTime);
+				}
+				return true;
+			} catch (InterruptedException ex) {
+				takeMonitor.notify();
+				throw ex;
+			} finally {
+				--waitingTakes;
+			}
+		}
+	}
+
+	/**
+	 * Wait until the queue has a free slot. A negative timeout waits forever.
+	 * Return false if the timeout expired.
+	 */
+	private boolean awaitNotFull(int msecs, long start) throws InterruptedException {
+		synchronized (putMonitor) {
+			++waitingPuts;
+			try {
+				while (used.get() >= capacity) {
+					long waitTime = 0;
+					if (msecs >= 0) {
+						waitTime = msecs - (System.currentTimeMillis() - start);
+						if (waitTime <= 0) return false;
+					}
+					putMonitor.wait(waitTime);
+				}
+				return true;
+			} catch (InterruptedException ex) {
+				putMonitor.notify();
+				throw ex;
+			} finally {
+				--waitingPuts;
+			}
+		}
+	}
+
+	/**
+	 * Walk forward from seg to the segment holding seq, linking in new
+	 * segments as needed. seg must not be past seq.
+	 */
+	private Segment segmentFor(Segment seg, long seq) {
+		long base = seq & ~((long) segmentMask);
+		while (seg.base < base) {
+			Segment next = seg.next;
+			if (next == null) {
+				AtomicReferenceArray slots = (AtomicReferenceArray) spare.getAndSet(null);
+				if (slots == null)
+					slots = new AtomicReferenceArray(segmentSize);
+				next = new Segment(seg.base + segmentSize, slots);
+				if (!NEXT_UPDATER.compareAndSet(seg, null, next)) {
+					spare.compareAndSet(null, slots);
+					next = seg.next;
+				}
+			}
+			seg = next;
+		}
+		return seg;
+	}
+
+	private static void advance(AtomicReference hint, Segment seg) {
+		for (; ;) {
+			Segment cur = (Segment) hint.get();
+			if (cur.base >= seg.base || hint.compareAndSet(cur, seg))
+				return;
+		}
+	}
+
+}
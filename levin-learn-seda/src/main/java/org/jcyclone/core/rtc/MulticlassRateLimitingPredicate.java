@@ -26,12 +26,16 @@ package org.jcyclone.core.rtc;
 
 import org.jcyclone.core.queue.IElement;
 import org.jcyclone.core.queue.ISink;
-import org.jcyclone.util.StatsGatherer;
 
 import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * This enqueue predicate implements multiclass input rate policing.
+ * This enqueue predicate implements multiclass input rate policing, with
+ * one lock-free TokenBucket per request class. Elements which are not
+ * IClassEvents, or have class -1, belong to class 0.
+ *
+ * @see TokenBucket
  */
 public class MulticlassRateLimitingPredicate implements IEnqueuePredicate {
 
@@ -39,18 +43,11 @@ public class MulticlassRateLimitingPredicate implements IEnqueuePredicate {
 
 	private ISink thesink;
 	private int NUM_CLASSES;
-	private double targetRate[];
-	private int depth[];
-	private double tokenCount[];
-	private double regenTimeMS[];
-	private long lasttime[];
-
-	// Number of milliseconds between regenerations
-	private long MIN_REGEN_TIME = 0;
+	private TokenBucket bucket[];
 
 	private static final boolean PROFILE = true;
-	private StatsGatherer interArrivalStats;
-	private StatsGatherer acceptArrivalStats;
+	private LongAdder acceptCount[];
+	private LongAdder rejectCount[];
 
 	/**
 	 * Create a new RateLimitingPredicate for the given sink,
@@ -60,29 +57,30 @@ public class MulticlassRateLimitingPredicate implements IEnqueuePredicate {
 		this.thesink = sink;
 		this.NUM_CLASSES = numclasses;
 
-		this.targetRate = new double[NUM_CLASSES];
-		this.depth = new int[NUM_CLASSES];
-		this.regenTimeMS = new double[NUM_CLASSES];
-		this.tokenCount = new double[NUM_CLASSES];
-		this.lasttime = new long[NUM_CLASSES];
-
+		this.bucket = new TokenBucket[NUM_CLASSES];
 		for (int c = 0; c < NUM_CLASSES; c++) {
-			this.targetRate[c] = targetRate;
-			this.regenTimeMS[c] = (1.0 / this.targetRate[c]) * 1.0e3;
-			if (this.regenTimeMS[c] < 1) this.regenTimeMS[c] = 1;
-			this.depth[c] = depth;
-			this.tokenCount[c] = depth * 1.0;
-			this.lasttime[c] = System.currentTimeMillis();
+			this.bucket[c] = new TokenBucket(targetRate, depth);
 		}
 
 		System.err.println("MulticlassRateLimitingPredicate<" + sink.toString() + ">: Created");
 
 		if (PROFILE) {
-			interArrivalStats = new StatsGatherer("IA<" + sink.toString() + ">",
-			    "IA<" + sink.toString() + ">", 1, 0);
-			acceptArrivalStats = new StatsGatherer("AA<" + sink.toString() + ">",
-			    "AA<" + sink.toString() + ">", 1, 0);
+			acceptCount = new LongAdder[NUM_CLASSES];
+			rejectCount = new LongAdder[NUM_CLASSES];
+			for (int c = 0; c < NUM_CLASSES; c++) {
+				acceptCount[c] = new LongAdder();
+				rejectCount[c] = new LongAdder();
+			}
+		}
+	}
+
+	private static int classOf(Object qel) {
+		int c = 0;
+		if (qel instanceof IClassEvent) {
+			c = ((IClassEvent) qel).getRequestClass();
+			if (c == -1) c = 0;
 		}
+		return c;
 	}
 
 	/**
@@ -92,71 +90,103 @@ public class MulticlassRateLimitingPredicate implements IEnqueuePredicate {
 
 		if (DEBUG) System.err.println("MCRLP <" + thesink.toString() + ": Got " + qel);
 
-		int c = 0;
-		if (qel instanceof IClassEvent) {
-			IClassEvent cqel = (IClassEvent) qel;
-			c = cqel.getRequestClass();
-			if (c == -1) c = 0;
-		}
+		int c = classOf(qel);
 		if (DEBUG) System.err.println("MCRLP <" + thesink.toString() + ": Class is " + c);
 
-		if (targetRate[c] == -1.0) return true;
-
-		// First regenerate tokens
-		long curtime = System.currentTimeMillis();
-		long delay = curtime - lasttime[c];
+		return admit(c, bucket[c].tryAcquire(1), 1);
+	}
 
-		if (PROFILE) {
-			interArrivalStats.add(delay);
-		}
+	/**
+	 * Returns true if all of the given elements can be accepted into the
+	 * queue; each class must have tokens for all of its elements, or none
+	 * are taken.
+	 */
+	public boolean acceptMany(List elements) {
+		if (elements == null) return true;
+		int n = elements.size();
+		if (n == 0) return true;
 
-		if (delay >= MIN_REGEN_TIME) {
-			double numTokens = ((double) delay * 1.0) / (regenTimeMS[c] * 1.0);
-			tokenCount[c] += numTokens;
-			if (tokenCount[c] > depth[c]) tokenCount[c] = depth[c];
-			lasttime[c] = curtime;
+		int[] counts = new int[NUM_CLASSES];
+		for (int i = 0; i < n; i++) {
+			counts[classOf(elements.get(i))]++;
 		}
-
-		if (tokenCount[c] >= 1.0) {
-			tokenCount[c] -= 1.0;
-			if (PROFILE) {
-				acceptArrivalStats.add(delay);
+		for (int c = 0; c < NUM_CLASSES; c++) {
+			if (counts[c] == 0) continue;
+			if (!bucket[c].tryAcquire(counts[c])) {
+				// Give back what the earlier classes took
+				for (int d = 0; d < c; d++) {
+					bucket[d].release(counts[d]);
+				}
+				for (int d = 0; d < NUM_CLASSES; d++) {
+					if (counts[d] != 0) admit(d, false, counts[d]);
+				}
+				return false;
 			}
-			return true;
-		} else {
-			return false;
 		}
+		for (int c = 0; c < NUM_CLASSES; c++) {
+			if (counts[c] != 0) admit(c, true, counts[c]);
+		}
+		return true;
 	}
 
+	/**
+	 * Wait as long as it takes until a token of the element's class is
+	 * available. If the class bucket can never grant a token (a rate of 0)
+	 * this returns at once and the element goes through, as blockingAccept
+	 * has no way to reject it; use blockingAccept(IElement, long) to find
+	 * out. This is the same in RateLimitingPredicate.
+	 */
 	public void blockingAccept(IElement element) {
-		// XXX JM: not implemented yet
-		throw new UnsupportedOperationException("not implemented yet");
+		blockingAccept(element, Long.MAX_VALUE);
 	}
 
-	public boolean acceptMany(List elements) {
-		// XXX JM: not implemented yet
-		throw new UnsupportedOperationException("not implemented yet");
+	/**
+	 * Wait up to <tt>timeoutMillis</tt> msec until the element can be
+	 * accepted. Returns false if it could not be accepted in time.
+	 */
+	public boolean blockingAccept(IElement element, long timeoutMillis) {
+		int c = classOf(element);
+		long timeout = (timeoutMillis >= Long.MAX_VALUE / 1000000L) ?
+		    Long.MAX_VALUE : timeoutMillis * 1000000L;
+		return admit(c, bucket[c].acquire(1, timeout), 1);
+	}
+
+	private boolean admit(int c, boolean accepted, int n) {
+		if (PROFILE) {
+			if (accepted)
+				acceptCount[c].add(n);
+			else
+				rejectCount[c].add(n);
+		}
+		return accepted;
 	}
 
 	/**
 	 * Return the current rate limit.
 	 */
 	public double getTargetRate(int theclass) {
-		return targetRate[theclass];
+		return bucket[theclass].getRate();
 	}
 
 	/**
 	 * Return the current depth.
 	 */
 	public int getDepth(int theclass) {
-		return depth[theclass];
+		return bucket[theclass].getDepth();
 	}
 
 	/**
 	 * Return the number of tokens currently in the bucket.
 	 */
 	public int getBucketSize(int theclass) {
-		return (int) tokenCount[theclass];
+		return bucket[theclass].available();
+	}
+
+	/**
+	 * Return the token bucket of the given class.
+	 */
+	public TokenBucket getBucket(int theclass) {
+		return bucket[theclass];
 	}
 
 	/**
@@ -164,20 +194,32 @@ public class MulticlassRateLimitingPredicate implements IEnqueuePredicate {
 	 */
 	public void setTargetRate(int theclass, double targetRate) {
 		// Kill off old tokens if reducing rate
-		if (targetRate < this.targetRate[theclass]) {
-			this.tokenCount[theclass] = 0;
-		}
-
-		this.targetRate[theclass] = targetRate;
-		this.regenTimeMS[theclass] = (1.0 / targetRate) * 1.0e3;
-		if (regenTimeMS[theclass] < 1) regenTimeMS[theclass] = 1;
+		boolean reducing = (targetRate < bucket[theclass].getRate());
+		bucket[theclass].setRate(targetRate);
+		if (reducing) bucket[theclass].drain();
 	}
 
 	/**
 	 * Set the bucket depth.
 	 */
 	public void setDepth(int theclass, int depth) {
-		this.depth[theclass] = depth;
+		bucket[theclass].setDepth(depth);
+	}
+
+	/**
+	 * Return the number of elements of the given class accepted, or -1
+	 * without profiling.
+	 */
+	public long getAcceptCount(int theclass) {
+		return PROFILE ? acceptCount[theclass].sum() : -1;
+	}
+
+	/**
+	 * Return the number of elements of the given class rejected, or -1
+	 * without profiling.
+	 */
+	public long getRejectCount(int theclass) {
+		return PROFILE ? rejectCount[theclass].sum() : -1;
 	}
 
 }
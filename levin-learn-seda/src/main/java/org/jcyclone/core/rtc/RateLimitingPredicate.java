@@ -24,32 +24,42 @@
 
 package org.jcyclone.core.rtc;
 
+import org.jcyclone.core.internal.LatencyHistogram;
 import org.jcyclone.core.queue.IElement;
 import org.jcyclone.core.queue.ISink;
-import org.jcyclone.util.StatsGatherer;
 
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * This enqueue predicate implements input rate policing.
+ * This enqueue predicate implements input rate policing with a
+ * lock-free TokenBucket, so it may be shared by all the threads that
+ * enqueue onto a sink. Each element takes one token; acceptMany admits a
+ * whole list or none of it, and blockingAccept waits for tokens.
+ * <p/>
+ * With profiling, only about one arrival in PROFILE_SAMPLE is timed, so
+ * that the threads admitting elements do not all write the same shared
+ * timestamp; the inter-arrival histogram holds the mean inter-arrival
+ * time over each sampled run of arrivals.
+ *
+ * @see TokenBucket
  */
 public class RateLimitingPredicate implements IEnqueuePredicate {
 
 	private static final boolean DEBUG = false;
 
 	private ISink thesink;
-	private double targetRate;
-	private int depth;
-	private double tokenCount;
-	private double regenTimeMS;
-	private long lasttime;
-
-	// Number of milliseconds between regenerations
-	private long MIN_REGEN_TIME = 0;
+	private TokenBucket bucket;
 
 	private static final boolean PROFILE = true;
-	private StatsGatherer interArrivalStats;
-	private StatsGatherer acceptArrivalStats;
+	private static final int PROFILE_SAMPLE = 64;
+	private LongAdder acceptCount;
+	private LongAdder rejectCount;
+	private AtomicLong lastArrival;
+	private LatencyHistogram interArrivalStats;   // usec
 
 	/**
 	 * Create a new RateLimitingPredicate for the given sink,
@@ -57,20 +67,15 @@ public class RateLimitingPredicate implements IEnqueuePredicate {
 	 */
 	public RateLimitingPredicate(ISink sink, double targetRate, int depth) {
 		this.thesink = sink;
-		this.targetRate = targetRate;
-		this.regenTimeMS = (1.0 / targetRate) * 1.0e3;
-		if (this.regenTimeMS < 1) this.regenTimeMS = 1;
-		this.depth = depth;
-		this.tokenCount = depth * 1.0;
-		this.lasttime = System.currentTimeMillis();
+		this.bucket = new TokenBucket(targetRate, depth);
 
 		System.err.println("RateLimitingPredicate<" + sink.toString() + ">: Created");
 
 		if (PROFILE) {
-			interArrivalStats = new StatsGatherer("IA<" + sink.toString() + ">",
-			    "IA<" + sink.toString() + ">", 1, 0);
-			acceptArrivalStats = new StatsGatherer("AA<" + sink.toString() + ">",
-			    "AA<" + sink.toString() + ">", 1, 0);
+			acceptCount = new LongAdder();
+			rejectCount = new LongAdder();
+			lastArrival = new AtomicLong(System.nanoTime());
+			interArrivalStats = new LatencyHistogram();
 		}
 	}
 
@@ -78,79 +83,118 @@ public class RateLimitingPredicate implements IEnqueuePredicate {
 	 * Returns true if the given element can be accepted into the queue.
 	 */
 	public boolean accept(IElement qel) {
-		if (targetRate == -1.0) return true;
-
-		// First regenerate tokens
-		long curtime = System.currentTimeMillis();
-		long delay = curtime - lasttime;
-
-		if (PROFILE) {
-			interArrivalStats.add(delay);
-		}
+		return admit(bucket.tryAcquire(1), 1);
+	}
 
-		if (delay >= MIN_REGEN_TIME) {
-			double numTokens = ((double) delay * 1.0) / (regenTimeMS * 1.0);
-			tokenCount += numTokens;
-			if (tokenCount > depth) tokenCount = depth;
-			lasttime = curtime;
-		}
+	/**
+	 * Returns true if all of the given elements can be accepted into the
+	 * queue. Either all of them take a token or none does.
+	 */
+	public boolean acceptMany(List elements) {
+		int n = (elements == null) ? 0 : elements.size();
+		return admit(bucket.tryAcquire(n), n);
+	}
 
-		if (tokenCount >= 1.0) {
-			tokenCount -= 1.0;
-			if (PROFILE) {
-				acceptArrivalStats.add(delay);
-			}
-			return true;
-		} else {
-			return false;
+	/**
+	 * Wait as long as it takes until the element can be accepted. If the
+	 * bucket can never grant a token (a rate of 0) this returns at once and
+	 * the element goes through, as blockingAccept has no way to reject it;
+	 * use blockingAccept(IElement, long) to find out. This is the same in
+	 * MulticlassRateLimitingPredicate.
+	 */
+	public void blockingAccept(IElement element) {
+		if (!admit(bucket.acquire(1, Long.MAX_VALUE), 1)) {
+			if (DEBUG) System.err.println("RateLimitingPredicate<" + thesink + ">: blockingAccept cannot wait for a token");
 		}
 	}
 
-	public void blockingAccept(IElement element) {
-		// XXX JM: not implemented yet
-		throw new UnsupportedOperationException("not implemented yet");
+	/**
+	 * Wait up to <tt>timeoutMillis</tt> msec until the element can be
+	 * accepted. Returns false if it could not be accepted in time.
+	 */
+	public boolean blockingAccept(IElement element, long timeoutMillis) {
+		long timeout = (timeoutMillis >= Long.MAX_VALUE / 1000000L) ?
+		    Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		return admit(bucket.acquire(1, timeout), 1);
 	}
 
-	public boolean acceptMany(List elements) {
-		// XXX JM: not implemented yet
-		throw new UnsupportedOperationException("not implemented yet");
+	private boolean admit(boolean accepted, int n) {
+		if (PROFILE) {
+			// Between two samples there are PROFILE_SAMPLE arrivals on average
+			if (ThreadLocalRandom.current().nextInt(PROFILE_SAMPLE) == 0) {
+				long now = System.nanoTime();
+				interArrivalStats.record((now - lastArrival.getAndSet(now)) / (1000L * PROFILE_SAMPLE));
+			}
+			if (accepted)
+				acceptCount.add(n);
+			else
+				rejectCount.add(n);
+		}
+		return accepted;
 	}
 
 	/**
 	 * Return the current rate limit.
 	 */
 	public double getTargetRate() {
-		return targetRate;
+		return bucket.getRate();
 	}
 
 	/**
 	 * Return the current depth.
 	 */
 	public int getDepth() {
-		return depth;
+		return bucket.getDepth();
 	}
 
 	/**
 	 * Return the number of tokens currently in the bucket.
 	 */
 	public int getBucketSize() {
-		return (int) tokenCount;
+		return bucket.available();
+	}
+
+	/**
+	 * Return the token bucket.
+	 */
+	public TokenBucket getBucket() {
+		return bucket;
 	}
 
 	/**
 	 * Set the rate limit. A limit of -1.0 indicates no rate limit.
 	 */
 	public void setTargetRate(double targetRate) {
-		this.targetRate = targetRate;
-		this.regenTimeMS = (1.0 / targetRate) * 1.0e3;
-		if (regenTimeMS < 1) regenTimeMS = 1;
+		bucket.setRate(targetRate);
 	}
 
 	/**
 	 * Set the bucket depth.
 	 */
 	public void setDepth(int depth) {
-		this.depth = depth;
+		bucket.setDepth(depth);
+	}
+
+	/**
+	 * Return the number of elements accepted, or -1 without profiling.
+	 */
+	public long getAcceptCount() {
+		return PROFILE ? acceptCount.sum() : -1;
+	}
+
+	/**
+	 * Return the number of elements rejected, or -1 without profiling.
+	 */
+	public long getRejectCount() {
+		return PROFILE ? rejectCount.sum() : -1;
+	}
+
+	/**
+	 * Return the histogram of the mean time in usec between arrivals over
+	 * sampled runs of arrivals, or null without profiling.
+	 */
+	public LatencyHistogram getInterArrivalStats() {
+		return interArrivalStats;
 	}
 
 }
@@ -26,11 +26,11 @@ package org.jcyclone.core.rtc;
 
 import org.jcyclone.core.event.TimeStampedEvent;
 import org.jcyclone.core.internal.IStageWrapper;
+import org.jcyclone.core.internal.LatencyHistogram;
 import org.jcyclone.core.profiler.IProfilable;
 import org.jcyclone.core.queue.IElement;
 import org.jcyclone.core.stage.IStageManager;
 
-import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -68,8 +68,8 @@ public class ResponseTimeControllerDirect extends ResponseTimeController {
 	private static final double MIN_RATE = 0.05;
 
 	private long adjtime;
-	private long measurements[], sortedmeasurements[];
-	private int curThreshold, cur_measurement;
+	private LatencyHistogram measurements;
+	private int curThreshold;
 	private double curRate;
 	private double ninetiethRT;
 	private boolean enabled;
@@ -77,9 +77,7 @@ public class ResponseTimeControllerDirect extends ResponseTimeController {
 	public ResponseTimeControllerDirect(IStageManager mgr, IStageWrapper stage) throws IllegalArgumentException {
 		super(mgr, stage);
 
-		this.measurements = new long[MEASUREMENT_SIZE];
-		this.sortedmeasurements = new long[MEASUREMENT_SIZE];
-		this.cur_measurement = 0;
+		this.measurements = new LatencyHistogram();
 		this.adjtime = System.currentTimeMillis();
 
 		// Add profile
@@ -156,27 +154,21 @@ public class ResponseTimeControllerDirect extends ResponseTimeController {
 				TimeStampedEvent ev = (TimeStampedEvent) event;
 				long time = ev.timestamp;
 				if (time != 0) {
-					measurements[cur_measurement] = curtime - time;
-					cur_measurement++;
-					if (cur_measurement == MEASUREMENT_SIZE) {
-						cur_measurement = 0;
+					measurements.record(curtime - time);
+					if (measurements.getCount() >= MEASUREMENT_SIZE) {
 						adjust = true;
 					}
 				}
 			}
 		}
 
-		int numsort = MEASUREMENT_SIZE;
 		if ((curtime - adjtime) >= MEASUREMENT_TIME) {
 			adjust = true;
-			numsort = cur_measurement;
-			cur_measurement = 0;
 		}
 
 		if (!adjust) return;
-		System.arraycopy(measurements, 0, sortedmeasurements, 0, numsort);
-		Arrays.sort(sortedmeasurements, 0, numsort);
-		long cur = sortedmeasurements[(int) (0.9 * (double) numsort)];
+		long cur = measurements.getValueAtPercentile(0.9);
+		measurements.reset();
 		ninetiethRT = (SMOOTH_CONST * (double) ninetiethRT * 1.0) + ((1.0 - SMOOTH_CONST) * ((double) cur * 1.0));
 		stage.getStats().record90thRT(ninetiethRT);
 
@@ -28,6 +28,7 @@ import org.jcyclone.core.cfg.ISystemConfig;
 import org.jcyclone.core.event.TimeStampedEvent;
 import org.jcyclone.core.internal.IStageWrapper;
 import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.queue.MulticlassBlockingQueue;
 import org.jcyclone.core.stage.IStageManager;
 import org.jcyclone.util.Util;
 
@@ -37,6 +38,11 @@ import java.util.Arrays;
  * An implementation of ResponseTimeController that uses a direct
  * adjustment of queue thresholds based on the error in the 90th
  * percentile response time. Allows multiple class SLAs.
+ * <p/>
+ * If the stage uses a MulticlassBlockingQueue, a class which completed
+ * no events during a measurement period is measured by how long its
+ * oldest queued event has been waiting, so a class starved in the queue
+ * is seen as missing its target.
  *
  * @author Matt Welsh
  */
@@ -72,6 +78,7 @@ public class ResponseTimeControllerMulticlass extends ResponseTimeControllerDire
 	private String name;
 	private boolean enabled;
 	private cinfo carr[];
+	private MulticlassBlockingQueue queue;
 
 	class cinfo {
 		int theclass;
@@ -135,6 +142,11 @@ public class ResponseTimeControllerMulticlass extends ResponseTimeControllerDire
 		boolean adjust(long curtime) {
 
 			int numsort = MEASUREMENT_SIZE;
+			if (num_measurements == 0 && queue != null && theclass < queue.numClasses() &&
+			    (curtime - adjtime) >= MEASUREMENT_TIME && queue.size(theclass) > 0) {
+				// Nothing completed, but events are waiting
+				addMeasurement(queue.getOldestWait(theclass));
+			}
 			if (num_measurements > 0 && (curtime - adjtime) >= MEASUREMENT_TIME) {
 				adjust = true;
 				numsort = cur_measurement;
@@ -223,6 +235,10 @@ public class ResponseTimeControllerMulticlass extends ResponseTimeControllerDire
 		this.pred = new MulticlassRateLimitingPredicate(stage.getStage().getSink(), NUM_CLASSES, INIT_RATE, INIT_DEPTH);
 		stage.getSink().setEnqueuePredicate(pred);
 
+		if (stage.getSource() instanceof MulticlassBlockingQueue) {
+			this.queue = (MulticlassBlockingQueue) stage.getSource();
+		}
+
 		this.carr = new cinfo[NUM_CLASSES];
 		for (int c = 0; c < NUM_CLASSES; c++) {
 			double t = config.getDouble("stages." + name + ".rtController.multiclass.class" + (c) + "Target");
@@ -275,7 +291,8 @@ public class ResponseTimeControllerMulticlass extends ResponseTimeControllerDire
 
 		if (adjusted_any) {
 			for (int c = 0; c < NUM_CLASSES; c++) {
-				if (DEBUG) System.err.println("RTController <" + name + "> class " + c + ": ninetiethRT " + Util.format(carr[c].ninetiethRT) + " target " + Util.format(carr[c].targetRT) + " rate now " + Util.format(carr[c].curRate));
+				if (DEBUG) System.err.println("RTController <" + name + "> class " + c + ": ninetiethRT " + Util.format(carr[c].ninetiethRT) + " target " + Util.format(carr[c].targetRT) + " rate now " + Util.format(carr[c].curRate) +
+				    ((queue != null && c < queue.numClasses()) ? " queued " + queue.size(c) + " wait90th " + queue.getWaitTime(c).getValueAtPercentile(0.9) : ""));
 			}
 		}
 
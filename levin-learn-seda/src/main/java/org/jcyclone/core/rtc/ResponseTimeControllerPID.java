@@ -26,13 +26,13 @@ package org.jcyclone.core.rtc;
 
 import org.jcyclone.core.event.TimeStampedEvent;
 import org.jcyclone.core.internal.IStageWrapper;
+import org.jcyclone.core.internal.LatencyHistogram;
 import org.jcyclone.core.internal.MonitoredSink;
 import org.jcyclone.core.profiler.IProfilable;
 import org.jcyclone.core.queue.IElement;
 import org.jcyclone.core.stage.IStageManager;
 import org.jcyclone.util.Util;
 
-import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -67,9 +67,9 @@ public class ResponseTimeControllerPID extends ResponseTimeController {
 	private static final double MIN_RATE = 0.05;
 
 	private MonitoredSink sinkProxy;
-	private long measurements[], sortedmeasurements[];
+	private LatencyHistogram measurements;
 	private double errors[], lasterr, lastinterr, totalinterr;
-	private int curThreshold, cur_measurement, cur_error;
+	private int curThreshold, cur_error;
 	private long numReceived;
 	private double curRate;
 	private double ninetiethRT, lambda;
@@ -80,10 +80,8 @@ public class ResponseTimeControllerPID extends ResponseTimeController {
 		super(mgr, stage);
 		this.adjtime = System.currentTimeMillis();
 		this.sinkProxy = (MonitoredSink) stage.getStage().getSink();
-		this.measurements = new long[MEASUREMENT_SIZE];
-		this.sortedmeasurements = new long[MEASUREMENT_SIZE];
+		this.measurements = new LatencyHistogram();
 		this.errors = new double[MEASUREMENT_SIZE];
-		this.cur_measurement = 0;
 		this.cur_error = 0;
 
 		// Add profile
@@ -156,28 +154,22 @@ public class ResponseTimeControllerPID extends ResponseTimeController {
 				TimeStampedEvent ev = (TimeStampedEvent) event;
 				long time = ev.timestamp;
 				if (time != 0) {
-					measurements[cur_measurement] = curtime - time;
-					cur_measurement++;
-					if (cur_measurement == MEASUREMENT_SIZE) {
-						cur_measurement = 0;
+					measurements.record(curtime - time);
+					if (measurements.getCount() >= MEASUREMENT_SIZE) {
 						adjust = true;
 					}
 				}
 			}
 		}
 
-		int numsort = MEASUREMENT_SIZE;
 		long elapsed = curtime - adjtime;
 		if (elapsed >= MEASUREMENT_TIME) {
 			adjust = true;
-			numsort = cur_measurement;
-			cur_measurement = 0;
 		}
 
 		if (!adjust) return;
-		System.arraycopy(measurements, 0, sortedmeasurements, 0, numsort);
-		Arrays.sort(sortedmeasurements, 0, numsort);
-		long cur = sortedmeasurements[(int) (0.9 * (double) numsort)];
+		long cur = measurements.getValueAtPercentile(0.9);
+		measurements.reset();
 		ninetiethRT = (SMOOTH_CONST * (double) ninetiethRT * 1.0) + ((1.0 - SMOOTH_CONST) * ((double) cur * 1.0));
 		adjtime = curtime;
 		stage.getStats().record90thRT(ninetiethRT);
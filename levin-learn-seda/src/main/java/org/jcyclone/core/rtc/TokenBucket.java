@@ -0,0 +1,154 @@
+package org.jcyclone.core.rtc;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A lock-free token bucket on System.nanoTime(). Tokens regenerate at
+ * <tt>rate</tt> per second up to <tt>depth</tt> tokens.
+ * <p/>
+ * The whole state is the time at which the bucket will be full again
+ * (the "theoretical arrival time"), kept in one AtomicLong: taking n
+ * tokens moves it n/rate seconds forward, which is allowed as long as it
+ * stays within depth/rate seconds of now. Concurrent callers retry a CAS
+ * and never block each other, and the rate is exact to the nanosecond, so
+ * rates far above 1000 per second work.
+ * <p/>
+ * A rate of -1.0 means no limit and a rate of 0 admits nothing. A request
+ * for more tokens than the depth is never granted.
+ *
+ * @see RateLimitingPredicate
+ * @see MulticlassRateLimitingPredicate
+ */
+public class TokenBucket {
+
+	private final AtomicLong fullTime;
+	private volatile double rate;
+	private volatile double interval;   // nsec per token
+	private volatile int depth;
+
+	/**
+	 * Create a full bucket with the given rate (tokens per second) and
+	 * depth.
+	 */
+	public TokenBucket(double rate, int depth) {
+		setRate(rate);
+		this.depth = depth;
+		this.fullTime = new AtomicLong(System.nanoTime());
+	}
+
+	/**
+	 * Take n tokens if they are available now.
+	 */
+	public boolean tryAcquire(int n) {
+		if (n <= 0 || rate < 0.0) return true;
+		if (rate == 0.0) return false;
+		double interval = this.interval;
+		long cost = (long) (n * interval);
+		long burst = (long) (depth * interval);
+		for (; ;) {
+			long now = System.nanoTime();
+			long t = fullTime.get();
+			long next = ((t - now) > 0 ? t : now) + cost;
+			if (next - now > burst) return false;
+			if (fullTime.compareAndSet(t, next)) return true;
+		}
+	}
+
+	/**
+	 * Take n tokens, waiting up to <tt>timeoutNanos</tt> for them. The
+	 * tokens are reserved up front, so waiting callers are served in
+	 * order. Returns false, without taking anything, if the tokens cannot
+	 * be had within the timeout. An interrupt ends the wait early but the
+	 * tokens stay taken; the interrupt status is kept.
+	 */
+	public boolean acquire(int n, long timeoutNanos) {
+		if (n <= 0 || rate < 0.0) return true;
+		if (rate == 0.0) return false;
+		double interval = this.interval;
+		long cost = (long) (n * interval);
+		long burst = (long) (depth * interval);
+		if (cost > burst) return false;
+		long now, next;
+		for (; ;) {
+			now = System.nanoTime();
+			long t = fullTime.get();
+			next = ((t - now) > 0 ? t : now) + cost;
+			if (next - now - burst > timeoutNanos) return false;
+			if (fullTime.compareAndSet(t, next)) break;
+		}
+		long deadline = next - burst;
+		long wait;
+		while ((wait = deadline - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(this, wait);
+			if (Thread.interrupted()) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Give back n tokens taken by an admission that did not go through.
+	 */
+	public void release(int n) {
+		if (n <= 0 || rate <= 0.0) return;
+		fullTime.addAndGet(-(long) (n * interval));
+	}
+
+	/**
+	 * Empty the bucket.
+	 */
+	public void drain() {
+		if (rate <= 0.0) return;
+		fullTime.set(System.nanoTime() + (long) (depth * interval));
+	}
+
+	/**
+	 * Return the number of tokens currently in the bucket.
+	 */
+	public int available() {
+		if (rate < 0.0) return depth;
+		if (rate == 0.0) return 0;
+		long now = System.nanoTime();
+		long t = fullTime.get();
+		long ahead = (t - now) > 0 ? (t - now) : 0;
+		int n = (int) (depth - ahead / interval);
+		return (n < 0) ? 0 : n;
+	}
+
+	/**
+	 * Return the rate in tokens per second, -1.0 for no limit.
+	 */
+	public double getRate() {
+		return rate;
+	}
+
+	/**
+	 * Set the rate in tokens per second, -1.0 for no limit.
+	 */
+	public void setRate(double rate) {
+		this.interval = (rate > 0.0) ? (1.0e9 / rate) : 0.0;
+		this.rate = rate;
+	}
+
+	/**
+	 * Return the bucket depth.
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Set the bucket depth.
+	 */
+	public void setDepth(int depth) {
+		this.depth = depth;
+	}
+
+	public String toString() {
+		return "TokenBucket [rate=" + rate + ", depth=" + depth + ", available=" + available() + "]";
+	}
+
+}
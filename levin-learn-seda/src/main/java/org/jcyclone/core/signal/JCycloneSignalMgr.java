@@ -25,13 +25,15 @@
 package org.jcyclone.core.signal;
 
 import org.jcyclone.core.cfg.ISystemConfig;
+import org.jcyclone.core.cfg.JCycloneConfig;
+import org.jcyclone.core.internal.LatencyHistogram;
 import org.jcyclone.core.queue.IBlockingQueue;
+import org.jcyclone.core.queue.IElement;
 import org.jcyclone.core.queue.LinkedBlockingQueue;
 
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * The SignalMgr is an implementation of ISignalMgr. It allows signal handlers
@@ -41,6 +43,17 @@ import java.util.Map;
  * Signal handlers are registered with the chain of superclasses for each signal
  * as well, so that triggering a superclass of a given signal will also
  * reach those handlers registered for the subclass.
+ * <p/>
+ * The handlers of each signal type are kept in an array which is copied
+ * on every registration, so firing a signal takes no lock. With
+ * <tt>global.signal.dispatch</tt> set to <tt>serial</tt> (the default), a
+ * single thread delivers every signal to every handler in turn. With
+ * <tt>async</tt>, handlers are spread over <tt>global.signal.threads</tt>
+ * delivery threads, each with its own queue of at most
+ * <tt>global.signal.queueSize</tt> deliveries; a handler always runs on
+ * the same thread, so it sees signals in the order they were fired, and
+ * a slow handler only delays the handlers sharing its thread. A delivery
+ * which does not fit in its queue is dropped and counted.
  *
  * @author Matt Welsh and Jean Morissette
  * @see ISignalMgr
@@ -48,11 +61,21 @@ import java.util.Map;
  */
 public class JCycloneSignalMgr implements ISignalMgr {
 
+	private static final boolean DEBUG = false;
+
+	private static final ISignalHandler[] NO_HANDLERS = new ISignalHandler[0];
+
 	private ISystemConfig config;
-	private Map signalToHandlerTbl; // Map signal type to List of handlers
+	private volatile Map signalToHandlerTbl; // Map signal type to ISignalHandler[], copied on write
+	private boolean async;
 	private Thread thread;
 	private IBlockingQueue signalQueue;
 	private volatile boolean blocked;  // Indicate if the thread is blocked in blocking_dequeue
+	private Shard[] shards;
+
+	private final LongAdder dispatchCount = new LongAdder();
+	private final LongAdder dropCount = new LongAdder();
+	private final LatencyHistogram dispatchLatency = new LatencyHistogram();   // usec
 
 	volatile int runState;
 	private static final int RUNNING = 1;
@@ -60,73 +83,169 @@ public class JCycloneSignalMgr implements ISignalMgr {
 
 	public JCycloneSignalMgr(ISystemConfig conf) {
 		signalToHandlerTbl = new HashMap();
-		signalQueue = new LinkedBlockingQueue();
 		this.config = conf;
+
+		String mode = config.getString("global.signal.dispatch", JCycloneConfig.SIGNAL_SERIAL);
+		if (mode.equals(JCycloneConfig.SIGNAL_ASYNC)) {
+			async = true;
+		} else if (!mode.equals(JCycloneConfig.SIGNAL_SERIAL)) {
+			throw new IllegalArgumentException("Bad signal dispatch mode " + mode);
+		}
+
+		if (async) {
+			int n = config.getInt("global.signal.threads", 2);
+			if (n < 1) n = 1;
+			int queueSize = config.getInt("global.signal.queueSize", 10000);
+			shards = new Shard[n];
+			for (int i = 0; i < n; i++) {
+				shards[i] = new Shard(i, queueSize);
+			}
+		} else {
+			signalQueue = new LinkedBlockingQueue();
+		}
 	}
 
 	public synchronized void register(ISignal signalType, ISignalHandler handler) {
 		Class type = signalType.getClass();
-		List listeners = (List) signalToHandlerTbl.get(type);
 
 		// check preconditions
 		if (handler == null)
 			throw new NullPointerException();
-		if (listeners != null && listeners.contains(handler))
+		if (contains(handlersFor(type), handler))
 			throw new IllegalArgumentException("Handler " + handler + " already registered for signal type " + type);
 
+		Map tbl = new HashMap(signalToHandlerTbl);
 		do {
-			if (listeners == null) {
-				listeners = new ArrayList();
-				signalToHandlerTbl.put(type, listeners);
-			} else {
-				if (listeners.contains(handler))
-					break;
-			}
-			listeners.add(handler);
+			ISignalHandler[] listeners = (ISignalHandler[]) tbl.get(type);
+			if (listeners == null) listeners = NO_HANDLERS;
+			if (contains(listeners, handler))
+				break;
+			ISignalHandler[] n = new ISignalHandler[listeners.length + 1];
+			System.arraycopy(listeners, 0, n, 0, listeners.length);
+			n[listeners.length] = handler;
+			tbl.put(type, n);
 			type = type.getSuperclass();
-			listeners = (List) signalToHandlerTbl.get(type);
 		} while (ISignal.class.isAssignableFrom(type));
+		signalToHandlerTbl = tbl;
 	}
 
 	public synchronized void deregister(ISignal signalType, ISignalHandler handler) {
 		Class type = signalType.getClass();
-		List listeners = (List) signalToHandlerTbl.get(type);
 
 		// check preconditions
-		if (listeners == null || !listeners.contains(handler))
+		if (!contains(handlersFor(type), handler))
 			throw new IllegalArgumentException("Handler " + handler + " not registered for signal type " + type);
 
+		Map tbl = new HashMap(signalToHandlerTbl);
 		do {
-			// XXX: use a better data structure to avoid to keep the lock
-			synchronized (listeners) {
-				listeners.remove(handler);
+			ISignalHandler[] listeners = (ISignalHandler[]) tbl.get(type);
+			if (listeners != null && contains(listeners, handler)) {
+				ISignalHandler[] n = new ISignalHandler[listeners.length - 1];
+				for (int i = 0, j = 0; i < listeners.length; i++) {
+					if (listeners[i] != handler) n[j++] = listeners[i];
+				}
+				if (n.length == 0)
+					tbl.remove(type);
+				else
+					tbl.put(type, n);
 			}
 			type = type.getSuperclass();
-			listeners = (List) signalToHandlerTbl.get(type);
 		} while (ISignal.class.isAssignableFrom(type));
+		signalToHandlerTbl = tbl;
+	}
+
+	private ISignalHandler[] handlersFor(Class type) {
+		ISignalHandler[] listeners = (ISignalHandler[]) signalToHandlerTbl.get(type);
+		return (listeners == null) ? NO_HANDLERS : listeners;
+	}
+
+	private static boolean contains(ISignalHandler[] listeners, ISignalHandler handler) {
+		for (int i = 0; i < listeners.length; i++) {
+			if (listeners[i] == handler) return true;
+		}
+		return false;
 	}
 
 	public void fire(final ISignal signal) {
+		if (!async) {
+			try {
+				signalQueue.blockingEnqueue(signal);
+			} catch (InterruptedException ignore) {
+				// this must not occur
+			}
+			return;
+		}
+
+		ISignalHandler[] listeners = handlersFor(signal.getClass());
+		long now = System.nanoTime();
+		for (int i = 0; i < listeners.length; i++) {
+			Shard shard = shards[(System.identityHashCode(listeners[i]) & Integer.MAX_VALUE) % shards.length];
+			if (!shard.queue.enqueueLossy(new Delivery(signal, listeners[i], now))) {
+				dropCount.increment();
+				if (DEBUG) System.err.println("SignalMgr: dropped " + signal + " for " + listeners[i]);
+			}
+		}
+	}
+
+	private void deliver(ISignal signal, ISignalHandler h, long fired) {
+		dispatchLatency.record((System.nanoTime() - fired) / 1000L);
+		dispatchCount.increment();
 		try {
-			signalQueue.blockingEnqueue(signal);
-		} catch (InterruptedException ignore) {
-			// this must not occur
+			h.handleSignal(signal);
+		} catch (Throwable t) {
+			t.printStackTrace();
 		}
 	}
 
-	synchronized void start() {
+	/**
+	 * Return the number of signal deliveries made to handlers.
+	 */
+	public long getDispatchCount() {
+		return dispatchCount.sum();
+	}
+
+	/**
+	 * Return the number of deliveries dropped because the queue of a
+	 * delivery thread was full.
+	 */
+	public long getDropCount() {
+		return dropCount.sum();
+	}
+
+	/**
+	 * Return the histogram of the time in usec from fire() to the call of
+	 * each handler.
+	 */
+	public LatencyHistogram getDispatchLatency() {
+		return dispatchLatency;
+	}
+
+	public synchronized void start() {
 		if (runState == RUNNING) return;
 		runState = RUNNING;
 		int prio = config.getInt("global.signal.prio", Thread.MAX_PRIORITY);
-		thread = new Thread(new SignalPublisher(), "Thread-SignalMgr");
-		thread.setPriority(prio);
-		thread.start();
+		if (async) {
+			for (int i = 0; i < shards.length; i++) {
+				shards[i].start(prio);
+			}
+		} else {
+			thread = new Thread(new SignalPublisher(), "Thread-SignalMgr");
+			thread.setPriority(prio);
+			thread.setDaemon(true);
+			thread.start();
+		}
 	}
 
 	public synchronized void stop() {
 		runState = STOP;
+		if (async) {
+			for (int i = 0; i < shards.length; i++) {
+				shards[i].stop();
+			}
+			return;
+		}
 		// XXX JM: warning, we don't want to interrupt a blocking *enqueue*!
-		if (blocked) thread.interrupt();
+		if (blocked && thread != null) thread.interrupt();
 	}
 
 	class SignalPublisher implements Runnable {
@@ -147,17 +266,67 @@ public class JCycloneSignalMgr implements ISignalMgr {
 				blocked = false;
 				if (runState == STOP) return;
 
-				List listeners = (List) signalToHandlerTbl.get(signal);
-				synchronized (listeners) {
-					for (int i = 0; i < listeners.size(); i++) {
-						ISignalHandler h = (ISignalHandler) listeners.get(i);
-						try {
-							h.handleSignal(signal);
-						} catch (Throwable t) {
-							t.printStackTrace();
-						}
-					}
+				ISignalHandler[] listeners = handlersFor(signal.getClass());
+				long now = System.nanoTime();
+				for (int i = 0; i < listeners.length; i++) {
+					deliver(signal, listeners[i], now);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A signal on its way to one handler.
+	 */
+	static class Delivery implements IElement {
+		final ISignal signal;
+		final ISignalHandler handler;
+		final long fired;
+
+		Delivery(ISignal signal, ISignalHandler handler, long fired) {
+			this.signal = signal;
+			this.handler = handler;
+			this.fired = fired;
+		}
+	}
+
+	/**
+	 * A delivery thread and its queue.
+	 */
+	class Shard implements Runnable {
+		final IBlockingQueue queue;
+		final String name;
+		private Thread thread;
+		private volatile boolean blocked;
+
+		Shard(int index, int queueSize) {
+			this.queue = new LinkedBlockingQueue(queueSize);
+			this.name = "Thread-SignalMgr-" + index;
+		}
+
+		void start(int prio) {
+			thread = new Thread(this, name);
+			thread.setPriority(prio);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		void stop() {
+			if (blocked && thread != null) thread.interrupt();
+		}
+
+		public void run() {
+			while (runState != STOP) {
+				Delivery d;
+				blocked = true;
+				try {
+					d = (Delivery) queue.blockingDequeue(-1);
+				} catch (InterruptedException e) {
+					return;
 				}
+				blocked = false;
+				if (runState == STOP) return;
+				deliver(d.signal, d.handler, d.fired);
 			}
 		}
 	}
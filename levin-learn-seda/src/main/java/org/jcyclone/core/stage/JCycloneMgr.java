@@ -33,6 +33,7 @@ import org.jcyclone.core.profiler.JCycloneProfiler;
 import org.jcyclone.core.signal.ISignalMgr;
 import org.jcyclone.core.signal.JCycloneSignalMgr;
 import org.jcyclone.core.signal.StagesInitializedSignal;
+import org.jcyclone.core.timer.HeapTimer;
 import org.jcyclone.core.timer.ITimer;
 import org.jcyclone.core.timer.JCycloneTimer;
 import org.jcyclone.core.plugin.IPlugin;
@@ -63,7 +64,7 @@ public class JCycloneMgr implements IStageManager, ISystemManager {
 	private ConcurrentMap stagetbl;    // stage name --> StageWrapper
 	private JCycloneProfiler profiler;
 	private JCycloneSignalMgr signalMgr;
-	private JCycloneTimer timer;
+	private ITimer timer;
 	private boolean crashOnException = false;
 
 	/**
@@ -76,7 +77,7 @@ public class JCycloneMgr implements IStageManager, ISystemManager {
 		stagetbl = new ConcurrentHashMap();
 		tmtbl = Collections.synchronizedMap(new HashMap());
 		signalMgr = new JCycloneSignalMgr(mgrconfig);
-		timer = new JCycloneTimer();
+		signalMgr.start();
 
 		crashOnException = mgrconfig.getBoolean("global.crashOnException");
 		String dtm = mgrconfig.getString("global.defaultThreadManager");
@@ -92,6 +93,8 @@ public class JCycloneMgr implements IStageManager, ISystemManager {
 //			defaulttm = new TPPSchedulerOld(mgrconfig);
 		} else if (dtm.equals(JCycloneConfig.THREADMGR_TPSTM)) {
 			defaulttm = new TPSScheduler(this);
+		} else if (dtm.equals(JCycloneConfig.THREADMGR_WSTM)) {
+			defaulttm = new WSScheduler(this);
 		} else if (dtm.equals(JCycloneConfig.THREADMGR_AggTPSTM)) {
 			throw new Error("AggTPSThreadManager is no longer supported.");
 //			 defaulttm = new AggTPSThreadManager(mgrconfig);
@@ -104,6 +107,19 @@ public class JCycloneMgr implements IStageManager, ISystemManager {
 		// Create profiler even if disabled
 		profiler = new JCycloneProfiler(this);
 
+		String timerType = mgrconfig.getString("global.timer.type");
+		if (timerType == null || timerType.equals(JCycloneConfig.TIMER_LIST)) {
+			timer = new JCycloneTimer();
+		} else if (timerType.equals(JCycloneConfig.TIMER_HEAP)) {
+			HeapTimer heapTimer = new HeapTimer();
+			if (mgrconfig.getBoolean("global.profile.enable")) {
+				heapTimer.addProfiles(profiler);
+			}
+			timer = heapTimer;
+		} else {
+			throw new IllegalArgumentException("Bad timer type specified by configuration: " + timerType);
+		}
+
 		if (mgrconfig.getBoolean("global.profile.enable")) {
 			System.err.println("JCyclone: Starting profiler");
 			profiler.start();
@@ -27,6 +27,7 @@ package org.jcyclone.core.stage;
 import org.jcyclone.core.cfg.IConfigData;
 import org.jcyclone.core.cfg.ISystemConfig;
 import org.jcyclone.core.internal.IStageWrapper;
+import org.jcyclone.core.internal.FusedSink;
 import org.jcyclone.core.internal.MonitoredSink;
 import org.jcyclone.core.queue.ISink;
 
@@ -58,9 +59,14 @@ public class Stage implements IStage {
 		ISystemConfig cf = config.getManager().getConfig();
 		this.mainsink = mainsink;
 
-		if (ENABLE_SINK_PROXY &&
+		if (cf.getBoolean("global.fusion.enable")) {
+			// Also records the stage graph
+			this.mainsink = new FusedSink(mainsink, config.getManager(), wrapper);
+		} else if (cf.getBoolean("global.threadPool.colocate") ||
+		    (ENABLE_SINK_PROXY &&
 		    (cf.getBoolean("global.batchController.enable") ||
-		    cf.getBoolean("global.rtController.enable"))) {
+		    cf.getBoolean("global.rtController.enable")))) {
+			// Pipeline colocation follows the stage graph
 			this.mainsink = new MonitoredSink((ISink) mainsink, config.getManager(), wrapper);
 		}
 	}
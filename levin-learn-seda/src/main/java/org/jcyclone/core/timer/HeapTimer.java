@@ -0,0 +1,377 @@
+package org.jcyclone.core.timer;
+
+import org.jcyclone.core.profiler.IProfilable;
+import org.jcyclone.core.profiler.IProfiler;
+import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.queue.ISink;
+import org.jcyclone.core.queue.SinkException;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An ITimer which keeps pending events in a 4-ary min-heap instead of the
+ * sorted list used by JCycloneTimer. Registering and cancelling an event are
+ * O(log n) rather than O(n).
+ * <p/>
+ * On every wakeup the timer thread reads the clock once and drains all
+ * expired events; the events are then grouped by target sink and delivered
+ * with a single <tt>enqueueMany</tt> per sink, outside the timer lock.
+ * <p/>
+ * The number of pending events and a histogram of firing lateness (in
+ * power-of-two millisecond buckets) can be exported through the profiler
+ * with {@link #addProfiles}.
+ *
+ * @see JCycloneTimer
+ */
+public class HeapTimer implements Runnable, IProfilable, ITimer {
+
+	private static final boolean DEBUG = false;
+	private static final int ARITY = 4;
+	private static final int INITIAL_CAPACITY = 64;
+
+	/**
+	 * Number of lateness buckets: 0ms, 1ms, 2-3ms, 4-7ms, ..., >=512ms.
+	 */
+	public static final int LATENESS_BUCKETS = 11;
+
+	private TimerEvent[] heap;
+	private int num_events = 0;
+	private final ReentrantLock lock;
+	private final Condition wakeup;
+	private final Thread thr;
+	private volatile boolean die_thread;
+	private final AtomicLongArray lateness;
+
+	public HeapTimer() {
+		heap = new TimerEvent[INITIAL_CAPACITY];
+		lock = new ReentrantLock();
+		wakeup = lock.newCondition();
+		lateness = new AtomicLongArray(LATENESS_BUCKETS);
+		die_thread = false;
+		thr = new Thread(this, "Timer thread");
+		thr.start();
+	}
+
+	public static class TimerEvent implements ITimerEvent {
+		public final long time_millis;
+		public final IElement obj;
+		public final ISink queue;
+		int heapIndex = -1;
+
+		public TimerEvent(long m, IElement o, ISink q) {
+			time_millis = m;
+			obj = o;
+			queue = q;
+		}
+
+		public String toString() {
+			return "TimerEvent<" + hashCode() + ">";
+		}
+	}
+
+	/**
+	 * Object <code>obj</code> will be placed on ISink <code>queue</code>
+	 * no earlier than <code>millis</code> milliseconds from now.
+	 *
+	 * @param millis the number of milliseconds from now when the event will
+	 *               take place
+	 * @param obj    the object that will be placed on the queue
+	 * @param queue  the queue on which the object will be placed
+	 */
+	public ITimerEvent registerEvent(long millis, IElement obj, ISink queue) {
+		TimerEvent newTimer = new TimerEvent(System.currentTimeMillis() + millis, obj, queue);
+		insertEvent(newTimer);
+		return newTimer;
+	}
+
+	/**
+	 * Object <code>obj</code> will be placed on ISink <code>queue</code>
+	 * no earlier than absolute time <code>the_date</code>.
+	 *
+	 * @param the_date the date when the event will take place - if this date
+	 *                 is in the past, the event will happen right away
+	 * @param obj      the object that will be placed on the queue
+	 * @param queue    the queue on which the object will be placed
+	 */
+	public ITimerEvent registerEvent(Date the_date, IElement obj, ISink queue) {
+		TimerEvent newTimer = new TimerEvent(the_date.getTime(), obj, queue);
+		insertEvent(newTimer);
+		return newTimer;
+	}
+
+	/**
+	 * Kills off this timer object, dropping all pending events on floor.
+	 */
+	public void doneWithTimer() {
+		die_thread = true;
+		lock.lock();
+		try {
+			wakeup.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * How many events yet to fire?
+	 */
+	public int size() {
+		return num_events;
+	}
+
+	/**
+	 * Return the profile size of this timer.
+	 */
+	public int profileSize() {
+		return size();
+	}
+
+	/**
+	 * Return the number of events fired so far whose lateness falls into the
+	 * given bucket; bucket 0 counts events fired on time, bucket <i>i</i>
+	 * those fired 2^(i-1) to 2^i - 1 ms late.
+	 */
+	public long getLatenessCount(int bucket) {
+		return lateness.get(bucket);
+	}
+
+	/**
+	 * Add the pending-count and lateness histogram of this timer to the given
+	 * profiler.
+	 */
+	public void addProfiles(IProfiler profiler) {
+		profiler.add("HeapTimer pending", this);
+		for (int i = 0; i < LATENESS_BUCKETS; i++) {
+			final int bucket = i;
+			String label = (i == 0) ? "0ms" :
+			    (i == LATENESS_BUCKETS - 1) ? (">=" + (1 << (i - 1)) + "ms") :
+			    ((1 << (i - 1)) + "-" + ((1 << i) - 1) + "ms");
+			profiler.add("HeapTimer lateness " + label, new IProfilable() {
+				public int profileSize() {
+					return (int) lateness.get(bucket);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Cancels all events.
+	 */
+	public void cancelAll() {
+		lock.lock();
+		try {
+			for (int i = 0; i < num_events; i++) {
+				heap[i].heapIndex = -1;
+				heap[i] = null;
+			}
+			num_events = 0;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Cancels the firing of this timer event.
+	 *
+	 * @param timerEvt the ITimerEvent to cancel.  This ITimerEvent
+	 *                 is returned to you when you call registerEvent
+	 */
+	public void cancelEvent(ITimerEvent timerEvt) {
+		TimerEvent evt = (TimerEvent) timerEvt;
+		if (evt == null)
+			return;
+
+		lock.lock();
+		try {
+			int idx = evt.heapIndex;
+			if (idx < 0)
+				return;    // already fired or cancelled
+			removeAt(idx);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void insertEvent(TimerEvent newTimer) {
+		lock.lock();
+		try {
+			if (num_events == heap.length) {
+				TimerEvent[] newHeap = new TimerEvent[heap.length * 2];
+				System.arraycopy(heap, 0, newHeap, 0, heap.length);
+				heap = newHeap;
+			}
+			int idx = num_events++;
+			heap[idx] = newTimer;
+			newTimer.heapIndex = idx;
+			siftUp(idx);
+
+			// The thread only needs to wake up if the earliest event changed
+			if (newTimer.heapIndex == 0) {
+				if (DEBUG) System.err.println("HeapTimer: new head " + newTimer + ", num pending " + num_events);
+				wakeup.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void removeAt(int idx) {
+		TimerEvent removed = heap[idx];
+		int last = --num_events;
+		if (idx != last) {
+			TimerEvent moved = heap[last];
+			heap[idx] = moved;
+			moved.heapIndex = idx;
+			heap[last] = null;
+			siftDown(idx);
+			if (moved.heapIndex == idx)
+				siftUp(idx);
+		} else {
+			heap[last] = null;
+		}
+		removed.heapIndex = -1;
+	}
+
+	private void siftUp(int idx) {
+		TimerEvent evt = heap[idx];
+		while (idx > 0) {
+			int parent = (idx - 1) / ARITY;
+			TimerEvent p = heap[parent];
+			if (p.time_millis <= evt.time_millis)
+				break;
+			heap[idx] = p;
+			p.heapIndex = idx;
+			idx = parent;
+		}
+		heap[idx] = evt;
+		evt.heapIndex = idx;
+	}
+
+	private void siftDown(int idx) {
+		TimerEvent evt = heap[idx];
+		while (true) {
+			int first = idx * ARITY + 1;
+			if (first >= num_events)
+				break;
+			int end = Math.min(first + ARITY, num_events);
+			int min = first;
+			for (int c = first + 1; c < end; c++) {
+				if (heap[c].time_millis < heap[min].time_millis)
+					min = c;
+			}
+			if (heap[min].time_millis >= evt.time_millis)
+				break;
+			heap[idx] = heap[min];
+			heap[idx].heapIndex = idx;
+			idx = min;
+		}
+		heap[idx] = evt;
+		evt.heapIndex = idx;
+	}
+
+	// Remove and return the events due at curTime, in firing order; for tests
+	List expire(long curTime) {
+		lock.lock();
+		try {
+			return drainExpired(curTime);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Remove every event due at curTime; called with the lock held
+	private List drainExpired(long curTime) {
+		List fired = null;
+		while (num_events > 0 && heap[0].time_millis <= curTime) {
+			TimerEvent evt = heap[0];
+			removeAt(0);
+			if (fired == null)
+				fired = new ArrayList();
+			fired.add(evt);
+		}
+		return fired;
+	}
+
+	// Deliver the fired events grouped by sink; called without the lock
+	private void fire(List fired, long curTime) {
+		Map batches = new IdentityHashMap();
+		for (int i = 0; i < fired.size(); i++) {
+			TimerEvent evt = (TimerEvent) fired.get(i);
+			recordLateness(curTime - evt.time_millis);
+			List batch = (List) batches.get(evt.queue);
+			if (batch == null) {
+				batch = new ArrayList();
+				batches.put(evt.queue, batch);
+			}
+			batch.add(evt.obj);
+		}
+
+		Iterator it = batches.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry entry = (Map.Entry) it.next();
+			ISink sink = (ISink) entry.getKey();
+			List batch = (List) entry.getValue();
+			try {
+				sink.enqueueMany(batch);
+			} catch (SinkException se) {
+				// All-or-nothing enqueue failed; deliver what we can
+				for (int i = 0; i < batch.size(); i++) {
+					sink.enqueueLossy((IElement) batch.get(i));
+				}
+			}
+		}
+	}
+
+	private void recordLateness(long late) {
+		int bucket = 0;
+		if (late > 0) {
+			bucket = 64 - Long.numberOfLeadingZeros(late);
+			if (bucket >= LATENESS_BUCKETS)
+				bucket = LATENESS_BUCKETS - 1;
+		}
+		lateness.incrementAndGet(bucket);
+	}
+
+	public void run() {
+		lock.lock();
+		try {
+			while (!die_thread) {
+				try {
+					if (num_events == 0) {
+						wakeup.await(500, TimeUnit.MILLISECONDS);
+						continue;
+					}
+
+					long curTime = System.currentTimeMillis();
+					List fired = drainExpired(curTime);
+					if (fired != null) {
+						lock.unlock();
+						try {
+							fire(fired, curTime);
+						} finally {
+							lock.lock();
+						}
+					} else {
+						// sleep till head
+						wakeup.await(heap[0].time_millis - curTime, TimeUnit.MILLISECONDS);
+					}
+				} catch (InterruptedException ie) {
+					// Ignore
+				} catch (Throwable t) {
+					t.printStackTrace();
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package levin.learn.seda.jcyclone.internal;
+
+import static org.junit.Assert.assertEquals;
+
+import org.jcyclone.core.internal.AdaptiveBatchController;
+import org.jcyclone.core.internal.EventBatch;
+import org.jcyclone.core.queue.IElement;
+import org.junit.Test;
+
+public class AdaptiveBatchControllerTest {
+    private static final IElement EVENT = new IElement() { };
+
+    private final EventBatch batch = new EventBatch(64);
+    private long now = 1000000;
+
+    @Test
+    public void testStartsAtMinBatchWithinBounds() {
+        AdaptiveBatchController controller = new AdaptiveBatchController("test", 0, 1000, 64, 10, -1, 2.0);
+        assertEquals(1, controller.getBatchTarget());
+        controller = new AdaptiveBatchController("test", 100, 0, 64, 10, -1, 2.0);
+        assertEquals(64, controller.getBatchTarget());
+    }
+
+    @Test
+    public void testClimbsWhileThroughputImproves() {
+        AdaptiveBatchController controller = new AdaptiveBatchController("test", 1, 64, 64, 10, -1, 2.0);
+        // each batch takes 1 msec whatever its size, so bigger is better
+        runBatches(controller, 300, 1);
+        // 30 windows of 10 batches: 1, 2, 4, ..., 64 by the sixth, then at
+        // the bound it probes back down to 32 every other window
+        assertEquals(64, controller.getBatchTarget());
+        // events per second of handler time, measured in the window at 32
+        assertEquals(32000.0, controller.getThroughput(), 0.0);
+    }
+
+    @Test
+    public void testHalvesWhenOverLatencyTarget() {
+        AdaptiveBatchController controller = new AdaptiveBatchController("test", 1, 64, 64, 10, 50, 2.0);
+        runBatches(controller, 300, 1);
+        assertEquals(64, controller.getBatchTarget());
+        // untimestamped events are charged the run time of their batch;
+        // ten slow batches end exactly one window
+        runBatches(controller, 10, 80);
+        assertEquals(80, controller.getLatency());
+        assertEquals(32, controller.getBatchTarget());
+    }
+
+    /**
+     * Run batches of the current target size back to back, like a stage
+     * thread would.
+     */
+    private void runBatches(AdaptiveBatchController controller, int count, long elapsed) {
+        for (int n = 0; n < count; n++) {
+            int size = controller.getBatchTarget();
+            batch.setCount(size);
+            for (int i = 0; i < size; i++) {
+                batch.elements()[i] = EVENT;
+            }
+            controller.batchCompleted(batch, now, now + elapsed);
+            now += elapsed;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package levin.learn.seda.jcyclone.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jcyclone.core.internal.EventBatch;
+import org.jcyclone.core.internal.IBatchDescr;
+import org.jcyclone.core.queue.DynamicArrayBlockingQueue;
+import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.queue.IQueue;
+import org.jcyclone.core.queue.LinkedBlockingQueue;
+import org.jcyclone.core.queue.SegmentedArrayBlockingQueue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the old batch dequeue path of the schedulers (a ThreadLocal
+ * list and a new IBatchDescr per batch) with dequeueing into a reused
+ * EventBatch. Run with the gc profiler to see the allocation per batch,
+ * which is zero for the array path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchDequeueBenchmark {
+    private static final IElement EVENT = new IElement() { };
+
+    @Param({ "segmented", "array", "linked" })
+    public String type;
+
+    @Param({ "1", "32" })
+    public int batchSize;
+
+    private IQueue queue;
+    private List events;
+    private final ThreadLocal list = new ThreadLocal() {
+        protected Object initialValue() {
+            return new ArrayList();
+        }
+    };
+    private final EventBatch buffer = new EventBatch();
+
+    @Setup
+    public void setUp() {
+        if (type.equals("segmented")) {
+            queue = new SegmentedArrayBlockingQueue();
+        } else if (type.equals("array")) {
+            queue = new DynamicArrayBlockingQueue();
+        } else {
+            queue = new LinkedBlockingQueue();
+        }
+        events = new ArrayList();
+        for (int i = 0; i < batchSize; i++) {
+            events.add(EVENT);
+        }
+    }
+
+    @Benchmark
+    public int listBatch() throws Exception {
+        queue.enqueueMany(events);
+        final List batch = (List) list.get();
+        int num = queue.blockingDequeue(batch, 1, Integer.MAX_VALUE);
+        IBatchDescr descr = new IBatchDescr() {
+            public List getBatch() {
+                return batch;
+            }
+
+            public void batchDone() {
+                batch.clear();
+            }
+        };
+        descr.batchDone();
+        return num;
+    }
+
+    @Benchmark
+    public int arrayBatch() throws Exception {
+        queue.enqueueMany(events);
+        int num = queue.blockingDequeue(buffer.elements(), 1, buffer.capacity());
+        buffer.setCount(num);
+        buffer.batchDone();
+        return num;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder().include(BatchDequeueBenchmark.class.getSimpleName())
+                .addProfiler("gc").build();
+        new Runner(options).run();
+    }
+}
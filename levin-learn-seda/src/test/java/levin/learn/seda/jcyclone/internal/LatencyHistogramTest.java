@@ -0,0 +1,125 @@
+package levin.learn.seda.jcyclone.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jcyclone.core.cfg.JCycloneConfig;
+import org.jcyclone.core.internal.ConcurrentStageStats;
+import org.jcyclone.core.internal.LatencyHistogram;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram hist = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            hist.record(i);
+        }
+        assertEquals(100, hist.getCount());
+        assertEquals(100, hist.getMax());
+        assertEquals(50, hist.getValueAtPercentile(0.5), 2);
+        assertEquals(90, hist.getValueAtPercentile(0.9), 3);
+        assertEquals(50.5, hist.getMean(), 1.0);
+    }
+
+    @Test
+    public void testResetOnlyForgetsEarlierValues() {
+        LatencyHistogram hist = new LatencyHistogram();
+        hist.record(1000, 10);
+        hist.record(5);
+        hist.reset();
+        assertEquals(0, hist.getCount());
+        assertEquals(0, hist.getMax());
+        assertEquals(0, hist.getValueAtPercentile(0.99));
+
+        hist.record(7, 3);
+        assertEquals(3, hist.getCount());
+        assertEquals(7, hist.getMax());
+        assertEquals(7, hist.getValueAtPercentile(0.99));
+        assertEquals(7.0, hist.getMean(), 0.0);
+    }
+
+    @Test
+    public void testResetDuringRecordingLeavesNothingBehind() throws Exception {
+        final LatencyHistogram hist = new LatencyHistogram();
+        final AtomicBoolean stop = new AtomicBoolean();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    long n = 0;
+                    while (!stop.get()) {
+                        hist.record(n++ & 1023);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (int i = 0; i < 200; i++) {
+            Thread.sleep(1);
+            hist.reset();
+            assertTrue(hist.getCount() >= 0);
+        }
+        Thread.sleep(5);
+        stop.set(true);
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+        }
+        assertTrue(hist.getCount() > 0);
+
+        // once quiet, a reset clears every bucket
+        hist.reset();
+        assertEquals(0, hist.getCount());
+        assertEquals(0, hist.getMax());
+        assertEquals(0, hist.getValueAtPercentile(1.0));
+        hist.record(7, 3);
+        assertEquals(3, hist.getCount());
+        assertEquals(7, hist.getValueAtPercentile(0.99));
+    }
+
+    @Test
+    public void testStageStatsCountEveryEvent() throws Exception {
+        final ConcurrentStageStats stats = new ConcurrentStageStats(null);
+        final int perThread = 100000;
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        stats.recordServiceRate(2, 1);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+        }
+        assertEquals(2L * perThread * threads.length, stats.getTotalEvents());
+        // two events per msec
+        assertEquals(2000.0, stats.getServiceRate(), 1.0);
+    }
+
+    @Test
+    public void testServiceTimeInUsec() {
+        ConcurrentStageStats stats = new ConcurrentStageStats(null);
+        // four events in 0.2 msec, which whole msec would record as 0
+        stats.recordBatch(Arrays.asList(new Object[4]), 1000, 1000, 200000);
+        assertEquals(4, stats.getServiceTime().getCount());
+        assertEquals(50, stats.getServiceTime().getValueAtPercentile(0.5));
+        assertEquals(4, stats.getTotalEvents());
+
+        // callers with only msec still record usec
+        stats.getServiceTime().reset();
+        stats.recordServiceRate(2, 3);
+        assertEquals(1500, stats.getServiceTime().getValueAtPercentile(0.5), 1500 * 0.03);
+    }
+
+    @Test
+    public void testSynchronizedStatsAreTheDefault() {
+        assertEquals(JCycloneConfig.STATS_SYNCHRONIZED, new JCycloneConfig().getString("global.stats.type"));
+    }
+}
@@ -0,0 +1,222 @@
+package levin.learn.seda.jcyclone.queue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jcyclone.core.event.TimeStampedEvent;
+import org.jcyclone.core.queue.ITransaction;
+import org.jcyclone.core.queue.MulticlassBlockingQueue;
+import org.jcyclone.core.queue.SinkFullException;
+import org.jcyclone.core.rtc.IClassEvent;
+import org.junit.Test;
+
+public class MulticlassBlockingQueueTest {
+    @Test
+    public void testWeightedFairDefaultWeights() throws Exception {
+        MulticlassBlockingQueue queue = new MulticlassBlockingQueue(2, MulticlassBlockingQueue.WEIGHTED_FAIR);
+        List<Event> low = enqueue(queue, 0, 6);
+        List<Event> high = enqueue(queue, 1, 6);
+
+        // class c gets c+1 elements per round until class 1 runs dry
+        assertEquals(Arrays.asList(1, 1, 0, 1, 1, 0, 1, 1, 0, 0, 0, 0), drainClasses(queue, low, high));
+    }
+
+    @Test
+    public void testWeightedFairCustomWeights() throws Exception {
+        MulticlassBlockingQueue queue = new MulticlassBlockingQueue(3, MulticlassBlockingQueue.WEIGHTED_FAIR);
+        queue.setWeight(0, 3);
+        queue.setWeight(1, 1);
+        queue.setWeight(2, 2);
+        List<Event> c0 = enqueue(queue, 0, 30);
+        List<Event> c1 = enqueue(queue, 1, 30);
+        List<Event> c2 = enqueue(queue, 2, 30);
+
+        List<Integer> order = drainClasses(queue, c0, c1, c2);
+        // 5 full rounds of 3 + 1 + 2
+        int[] counts = new int[3];
+        for (int i = 0; i < 30; i++) {
+            counts[order.get(i)]++;
+        }
+        assertEquals(15, counts[0]);
+        assertEquals(5, counts[1]);
+        assertEquals(10, counts[2]);
+    }
+
+    @Test
+    public void testOutOfRangeClasses() throws Exception {
+        MulticlassBlockingQueue queue = new MulticlassBlockingQueue(2, MulticlassBlockingQueue.WEIGHTED_FAIR);
+        queue.enqueue(new Event(-1, 0));
+        queue.enqueue(new Event(5, 0));
+        queue.enqueue(new TimeStampedEvent() { });
+        assertEquals(2, queue.size(0));
+        assertEquals(1, queue.size(1));
+    }
+
+    @Test
+    public void testEarliestDeadlineFirst() throws Exception {
+        MulticlassBlockingQueue queue = new MulticlassBlockingQueue(2, MulticlassBlockingQueue.EARLIEST_DEADLINE);
+        queue.setDeadline(0, 1000);
+        queue.setDeadline(1, 100);
+        Event a = new Event(0, 10000);   // due at 11000
+        Event b = new Event(1, 10500);   // due at 10600
+        Event e = new Event(1, 10900);   // due at 11000, ties with a
+        Event c = new Event(1, 11000);   // due at 11100
+        Event d = new Event(0, 9900);    // due at 10900, behind a in its class
+        queue.enqueue(a);
+        queue.enqueue(b);
+        queue.enqueue(e);
+        queue.enqueue(c);
+        queue.enqueue(d);
+
+        // class order is FIFO, so d waits behind a; ties go to class 1
+        assertSame(b, queue.dequeue());
+        assertSame(e, queue.dequeue());
+        assertSame(a, queue.dequeue());
+        assertSame(d, queue.dequeue());
+        assertSame(c, queue.dequeue());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testClassCapacity() throws Exception {
+        MulticlassBlockingQueue queue = new MulticlassBlockingQueue(2, MulticlassBlockingQueue.WEIGHTED_FAIR);
+        queue.setCapacity(0, 2);
+        assertEquals(2, queue.capacity(0));
+        assertEquals(Integer.MAX_VALUE, queue.capacity(1));
+        enqueue(queue, 0, 2);
+
+        try {
+            queue.enqueue(new Event(0, 0));
+            fail("class 0 is full");
+        } catch (SinkFullException expected) {
+        }
+        assertFalse(queue.enqueueLossy(new Event(0, 0)));
+        assertFalse(queue.enqueueLossy(new Event(0, 0), 10));
+        // the other class is not shut out
+        enqueue(queue, 1, 10);
+        assertEquals(2, queue.size(0));
+        assertEquals(10, queue.size(1));
+
+        // drain class 1 first, then class 0 frees a slot
+        while (queue.size(0) == 2) {
+            queue.dequeue();
+        }
+        assertTrue(queue.enqueueLossy(new Event(0, 0)));
+        assertFalse(queue.enqueueLossy(new Event(0, 0)));
+    }
+
+    @Test
+    public void testClassCapacityWithBatches() throws Exception {
+        MulticlassBlockingQueue queue = new MulticlassBlockingQueue(2, MulticlassBlockingQueue.WEIGHTED_FAIR);
+        queue.setCapacity(1, 3);
+        enqueue(queue, 1, 1);
+
+        List<Event> batch = new ArrayList<Event>();
+        batch.add(new Event(0, 0));
+        batch.add(new Event(1, 0));
+        batch.add(new Event(1, 0));
+        batch.add(new Event(1, 0));
+        try {
+            queue.enqueueMany(batch);
+            fail("4 elements of class 1 do not fit");
+        } catch (SinkFullException expected) {
+        }
+        assertEquals(1, queue.size());
+
+        // a prepared transaction holds its class slots until it ends
+        batch.remove(3);
+        ITransaction txn = queue.enqueuePrepare(batch);
+        assertFalse(queue.enqueueLossy(new Event(1, 0)));
+        assertTrue(queue.enqueueLossy(new Event(0, 0)));
+        txn.abort();
+        assertTrue(queue.enqueueLossy(new Event(1, 0)));
+
+        txn = queue.enqueuePrepare(new ArrayList<Event>(batch.subList(0, 2)));
+        txn.commit();
+        assertEquals(2, queue.size(0));
+        assertEquals(3, queue.size(1));
+        assertFalse(queue.enqueueLossy(new Event(1, 0)));
+    }
+
+    @Test
+    public void testBlockingEnqueueWaitsForItsClass() throws Exception {
+        final MulticlassBlockingQueue queue = new MulticlassBlockingQueue(2, MulticlassBlockingQueue.EARLIEST_DEADLINE);
+        queue.setCapacity(0, 1);
+        queue.setDeadline(1, -1000000);
+        queue.enqueue(new Event(0, 0));
+        final Event blocked = new Event(0, 0);
+        Thread producer = new Thread() {
+            public void run() {
+                try {
+                    queue.blockingEnqueue(blocked);
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        producer.start();
+        Thread.sleep(100);
+        assertTrue(producer.isAlive());
+
+        // dequeueing another class does not free a slot in class 0
+        queue.enqueue(new Event(1, 0));
+        assertEquals(1, ((Event) queue.dequeue()).getRequestClass());
+        Thread.sleep(100);
+        assertTrue(producer.isAlive());
+
+        queue.dequeue();
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertSame(blocked, queue.dequeue());
+    }
+
+    private static List<Event> enqueue(MulticlassBlockingQueue queue, int c, int num) throws Exception {
+        List<Event> events = new ArrayList<Event>();
+        for (int i = 0; i < num; i++) {
+            Event e = new Event(c, 0);
+            queue.enqueue(e);
+            events.add(e);
+        }
+        return events;
+    }
+
+    // Dequeue everything, checking FIFO order within each class, and
+    // return the class of each element in dequeue order
+    private static List<Integer> drainClasses(MulticlassBlockingQueue queue, List<Event>... classes) {
+        int[] next = new int[classes.length];
+        List<Integer> order = new ArrayList<Integer>();
+        Event e;
+        while ((e = (Event) queue.dequeue()) != null) {
+            int c = e.getRequestClass();
+            assertSame(classes[c].get(next[c]++), e);
+            order.add(c);
+        }
+        for (int c = 0; c < classes.length; c++) {
+            assertEquals(classes[c].size(), next[c]);
+        }
+        return order;
+    }
+
+    private static class Event extends TimeStampedEvent implements IClassEvent {
+        private int requestClass;
+
+        Event(int requestClass, long timestamp) {
+            this.requestClass = requestClass;
+            this.timestamp = timestamp;
+        }
+
+        public int getRequestClass() {
+            return requestClass;
+        }
+
+        public void setRequestClass(int theclass) {
+            this.requestClass = theclass;
+        }
+    }
+}
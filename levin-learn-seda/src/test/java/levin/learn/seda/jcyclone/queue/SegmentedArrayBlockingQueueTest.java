@@ -0,0 +1,268 @@
+package levin.learn.seda.jcyclone.queue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.queue.ITransaction;
+import org.jcyclone.core.queue.SegmentedArrayBlockingQueue;
+import org.jcyclone.core.queue.SinkFullException;
+import org.junit.Test;
+
+public class SegmentedArrayBlockingQueueTest {
+    @Test
+    public void testFifoAcrossSegments() throws Exception {
+        SegmentedArrayBlockingQueue queue = new SegmentedArrayBlockingQueue(4, Integer.MAX_VALUE);
+        int next = 0;
+        int expected = 0;
+        // interleave single and batch puts and takes so runs cross segments
+        for (int round = 0; round < 50; round++) {
+            for (int i = 0; i < 7; i++) {
+                queue.enqueue(new TestEvent(next++));
+            }
+            List batch = new ArrayList();
+            for (int i = 0; i < 5; i++) {
+                batch.add(new TestEvent(next++));
+            }
+            queue.enqueueMany(batch);
+            assertEquals(expected, ((TestEvent) queue.peek()).seq);
+            assertEquals(expected++, ((TestEvent) queue.dequeue()).seq);
+            List out = new ArrayList();
+            assertEquals(6, queue.dequeue(out, 6));
+            for (int i = 0; i < out.size(); i++) {
+                assertEquals(expected++, ((TestEvent) out.get(i)).seq);
+            }
+            IElement[] array = new IElement[3];
+            assertEquals(3, queue.dequeue(array, 3));
+            for (int i = 0; i < array.length; i++) {
+                assertEquals(expected++, ((TestEvent) array[i]).seq);
+            }
+        }
+        List rest = new ArrayList();
+        int n = queue.dequeueAll(rest);
+        assertEquals(next - expected, n);
+        for (int i = 0; i < n; i++) {
+            assertEquals(expected++, ((TestEvent) rest.get(i)).seq);
+        }
+        assertEquals(0, queue.size());
+        assertNull(queue.dequeue());
+        assertNull(queue.peek());
+    }
+
+    @Test
+    public void testCapacity() throws Exception {
+        SegmentedArrayBlockingQueue queue = new SegmentedArrayBlockingQueue(4, 10);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(queue.enqueueLossy(new TestEvent(i)));
+        }
+        assertFalse(queue.enqueueLossy(new TestEvent(10)));
+        try {
+            queue.enqueue(new TestEvent(10));
+            fail("Expected SinkFullException");
+        } catch (SinkFullException e) {
+            // expected
+        }
+        assertEquals(10, queue.size());
+
+        queue.dequeue();
+        List two = new ArrayList();
+        two.add(new TestEvent(10));
+        two.add(new TestEvent(11));
+        try {
+            queue.enqueueMany(two);
+            fail("Expected SinkFullException");
+        } catch (SinkFullException e) {
+            // enqueueMany is all or nothing
+        }
+        assertEquals(9, queue.size());
+
+        queue.setCapacity(11);
+        queue.enqueueMany(two);
+        assertEquals(11, queue.size());
+    }
+
+    @Test
+    public void testPreparedEnqueueHoldsCapacity() throws Exception {
+        SegmentedArrayBlockingQueue queue = new SegmentedArrayBlockingQueue(4, 3);
+        List two = new ArrayList();
+        two.add(new TestEvent(0));
+        two.add(new TestEvent(1));
+        ITransaction txn = queue.enqueuePrepare(two);
+        assertEquals(0, queue.size());
+        assertTrue(queue.enqueueLossy(new TestEvent(2)));
+        assertFalse(queue.enqueueLossy(new TestEvent(3)));
+        txn.abort();
+        assertTrue(queue.enqueueLossy(new TestEvent(3)));
+
+        queue.dequeueAll(new ArrayList());
+        txn = queue.enqueuePrepare(two);
+        txn.commit();
+        assertEquals(2, queue.size());
+        assertEquals(0, ((TestEvent) queue.dequeue()).seq);
+    }
+
+    @Test
+    public void testBlockingDequeueTimesOut() throws Exception {
+        SegmentedArrayBlockingQueue queue = new SegmentedArrayBlockingQueue();
+        assertNull(queue.blockingDequeue(0));
+        long start = System.currentTimeMillis();
+        assertNull(queue.blockingDequeue(50));
+        assertTrue(System.currentTimeMillis() - start >= 45);
+        assertEquals(0, queue.blockingDequeue(new ArrayList(), 20, 10));
+    }
+
+    @Test
+    public void testBlockingDequeueWakesUp() throws Exception {
+        final SegmentedArrayBlockingQueue queue = new SegmentedArrayBlockingQueue();
+        final AtomicReference taken = new AtomicReference();
+        final CountDownLatch started = new CountDownLatch(1);
+        Thread consumer = new Thread() {
+            public void run() {
+                try {
+                    started.countDown();
+                    taken.set(queue.blockingDequeue(-1));
+                } catch (InterruptedException e) {
+                    // test fails below
+                }
+            }
+        };
+        consumer.start();
+        started.await();
+        Thread.sleep(50);
+        TestEvent event = new TestEvent(0);
+        queue.enqueue(event);
+        consumer.join(5000);
+        assertFalse(consumer.isAlive());
+        assertSame(event, taken.get());
+    }
+
+    @Test
+    public void testBlockingEnqueueWaitsForSpace() throws Exception {
+        final SegmentedArrayBlockingQueue queue = new SegmentedArrayBlockingQueue(4, 1);
+        queue.enqueue(new TestEvent(0));
+        assertFalse(queue.enqueueLossy(new TestEvent(1), 30));
+
+        Thread producer = new Thread() {
+            public void run() {
+                try {
+                    queue.blockingEnqueue(new TestEvent(1));
+                } catch (InterruptedException e) {
+                    // test fails below
+                }
+            }
+        };
+        producer.start();
+        Thread.sleep(50);
+        assertTrue(producer.isAlive());
+        assertEquals(0, ((TestEvent) queue.dequeue()).seq);
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertEquals(1, ((TestEvent) queue.dequeue()).seq);
+    }
+
+    @Test
+    public void testTrimToSizeKeepsContents() throws Exception {
+        SegmentedArrayBlockingQueue queue = new SegmentedArrayBlockingQueue(4, Integer.MAX_VALUE);
+        for (int i = 0; i < 20; i++) {
+            queue.enqueue(new TestEvent(i));
+        }
+        for (int i = 0; i < 10; i++) {
+            queue.dequeue();
+        }
+        queue.trimToSize();
+        for (int i = 20; i < 30; i++) {
+            queue.enqueue(new TestEvent(i));
+        }
+        for (int i = 10; i < 30; i++) {
+            assertEquals(i, ((TestEvent) queue.dequeue()).seq);
+        }
+        assertNull(queue.dequeue());
+    }
+
+    @Test
+    public void testConcurrentProducersAndConsumers() throws Exception {
+        final int producers = 4;
+        final int consumers = 4;
+        final int perProducer = 50000;
+        final SegmentedArrayBlockingQueue queue = new SegmentedArrayBlockingQueue(8, 64);
+        final AtomicInteger received = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final int[][] last = new int[consumers][producers];
+
+        Thread[] threads = new Thread[producers + consumers];
+        for (int p = 0; p < producers; p++) {
+            final int id = p;
+            threads[p] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < perProducer; i++) {
+                            queue.blockingEnqueue(new TestEvent(id, i));
+                        }
+                    } catch (InterruptedException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+        }
+        for (int c = 0; c < consumers; c++) {
+            final int[] seen = last[c];
+            threads[producers + c] = new Thread() {
+                public void run() {
+                    java.util.Arrays.fill(seen, -1);
+                    List batch = new ArrayList();
+                    try {
+                        while (received.get() < producers * perProducer) {
+                            batch.clear();
+                            int n = queue.blockingDequeue(batch, 10, 16);
+                            for (int i = 0; i < n; i++) {
+                                TestEvent e = (TestEvent) batch.get(i);
+                                // each consumer sees a producer's events in order
+                                if (e.seq <= seen[e.producer]) {
+                                    failures.incrementAndGet();
+                                }
+                                seen[e.producer] = e.seq;
+                            }
+                            received.addAndGet(n);
+                        }
+                    } catch (InterruptedException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join(30000);
+            assertFalse(threads[i].isAlive());
+        }
+        assertEquals(0, failures.get());
+        assertEquals(producers * perProducer, received.get());
+        assertEquals(0, queue.size());
+    }
+
+    private static final class TestEvent implements IElement {
+        final int producer;
+        final int seq;
+
+        TestEvent(int seq) {
+            this(0, seq);
+        }
+
+        TestEvent(int producer, int seq) {
+            this.producer = producer;
+            this.seq = seq;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package levin.learn.seda.jcyclone.rtc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jcyclone.core.queue.DynamicArrayBlockingQueue;
+import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.rtc.MulticlassRateLimitingPredicate;
+import org.jcyclone.core.rtc.RateLimitingPredicate;
+import org.jcyclone.core.rtc.TokenBucket;
+import org.junit.Test;
+
+public class TokenBucketTest {
+    private static final IElement EVENT = new IElement() { };
+
+    // slow enough that no token comes back while a test runs
+    private static final double SLOW = 0.001;
+
+    @Test
+    public void testFullBucketGrantsDepth() {
+        TokenBucket bucket = new TokenBucket(SLOW, 10);
+        assertEquals(10, bucket.available());
+        assertTrue(bucket.tryAcquire(4));
+        assertTrue(bucket.tryAcquire(6));
+        assertFalse(bucket.tryAcquire(1));
+        assertEquals(0, bucket.available());
+
+        bucket.release(3);
+        assertEquals(3, bucket.available());
+        assertFalse(bucket.tryAcquire(4));
+        assertTrue(bucket.tryAcquire(3));
+    }
+
+    @Test
+    public void testNoLimitAndZeroRate() throws Exception {
+        TokenBucket unlimited = new TokenBucket(-1.0, 1);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(unlimited.tryAcquire(5));
+        }
+        assertTrue(unlimited.acquire(100, 0));
+
+        TokenBucket closed = new TokenBucket(0.0, 10);
+        assertEquals(0, closed.available());
+        assertFalse(closed.tryAcquire(1));
+        assertFalse(closed.acquire(1, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testMoreThanDepthIsNeverGranted() {
+        TokenBucket bucket = new TokenBucket(1.0e6, 4);
+        assertFalse(bucket.tryAcquire(5));
+        assertFalse(bucket.acquire(5, Long.MAX_VALUE));
+        assertTrue(bucket.tryAcquire(4));
+    }
+
+    @Test
+    public void testTokensRegenerate() throws Exception {
+        TokenBucket bucket = new TokenBucket(1000.0, 10);
+        bucket.drain();
+        assertFalse(bucket.tryAcquire(10));
+        Thread.sleep(30);
+        // never more than the depth however long it waited
+        assertEquals(10, bucket.available());
+        assertTrue(bucket.tryAcquire(10));
+    }
+
+    @Test
+    public void testAcquireWaitsForTokens() {
+        TokenBucket bucket = new TokenBucket(100.0, 1);
+        bucket.drain();
+        // the next token is 10 msec away
+        assertFalse(bucket.acquire(1, 1000000L));
+        long start = System.nanoTime();
+        assertTrue(bucket.acquire(1, 1000000000L));
+        long waited = System.nanoTime() - start;
+        assertTrue("waited " + waited, waited >= 5000000L);
+        assertTrue("waited " + waited, waited < 1000000000L);
+    }
+
+    @Test
+    public void testConcurrentCallersNeverOvershoot() throws Exception {
+        final TokenBucket bucket = new TokenBucket(SLOW, 1000);
+        final AtomicInteger granted = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        if (bucket.tryAcquire(1)) granted.incrementAndGet();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (int t = 0; t < threads.length; t++) {
+            threads[t].join();
+        }
+        assertEquals(1000, granted.get());
+        assertEquals(0, bucket.available());
+    }
+
+    @Test
+    public void testAcceptManyIsAllOrNothing() {
+        RateLimitingPredicate pred = new RateLimitingPredicate(new DynamicArrayBlockingQueue(), SLOW, 3);
+        List two = new ArrayList();
+        two.add(EVENT);
+        two.add(EVENT);
+        assertTrue(pred.acceptMany(two));
+        assertFalse(pred.acceptMany(two));
+        assertTrue(pred.accept(EVENT));
+        assertFalse(pred.accept(EVENT));
+        assertEquals(3, pred.getAcceptCount());
+        assertEquals(3, pred.getRejectCount());
+    }
+
+    @Test
+    public void testBlockingAcceptIsTheSameForBothPredicates() {
+        RateLimitingPredicate single = new RateLimitingPredicate(new DynamicArrayBlockingQueue(), 0.0, 1);
+        MulticlassRateLimitingPredicate multi =
+            new MulticlassRateLimitingPredicate(new DynamicArrayBlockingQueue(), 2, 0.0, 1);
+        // a bucket which can never grant a token does not hang the caller
+        single.blockingAccept(EVENT);
+        multi.blockingAccept(EVENT);
+        assertFalse(single.blockingAccept(EVENT, 10));
+        assertFalse(multi.blockingAccept(EVENT, 10));
+
+        single.setTargetRate(100.0);
+        multi.setTargetRate(0, 100.0);
+        single.getBucket().drain();
+        multi.getBucket(0).drain();
+        long start = System.nanoTime();
+        single.blockingAccept(EVENT);
+        multi.blockingAccept(EVENT);
+        assertTrue(System.nanoTime() - start >= 10000000L);
+        assertEquals(1, single.getAcceptCount());
+        assertEquals(1, multi.getAcceptCount(0));
+    }
+}
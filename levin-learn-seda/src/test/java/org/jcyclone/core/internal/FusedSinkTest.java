@@ -0,0 +1,276 @@
+package org.jcyclone.core.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jcyclone.core.cfg.IConfigData;
+import org.jcyclone.core.cfg.JCycloneConfig;
+import org.jcyclone.core.handler.EventHandlerException;
+import org.jcyclone.core.handler.IEventHandler;
+import org.jcyclone.core.handler.ISingleThreadedEventHandler;
+import org.jcyclone.core.profiler.JCycloneProfiler;
+import org.jcyclone.core.queue.DynamicArrayBlockingQueue;
+import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.rtc.IAdmissionControlledSink;
+import org.jcyclone.core.stage.IStage;
+import org.jcyclone.core.stage.IStageManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FusedSinkTest {
+    private static final IElement EVENT = new IElement() { };
+
+    private final JCycloneConfig config = new JCycloneConfig();
+    private final IStageManager mgr = (IStageManager) fake(IStageManager.class, new Handler("mgr"));
+    private JCycloneProfiler profiler;
+
+    private TestStage upstream;
+    private TestStage downstream;
+    private FusedSink sink;
+
+    @Before
+    public void setUp() {
+        config.putString("stages.down.fusion.enable", "true");
+        config.putString("stages.last.fusion.enable", "true");
+        profiler = new JCycloneProfiler(mgr);
+        upstream = new TestStage("up");
+        downstream = new TestStage("down");
+        sink = new FusedSink(downstream.queue, mgr, downstream.wrapper);
+    }
+
+    @After
+    public void tearDown() {
+        assertNull(FusedSink.currentStage());
+    }
+
+    @Test
+    public void testQueuesOutsideAStage() throws Exception {
+        sink.enqueue(EVENT);
+        assertEquals(1, downstream.queue.size());
+        assertEquals(0, downstream.handled.size());
+    }
+
+    @Test
+    public void testRunsInlineUnderTheCallingStage() throws Exception {
+        FusedSink.enterStage(upstream.wrapper);
+        try {
+            sink.enqueue(EVENT);
+            List list = new ArrayList();
+            list.add(EVENT);
+            list.add(EVENT);
+            sink.enqueueMany(list);
+            assertTrue(sink.enqueueLossy(EVENT));
+            assertSame(upstream.wrapper, FusedSink.currentStage());
+        } finally {
+            FusedSink.leaveStage();
+        }
+        assertEquals(0, downstream.queue.size());
+        assertEquals(4, downstream.handled.size());
+        assertSame(downstream.wrapper, downstream.runningAs.get(0));
+        assertEquals(4, downstream.stats.getTotalEvents());
+        assertEquals(4, downstream.stats.getServiceTime().getCount());
+
+        // the stage graph learns the edge from the stage, not the thread
+        StageGraphEdge[] edges = profiler.getGraphProfiler().getEdges();
+        assertEquals(1, edges.length);
+        assertSame(upstream.wrapper, edges[0].fromStage);
+        assertSame(downstream.wrapper, edges[0].toStage);
+    }
+
+    @Test
+    public void testCallerIsTheStageNotTheThread() throws Exception {
+        // a shared pool thread last seen running the upstream stage
+        profiler.getGraphProfiler().addThread(Thread.currentThread(), upstream.wrapper);
+        sink.enqueue(EVENT);
+        assertEquals(1, downstream.queue.size());
+        downstream.queue.dequeue();
+
+        // and now running the stage itself
+        FusedSink.enterStage(downstream.wrapper);
+        try {
+            sink.enqueue(EVENT);
+        } finally {
+            FusedSink.leaveStage();
+        }
+        assertEquals(1, downstream.queue.size());
+        assertEquals(0, downstream.handled.size());
+    }
+
+    @Test
+    public void testQueuedEventsKeepOrder() throws Exception {
+        downstream.queue.enqueue(EVENT);
+        FusedSink.enterStage(upstream.wrapper);
+        try {
+            sink.enqueue(EVENT);
+        } finally {
+            FusedSink.leaveStage();
+        }
+        assertEquals(2, downstream.queue.size());
+        assertEquals(0, downstream.handled.size());
+    }
+
+    @Test
+    public void testMaxDepth() throws Exception {
+        config.putString("global.fusion.maxDepth", "1");
+        TestStage last = new TestStage("last");
+        final FusedSink lastSink = new FusedSink(last.queue, mgr, last.wrapper);
+        downstream = new TestStage("down") {
+            public void handle(IElement elem) throws EventHandlerException {
+                super.handle(elem);
+                lastSink.enqueueLossy(elem);
+            }
+        };
+        sink = new FusedSink(downstream.queue, mgr, downstream.wrapper);
+
+        FusedSink.enterStage(upstream.wrapper);
+        try {
+            sink.enqueue(EVENT);
+        } finally {
+            FusedSink.leaveStage();
+        }
+        assertEquals(1, downstream.handled.size());
+        assertEquals(0, last.handled.size());
+        assertEquals(1, last.queue.size());
+    }
+
+    @Test
+    public void testHandlerExceptionIsReported() throws Exception {
+        downstream = new TestStage("down") {
+            public void handle(IElement elem) throws EventHandlerException {
+                super.handle(elem);
+                throw new IllegalStateException("expected");
+            }
+        };
+        sink = new FusedSink(downstream.queue, mgr, downstream.wrapper);
+
+        FusedSink.enterStage(upstream.wrapper);
+        try {
+            // accepted like a batch a scheduler ran, not queued again
+            sink.enqueue(EVENT);
+            assertSame(upstream.wrapper, FusedSink.currentStage());
+        } finally {
+            FusedSink.leaveStage();
+        }
+        assertEquals(1, downstream.handled.size());
+        assertEquals(0, downstream.queue.size());
+    }
+
+    @Test
+    public void testSingleThreadedHandlerIsNeverFused() throws Exception {
+        downstream = new TestStage("down");
+        downstream.singleThreaded = true;
+        sink = new FusedSink(downstream.queue, mgr, downstream.wrapper);
+        assertFalse(sink.isFused());
+
+        FusedSink.enterStage(upstream.wrapper);
+        try {
+            sink.enqueue(EVENT);
+            assertTrue(sink.enqueueLossy(EVENT));
+        } finally {
+            FusedSink.leaveStage();
+        }
+        assertEquals(2, downstream.queue.size());
+        assertEquals(0, downstream.handled.size());
+    }
+
+    /**
+     * A stage whose handler records what it ran and on behalf of which
+     * stage.
+     */
+    private class TestStage {
+        final DynamicArrayBlockingQueue queue = new DynamicArrayBlockingQueue();
+        final ConcurrentStageStats stats = new ConcurrentStageStats(null);
+        final List handled = new ArrayList();
+        final List runningAs = new ArrayList();
+        final IStageWrapper wrapper;
+        boolean singleThreaded;
+
+        TestStage(String name) {
+            Handler h = new Handler(name);
+            h.stage = this;
+            wrapper = (IStageWrapper) fake(IStageWrapper.class, h);
+        }
+
+        public void handle(IElement elem) throws EventHandlerException {
+            handled.add(elem);
+            runningAs.add(FusedSink.currentStage());
+        }
+    }
+
+    private class Handler implements InvocationHandler {
+        final String name;
+        TestStage stage;
+
+        Handler(String name) {
+            this.name = name;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String m = method.getName();
+            if (m.equals("getName") || m.equals("toString")) return name;
+            if (m.equals("hashCode")) return Integer.valueOf(System.identityHashCode(proxy));
+            if (m.equals("equals")) return Boolean.valueOf(proxy == args[0]);
+            if (m.equals("getConfig")) return config;
+            if (m.equals("getProfiler")) return profiler;
+            if (m.equals("getStage")) return proxy;
+            if (m.equals("getSource")) return stage.queue;
+            if (m.equals("getStats")) return stage.stats;
+            if (m.equals("getSink")) return fake(IAdmissionControlledSink.class, this);
+            if (m.equals("getEnqueuePredicate")) return null;
+            if (m.equals("getEventHandler")) {
+                if (stage.singleThreaded) {
+                    return new ISingleThreadedEventHandler() {
+                        public void handleEvent(IElement elem) throws EventHandlerException {
+                            stage.handle(elem);
+                        }
+
+                        public void handleEvents(List events) throws EventHandlerException {
+                            for (int i = 0; i < events.size(); i++) {
+                                stage.handle((IElement) events.get(i));
+                            }
+                        }
+
+                        public void init(IConfigData config) throws Exception {
+                        }
+
+                        public void destroy() throws Exception {
+                        }
+                    };
+                }
+                return new IEventHandler() {
+                    public void handleEvent(IElement elem) throws EventHandlerException {
+                        stage.handle(elem);
+                    }
+
+                    public void handleEvents(List events) throws EventHandlerException {
+                        for (int i = 0; i < events.size(); i++) {
+                            stage.handle((IElement) events.get(i));
+                        }
+                    }
+
+                    public void init(IConfigData config) throws Exception {
+                    }
+
+                    public void destroy() throws Exception {
+                    }
+                };
+            }
+            throw new UnsupportedOperationException(m);
+        }
+    }
+
+    private Object fake(Class iface, InvocationHandler handler) {
+        Class[] ifaces = (iface == IStageWrapper.class) ? new Class[] { iface, IStage.class } : new Class[] { iface };
+        return Proxy.newProxyInstance(getClass().getClassLoader(), ifaces, handler);
+    }
+}
@@ -0,0 +1,77 @@
+package org.jcyclone.core.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.queue.SegmentedArrayBlockingQueue;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NullBatchSorterTest {
+    private final SegmentedArrayBlockingQueue queue = new SegmentedArrayBlockingQueue();
+    private final NullBatchSorter sorter = new NullBatchSorter();
+
+    @Before
+    public void setUp() {
+        IStageWrapper stage = (IStageWrapper) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[] { IStageWrapper.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getSource")) return queue;
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        sorter.init(stage, null);
+    }
+
+    @Test
+    public void testBatchesAreCappedAtTheBufferCapacity() throws Exception {
+        Event[] events = enqueue(EventBatch.DEFAULT_CAPACITY * 2 + 10);
+        EventBatch buffer = new EventBatch();
+
+        int next = 0;
+        for (int expected : new int[] { EventBatch.DEFAULT_CAPACITY, EventBatch.DEFAULT_CAPACITY, 10 }) {
+            assertSame(buffer, sorter.nextBatch(buffer, 0));
+            assertEquals(expected, buffer.count());
+            // events are released in the order they were queued
+            for (int i = 0; i < expected; i++) {
+                assertSame(events[next++], buffer.getBatch().get(i));
+            }
+            buffer.batchDone();
+        }
+        assertEquals(0, queue.size());
+        assertNull(sorter.nextBatch(buffer, 0));
+    }
+
+    @Test
+    public void testBlockingBatchIsCappedToo() throws Exception {
+        enqueue(25);
+        EventBatch buffer = new EventBatch(10);
+        assertSame(buffer, sorter.nextBatch(buffer, 100));
+        assertEquals(10, buffer.count());
+        buffer.batchDone();
+        sorter.nextBatch(buffer, 100);
+        assertEquals(10, buffer.count());
+        buffer.batchDone();
+        sorter.nextBatch(buffer, 100);
+        assertEquals(5, buffer.count());
+        assertEquals(0, queue.size());
+    }
+
+    private Event[] enqueue(int num) throws Exception {
+        Event[] events = new Event[num];
+        for (int i = 0; i < num; i++) {
+            events[i] = new Event();
+            queue.enqueue(events[i]);
+        }
+        return events;
+    }
+
+    private static class Event implements IElement {
+    }
+}
@@ -0,0 +1,122 @@
+package org.jcyclone.core.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.BitSet;
+
+import org.jcyclone.core.cfg.JCycloneConfig;
+import org.jcyclone.core.stage.IStage;
+import org.jcyclone.core.stage.IStageManager;
+import org.junit.Test;
+
+public class StagePlacementTest {
+    private final JCycloneConfig config = new JCycloneConfig();
+    private final IStageManager mgr = (IStageManager) fake(IStageManager.class, "mgr");
+    private final BitSet[] groups = { CpuAffinity.parseCpuList("0-1"), CpuAffinity.parseCpuList("2-3") };
+
+    @Test
+    public void testCpuList() {
+        BitSet cpus = CpuAffinity.parseCpuList(" 0-3, 8,10-11 ");
+        assertEquals(7, cpus.cardinality());
+        assertEquals("0-3,8,10-11", CpuAffinity.toCpuList(cpus));
+        assertEquals(0, CpuAffinity.parseCpuList("").cardinality());
+        try {
+            CpuAffinity.parseCpuList("3-1");
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testExplicitCpus() {
+        config.putString("stages.pinned.threadPool.cpus", "5,7");
+        StagePlacement placement = new StagePlacement(mgr, groups);
+        IStageWrapper pinned = stage("pinned");
+        assertEquals("5,7", CpuAffinity.toCpuList(placement.register(pinned, pool(pinned))));
+    }
+
+    @Test
+    public void testNewStagesGoToLeastLoadedGroup() {
+        StagePlacement placement = new StagePlacement(mgr, groups);
+        IStageWrapper a = stage("a"), b = stage("b"), c = stage("c");
+        assertSame(groups[0], placement.register(a, pool(a)));
+        assertSame(groups[1], placement.register(b, pool(b)));
+        assertSame(groups[0], placement.register(c, pool(c)));
+    }
+
+    @Test
+    public void testDeregisterReleasesLoad() {
+        StagePlacement placement = new StagePlacement(mgr, groups);
+        IStageWrapper a = stage("a"), b = stage("b"), c = stage("c"), d = stage("d"), e = stage("e");
+        ThreadPool pa = pool(a), pc = pool(c);
+        placement.register(a, pa);
+        placement.register(b, pool(b));
+        placement.register(c, pc);
+        // a and c share group 0; once both are gone it is the emptier one
+        placement.deregister(a, pa);
+        placement.deregister(a, pa);
+        placement.deregister(c, pc);
+        assertSame(groups[0], placement.register(d, pool(d)));
+
+        // a comes back on its old group and counts again
+        assertSame(groups[0], placement.register(a, pool(a)));
+        assertSame(groups[1], placement.register(e, pool(e)));
+    }
+
+    @Test
+    public void testEdgeMergesPipelineOntoLargerGroup() {
+        StagePlacement placement = new StagePlacement(mgr, groups);
+        IStageWrapper a = stage("a"), b = stage("b"), c = stage("c");
+        ThreadPool pa = pool(a), pb = pool(b), pc = pool(c);
+        pa.setCpus(placement.register(a, pa));
+        pb.setCpus(placement.register(b, pb));
+        pc.setCpus(placement.register(c, pc));
+        assertSame(groups[0], pa.getCpus());
+        assertSame(groups[1], pb.getCpus());
+
+        // a and c form the larger pipeline on group 0; b joins them
+        placement.edgeAdded(edge(a, c));
+        placement.edgeAdded(edge(c, b));
+        assertSame(groups[0], pb.getCpus());
+
+        // with everything on group 0, a new stage goes to group 1
+        IStageWrapper d = stage("d");
+        assertSame(groups[1], placement.register(d, pool(d)));
+    }
+
+    private StageGraphEdge edge(IStageWrapper from, IStageWrapper to) {
+        StageGraphEdge edge = new StageGraphEdge();
+        edge.fromStage = from;
+        edge.toStage = to;
+        return edge;
+    }
+
+    private ThreadPool pool(IStageWrapper stage) {
+        return new ThreadPool(stage, mgr, null, 1);
+    }
+
+    private IStageWrapper stage(String name) {
+        return (IStageWrapper) fake(IStageWrapper.class, name);
+    }
+
+    private Object fake(Class iface, final String name) {
+        return Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { iface, IStage.class },
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String m = method.getName();
+                        if (m.equals("getName") || m.equals("toString")) return name;
+                        if (m.equals("getStage")) return proxy;
+                        if (m.equals("getConfig")) return config;
+                        if (m.equals("hashCode")) return Integer.valueOf(System.identityHashCode(proxy));
+                        if (m.equals("equals")) return Boolean.valueOf(proxy == args[0]);
+                        throw new UnsupportedOperationException(m);
+                    }
+                });
+    }
+}
@@ -0,0 +1,65 @@
+package org.jcyclone.core.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.jcyclone.core.cfg.JCycloneConfig;
+import org.junit.Test;
+
+public class ThreadPoolControllerTest {
+    @Test
+    public void testThresholdIsTheDefault() {
+        JCycloneConfig config = new JCycloneConfig();
+        assertEquals(JCycloneConfig.SIZECTL_THRESHOLD, config.getString("global.threadPool.sizeController.type"));
+    }
+
+    @Test
+    public void testBusyThreadsByLittlesLaw() {
+        // 40 events/sec at 1/8 sec each keep 5 threads busy, plus 25% headroom
+        assertEquals(7, ThreadPoolController.littlesLawThreads(40, 0.125, 0, 0.25, 500, 0, 0));
+        assertEquals(5, ThreadPoolController.littlesLawThreads(40, 0.125, 0, 0.0, 500, 0, 0));
+    }
+
+    @Test
+    public void testBacklogDrainsWithinDelayTarget() {
+        // 100 queued events of 1/8 sec need 25 threads to go in 500 msec
+        assertEquals(25, ThreadPoolController.littlesLawThreads(0, 0.125, 100, 0.25, 500, 0, 0));
+        assertEquals(32, ThreadPoolController.littlesLawThreads(40, 0.125, 100, 0.25, 500, 0, 0));
+        // a looser target needs fewer
+        assertEquals(13, ThreadPoolController.littlesLawThreads(0, 0.125, 100, 0.25, 1000, 0, 0));
+    }
+
+    @Test
+    public void testThreadsStayWithinPoolBounds() {
+        assertEquals(1, ThreadPoolController.littlesLawThreads(0, 0.0, 0, 0.2, 100, 0, 0));
+        assertEquals(3, ThreadPoolController.littlesLawThreads(0, 0.125, 0, 0.2, 100, 3, 0));
+        assertEquals(10, ThreadPoolController.littlesLawThreads(40, 0.125, 100, 0.25, 500, 1, 10));
+    }
+
+    @Test
+    public void testBudgetSharedInProportionToDemand() {
+        int[] mins = { 1, 8 };
+        // minimums first, then the other 11 threads by demand above them
+        assertArrayEquals(new int[] { 11, 8 }, ThreadPoolController.shareBudget(new int[] { 30, 10 }, mins, 20));
+        assertArrayEquals(new int[] { 30, 10 }, ThreadPoolController.shareBudget(new int[] { 30, 10 }, mins, 40));
+        assertArrayEquals(new int[] { 30, 10 }, ThreadPoolController.shareBudget(new int[] { 30, 10 }, mins, 0));
+        assertArrayEquals(new int[] { 5, 5, 9 }, ThreadPoolController.shareBudget(new int[] { 10, 10, 20 }, new int[3], 20));
+    }
+
+    @Test
+    public void testBudgetIsNeverExceededAboveTheMinimums() {
+        int[] mins = { 1, 8, 2 };
+        for (int budget = 11; budget < 60; budget++) {
+            int[] targets = ThreadPoolController.shareBudget(new int[] { 30, 12, 17 }, mins, budget);
+            int total = 0;
+            for (int i = 0; i < targets.length; i++) {
+                assertTrue(targets[i] >= mins[i]);
+                total += targets[i];
+            }
+            assertTrue("budget " + budget + " got " + total, total <= budget);
+        }
+        // only minimums which alone exceed the budget overrun it
+        assertArrayEquals(new int[] { 1, 8 }, ThreadPoolController.shareBudget(new int[] { 1, 1 }, new int[] { 1, 8 }, 1));
+    }
+}
@@ -0,0 +1,113 @@
+package org.jcyclone.core.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jcyclone.core.cfg.IConfigData;
+import org.jcyclone.core.cfg.JCycloneConfig;
+import org.jcyclone.core.handler.IEventHandler;
+import org.jcyclone.core.queue.DynamicArrayBlockingQueue;
+import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.queue.ISource;
+import org.jcyclone.core.queue.SegmentedArrayBlockingQueue;
+import org.jcyclone.core.stage.IStage;
+import org.jcyclone.core.stage.IStageManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WSSchedulerTest {
+    private static final IElement EVENT = new IElement() { };
+
+    private final JCycloneConfig config = new JCycloneConfig();
+    private final CountDownLatch handled = new CountDownLatch(1);
+    private WSScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        // long enough that a stage found by polling would time the test out
+        config.putString("global.threadPool.blockTime", "60000");
+        config.putString("global.WSTM.numThreads", "2");
+        IStageManager mgr = (IStageManager) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[] { IStageManager.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getConfig")) return config;
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        scheduler = new WSScheduler(mgr);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.deregisterAll();
+    }
+
+    @Test
+    public void testRejectsSourceThatCannotNotify() {
+        try {
+            scheduler.register(wrapper("array", new DynamicArrayBlockingQueue()));
+            fail("registered a stage whose queue never notifies the scheduler");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testIdleWorkersWakeOnEnqueue() throws Exception {
+        SegmentedArrayBlockingQueue queue = new SegmentedArrayBlockingQueue();
+        scheduler.register(wrapper("segmented", queue));
+
+        // let both workers find nothing and park
+        Thread.sleep(100);
+        long start = System.currentTimeMillis();
+        queue.enqueue(EVENT);
+        assertTrue("stage not run after enqueue", handled.await(5, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertEquals(0, queue.size());
+    }
+
+    private IStageWrapper wrapper(final String name, final ISource queue) {
+        final ConcurrentStageStats stats = new ConcurrentStageStats(null);
+        final IEventHandler handler = new IEventHandler() {
+            public void handleEvent(IElement elem) {
+                handled.countDown();
+            }
+
+            public void handleEvents(List events) {
+                for (int i = 0; i < events.size(); i++) {
+                    handled.countDown();
+                }
+            }
+
+            public void init(IConfigData config) {
+            }
+
+            public void destroy() {
+            }
+        };
+        return (IStageWrapper) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[] { IStageWrapper.class, IStage.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String m = method.getName();
+                        if (m.equals("getName") || m.equals("toString")) return name;
+                        if (m.equals("hashCode")) return Integer.valueOf(System.identityHashCode(proxy));
+                        if (m.equals("equals")) return Boolean.valueOf(proxy == args[0]);
+                        if (m.equals("getStage")) return proxy;
+                        if (m.equals("getSource")) return queue;
+                        if (m.equals("getEventHandler")) return handler;
+                        if (m.equals("getStats")) return stats;
+                        if (m.equals("getResponseTimeController")) return null;
+                        if (m.equals("getBatchSorter")) return null;
+                        throw new UnsupportedOperationException(m);
+                    }
+                });
+    }
+}
@@ -0,0 +1,142 @@
+package org.jcyclone.core.profiler;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jcyclone.core.cfg.JCycloneConfig;
+import org.jcyclone.core.stage.IStageManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RingFileProfilerHandlerTest {
+    private static final int RECORDS = 10;
+
+    private final JCycloneConfig config = new JCycloneConfig();
+    private final RingFileProfilerHandler handler = new RingFileProfilerHandler();
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("profile", ".ring");
+        config.putString("global.profile.ringfile.filename", file.getPath());
+        config.putInt("global.profile.ringfile.records", RECORDS);
+        config.putInt("global.profile.ringfile.columns", 3);
+        IStageManager mgr = (IStageManager) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[] { IStageManager.class }, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getConfig")) return config;
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        handler.init(mgr);
+        handler.sampleDelayChanged(250);
+    }
+
+    @After
+    public void tearDown() {
+        handler.destroy();
+        file.delete();
+    }
+
+    @Test
+    public void testReadsBackPastTheWrap() throws Exception {
+        handler.profilableAdded("a");
+        handler.profilableAdded("b,c");
+        // 2.5 times round the ring; sample i holds i and -i
+        for (int i = 0; i < 25; i++) {
+            handler.profilablesSnapshot(new int[] { i, -i });
+        }
+
+        String[] lines = readCSV();
+        assertEquals(1 + RECORDS, lines.length);
+        assertEquals("time,a,\"b,c\"", lines[0]);
+        long lastTime = 0;
+        for (int n = 0; n < RECORDS; n++) {
+            int i = 25 - RECORDS + n;
+            String[] fields = lines[1 + n].split(",", -1);
+            assertEquals(3, fields.length);
+            long time = Long.parseLong(fields[0]);
+            assertTrue(time >= lastTime);
+            lastTime = time;
+            assertEquals(String.valueOf(i), fields[1]);
+            assertEquals(String.valueOf(-i), fields[2]);
+        }
+    }
+
+    @Test
+    public void testColumnsFollowProfilables() throws Exception {
+        handler.profilableAdded("a");
+        handler.profilablesSnapshot(new int[] { 1 });
+        handler.profilableAdded("b");
+        handler.profilablesSnapshot(new int[] { 2, 20 });
+        handler.profilableRemoved("a");
+        handler.profilablesSnapshot(new int[] { 30 });
+        // a keeps its column when it comes back, now after b in the snapshot
+        handler.profilableAdded("a");
+        handler.profilablesSnapshot(new int[] { 40, 4 });
+        // beyond the column limit
+        handler.profilableAdded("c");
+        handler.profilableAdded("d");
+        handler.profilablesSnapshot(new int[] { 50, 5, 500, 5000 });
+
+        String[] lines = readCSV();
+        assertEquals("time,a,b,c", lines[0]);
+        assertEquals(",1,,", tail(lines[1]));
+        assertEquals(",2,20,", tail(lines[2]));
+        assertEquals(",,30,", tail(lines[3]));
+        assertEquals(",4,40,", tail(lines[4]));
+        assertEquals(",5,50,500", tail(lines[5]));
+        assertEquals(6, lines.length);
+    }
+
+    @Test
+    public void testHeader() throws Exception {
+        handler.profilableAdded("a");
+        handler.profilablesSnapshot(new int[] { 7 });
+        handler.destroy();
+
+        RingFileReader reader = new RingFileReader(file.getPath());
+        try {
+            assertArrayEquals(new String[] { "a" }, reader.getNames());
+            assertEquals(250, reader.getDelay());
+            assertEquals(1, reader.getNumSamples());
+            assertTrue(reader.getStartTime() <= System.currentTimeMillis());
+        } finally {
+            reader.close();
+        }
+    }
+
+    // Everything after the time column
+    private static String tail(String line) {
+        return line.substring(line.indexOf(','));
+    }
+
+    private String[] readCSV() throws Exception {
+        RingFileReader reader = new RingFileReader(file.getPath());
+        StringWriter out = new StringWriter();
+        try {
+            reader.writeCSV(out);
+        } finally {
+            reader.close();
+        }
+        BufferedReader in = new BufferedReader(new StringReader(out.toString()));
+        List<String> lines = new ArrayList<String>();
+        String line;
+        while ((line = in.readLine()) != null) {
+            lines.add(line);
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+}
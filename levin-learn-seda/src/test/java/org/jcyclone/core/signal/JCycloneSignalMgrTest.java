@@ -0,0 +1,185 @@
+package org.jcyclone.core.signal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jcyclone.core.cfg.JCycloneConfig;
+import org.junit.After;
+import org.junit.Test;
+
+public class JCycloneSignalMgrTest {
+    private static final int SIGNALS = 200;
+
+    private final JCycloneConfig config = new JCycloneConfig();
+    private JCycloneSignalMgr mgr;
+
+    @After
+    public void tearDown() {
+        if (mgr != null) {
+            mgr.stop();
+        }
+    }
+
+    @Test
+    public void testSerialIsTheDefault() throws Exception {
+        assertEquals(JCycloneConfig.SIGNAL_SERIAL, config.getString("global.signal.dispatch"));
+        mgr = new JCycloneSignalMgr(config);
+        Recorder[] handlers = register(3);
+        mgr.start();
+        fire(SIGNALS);
+
+        Set<String> threads = new HashSet<String>();
+        for (Recorder h : handlers) {
+            h.await(SIGNALS);
+            h.assertInOrder();
+            threads.addAll(h.threads);
+        }
+        // one publisher thread delivers to every handler
+        assertEquals(1, threads.size());
+        assertEquals(3 * SIGNALS, mgr.getDispatchCount());
+        assertEquals(0, mgr.getDropCount());
+    }
+
+    @Test
+    public void testAsyncKeepsOrderPerHandler() throws Exception {
+        config.putString("global.signal.dispatch", JCycloneConfig.SIGNAL_ASYNC);
+        config.putInt("global.signal.threads", 3);
+        mgr = new JCycloneSignalMgr(config);
+        Recorder[] handlers = register(8);
+        mgr.start();
+        fire(SIGNALS);
+
+        Set<String> threads = new HashSet<String>();
+        for (Recorder h : handlers) {
+            h.await(SIGNALS);
+            h.assertInOrder();
+            // a handler always runs on the same delivery thread
+            assertEquals(1, h.threads.size());
+            threads.addAll(h.threads);
+        }
+        assertTrue(threads.size() <= 3);
+        assertEquals(8 * SIGNALS, mgr.getDispatchCount());
+        assertEquals(0, mgr.getDropCount());
+        assertEquals(8 * SIGNALS, mgr.getDispatchLatency().getCount());
+    }
+
+    @Test
+    public void testAsyncDropsWhenTheQueueIsFull() throws Exception {
+        config.putString("global.signal.dispatch", JCycloneConfig.SIGNAL_ASYNC);
+        config.putInt("global.signal.threads", 1);
+        config.putInt("global.signal.queueSize", 5);
+        mgr = new JCycloneSignalMgr(config);
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Recorder h = new Recorder() {
+            public void handleSignal(ISignal signal) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                }
+                super.handleSignal(signal);
+            }
+        };
+        mgr.register(new Signal(0), h);
+        mgr.start();
+
+        // the first delivery holds the thread, five more fill its queue
+        mgr.fire(new Signal(0));
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i <= 8; i++) {
+            mgr.fire(new Signal(i));
+        }
+        assertEquals(3, mgr.getDropCount());
+
+        release.countDown();
+        h.await(6);
+        h.assertInOrder();
+        assertEquals(6, mgr.getDispatchCount());
+        assertEquals(3, mgr.getDropCount());
+    }
+
+    @Test
+    public void testSuperclassSignalReachesSubclassHandlers() throws Exception {
+        mgr = new JCycloneSignalMgr(config);
+        Recorder base = new Recorder();
+        Recorder sub = new Recorder();
+        mgr.register(new Signal(0), base);
+        mgr.register(new SubSignal(0), sub);
+        mgr.start();
+
+        mgr.fire(new SubSignal(0));
+        mgr.fire(new Signal(1));
+        sub.await(2);
+        sub.assertInOrder();
+        base.await(1);
+        Thread.sleep(50);
+        assertEquals(1, base.seen.size());
+        assertEquals(1, base.seen.get(0).intValue());
+    }
+
+    private Recorder[] register(int num) {
+        Recorder[] handlers = new Recorder[num];
+        for (int i = 0; i < num; i++) {
+            handlers[i] = new Recorder();
+            mgr.register(new Signal(0), handlers[i]);
+        }
+        return handlers;
+    }
+
+    private void fire(int num) {
+        for (int i = 0; i < num; i++) {
+            mgr.fire(new Signal(i));
+        }
+    }
+
+    private static class Signal implements ISignal {
+        final int seq;
+
+        Signal(int seq) {
+            this.seq = seq;
+        }
+    }
+
+    private static class SubSignal extends Signal {
+        SubSignal(int seq) {
+            super(seq);
+        }
+    }
+
+    /**
+     * Records the sequence numbers it sees and the threads it runs on.
+     */
+    private static class Recorder implements ISignalHandler {
+        final List<Integer> seen = new ArrayList<Integer>();
+        final Set<String> threads = new HashSet<String>();
+
+        public synchronized void handleSignal(ISignal signal) {
+            seen.add(((Signal) signal).seq);
+            threads.add(Thread.currentThread().getName());
+            notifyAll();
+        }
+
+        synchronized void await(int num) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (seen.size() < num) {
+                long left = deadline - System.currentTimeMillis();
+                assertTrue("got " + seen.size() + " of " + num, left > 0);
+                wait(left);
+            }
+        }
+
+        synchronized void assertInOrder() {
+            for (int i = 0; i < seen.size(); i++) {
+                assertEquals(i, seen.get(i).intValue());
+            }
+        }
+    }
+}
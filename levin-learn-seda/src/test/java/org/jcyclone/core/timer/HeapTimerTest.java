@@ -0,0 +1,245 @@
+package org.jcyclone.core.timer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.jcyclone.core.cfg.JCycloneConfig;
+import org.jcyclone.core.queue.IElement;
+import org.jcyclone.core.queue.ISink;
+import org.jcyclone.core.queue.ITransaction;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HeapTimerTest {
+    // Far enough ahead that the timer thread never fires an event by itself
+    private static final long BASE = System.currentTimeMillis() + 3600 * 1000L;
+
+    private final CollectingSink sink = new CollectingSink();
+    private HeapTimer timer;
+
+    @Before
+    public void setUp() {
+        timer = new HeapTimer();
+    }
+
+    @After
+    public void tearDown() {
+        timer.doneWithTimer();
+    }
+
+    @Test
+    public void testListTimerIsTheDefault() {
+        assertEquals(JCycloneConfig.TIMER_LIST, new JCycloneConfig().getString("global.timer.type"));
+    }
+
+    @Test
+    public void testExpiresInDeadlineOrder() {
+        Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            register(random.nextInt(10000));
+        }
+        assertEquals(1000, timer.size());
+
+        List fired = timer.expire(BASE + 10000);
+        assertEquals(1000, fired.size());
+        assertSorted(fired);
+        assertEquals(0, timer.size());
+        assertNull(timer.expire(BASE + 10000));
+    }
+
+    @Test
+    public void testExpiresOnlyDueEvents() {
+        Random random = new Random(7);
+        int due = 0;
+        for (int i = 0; i < 500; i++) {
+            int offset = random.nextInt(1000);
+            if (offset <= 400) {
+                due++;
+            }
+            register(offset);
+        }
+
+        List fired = timer.expire(BASE + 400);
+        assertEquals(due, fired.size());
+        assertSorted(fired);
+        assertTrue(((HeapTimer.TimerEvent) fired.get(fired.size() - 1)).time_millis <= BASE + 400);
+        assertEquals(500 - due, timer.size());
+
+        List rest = timer.expire(BASE + 1000);
+        assertEquals(500 - due, rest.size());
+        assertSorted(rest);
+        assertTrue(((HeapTimer.TimerEvent) rest.get(0)).time_millis > BASE + 400);
+    }
+
+    @Test
+    public void testEqualDeadlinesFireTogether() {
+        register(200);
+        List same = new ArrayList();
+        for (int i = 0; i < 50; i++) {
+            same.add(register(100));
+        }
+        register(50);
+
+        List fired = timer.expire(BASE + 50);
+        assertEquals(1, fired.size());
+
+        fired = timer.expire(BASE + 100);
+        assertEquals(50, fired.size());
+        assertEquals(new HashSet(same), new HashSet(fired));
+        assertEquals(1, timer.size());
+    }
+
+    @Test
+    public void testCancelKeepsHeapOrdered() {
+        Random random = new Random(3);
+        List events = new ArrayList();
+        for (int i = 0; i < 500; i++) {
+            events.add(register(random.nextInt(10000)));
+        }
+
+        // Cancel the current head, the last-inserted event and a random
+        // half of the rest, so removals sift both up and down
+        Set cancelled = new HashSet();
+        cancelled.add(head(events));
+        cancelled.add(events.get(events.size() - 1));
+        for (int i = 0; i < events.size(); i++) {
+            if (random.nextBoolean()) {
+                cancelled.add(events.get(i));
+            }
+        }
+        for (Object evt : cancelled) {
+            timer.cancelEvent((ITimerEvent) evt);
+        }
+        assertEquals(500 - cancelled.size(), timer.size());
+
+        List fired = timer.expire(BASE + 10000);
+        assertEquals(500 - cancelled.size(), fired.size());
+        assertSorted(fired);
+        for (int i = 0; i < fired.size(); i++) {
+            assertTrue(!cancelled.contains(fired.get(i)));
+        }
+    }
+
+    @Test
+    public void testCancelFiredOrCancelledEventIsNoOp() {
+        ITimerEvent first = register(10);
+        ITimerEvent second = register(20);
+        register(30);
+
+        timer.cancelEvent(second);
+        timer.cancelEvent(second);
+        assertEquals(2, timer.size());
+
+        List fired = timer.expire(BASE + 10);
+        assertEquals(1, fired.size());
+        assertSame(first, fired.get(0));
+        timer.cancelEvent(first);
+        timer.cancelEvent(null);
+        assertEquals(1, timer.size());
+    }
+
+    @Test
+    public void testCancelAll() {
+        List events = new ArrayList();
+        for (int i = 0; i < 100; i++) {
+            events.add(register(i));
+        }
+        timer.cancelAll();
+        assertEquals(0, timer.size());
+        assertNull(timer.expire(BASE + 100));
+
+        // Cancelling after cancelAll must not disturb new events
+        ITimerEvent evt = register(5);
+        timer.cancelEvent((ITimerEvent) events.get(0));
+        assertEquals(1, timer.size());
+        assertSame(evt, timer.expire(BASE + 5).get(0));
+    }
+
+    @Test
+    public void testFiresToSinkInOrder() throws Exception {
+        IElement late = new IElement() { };
+        IElement early = new IElement() { };
+        IElement middle = new IElement() { };
+        timer.registerEvent(90, late, sink);
+        timer.registerEvent(10, early, sink);
+        timer.registerEvent(50, middle, sink);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sink.size() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(3, sink.size());
+        assertSame(early, sink.elements.get(0));
+        assertSame(middle, sink.elements.get(1));
+        assertSame(late, sink.elements.get(2));
+        assertEquals(0, timer.size());
+    }
+
+    private ITimerEvent register(int offset) {
+        return timer.registerEvent(new Date(BASE + offset), null, sink);
+    }
+
+    private static Object head(List events) {
+        Object head = events.get(0);
+        for (int i = 1; i < events.size(); i++) {
+            if (((HeapTimer.TimerEvent) events.get(i)).time_millis < ((HeapTimer.TimerEvent) head).time_millis) {
+                head = events.get(i);
+            }
+        }
+        return head;
+    }
+
+    private static void assertSorted(List fired) {
+        for (int i = 1; i < fired.size(); i++) {
+            long prev = ((HeapTimer.TimerEvent) fired.get(i - 1)).time_millis;
+            long cur = ((HeapTimer.TimerEvent) fired.get(i)).time_millis;
+            assertTrue("event " + i + " fired before an earlier one", prev <= cur);
+        }
+    }
+
+    private static class CollectingSink implements ISink {
+        final List elements = new ArrayList();
+
+        public synchronized void enqueue(IElement element) {
+            elements.add(element);
+        }
+
+        public synchronized boolean enqueueLossy(IElement element) {
+            elements.add(element);
+            return true;
+        }
+
+        public synchronized void enqueueMany(List list) {
+            elements.addAll(list);
+        }
+
+        public ITransaction enqueuePrepare(List list) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void enqueuePrepare(List list, ITransaction txn) {
+            throw new UnsupportedOperationException();
+        }
+
+        public synchronized int size() {
+            return elements.size();
+        }
+
+        public void setCapacity(int newCapacity) {
+        }
+
+        public int capacity() {
+            return -1;
+        }
+    }
+}